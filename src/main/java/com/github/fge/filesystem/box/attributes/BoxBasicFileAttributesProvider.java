@@ -1,46 +1,38 @@
 package com.github.fge.filesystem.box.attributes;
 
-import com.box.sdk.BoxAPIException;
-import com.box.sdk.BoxFolder;
-import com.box.sdk.BoxItem;
 import com.github.fge.filesystem.attributes.provider.BasicFileAttributesProvider;
-
-
-import com.github.fge.filesystem.box.exceptions.BoxIOException;
-
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
 
 import javax.annotation.ParametersAreNonnullByDefault;
-import java.io.IOException;
 import java.nio.file.attribute.FileTime;
 
+/**
+ * Basic attributes, read from an item's cached metadata
+ *
+ * <p>No API call is made; dates which are not known are reported as the
+ * epoch.</p>
+ */
 @ParametersAreNonnullByDefault
 public final class BoxBasicFileAttributesProvider
     extends BasicFileAttributesProvider
 {
-    private final BoxItem.Info info;
-    private final boolean isFolder;
+    private final BoxItemRecord record;
 
-    public BoxBasicFileAttributesProvider(final BoxItem item)
-        throws IOException
+    public BoxBasicFileAttributesProvider(final BoxItemRecord record)
     {
-        try {
-            info = item.getInfo();
-        } catch (BoxAPIException e) {
-            throw BoxIOException.wrap(e);
-        }
-        isFolder = item instanceof BoxFolder;
+        this.record = record;
     }
 
     @Override
     public FileTime lastModifiedTime()
     {
-        return FileTime.fromMillis(info.getModifiedAt().getTime());
+        return toFileTime(record.getModifiedAt());
     }
 
     @Override
     public FileTime creationTime()
     {
-        return FileTime.fromMillis(info.getCreatedAt().getTime());
+        return toFileTime(record.getCreatedAt());
     }
 
     /**
@@ -49,7 +41,7 @@ public final class BoxBasicFileAttributesProvider
     @Override
     public boolean isRegularFile()
     {
-        return !isFolder;
+        return !record.isFolder();
     }
 
     /**
@@ -58,7 +50,7 @@ public final class BoxBasicFileAttributesProvider
     @Override
     public boolean isDirectory()
     {
-        return isFolder;
+        return record.isFolder();
     }
 
     /**
@@ -73,6 +65,12 @@ public final class BoxBasicFileAttributesProvider
     @Override
     public long size()
     {
-        return info.getSize();
+        return record.getSize();
+    }
+
+    private static FileTime toFileTime(final long millis)
+    {
+        return FileTime.fromMillis(millis == BoxItemRecord.UNKNOWN_DATE ? 0L
+            : millis);
     }
 }
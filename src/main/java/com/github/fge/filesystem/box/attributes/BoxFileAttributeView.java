@@ -0,0 +1,18 @@
+package com.github.fge.filesystem.box.attributes;
+
+import java.io.IOException;
+import java.nio.file.attribute.FileAttributeView;
+
+/**
+ * A read only view of {@link BoxFileAttributes}
+ *
+ * <p>The name of this view is {@code "box"}; its attributes are {@code id},
+ * {@code etag}, {@code sequenceId}, {@code sha1}, {@code versionNumber},
+ * {@code owner} and {@code shared}.</p>
+ */
+public interface BoxFileAttributeView
+    extends FileAttributeView
+{
+    BoxFileAttributes readAttributes()
+        throws IOException;
+}
@@ -0,0 +1,67 @@
+package com.github.fge.filesystem.box.attributes;
+
+import javax.annotation.Nullable;
+
+/**
+ * Box specific attributes of a file or folder
+ *
+ * <p>These are read from the same metadata as basic attributes: reading them
+ * does not require any extra API call.</p>
+ *
+ * @see BoxFileAttributeView
+ */
+public interface BoxFileAttributes
+{
+    /**
+     * Return the Box id of the item
+     *
+     * @return the id
+     */
+    String id();
+
+    /**
+     * Return the etag of the item
+     *
+     * @return the etag, or {@code null} if not known
+     */
+    @Nullable
+    String etag();
+
+    /**
+     * Return the sequence id of the item
+     *
+     * @return the sequence id, or {@code null} if not known
+     */
+    @Nullable
+    String sequenceId();
+
+    /**
+     * Return the SHA-1 hash of the contents of a file
+     *
+     * @return the hash, in lowercase hexadecimal, or {@code null} for folders
+     */
+    @Nullable
+    String sha1();
+
+    /**
+     * Return the version number of a file
+     *
+     * @return the version number, or {@code -1} for folders
+     */
+    long versionNumber();
+
+    /**
+     * Return the login of the owner of the item
+     *
+     * @return the login, or {@code null} if not known
+     */
+    @Nullable
+    String owner();
+
+    /**
+     * Tell whether the item has a shared link
+     *
+     * @return true if it has one
+     */
+    boolean isShared();
+}
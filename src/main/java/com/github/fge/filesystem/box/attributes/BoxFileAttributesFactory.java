@@ -1,14 +1,15 @@
 package com.github.fge.filesystem.box.attributes;
 
-import com.box.sdk.BoxItem;
 import com.github.fge.filesystem.attributes.FileAttributesFactory;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
 
 public final class BoxFileAttributesFactory
     extends FileAttributesFactory
 {
     public BoxFileAttributesFactory()
     {
-        setMetadataClass(BoxItem.class);
+        setMetadataClass(BoxItemRecord.class);
         addImplementation("basic", BoxBasicFileAttributesProvider.class);
+        addImplementation("box", BoxFileAttributesProvider.class);
     }
 }
@@ -0,0 +1,78 @@
+package com.github.fge.filesystem.box.attributes;
+
+import com.github.fge.filesystem.attributes.provider.FileAttributesProvider;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Box specific attributes, read from an item's cached metadata
+ *
+ * <p>No API call is made.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxFileAttributesProvider
+    extends FileAttributesProvider
+    implements BoxFileAttributeView, BoxFileAttributes
+{
+    private final BoxItemRecord record;
+
+    public BoxFileAttributesProvider(final BoxItemRecord record)
+    {
+        this.record = record;
+    }
+
+    @Override
+    public String name()
+    {
+        return "box";
+    }
+
+    @Override
+    public BoxFileAttributes readAttributes()
+    {
+        return this;
+    }
+
+    @Override
+    public String id()
+    {
+        return Long.toString(record.getId());
+    }
+
+    @Override
+    public String etag()
+    {
+        return record.getEtag();
+    }
+
+    @Override
+    public String sequenceId()
+    {
+        return record.getSequenceId();
+    }
+
+    @Override
+    public String sha1()
+    {
+        return record.getSha1();
+    }
+
+    @Override
+    public long versionNumber()
+    {
+        return record.getVersionNumber();
+    }
+
+    @Override
+    public String owner()
+    {
+        return record.getOwner();
+    }
+
+    @Override
+    public boolean isShared()
+    {
+        return record.isShared();
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.fge.filesystem.box.concurrent;
+
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplication of concurrent identical calls
+ *
+ * <p>When several threads call {@link #execute(Object, Callable)} with the
+ * same key at the same time, only the first one actually performs the call;
+ * the others wait for, and share, its result (or its failure). Once the call
+ * completes, the next call with this key will be performed again: results are
+ * not retained.</p>
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the results
+ */
+@ParametersAreNonnullByDefault
+public final class SingleFlight<K, V>
+{
+    private final ConcurrentMap<K, FutureTask<V>> inFlight
+        = new ConcurrentHashMap<>();
+
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Perform a call, or join an identical call in flight
+     *
+     * @param key the key identifying the call
+     * @param callable the call
+     * @return the result of the call
+     * @throws BoxIOException the call failed, or the thread was interrupted
+     * while waiting for another thread's call
+     */
+    public V execute(final K key, final Callable<V> callable)
+        throws BoxIOException
+    {
+        final FutureTask<V> task = new FutureTask<>(callable);
+        final FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+
+        if (existing != null) {
+            shared.incrementAndGet();
+            return await(existing, true);
+        }
+
+        executed.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return await(task, false);
+    }
+
+    /**
+     * Make the next call with a given key perform the call again, even if an
+     * identical call is still in flight
+     *
+     * <p>Threads which already joined the call in flight still share its
+     * result.</p>
+     *
+     * @param key the key identifying the call
+     */
+    public void forget(final K key)
+    {
+        inFlight.remove(key);
+    }
+
+    /**
+     * Return the number of calls actually performed
+     *
+     * @return the number of calls performed
+     */
+    public long getExecutedCount()
+    {
+        return executed.get();
+    }
+
+    /**
+     * Return the number of calls which joined a call already in flight
+     *
+     * @return the number of shared calls
+     */
+    public long getSharedCount()
+    {
+        return shared.get();
+    }
+
+    private static <V> V await(final FutureTask<V> task, final boolean joined)
+        throws BoxIOException
+    {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BoxIOException("interrupted while waiting for a shared "
+                + "call", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            /*
+             * Waiters get their own exception so that the stack trace shows
+             * where they were waiting from.
+             */
+            if (cause instanceof BoxIOException && !joined)
+                throw (BoxIOException) cause;
+            throw new BoxIOException(cause.getMessage(), cause);
+        }
+    }
+}
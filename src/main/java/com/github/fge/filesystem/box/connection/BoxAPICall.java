@@ -0,0 +1,20 @@
+package com.github.fge.filesystem.box.connection;
+
+import com.box.sdk.BoxAPIException;
+
+/**
+ * A call to the Box API
+ *
+ * @param <T> type of the call's result
+ * @see BoxConnectionLease#execute(BoxAPICall)
+ */
+public interface BoxAPICall<T>
+{
+    /**
+     * Perform the call
+     *
+     * @return the result
+     * @throws BoxAPIException Box API error
+     */
+    T call();
+}
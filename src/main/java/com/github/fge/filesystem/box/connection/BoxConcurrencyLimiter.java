@@ -0,0 +1,359 @@
+package com.github.fge.filesystem.box.connection;
+
+import com.box.sdk.BoxAPIException;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An adaptive bound on the number of requests in flight
+ *
+ * <p>The limit follows an additive increase, multiplicative decrease (AIMD)
+ * scheme:</p>
+ *
+ * <ul>
+ *     <li>every successful request whose limit was actually in use raises it
+ *     by {@code 1 / limit}, that is by one for a full limit's worth of
+ *     requests;</li>
+ *     <li>a request throttled by Box (HTTP 429), failing with a server error,
+ *     or failing to connect or to get a response in time halves it;</li>
+ *     <li>if the limiter is latency driven, a smoothed round-trip time rising
+ *     above a multiple of the baseline (the lowest round-trip time observed
+ *     recently) reduces it by 10%.</li>
+ * </ul>
+ *
+ * <p>Only requests of comparable costs should feed the round-trip time:
+ * requests whose cost depends on the size of their response, such as
+ * listing pages, are to be run using {@link #executeBulk(BoxAPICall)}.</p>
+ *
+ * <p>Decreases happen at most once per baseline round-trip time, so that a
+ * burst of failures from requests sent at the same limit only counts
+ * once. The limit never goes below one, nor above the maximum given at
+ * construction time.</p>
+ *
+ * @see BoxConnectionPool#getConcurrencyLimit()
+ */
+@ParametersAreNonnullByDefault
+public final class BoxConcurrencyLimiter
+{
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVER_ERROR = 500;
+
+    private static final double FAILURE_BACKOFF = 0.5;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double LATENCY_TOLERANCE = 3.0;
+    private static final double SMOOTHING = 0.2;
+    private static final int BASELINE_WINDOW = 500;
+    private static final long MIN_COOLDOWN
+        = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    private final int maxLimit;
+    private final boolean latencyDriven;
+
+    /*
+     * All guarded by this
+     */
+    private double limit;
+    private int inFlight = 0;
+    private double smoothedRtt = 0.0;
+    private long baseline = Long.MAX_VALUE;
+    private long windowMin = Long.MAX_VALUE;
+    private int windowSamples = 0;
+    private long lastDecrease;
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong decreases = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param initialLimit the initial limit
+     * @param maxLimit the maximum limit
+     * @param latencyDriven whether round-trip times should drive the limit
+     * down; this only makes sense if requests are of comparable sizes
+     */
+    public BoxConcurrencyLimiter(final int initialLimit, final int maxLimit,
+        final boolean latencyDriven)
+    {
+        if (initialLimit <= 0 || maxLimit < initialLimit)
+            throw new IllegalArgumentException("limits must be strictly "
+                + "positive, and the initial limit must not exceed the "
+                + "maximum");
+        limit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.latencyDriven = latencyDriven;
+        lastDecrease = System.nanoTime() - MIN_COOLDOWN;
+    }
+
+    /**
+     * Try and start a request, without waiting
+     *
+     * @return true if the request may proceed
+     */
+    public synchronized boolean tryAcquire()
+    {
+        if (inFlight >= (int) limit)
+            return false;
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Try and start a request, waiting at most a given time for the limit to
+     * allow it
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the request may proceed
+     * @throws InterruptedException interrupted while waiting
+     */
+    public synchronized boolean tryAcquire(final long timeout,
+        final TimeUnit unit)
+        throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+
+        while (inFlight >= (int) limit) {
+            remaining = deadline - System.nanoTime();
+            if (remaining <= 0L)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Start a request, waiting until the limit allows it
+     *
+     * @throws InterruptedException interrupted while waiting
+     */
+    public synchronized void acquire()
+        throws InterruptedException
+    {
+        while (inFlight >= (int) limit)
+            wait();
+        inFlight++;
+    }
+
+    /**
+     * End a request
+     *
+     * @param startNanos the value of {@link System#nanoTime()} when the
+     * request was sent
+     * @param failure the failure of the request, if any
+     */
+    public void release(final long startNanos,
+        @Nullable final BoxAPIException failure)
+    {
+        release(startNanos, failure, true);
+    }
+
+    /**
+     * End a request
+     *
+     * @param startNanos the value of {@link System#nanoTime()} when the
+     * request was sent
+     * @param failure the failure of the request, if any
+     * @param sampled whether the round-trip time of the request should be
+     * taken into account
+     */
+    public synchronized void release(final long startNanos,
+        @Nullable final BoxAPIException failure, final boolean sampled)
+    {
+        final long now = System.nanoTime();
+        final boolean saturated = inFlight >= (int) limit;
+
+        inFlight--;
+
+        try {
+            if (failure != null) {
+                if (isOverload(failure)) {
+                    throttled.incrementAndGet();
+                    decrease(FAILURE_BACKOFF, now);
+                }
+                return;
+            }
+
+            if (latencyDriven && sampled && isSlow(now - startNanos)) {
+                decrease(LATENCY_BACKOFF, now);
+                return;
+            }
+
+            if (saturated)
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+        } finally {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Run a call within the limit
+     *
+     * @param call the call
+     * @param <T> type of the result
+     * @return the result of the call
+     * @throws InterruptedException interrupted while waiting
+     */
+    public <T> T execute(final BoxAPICall<T> call)
+        throws InterruptedException
+    {
+        acquire();
+        return run(call, true);
+    }
+
+    /**
+     * Run a call within the limit, without taking its round-trip time into
+     * account
+     *
+     * <p>This is meant for requests whose round-trip time says more about
+     * their own cost than about the load of the API: large listing pages,
+     * archives, etc. Their failures still count.</p>
+     *
+     * @param call the call
+     * @param <T> type of the result
+     * @return the result of the call
+     * @throws InterruptedException interrupted while waiting
+     */
+    public <T> T executeBulk(final BoxAPICall<T> call)
+        throws InterruptedException
+    {
+        acquire();
+        return run(call, false);
+    }
+
+    /**
+     * Run a call within the limit, waiting at most a given time for the limit
+     * to allow it
+     *
+     * @param call the call
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @param <T> type of the result
+     * @return the result of the call
+     * @throws InterruptedException interrupted while waiting
+     * @throws BoxIOException the limit did not allow the call in time
+     */
+    public <T> T execute(final BoxAPICall<T> call, final long timeout,
+        final TimeUnit unit)
+        throws InterruptedException, BoxIOException
+    {
+        if (!tryAcquire(timeout, unit))
+            throw new BoxIOException("no request slot available after "
+                + timeout + ' ' + unit.name().toLowerCase(Locale.ROOT));
+        return run(call, true);
+    }
+
+    /**
+     * Return the current limit
+     *
+     * @return the number of requests which may currently be in flight
+     */
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    /**
+     * Return the number of requests in flight
+     *
+     * @return the number of requests in flight
+     */
+    public synchronized int getInFlight()
+    {
+        return inFlight;
+    }
+
+    /**
+     * Return the number of requests which failed because of overload
+     *
+     * @return the number of throttled requests
+     */
+    public long getThrottledCount()
+    {
+        return throttled.get();
+    }
+
+    /**
+     * Return the number of times the limit was decreased
+     *
+     * @return the number of decreases
+     */
+    public long getDecreaseCount()
+    {
+        return decreases.get();
+    }
+
+    private <T> T run(final BoxAPICall<T> call, final boolean sampled)
+    {
+        final long start = System.nanoTime();
+        BoxAPIException failure = null;
+
+        try {
+            return call.call();
+        } catch (BoxAPIException e) {
+            failure = e;
+            throw e;
+        } finally {
+            release(start, failure, sampled);
+        }
+    }
+
+    /*
+     * Codes 0 and below mean that there was no response at all; this may
+     * also be a local failure, such as a response which cannot be parsed,
+     * which says nothing about the load of the API
+     */
+    private static boolean isOverload(final BoxAPIException failure)
+    {
+        final int code = failure.getResponseCode();
+
+        if (code == HTTP_TOO_MANY_REQUESTS || code >= HTTP_SERVER_ERROR)
+            return true;
+
+        final Throwable cause = failure.getCause();
+
+        return code <= 0 && (cause instanceof SocketException
+            || cause instanceof SocketTimeoutException);
+    }
+
+    /*
+     * The baseline is the lowest round-trip time of the previous window; it
+     * can therefore rise again if the network gets slower for good
+     */
+    private boolean isSlow(final long rtt)
+    {
+        windowMin = Math.min(windowMin, rtt);
+        baseline = Math.min(baseline, rtt);
+        if (++windowSamples == BASELINE_WINDOW) {
+            baseline = windowMin;
+            windowMin = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+
+        smoothedRtt = smoothedRtt == 0.0 ? rtt
+            : smoothedRtt + SMOOTHING * (rtt - smoothedRtt);
+
+        return smoothedRtt > LATENCY_TOLERANCE * baseline;
+    }
+
+    private void decrease(final double ratio, final long now)
+    {
+        final long cooldown = baseline == Long.MAX_VALUE ? MIN_COOLDOWN
+            : Math.max(MIN_COOLDOWN, baseline);
+
+        if (now - lastDecrease < cooldown)
+            return;
+
+        lastDecrease = now;
+        limit = Math.max(1.0, limit * ratio);
+        decreases.incrementAndGet();
+    }
+}
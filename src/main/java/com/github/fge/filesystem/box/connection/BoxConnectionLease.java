@@ -0,0 +1,179 @@
+package com.github.fge.filesystem.box.connection;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.github.fge.filesystem.box.credentials.BoxCredentialManager;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.Closeable;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A lease on a (possibly shared) Box API connection
+ *
+ * <p>API calls should be performed using {@link #execute(BoxAPICall)}, so that
+ * the pool can bound the number of requests in flight, and so that requests
+ * rejected because of an expired token can be retried after a refresh.
+ * Content transfers should be run within the limit returned by {@link
+ * #getTransferLimiter()}.</p>
+ *
+ * @see BoxConnectionPool#acquire(String)
+ * @see BoxConnectionPool#acquire(BoxCredentialManager)
+ */
+@ParametersAreNonnullByDefault
+public final class BoxConnectionLease
+    implements Closeable
+{
+    private final BoxConnectionPool pool;
+    private final Object key;
+    private final BoxAPIConnection api;
+    private final BoxCredentialManager manager;
+    private final BoxConcurrencyLimiter apiLimiter;
+    private final BoxConcurrencyLimiter transferLimiter;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    BoxConnectionLease(final BoxConnectionPool pool, final Object key,
+        final BoxAPIConnection api,
+        @Nullable final BoxCredentialManager manager,
+        final BoxConcurrencyLimiter apiLimiter,
+        final BoxConcurrencyLimiter transferLimiter)
+    {
+        this.pool = pool;
+        this.key = key;
+        this.api = api;
+        this.manager = manager;
+        this.apiLimiter = apiLimiter;
+        this.transferLimiter = transferLimiter;
+    }
+
+    @Nonnull
+    public BoxAPIConnection getConnection()
+    {
+        return api;
+    }
+
+    @Nonnull
+    public BoxConnectionPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Return the limiter bounding content transfers over this connection
+     *
+     * <p>Like the limiter of API requests, it is specific to the identity of
+     * this connection.</p>
+     *
+     * @return the limiter
+     */
+    @Nonnull
+    public BoxConcurrencyLimiter getTransferLimiter()
+    {
+        return transferLimiter;
+    }
+
+    BoxConcurrencyLimiter getApiLimiter()
+    {
+        return apiLimiter;
+    }
+
+    /**
+     * Execute an API call
+     *
+     * <p>If this lease uses a credential manager and the call is rejected as
+     * unauthorized, the token is refreshed and the call is retried once.</p>
+     *
+     * @param call the call
+     * @param <T> type of the result
+     * @return the result of the call
+     * @throws BoxIOException Box API error, or interrupted while waiting for a
+     * connection
+     */
+    public <T> T execute(final BoxAPICall<T> call)
+        throws BoxIOException
+    {
+        return run(apiLimiter, call, true);
+    }
+
+    /**
+     * Execute an API call whose cost depends on the size of its response
+     *
+     * <p>This is the same as {@link #execute(BoxAPICall)}, except that the
+     * round-trip time of the call does not drive the API request limit.</p>
+     *
+     * @param call the call
+     * @param <T> type of the result
+     * @return the result of the call
+     * @throws BoxIOException Box API error, or interrupted while waiting for a
+     * connection
+     * @see BoxConcurrencyLimiter#executeBulk(BoxAPICall)
+     */
+    public <T> T executeBulk(final BoxAPICall<T> call)
+        throws BoxIOException
+    {
+        return run(apiLimiter, call, false);
+    }
+
+    /**
+     * Execute a content transfer
+     *
+     * <p>This is the same as {@link #execute(BoxAPICall)}, except that the call
+     * is run within the transfer limit instead of the API request limit.</p>
+     *
+     * @param call the call
+     * @param <T> type of the result
+     * @return the result of the call
+     * @throws BoxIOException Box API error, or interrupted while waiting for a
+     * connection
+     */
+    public <T> T transfer(final BoxAPICall<T> call)
+        throws BoxIOException
+    {
+        return run(transferLimiter, call, true);
+    }
+
+    /**
+     * Release this lease
+     *
+     * <p>Closing a lease more than once has no effect.</p>
+     */
+    @Override
+    public void close()
+    {
+        if (closed.compareAndSet(false, true))
+            pool.release(key);
+    }
+
+    private <T> T run(final BoxConcurrencyLimiter limiter,
+        final BoxAPICall<T> call, final boolean sampled)
+        throws BoxIOException
+    {
+        boolean retried = false;
+        String token;
+        long start;
+        BoxAPIException failure;
+
+        while (true) {
+            token = manager == null ? null : manager.getAccessToken();
+            start = pool.beginRequest(limiter);
+            failure = null;
+            try {
+                return call.call();
+            } catch (BoxAPIException e) {
+                failure = e;
+                if (retried || token == null || e.getResponseCode()
+                    != HttpURLConnection.HTTP_UNAUTHORIZED)
+                    throw BoxIOException.wrap(e);
+            } finally {
+                limiter.release(start, failure, sampled);
+            }
+            retried = true;
+            manager.refreshAfterUnauthorized(token);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package com.github.fge.filesystem.box.connection;
+
+import com.box.sdk.BoxAPIConnection;
+import com.github.fge.filesystem.box.credentials.BoxCredentialManager;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of Box API connections, shareable between filesystem instances
+ *
+ * <p>Filesystems created with the same access token (or the same {@link
+ * BoxCredentialManager}) and the same pool share a single {@link
+ * BoxAPIConnection}. The pool also bounds the number of requests
+ * in flight to the size of the JDK's keep-alive cache, so that every request
+ * is served by an already established (and already handshaked) HTTP
+ * connection instead of opening a new one.</p>
+ *
+ * <p>Within that bound, the number of requests actually allowed in flight
+ * adapts to how Box responds: it shrinks when requests are throttled or fail
+ * with server errors, and when their round-trip time rises well above its
+ * usual value, and it grows back while requests succeed (see {@link
+ * BoxConcurrencyLimiter}). Content transfers (downloads and uploads) have a
+ * separate limit of the same size, which only adapts to errors since their
+ * round-trip time depends on the amount of data transferred.</p>
+ *
+ * <p>Box throttles each user separately: each connection, that is each
+ * identity, therefore has limits of its own, and throttling of one identity
+ * does not slow down the others. The statistics of this class add up the
+ * figures of all identities.</p>
+ *
+ * <p>To share a pool, put it in the environment used to create filesystems,
+ * under key {@code connectionPool}.</p>
+ *
+ * <p>Note that the Box SDK uses {@link HttpURLConnection}, whose keep-alive
+ * cache size and default timeouts are JVM-wide settings which the JDK only
+ * reads once. This class therefore only sets them if they are not defined
+ * already, and they only take effect if the pool is created before the first
+ * HTTP connection is opened.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxConnectionPool
+{
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    private static final String MAX_CONNECTIONS_PROPERTY
+        = "http.maxConnections";
+    private static final String CONNECT_TIMEOUT_PROPERTY
+        = "sun.net.client.defaultConnectTimeout";
+    private static final String READ_TIMEOUT_PROPERTY
+        = "sun.net.client.defaultReadTimeout";
+
+    private final Map<Object, SharedConnection> connections = new HashMap<>();
+
+    private final int maxConnections;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong createdConnections = new AtomicLong();
+    private final AtomicLong sharedConnections = new AtomicLong();
+
+    /*
+     * Guarded by this: figures of the connections no longer in the pool
+     */
+    private long releasedThrottled = 0L;
+    private long releasedDecreases = 0L;
+
+    /**
+     * Build a pool with the default number of connections and the JDK's
+     * default timeouts
+     */
+    public BoxConnectionPool()
+    {
+        this(DEFAULT_MAX_CONNECTIONS, 0, 0);
+    }
+
+    /**
+     * Build a pool
+     *
+     * @param maxConnections the maximum number of requests in flight
+     * @param connectTimeout connect timeout in milliseconds (0 for the JDK
+     * default)
+     * @param readTimeout read timeout in milliseconds (0 for the JDK default)
+     */
+    public BoxConnectionPool(final int maxConnections,
+        final int connectTimeout, final int readTimeout)
+    {
+        if (maxConnections <= 0)
+            throw new IllegalArgumentException("number of connections must be "
+                + "strictly positive");
+        if (connectTimeout < 0 || readTimeout < 0)
+            throw new IllegalArgumentException("timeouts must not be negative");
+
+        this.maxConnections = maxConnections;
+
+        setDefaultProperty(MAX_CONNECTIONS_PROPERTY, maxConnections);
+        if (connectTimeout > 0)
+            setDefaultProperty(CONNECT_TIMEOUT_PROPERTY, connectTimeout);
+        if (readTimeout > 0)
+            setDefaultProperty(READ_TIMEOUT_PROPERTY, readTimeout);
+    }
+
+    /**
+     * Obtain a lease on the connection associated with an access token
+     *
+     * <p>If a connection already exists for this token, it is reused;
+     * otherwise a new one is created. The lease must be closed when no longer
+     * needed.</p>
+     *
+     * @param accessToken the access token
+     * @return a lease
+     */
+    @Nonnull
+    public synchronized BoxConnectionLease acquire(final String accessToken)
+    {
+        Objects.requireNonNull(accessToken);
+
+        SharedConnection shared = connections.get(accessToken);
+
+        if (shared == null) {
+            shared = new SharedConnection(new BoxAPIConnection(accessToken),
+                null, maxConnections);
+            connections.put(accessToken, shared);
+            createdConnections.incrementAndGet();
+        } else
+            sharedConnections.incrementAndGet();
+
+        shared.refCount++;
+        return new BoxConnectionLease(this, accessToken, shared.api, null,
+            shared.apiLimiter, shared.transferLimiter);
+    }
+
+    /**
+     * Obtain a lease on the connection associated with a credential manager
+     *
+     * <p>If a connection already exists for this manager, it is reused;
+     * otherwise a new one is created and attached to the manager, so that it
+     * always uses the manager's current token. The lease must be closed when
+     * no longer needed.</p>
+     *
+     * @param manager the credential manager
+     * @return a lease
+     */
+    @Nonnull
+    public synchronized BoxConnectionLease acquire(
+        final BoxCredentialManager manager)
+    {
+        Objects.requireNonNull(manager);
+
+        SharedConnection shared = connections.get(manager);
+
+        if (shared == null) {
+            final BoxAPIConnection api
+                = new BoxAPIConnection(manager.getAccessToken());
+            manager.attach(api);
+            shared = new SharedConnection(api, manager, maxConnections);
+            connections.put(manager, shared);
+            createdConnections.incrementAndGet();
+        } else
+            sharedConnections.incrementAndGet();
+
+        shared.refCount++;
+        return new BoxConnectionLease(this, manager, shared.api, manager,
+            shared.apiLimiter, shared.transferLimiter);
+    }
+
+    /**
+     * Return the maximum number of requests which may be in flight at any
+     * given time
+     *
+     * @return the number of connections
+     */
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    /**
+     * Return the number of requests currently in flight
+     *
+     * @return the number of requests in flight
+     */
+    public synchronized int getRequestsInFlight()
+    {
+        int ret = 0;
+
+        for (final SharedConnection shared: connections.values())
+            ret += shared.apiLimiter.getInFlight();
+        return ret;
+    }
+
+    /**
+     * Return the number of API requests currently allowed in flight
+     *
+     * @return the sum of the current limits of all identities
+     */
+    public synchronized int getConcurrencyLimit()
+    {
+        int ret = 0;
+
+        for (final SharedConnection shared: connections.values())
+            ret += shared.apiLimiter.getLimit();
+        return ret;
+    }
+
+    /**
+     * Return the number of content transfers currently in flight
+     *
+     * @return the number of transfers in flight
+     */
+    public synchronized int getTransfersInFlight()
+    {
+        int ret = 0;
+
+        for (final SharedConnection shared: connections.values())
+            ret += shared.transferLimiter.getInFlight();
+        return ret;
+    }
+
+    /**
+     * Return the number of content transfers currently allowed in flight
+     *
+     * @return the sum of the current limits of all identities
+     */
+    public synchronized int getTransferConcurrencyLimit()
+    {
+        int ret = 0;
+
+        for (final SharedConnection shared: connections.values())
+            ret += shared.transferLimiter.getLimit();
+        return ret;
+    }
+
+    /**
+     * Return the number of requests and transfers which were throttled or
+     * failed with a server error
+     *
+     * @return the number of throttled requests
+     */
+    public synchronized long getThrottledCount()
+    {
+        long ret = releasedThrottled;
+
+        for (final SharedConnection shared: connections.values())
+            ret += shared.getThrottledCount();
+        return ret;
+    }
+
+    /**
+     * Return the number of times any concurrency limit was reduced
+     *
+     * @return the number of reductions
+     */
+    public synchronized long getLimitDecreaseCount()
+    {
+        long ret = releasedDecreases;
+
+        for (final SharedConnection shared: connections.values())
+            ret += shared.getDecreaseCount();
+        return ret;
+    }
+
+    /**
+     * Return the total number of requests issued through this pool
+     *
+     * @return the number of requests
+     */
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Return the number of requests which had to wait for a connection
+     *
+     * @return the number of requests which waited
+     */
+    public long getWaitCount()
+    {
+        return waits.get();
+    }
+
+    /**
+     * Return the total time spent by requests waiting for a connection
+     *
+     * @param unit the time unit
+     * @return the total wait time
+     */
+    public long getTotalWaitTime(final TimeUnit unit)
+    {
+        return unit.convert(totalWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return the longest time a request had to wait for a connection
+     *
+     * @param unit the time unit
+     * @return the maximum wait time
+     */
+    public long getMaxWaitTime(final TimeUnit unit)
+    {
+        return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return the number of API connections created by this pool
+     *
+     * @return the number of connections created
+     */
+    public long getCreatedConnectionCount()
+    {
+        return createdConnections.get();
+    }
+
+    /**
+     * Return the number of times an existing API connection was handed out
+     * instead of a new one being created
+     *
+     * @return the number of shared connections
+     */
+    public long getSharedConnectionCount()
+    {
+        return sharedConnections.get();
+    }
+
+    /*
+     * Return the value of System.nanoTime() when the request may proceed
+     */
+    long beginRequest(final BoxConcurrencyLimiter limiter)
+        throws BoxIOException
+    {
+        requests.incrementAndGet();
+
+        if (limiter.tryAcquire())
+            return System.nanoTime();
+
+        waits.incrementAndGet();
+        final long start = System.nanoTime();
+
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BoxIOException("interrupted while waiting for a "
+                + "connection", e);
+        }
+
+        final long now = System.nanoTime();
+        final long waited = now - start;
+        totalWaitNanos.addAndGet(waited);
+
+        long max;
+        do {
+            max = maxWaitNanos.get();
+        } while (waited > max && !maxWaitNanos.compareAndSet(max, waited));
+
+        return now;
+    }
+
+    synchronized void release(final Object key)
+    {
+        final SharedConnection shared = connections.get(key);
+
+        if (shared == null || --shared.refCount > 0)
+            return;
+
+        connections.remove(key);
+        releasedThrottled += shared.getThrottledCount();
+        releasedDecreases += shared.getDecreaseCount();
+        if (shared.manager != null)
+            shared.manager.detach(shared.api);
+    }
+
+    private static void setDefaultProperty(final String name, final int value)
+    {
+        if (System.getProperty(name) == null)
+            System.setProperty(name, Integer.toString(value));
+    }
+
+    private static final class SharedConnection
+    {
+        private final BoxAPIConnection api;
+        private final BoxCredentialManager manager;
+        private final BoxConcurrencyLimiter apiLimiter;
+        private final BoxConcurrencyLimiter transferLimiter;
+        private int refCount = 0;
+
+        private SharedConnection(final BoxAPIConnection api,
+            @Nullable final BoxCredentialManager manager,
+            final int maxConnections)
+        {
+            this.api = api;
+            this.manager = manager;
+            apiLimiter = new BoxConcurrencyLimiter(maxConnections,
+                maxConnections, true);
+            transferLimiter = new BoxConcurrencyLimiter(maxConnections,
+                maxConnections, false);
+        }
+
+        private long getThrottledCount()
+        {
+            return apiLimiter.getThrottledCount()
+                + transferLimiter.getThrottledCount();
+        }
+
+        private long getDecreaseCount()
+        {
+            return apiLimiter.getDecreaseCount()
+                + transferLimiter.getDecreaseCount();
+        }
+    }
+}
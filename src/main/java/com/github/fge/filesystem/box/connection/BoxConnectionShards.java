@@ -0,0 +1,329 @@
+package com.github.fge.filesystem.box.connection;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.Closeable;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of API connection leases, each for a different identity, sharing the
+ * load of a filesystem
+ *
+ * <p>Box enforces rate limits per user; spreading calls over several
+ * identities raises the total rate a filesystem can sustain. Calls are
+ * assigned to identities by consistent hashing of an item or folder id, so
+ * that calls about a given item always use the same identity, and adding an
+ * identity only moves a fraction of the items.</p>
+ *
+ * <p>All identities must be able to see the same items: typically, they are
+ * all collaborators of the folders the filesystem works with. The first lease
+ * is the primary one, used for calls which are not about a particular
+ * item.</p>
+ *
+ * <p>Each shard has a health status: a shard whose call fails because of
+ * throttling, a server error, a network error or invalid credentials is set
+ * aside for a while (a longer while after each consecutive failure), and the
+ * call is retried on the next healthy shard along the ring. Each identity
+ * also has request limits of its own (see {@link BoxConnectionPool}):
+ * throttling of one shard only slows down the calls made through it.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxConnectionShards
+    implements Closeable
+{
+    private static final int VIRTUAL_NODES = 64;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVER_ERROR = 500;
+
+    private static final long BASE_BACKOFF = TimeUnit.SECONDS.toNanos(1L);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toNanos(1L);
+    private static final int MAX_DOUBLINGS = 6;
+
+    private final List<BoxConnectionLease> leases;
+    private final Shard[] shards;
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+    private final AtomicLong failovers = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * <p>Closing this object closes all leases.</p>
+     *
+     * @param leases the leases, the primary one first
+     */
+    public BoxConnectionShards(final List<BoxConnectionLease> leases)
+    {
+        if (leases.isEmpty())
+            throw new IllegalArgumentException("no leases given");
+
+        this.leases = Collections.unmodifiableList(new ArrayList<>(leases));
+        shards = new Shard[leases.size()];
+
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+            for (int node = 0; node < VIRTUAL_NODES; node++)
+                ring.put(mix((long) i << 32 | node), i);
+        }
+    }
+
+    /**
+     * Return the primary lease
+     *
+     * @return the first lease given at construction time
+     */
+    @Nonnull
+    public BoxConnectionLease getPrimary()
+    {
+        return leases.get(0);
+    }
+
+    /**
+     * Return the number of shards
+     *
+     * @return the number of leases
+     */
+    public int size()
+    {
+        return leases.size();
+    }
+
+    /**
+     * Return the lease to use for calls about an item
+     *
+     * @param id the id of the item
+     * @return the first healthy lease along the ring, or the designated lease
+     * of the item if none is healthy
+     */
+    @Nonnull
+    public BoxConnectionLease select(final long id)
+    {
+        return leases.get(candidates(id).get(0));
+    }
+
+    /**
+     * Return the lease of a connection
+     *
+     * @param api the connection, typically the one of an item obtained
+     * through a lease
+     * @return the lease of this connection, or the primary lease if the
+     * connection is not one of this object's
+     */
+    @Nonnull
+    public BoxConnectionLease leaseOf(@Nullable final BoxAPIConnection api)
+    {
+        for (final BoxConnectionLease lease: leases)
+            if (lease.getConnection() == api)
+                return lease;
+        return getPrimary();
+    }
+
+    /**
+     * Perform a call about an item
+     *
+     * <p>If the call fails in a way which suggests that the shard is
+     * unavailable, the shard is set aside and the call is retried on the next
+     * shard, until all shards have been tried.</p>
+     *
+     * @param id the id of the item
+     * @param call the call
+     * @param <T> type of the result
+     * @return the result of the call
+     * @throws BoxIOException Box API error, or interrupted while waiting for a
+     * connection
+     */
+    public <T> T execute(final long id, final BoxShardCall<T> call)
+        throws BoxIOException
+    {
+        return execute(id, call, false);
+    }
+
+    /**
+     * Perform a call about an item, whose cost depends on the size of its
+     * response
+     *
+     * <p>This is the same as {@link #execute(long, BoxShardCall)}, except that
+     * the call is run using {@link BoxConnectionLease#executeBulk(BoxAPICall)}.
+     * </p>
+     *
+     * @param id the id of the item
+     * @param call the call
+     * @param <T> type of the result
+     * @return the result of the call
+     * @throws BoxIOException Box API error, or interrupted while waiting for a
+     * connection
+     */
+    public <T> T executeBulk(final long id, final BoxShardCall<T> call)
+        throws BoxIOException
+    {
+        return execute(id, call, true);
+    }
+
+    private <T> T execute(final long id, final BoxShardCall<T> call,
+        final boolean bulk)
+        throws BoxIOException
+    {
+        final List<Integer> candidates = candidates(id);
+        final int last = candidates.size() - 1;
+        BoxConnectionLease lease;
+        Shard shard;
+
+        for (int i = 0;; i++) {
+            lease = leases.get(candidates.get(i));
+            shard = shards[candidates.get(i)];
+            try {
+                final BoxAPICall<T> bound = bind(lease.getConnection(), call);
+                final T ret = bulk ? lease.executeBulk(bound)
+                    : lease.execute(bound);
+                shard.succeeded();
+                return ret;
+            } catch (BoxIOException e) {
+                if (!isShardFailure(e))
+                    throw e;
+                shard.failed();
+                if (i == last)
+                    throw e;
+                failovers.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Tell whether a shard is currently considered healthy
+     *
+     * @param index the index of the shard, in the order of the leases
+     * @return true if healthy
+     */
+    public boolean isHealthy(final int index)
+    {
+        return shards[index].isHealthy(System.nanoTime());
+    }
+
+    /**
+     * Return the number of calls retried on another shard
+     *
+     * @return the number of failovers
+     */
+    public long getFailoverCount()
+    {
+        return failovers.get();
+    }
+
+    /**
+     * Close all leases
+     */
+    @Override
+    public void close()
+    {
+        for (final BoxConnectionLease lease: leases)
+            lease.close();
+    }
+
+    /*
+     * Distinct shards, in ring order starting from the position of the id;
+     * healthy shards first
+     */
+    private List<Integer> candidates(final long id)
+    {
+        final long now = System.nanoTime();
+        final List<Integer> healthy = new ArrayList<>(shards.length);
+        final List<Integer> unhealthy = new ArrayList<>(shards.length);
+        final long hash = mix(id);
+
+        addCandidates(ring.tailMap(hash, true), now, healthy, unhealthy);
+        addCandidates(ring.headMap(hash, false), now, healthy, unhealthy);
+
+        healthy.addAll(unhealthy);
+        return healthy;
+    }
+
+    private void addCandidates(final Map<Long, Integer> nodes, final long now,
+        final List<Integer> healthy, final List<Integer> unhealthy)
+    {
+        for (final Integer index: nodes.values()) {
+            if (healthy.contains(index) || unhealthy.contains(index))
+                continue;
+            if (shards[index].isHealthy(now))
+                healthy.add(index);
+            else
+                unhealthy.add(index);
+            if (healthy.size() + unhealthy.size() == shards.length)
+                return;
+        }
+    }
+
+    private static <T> BoxAPICall<T> bind(final BoxAPIConnection api,
+        final BoxShardCall<T> call)
+    {
+        return new BoxAPICall<T>()
+        {
+            @Override
+            public T call()
+            {
+                return call.call(api);
+            }
+        };
+    }
+
+    /*
+     * Codes 0 and below mean that there was no response at all
+     */
+    private static boolean isShardFailure(final BoxIOException e)
+    {
+        if (!(e.getCause() instanceof BoxAPIException))
+            return false;
+
+        final int code = ((BoxAPIException) e.getCause()).getResponseCode();
+
+        return code <= 0 || code == HTTP_TOO_MANY_REQUESTS
+            || code == HttpURLConnection.HTTP_UNAUTHORIZED
+            || code >= HTTP_SERVER_ERROR;
+    }
+
+    /*
+     * A 64-bit finalizer (from SplitMix64), so that close ids and shard
+     * numbers are spread evenly over the ring
+     */
+    private static long mix(final long value)
+    {
+        long z = value + 0x9e3779b97f4a7c15L;
+        z = (z ^ z >>> 30) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ z >>> 27) * 0x94d049bb133111ebL;
+        return z ^ z >>> 31;
+    }
+
+    private static final class Shard
+    {
+        private int failures = 0;
+        private long unhealthyUntil = 0L;
+
+        private synchronized boolean isHealthy(final long now)
+        {
+            return failures == 0 || now - unhealthyUntil >= 0L;
+        }
+
+        private synchronized void succeeded()
+        {
+            failures = 0;
+        }
+
+        private synchronized void failed()
+        {
+            final int doublings = Math.min(failures++, MAX_DOUBLINGS);
+            unhealthyUntil = System.nanoTime()
+                + Math.min(MAX_BACKOFF, BASE_BACKOFF << doublings);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.github.fge.filesystem.box.connection;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+
+/**
+ * A call to the Box API which may be performed over any of several
+ * connections
+ *
+ * @param <T> type of the call's result
+ * @see BoxConnectionShards#execute(long, BoxShardCall)
+ */
+public interface BoxShardCall<T>
+{
+    /**
+     * Perform the call
+     *
+     * @param api the connection to use
+     * @return the result
+     * @throws BoxAPIException Box API error
+     */
+    T call(BoxAPIConnection api);
+}
@@ -0,0 +1,289 @@
+package com.github.fge.filesystem.box.credentials;
+
+import com.box.sdk.BoxAPIConnection;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A credential manager, shareable between filesystem instances
+ *
+ * <p>A manager obtains tokens from a {@link BoxTokenSupplier} and refreshes
+ * them in the background, a configurable amount of time before they expire.
+ * The new token is then pushed to all API connections using this manager;
+ * requests already in flight keep using the token they started with.</p>
+ *
+ * <p>When a request is rejected as unauthorized anyway, the caller asks for a
+ * refresh using {@link #refreshAfterUnauthorized(String)}: all such requests
+ * for the same stale token share a single refresh.</p>
+ *
+ * <p>To share a manager, put it in the environment used to create
+ * filesystems, under key {@code credentialManager}. It is the caller's
+ * responsibility to close it when it is no longer needed.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxCredentialManager
+    implements Closeable
+{
+    private static final long DEFAULT_MARGIN = 5L;
+    private static final TimeUnit DEFAULT_MARGIN_UNIT = TimeUnit.MINUTES;
+
+    private static final long RETRY_DELAY = 30L;
+    private static final TimeUnit RETRY_DELAY_UNIT = TimeUnit.SECONDS;
+
+    private final BoxTokenSupplier supplier;
+    private final long marginMillis;
+
+    private final ScheduledExecutorService scheduler
+        = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(final Runnable r)
+        {
+            final Thread thread = new Thread(r, "box-token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Set<BoxAPIConnection> connections
+        = new CopyOnWriteArraySet<>();
+
+    /*
+     * Both guarded by lock; there is at most one scheduled refresh, whether
+     * it is the next regular refresh or a retry after a failure
+     */
+    private final Object lock = new Object();
+    private Future<BoxToken> pendingRefresh = null;
+    private ScheduledFuture<?> scheduledRefresh = null;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    private volatile BoxToken token;
+
+    /**
+     * Build a manager refreshing tokens five minutes before they expire
+     *
+     * @param supplier the token supplier
+     * @throws IOException failed to obtain the initial token
+     */
+    public BoxCredentialManager(final BoxTokenSupplier supplier)
+        throws IOException
+    {
+        this(supplier, DEFAULT_MARGIN, DEFAULT_MARGIN_UNIT);
+    }
+
+    /**
+     * Build a manager
+     *
+     * @param supplier the token supplier
+     * @param margin how long before expiry a token should be refreshed
+     * @param unit the time unit of the margin
+     * @throws IOException failed to obtain the initial token
+     */
+    public BoxCredentialManager(final BoxTokenSupplier supplier,
+        final long margin, final TimeUnit unit)
+        throws IOException
+    {
+        this.supplier = Objects.requireNonNull(supplier);
+        marginMillis = unit.toMillis(margin);
+        token = supplier.getToken(null);
+        scheduleRefresh(token);
+    }
+
+    /**
+     * Return the access token currently in use
+     *
+     * <p>This method never blocks.</p>
+     *
+     * @return the current access token
+     */
+    @Nonnull
+    public String getAccessToken()
+    {
+        return token.getAccessToken();
+    }
+
+    /**
+     * Register an API connection with this manager
+     *
+     * <p>The connection immediately receives the current token, and will
+     * receive all refreshed tokens until it is {@link
+     * #detach(BoxAPIConnection) detached}.</p>
+     *
+     * @param api the API connection
+     */
+    public void attach(final BoxAPIConnection api)
+    {
+        connections.add(api);
+        api.setAccessToken(token.getAccessToken());
+    }
+
+    /**
+     * Unregister an API connection from this manager
+     *
+     * @param api the API connection
+     */
+    public void detach(final BoxAPIConnection api)
+    {
+        connections.remove(api);
+    }
+
+    /**
+     * Refresh the token after a request was rejected as unauthorized
+     *
+     * <p>If the token has already been refreshed since the failed request
+     * was issued, this method returns immediately; otherwise it waits for a
+     * refresh, which is shared by all concurrent callers.</p>
+     *
+     * @param staleToken the access token used by the failed request
+     * @throws BoxIOException refresh failed, or interrupted while waiting
+     */
+    public void refreshAfterUnauthorized(final String staleToken)
+        throws BoxIOException
+    {
+        if (!staleToken.equals(token.getAccessToken()))
+            return;
+
+        try {
+            refresh().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BoxIOException("interrupted while refreshing token", e);
+        } catch (ExecutionException e) {
+            throw new BoxIOException("token refresh failed", e.getCause());
+        }
+    }
+
+    /**
+     * Return the number of successful token refreshes
+     *
+     * @return the number of refreshes
+     */
+    public long getRefreshCount()
+    {
+        return refreshCount.get();
+    }
+
+    /**
+     * Return the number of refresh requests which joined an ongoing refresh
+     *
+     * @return the number of coalesced refresh requests
+     */
+    public long getCoalescedCount()
+    {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Return the number of failed token refreshes
+     *
+     * @return the number of failures
+     */
+    public long getFailureCount()
+    {
+        return failureCount.get();
+    }
+
+    @Override
+    public void close()
+    {
+        scheduler.shutdownNow();
+        connections.clear();
+    }
+
+    private Future<BoxToken> refresh()
+    {
+        synchronized (lock) {
+            if (pendingRefresh != null && !pendingRefresh.isDone()) {
+                coalescedCount.incrementAndGet();
+                return pendingRefresh;
+            }
+            pendingRefresh = scheduler.submit(new Callable<BoxToken>()
+            {
+                @Override
+                public BoxToken call()
+                    throws IOException
+                {
+                    return doRefresh();
+                }
+            });
+            return pendingRefresh;
+        }
+    }
+
+    private BoxToken doRefresh()
+        throws IOException
+    {
+        final BoxToken newToken;
+
+        try {
+            newToken = supplier.getToken(token);
+        } catch (IOException | RuntimeException e) {
+            failureCount.incrementAndGet();
+            scheduleRetry();
+            throw e;
+        }
+
+        token = newToken;
+        for (final BoxAPIConnection api: connections)
+            api.setAccessToken(newToken.getAccessToken());
+        refreshCount.incrementAndGet();
+        scheduleRefresh(newToken);
+        return newToken;
+    }
+
+    private void scheduleRefresh(final BoxToken current)
+    {
+        final long expiresAt = current.getExpiresAt();
+
+        if (expiresAt == BoxToken.NEVER)
+            return;
+
+        final long delay = Math.max(0L,
+            expiresAt - marginMillis - System.currentTimeMillis());
+        schedule(delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduleRetry()
+    {
+        schedule(RETRY_DELAY, RETRY_DELAY_UNIT);
+    }
+
+    private void schedule(final long delay, final TimeUnit unit)
+    {
+        synchronized (lock) {
+            if (scheduler.isShutdown())
+                return;
+
+            if (scheduledRefresh != null)
+                scheduledRefresh.cancel(false);
+
+            scheduledRefresh = scheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    refresh();
+                }
+            }, delay, unit);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.fge.filesystem.box.credentials;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Objects;
+
+/**
+ * An OAuth access token, with its optional refresh token and expiry date
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxToken
+{
+    /**
+     * Expiry date of tokens which never expire
+     */
+    public static final long NEVER = Long.MAX_VALUE;
+
+    private final String accessToken;
+    private final String refreshToken;
+    private final long expiresAt;
+
+    /**
+     * Build a token
+     *
+     * @param accessToken the access token
+     * @param refreshToken the refresh token, if any
+     * @param expiresAt expiry date, in milliseconds since epoch
+     */
+    public BoxToken(final String accessToken,
+        @Nullable final String refreshToken, final long expiresAt)
+    {
+        this.accessToken = Objects.requireNonNull(accessToken);
+        this.refreshToken = refreshToken;
+        this.expiresAt = expiresAt;
+    }
+
+    @Nonnull
+    public String getAccessToken()
+    {
+        return accessToken;
+    }
+
+    @Nullable
+    public String getRefreshToken()
+    {
+        return refreshToken;
+    }
+
+    public long getExpiresAt()
+    {
+        return expiresAt;
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.fge.filesystem.box.credentials;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * A source of access tokens
+ *
+ * <p>Implementations are only ever called from the refresh thread of a {@link
+ * BoxCredentialManager}, so they need not be thread safe.</p>
+ *
+ * @see RefreshTokenSupplier
+ */
+public interface BoxTokenSupplier
+{
+    /**
+     * Obtain a new token
+     *
+     * @param previous the token currently in use, or {@code null} if this is
+     * the first call
+     * @return a new token
+     * @throws IOException failed to obtain a token
+     */
+    @Nonnull
+    BoxToken getToken(@Nullable BoxToken previous)
+        throws IOException;
+}
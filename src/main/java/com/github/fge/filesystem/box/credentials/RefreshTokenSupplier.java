@@ -0,0 +1,142 @@
+package com.github.fge.filesystem.box.credentials;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * A token supplier using the OAuth 2 refresh token grant
+ *
+ * <p>Box rotates refresh tokens: each refresh returns a new refresh token,
+ * which is used for the next refresh.</p>
+ *
+ * <p>The token endpoint can be overriden, for instance to point to a local
+ * stand-in for tests.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class RefreshTokenSupplier
+    implements BoxTokenSupplier
+{
+    public static final String DEFAULT_TOKEN_URL
+        = "https://api.box.com/oauth2/token";
+
+    private static final URL DEFAULT_URL;
+
+    static {
+        try {
+            DEFAULT_URL = new URL(DEFAULT_TOKEN_URL);
+        } catch (MalformedURLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final URL tokenURL;
+    private final String clientId;
+    private final String clientSecret;
+    private final String initialRefreshToken;
+
+    public RefreshTokenSupplier(final String clientId,
+        final String clientSecret, final String refreshToken)
+    {
+        this(DEFAULT_URL, clientId, clientSecret, refreshToken);
+    }
+
+    public RefreshTokenSupplier(final URL tokenURL, final String clientId,
+        final String clientSecret, final String refreshToken)
+    {
+        this.tokenURL = Objects.requireNonNull(tokenURL);
+        this.clientId = Objects.requireNonNull(clientId);
+        this.clientSecret = Objects.requireNonNull(clientSecret);
+        initialRefreshToken = Objects.requireNonNull(refreshToken);
+    }
+
+    @Nonnull
+    @Override
+    public BoxToken getToken(@Nullable final BoxToken previous)
+        throws IOException
+    {
+        String refreshToken = initialRefreshToken;
+
+        if (previous != null && previous.getRefreshToken() != null)
+            refreshToken = previous.getRefreshToken();
+
+        final String body = "grant_type=refresh_token"
+            + "&refresh_token=" + encode(refreshToken)
+            + "&client_id=" + encode(clientId)
+            + "&client_secret=" + encode(clientSecret);
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        final long now = System.currentTimeMillis();
+        final HttpURLConnection connection
+            = (HttpURLConnection) tokenURL.openConnection();
+
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type",
+                "application/x-www-form-urlencoded");
+            connection.setFixedLengthStreamingMode(bytes.length);
+
+            try (
+                final OutputStream out = connection.getOutputStream();
+            ) {
+                out.write(bytes);
+            }
+
+            final int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK)
+                throw new BoxIOException("token refresh failed (HTTP status "
+                    + code + ')');
+
+            final JsonObject json;
+            try (
+                final InputStream in = connection.getInputStream();
+                final Reader reader
+                    = new InputStreamReader(in, StandardCharsets.UTF_8);
+            ) {
+                json = JsonObject.readFrom(reader);
+            }
+
+            return toToken(json, now);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static BoxToken toToken(final JsonObject json, final long now)
+        throws BoxIOException
+    {
+        final JsonValue accessToken = json.get("access_token");
+        if (accessToken == null)
+            throw new BoxIOException("no access token in token response");
+
+        final JsonValue refreshToken = json.get("refresh_token");
+        final JsonValue expiresIn = json.get("expires_in");
+
+        return new BoxToken(accessToken.asString(),
+            refreshToken == null ? null : refreshToken.asString(),
+            expiresIn == null ? BoxToken.NEVER
+                : now + expiresIn.asLong() * 1000L);
+    }
+
+    private static String encode(final String s)
+        throws IOException
+    {
+        return URLEncoder.encode(s, "UTF-8");
+    }
+}
@@ -4,16 +4,23 @@ import com.box.sdk.BoxAPIException;
 import com.box.sdk.BoxFile;
 import com.box.sdk.BoxFolder;
 import com.box.sdk.BoxItem;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
 import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import com.github.fge.filesystem.box.filestore.BoxQuota;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
 import com.github.fge.filesystem.exceptions.IsDirectoryException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.Closeable;
+import java.io.IOException;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.LinkOption;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Wrapper class over the Box Java API
@@ -24,10 +31,13 @@ import java.nio.file.Path;
  * <p>It is the caller's responsibility to ensure that all paths are absolute
  * (see {@link Path#toRealPath(LinkOption...)}).</p>
  *
+ * <p>Closing a wrapper releases the API connection it uses.</p>
+ *
  * @see BoxFileSystemDriver
  */
 @ParametersAreNonnullByDefault
 public interface BoxAPIWrapper
+    extends Closeable
 {
     /**
      * Get an item by path
@@ -41,6 +51,29 @@ public interface BoxAPIWrapper
     BoxItem getItem(Path path)
         throws BoxIOException;
 
+    /**
+     * Get the metadata of an item by path
+     *
+     * @param path the path
+     * @return the metadata, or {@code null} if not found
+     * @throws BoxIOException Box API error
+     */
+    @Nullable
+    BoxItemRecord getRecord(Path path)
+        throws BoxIOException;
+
+    /**
+     * Get the item a record describes
+     *
+     * <p>No API call is made; the item is bound to the connection used for
+     * calls about it.</p>
+     *
+     * @param record the record
+     * @return the item
+     */
+    @Nonnull
+    BoxItem toItem(BoxItemRecord record);
+
     /**
      * Get a file by its path
      *
@@ -65,6 +98,38 @@ public interface BoxAPIWrapper
     BoxFolder getFolder(Path path)
         throws BoxIOException, NotDirectoryException;
 
+    /**
+     * List the entries of a directory
+     *
+     * <p>The listing is always fetched from the API; concurrent listings of
+     * the same directory may share a single call.</p>
+     *
+     * @param dir the directory
+     * @return the metadata of all entries
+     * @throws BoxIOException Box API error
+     * @throws NotDirectoryException item at this path is not a directory
+     */
+    @Nonnull
+    List<BoxItemRecord> getChildren(Path dir)
+        throws BoxIOException, NotDirectoryException;
+
+    /**
+     * Search for items
+     *
+     * <p>Results come from the Box search index, which lags behind changes;
+     * they are therefore not recorded in the item cache.</p>
+     *
+     * @param parameters the query parameters of the search, URL encoded;
+     * fields, limit and offset are set by this method
+     * @param offset the offset of the first result
+     * @param hits the list to add results which are files or folders to
+     * @return the number of results in this page, or 0 if there are no more
+     * results
+     * @throws BoxIOException Box API error
+     */
+    int search(String parameters, int offset, List<BoxSearchHit> hits)
+        throws BoxIOException;
+
     /**
      * Tell whether a folder is empty
      *
@@ -84,4 +149,88 @@ public interface BoxAPIWrapper
      */
     void deleteItem(Path victim)
         throws BoxIOException, DirectoryNotEmptyException;
+
+    /**
+     * Forget cached information about a path
+     *
+     * <p>This must be called after an item has been created or modified at
+     * this path; deleting an item using {@link #deleteItem(Path)} needs no
+     * such call.</p>
+     *
+     * @param path the path
+     */
+    void invalidate(Path path);
+
+    /**
+     * Forget cached information about an entry of a folder
+     *
+     * <p>This is meant for changes which are not made through this wrapper,
+     * and whose path is not known.</p>
+     *
+     * @param folderId the id of the folder
+     * @param name the name of the entry
+     */
+    void invalidate(long folderId, String name);
+
+    /**
+     * Check that a new file can be uploaded, and return the item in the way
+     * if there is one
+     *
+     * <p>The target itself is not resolved: whether an item already exists
+     * with this name is told by Box itself, in a single call.</p>
+     *
+     * @param parent the folder to create the file in
+     * @param name the name of the file to create
+     * @param size the size of the file, or -1 if unknown
+     * @return the item in the way, or {@code null} if there is none; only its
+     * type, id, name and etag are known
+     * @throws BoxIOException the upload would be rejected, or Box API error
+     */
+    @Nullable
+    BoxItemRecord preflightCreate(BoxFolder parent, String name, long size)
+        throws BoxIOException;
+
+    /**
+     * Download a set of items as a single archive built by Box
+     *
+     * <p>The archive is decoded as it arrives, and each file in it is handed
+     * to the visitor along with its path: the path of the item for a file,
+     * or a path below it for a folder.</p>
+     *
+     * @param items the items to download, and their paths
+     * @param visitor the visitor
+     * @return false if the visitor terminated the download
+     * @throws BoxIOException Box API error
+     * @throws IOException failed to read the archive, or thrown by the visitor
+     */
+    boolean downloadZip(Map<BoxItemRecord, Path> items,
+        BoxBulkReadVisitor visitor)
+        throws IOException;
+
+    /**
+     * Get the storage quota of the account
+     *
+     * @return the quota
+     * @throws BoxIOException Box API error
+     */
+    @Nonnull
+    BoxQuota getQuota()
+        throws BoxIOException;
+
+    /**
+     * Get the limiter which content transfers of an item must run within
+     *
+     * <p>Downloads and uploads are not performed by this wrapper, but they
+     * use the API connection of the identity the item was obtained through;
+     * they should therefore respect the limit of that identity.</p>
+     *
+     * @param item the file to transfer, or the folder to upload to
+     * @return the limiter
+     */
+    @Nonnull
+    BoxConcurrencyLimiter getTransferLimiter(BoxItem item);
+
+    @Override
+    void close()
+        throws IOException;
 }
@@ -0,0 +1,309 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.github.fge.filesystem.box.attributes.BoxBasicFileAttributesProvider;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous counterparts of the driver's operations
+ *
+ * <p>Following the conventions of {@link java.nio.channels
+ * AsynchronousFileChannel}, each operation comes in two flavours: one
+ * returning a {@link Future}, and one notifying a {@link CompletionHandler}.
+ * </p>
+ *
+ * <p>Operations are queued to an executor with a fixed number of threads, so
+ * the number of pending operations does not influence the number of threads
+ * used.</p>
+ *
+ * @see BoxFileSystemDriver#async()
+ */
+@ParametersAreNonnullByDefault
+public final class BoxAsyncDriver
+{
+    private static final DirectoryStream.Filter<Path> ACCEPT_ALL
+        = new DirectoryStream.Filter<Path>()
+    {
+        @Override
+        public boolean accept(final Path entry)
+        {
+            return true;
+        }
+    };
+
+    private final BoxFileSystemDriver driver;
+    private final ExecutorService executor;
+
+    BoxAsyncDriver(final BoxFileSystemDriver driver,
+        final ExecutorService executor)
+    {
+        this.driver = Objects.requireNonNull(driver);
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * Read the basic attributes of a path
+     *
+     * @param path the path
+     * @return a future
+     */
+    @Nonnull
+    public Future<BasicFileAttributes> readAttributes(final Path path)
+    {
+        return executor.submit(readAttributesCall(path));
+    }
+
+    /**
+     * Read the basic attributes of a path
+     *
+     * @param path the path
+     * @param attachment the object to attach to the operation
+     * @param handler the completion handler
+     * @param <A> type of the attachment
+     */
+    public <A> void readAttributes(final Path path, final A attachment,
+        final CompletionHandler<BasicFileAttributes, ? super A> handler)
+    {
+        submit(readAttributesCall(path), attachment, handler);
+    }
+
+    /**
+     * List the entries of a directory
+     *
+     * @param dir the directory
+     * @return a future
+     */
+    @Nonnull
+    public Future<List<Path>> list(final Path dir)
+    {
+        return executor.submit(listCall(dir));
+    }
+
+    /**
+     * List the entries of a directory
+     *
+     * @param dir the directory
+     * @param attachment the object to attach to the operation
+     * @param handler the completion handler
+     * @param <A> type of the attachment
+     */
+    public <A> void list(final Path dir, final A attachment,
+        final CompletionHandler<List<Path>, ? super A> handler)
+    {
+        submit(listCall(dir), attachment, handler);
+    }
+
+    /**
+     * Delete a file or empty directory
+     *
+     * @param path the path
+     * @return a future
+     */
+    @Nonnull
+    public Future<Void> delete(final Path path)
+    {
+        return executor.submit(deleteCall(path));
+    }
+
+    /**
+     * Delete a file or empty directory
+     *
+     * @param path the path
+     * @param attachment the object to attach to the operation
+     * @param handler the completion handler
+     * @param <A> type of the attachment
+     */
+    public <A> void delete(final Path path, final A attachment,
+        final CompletionHandler<Void, ? super A> handler)
+    {
+        submit(deleteCall(path), attachment, handler);
+    }
+
+    /**
+     * Copy a file, or empty directory, on this filesystem
+     *
+     * @param source the source
+     * @param target the target
+     * @param options the copy options
+     * @return a future
+     */
+    @Nonnull
+    public Future<Void> copy(final Path source, final Path target,
+        final CopyOption... options)
+    {
+        return executor.submit(copyCall(source, target, options));
+    }
+
+    /**
+     * Copy a file, or empty directory, on this filesystem
+     *
+     * @param source the source
+     * @param target the target
+     * @param attachment the object to attach to the operation
+     * @param handler the completion handler
+     * @param options the copy options
+     * @param <A> type of the attachment
+     */
+    public <A> void copy(final Path source, final Path target,
+        final A attachment, final CompletionHandler<Void, ? super A> handler,
+        final CopyOption... options)
+    {
+        submit(copyCall(source, target, options), attachment, handler);
+    }
+
+    /**
+     * Move a file, or empty directory, on this filesystem
+     *
+     * @param source the source
+     * @param target the target
+     * @param options the copy options
+     * @return a future
+     */
+    @Nonnull
+    public Future<Void> move(final Path source, final Path target,
+        final CopyOption... options)
+    {
+        return executor.submit(moveCall(source, target, options));
+    }
+
+    /**
+     * Move a file, or empty directory, on this filesystem
+     *
+     * @param source the source
+     * @param target the target
+     * @param attachment the object to attach to the operation
+     * @param handler the completion handler
+     * @param options the copy options
+     * @param <A> type of the attachment
+     */
+    public <A> void move(final Path source, final Path target,
+        final A attachment, final CompletionHandler<Void, ? super A> handler,
+        final CopyOption... options)
+    {
+        submit(moveCall(source, target, options), attachment, handler);
+    }
+
+    private <V, A> void submit(final Callable<V> call, final A attachment,
+        final CompletionHandler<V, ? super A> handler)
+    {
+        Objects.requireNonNull(handler);
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final V result;
+                try {
+                    result = call.call();
+                } catch (Throwable t) {
+                    handler.failed(t, attachment);
+                    return;
+                }
+                handler.completed(result, attachment);
+            }
+        });
+    }
+
+    private Callable<BasicFileAttributes> readAttributesCall(final Path path)
+    {
+        return new Callable<BasicFileAttributes>()
+        {
+            @Override
+            public BasicFileAttributes call()
+                throws Exception
+            {
+                return new BoxBasicFileAttributesProvider(
+                    driver.getPathMetadata(path));
+            }
+        };
+    }
+
+    private Callable<List<Path>> listCall(final Path dir)
+    {
+        return new Callable<List<Path>>()
+        {
+            @Override
+            public List<Path> call()
+                throws Exception
+            {
+                final List<Path> list = new ArrayList<>();
+                try (
+                    final DirectoryStream<Path> stream
+                        = driver.newDirectoryStream(dir, ACCEPT_ALL);
+                ) {
+                    for (final Path entry: stream)
+                        list.add(entry);
+                }
+                return list;
+            }
+        };
+    }
+
+    private Callable<Void> deleteCall(final Path path)
+    {
+        return new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                throws Exception
+            {
+                driver.delete(path);
+                return null;
+            }
+        };
+    }
+
+    private Callable<Void> copyCall(final Path source, final Path target,
+        final CopyOption... options)
+    {
+        final Set<CopyOption> set = toSet(options);
+        return new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                throws Exception
+            {
+                driver.copy(source, target, set);
+                return null;
+            }
+        };
+    }
+
+    private Callable<Void> moveCall(final Path source, final Path target,
+        final CopyOption... options)
+    {
+        final Set<CopyOption> set = toSet(options);
+        return new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                throws Exception
+            {
+                driver.move(source, target, set);
+                return null;
+            }
+        };
+    }
+
+    private static Set<CopyOption> toSet(final CopyOption... options)
+    {
+        final Set<CopyOption> set = new HashSet<>();
+        Collections.addAll(set, options);
+        return set;
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.fge.filesystem.box.driver;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Visitor for the files of a {@link BoxFileSystemDriver#bulkRead(Collection,
+ * BoxBulkReadVisitor) bulk read}
+ *
+ * <p>Files are visited in the order in which they arrive, from the thread
+ * which started the bulk read. Throwing an exception terminates the bulk read
+ * and makes it fail with this exception.</p>
+ */
+@ParametersAreNonnullByDefault
+public interface BoxBulkReadVisitor
+{
+    /**
+     * Called for each file read
+     *
+     * <p>The stream is only valid for the duration of the call; it need not
+     * be read fully, nor closed.</p>
+     *
+     * @param path the path of the file
+     * @param in the contents of the file
+     * @return false to terminate the bulk read
+     * @throws IOException an I/O error occurred
+     */
+    boolean visitFile(Path path, InputStream in)
+        throws IOException;
+}
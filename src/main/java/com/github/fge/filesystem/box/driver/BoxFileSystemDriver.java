@@ -4,39 +4,67 @@ import com.box.sdk.BoxAPIException;
 import com.box.sdk.BoxFile;
 import com.box.sdk.BoxFolder;
 import com.box.sdk.BoxItem;
+import com.github.fge.filesystem.box.attributes.BoxBasicFileAttributesProvider;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
 import com.github.fge.filesystem.box.exceptions.BoxIOException;
-import com.github.fge.filesystem.box.io.BoxFileInputStream;
+import com.github.fge.filesystem.box.filestore.BoxFileStore;
+import com.github.fge.filesystem.box.io.BoxAsynchronousFileChannel;
+import com.github.fge.filesystem.box.io.BoxDeduplicatingOutputStream;
 import com.github.fge.filesystem.box.io.BoxFileOutputStream;
+import com.github.fge.filesystem.box.io.BoxLocalTransfers;
+import com.github.fge.filesystem.box.io.BoxSharedDownloads;
+import com.github.fge.filesystem.box.io.BoxUploadListener;
+import com.github.fge.filesystem.box.io.BoxUploadOption;
+import com.github.fge.filesystem.box.io.BoxWriteOption;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+import com.github.fge.filesystem.box.spool.BoxWriteBehind;
+import com.github.fge.filesystem.box.watch.BoxEventPoller;
+import com.github.fge.filesystem.box.watch.BoxWatchService;
 import com.github.fge.filesystem.driver.UnixLikeFileSystemDriverBase;
 import com.github.fge.filesystem.exceptions.IsDirectoryException;
 import com.github.fge.filesystem.provider.FileSystemFactoryProvider;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.AccessMode;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Box filesystem driver
@@ -47,16 +75,526 @@ import java.util.concurrent.Executors;
 public final class BoxFileSystemDriver
     extends UnixLikeFileSystemDriverBase
 {
+    private static final int ASYNC_THREADS = 8;
+    private static final int DEFAULT_WALK_PARALLELISM = 8;
+    private static final int HTTP_CONFLICT = 409;
+
+    /*
+     * Items per archive for bulk reads; Box limits the size of archives
+     */
+    private static final int MAX_ZIP_ITEMS = 1000;
+
     private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ExecutorService asyncExecutor
+        = Executors.newFixedThreadPool(ASYNC_THREADS);
 
+    private final BoxFileStore store;
     private final BoxAPIWrapper wrapper;
+    private final BoxAsyncDriver async;
+    private final BoxWriteBehind writeBehind;
+    private final BoxEventPoller poller;
+
+    private final BoxSharedDownloads downloads
+        = new BoxSharedDownloads(BoxSharedDownloads.DEFAULT_CAPACITY);
+    private volatile BoxPrefetcher prefetcher = null;
+
+    private final AtomicLong skippedUploads = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
 
-    public BoxFileSystemDriver(final FileStore fileStore,
+    /*
+     * Keep the file store's used space accurate between quota refreshes
+     */
+    private final BoxUploadListener uploadListener = new BoxUploadListener()
+    {
+        @Override
+        public void uploadComplete(final long bytes)
+        {
+            store.spaceAllocated(bytes);
+        }
+
+        @Override
+        public void uploadSkipped(final long bytes)
+        {
+            skippedUploads.incrementAndGet();
+            bytesSaved.addAndGet(bytes);
+        }
+    };
+
+    public BoxFileSystemDriver(final BoxFileStore fileStore,
         final FileSystemFactoryProvider factoryProvider,
         final BoxAPIWrapper wrapper)
+        throws IOException
+    {
+        this(fileStore, factoryProvider, wrapper, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * <p>If a write-behind instance is given, it is started, and closed
+     * along with this driver.</p>
+     *
+     * @param fileStore the file store
+     * @param factoryProvider the factory provider
+     * @param wrapper the API wrapper
+     * @param writeBehind the write-behind instance to use for {@link
+     * BoxWriteOption#WRITE_BEHIND}, or {@code null}
+     * @throws IOException failed to start the write-behind instance
+     */
+    public BoxFileSystemDriver(final BoxFileStore fileStore,
+        final FileSystemFactoryProvider factoryProvider,
+        final BoxAPIWrapper wrapper, @Nullable final BoxWriteBehind writeBehind)
+        throws IOException
+    {
+        this(fileStore, factoryProvider, wrapper, writeBehind, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * <p>If a write-behind instance is given, it is started; it is closed
+     * along with this driver, and so is the event poller, if any.</p>
+     *
+     * @param fileStore the file store
+     * @param factoryProvider the factory provider
+     * @param wrapper the API wrapper
+     * @param writeBehind the write-behind instance to use for {@link
+     * BoxWriteOption#WRITE_BEHIND}, or {@code null}
+     * @param poller the event poller to use for watch services, or {@code
+     * null} if watch services are not supported
+     * @throws IOException failed to start the write-behind instance
+     */
+    public BoxFileSystemDriver(final BoxFileStore fileStore,
+        final FileSystemFactoryProvider factoryProvider,
+        final BoxAPIWrapper wrapper, @Nullable final BoxWriteBehind writeBehind,
+        @Nullable final BoxEventPoller poller)
+        throws IOException
     {
         super(fileStore, factoryProvider);
+        store = fileStore;
         this.wrapper = Objects.requireNonNull(wrapper);
+        async = new BoxAsyncDriver(this, asyncExecutor);
+        this.writeBehind = writeBehind;
+        this.poller = poller;
+        if (writeBehind != null)
+            writeBehind.start(uploadListener);
+    }
+
+    /**
+     * Return the asynchronous counterparts of this driver's operations
+     *
+     * @return the asynchronous driver
+     */
+    @Nonnull
+    public BoxAsyncDriver async()
+    {
+        return async;
+    }
+
+    /**
+     * Return the write-behind instance of this driver, if any
+     *
+     * <p>Use it to wait for spooled files to be uploaded.</p>
+     *
+     * @return the write-behind instance, or {@code null} if this filesystem
+     * has no spool directory
+     */
+    @Nullable
+    public BoxWriteBehind getWriteBehind()
+    {
+        return writeBehind;
+    }
+
+    /**
+     * Return the downloads shared by concurrent readers of the same file
+     *
+     * <p>Use it to monitor how many downloads were saved.</p>
+     *
+     * @return the shared downloads
+     */
+    @Nonnull
+    public BoxSharedDownloads getSharedDownloads()
+    {
+        return downloads;
+    }
+
+    /**
+     * Return the prefetcher of sibling files, if any
+     *
+     * @return the prefetcher, or {@code null} if prefetching is disabled
+     */
+    @Nullable
+    public BoxPrefetcher getPrefetcher()
+    {
+        return prefetcher;
+    }
+
+    /**
+     * Enable or disable the prefetching of sibling files
+     *
+     * <p>Prefetching is disabled by default. See {@link BoxPrefetcher} for
+     * when files are prefetched.</p>
+     *
+     * @param prefetcher the prefetcher, or {@code null} to disable
+     * prefetching
+     */
+    public void setPrefetcher(@Nullable final BoxPrefetcher prefetcher)
+    {
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Return the number of uploads skipped since the target file was
+     * unchanged
+     *
+     * @return the number of skipped uploads
+     * @see BoxWriteOption#SKIP_IF_UNCHANGED
+     */
+    public long getSkippedUploadCount()
+    {
+        return skippedUploads.get();
+    }
+
+    /**
+     * Return the number of bytes which did not need to be uploaded since the
+     * target file was unchanged
+     *
+     * @return the number of bytes saved
+     * @see BoxWriteOption#SKIP_IF_UNCHANGED
+     */
+    public long getBytesSaved()
+    {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Walk a file tree, listing directories in parallel
+     *
+     * <p>Equivalent to {@link #walk(Path, int, int, BoxFileVisitor)} with a
+     * parallelism of 8.</p>
+     *
+     * @param start the starting path
+     * @param maxDepth the maximum depth of the walk
+     * @param visitor the visitor
+     * @throws IOException the starting path does not exist, or the visitor
+     * failed
+     */
+    public void walk(final Path start, final int maxDepth,
+        final BoxFileVisitor visitor)
+        throws IOException
+    {
+        walk(start, maxDepth, DEFAULT_WALK_PARALLELISM, visitor);
+    }
+
+    /**
+     * Walk a file tree, listing directories in parallel
+     *
+     * <p>Unlike {@link java.nio.file.Files#walkFileTree(Path, Set, int,
+     * java.nio.file.FileVisitor)}, up to {@code parallelism} directories are
+     * listed at the same time; and the attributes given to the visitor come
+     * with the listings, so that no API call is needed per entry. See {@link
+     * BoxFileVisitor} for the ordering and threading guarantees.</p>
+     *
+     * @param start the starting path
+     * @param maxDepth the maximum depth of the walk
+     * @param parallelism the maximum number of concurrent listings
+     * @param visitor the visitor
+     * @throws IOException the starting path does not exist, or the visitor
+     * failed
+     */
+    public void walk(final Path start, final int maxDepth,
+        final int parallelism, final BoxFileVisitor visitor)
+        throws IOException
+    {
+        Objects.requireNonNull(visitor);
+        new BoxTreeWalker(wrapper, executor, parallelism)
+            .walk(start.toAbsolutePath(), maxDepth, visitor);
+    }
+
+    /**
+     * Find items below a directory
+     *
+     * <p>This is the equivalent of Java 8's {@code Files.find()}, with
+     * criteria Box can evaluate. When possible (see {@link
+     * BoxSearchCriterion}), the criteria are translated into a query of the
+     * Box search API, restricted to the starting directory; a selective query
+     * then costs a few requests instead of a walk of the whole tree. Other
+     * finds walk the tree in parallel, as {@link #walk(Path, int,
+     * BoxFileVisitor)} does. In both cases, results come with their
+     * attributes and all criteria are checked locally. Without criteria,
+     * every item up to {@code maxDepth}, including the starting path, is
+     * reported.</p>
+     *
+     * <p>Note that the Box search index lags behind changes: a search may miss
+     * items created or renamed in the last few minutes, and report attributes
+     * which are no longer current.</p>
+     *
+     * @param start the starting path
+     * @param maxDepth the maximum depth of results
+     * @param visitor the visitor of results
+     * @param criteria the criteria results must match
+     * @throws IOException the starting path does not exist, or the visitor
+     * failed
+     */
+    public void find(final Path start, final int maxDepth,
+        final BoxMatchVisitor visitor, final BoxSearchCriterion... criteria)
+        throws IOException
+    {
+        Objects.requireNonNull(visitor);
+
+        final Path realStart = start.toAbsolutePath();
+        final BoxSearchQuery query = new BoxSearchQuery(criteria);
+        final BoxItemRecord record = wrapper.getRecord(realStart);
+
+        if (record == null)
+            throw new NoSuchFileException(realStart.toString());
+
+        final BasicFileAttributes attrs
+            = new BoxBasicFileAttributesProvider(record);
+
+        if (query.matches(realStart, attrs)
+            && !visitor.visitMatch(realStart, attrs))
+            return;
+
+        /*
+         * Without criteria, every item matches and the whole tree is walked
+         */
+        if (!record.isFolder() || maxDepth <= 0 || query.matchesNothing())
+            return;
+
+        if (query.isSearchable())
+            search(realStart, record.getId(), maxDepth, query, visitor);
+        else
+            new BoxTreeWalker(wrapper, executor, DEFAULT_WALK_PARALLELISM)
+                .walk(realStart, maxDepth,
+                    new MatchingVisitor(realStart, query, visitor));
+    }
+
+    /**
+     * Read a set of files and directories in bulk
+     *
+     * <p>Instead of one download per file, Box builds an archive of the
+     * items, which is decoded as it arrives; see {@link BoxBulkReadVisitor}
+     * for what the visitor is given. A directory stands for all the files
+     * below it. Many small files are read this way at the cost of a couple of
+     * requests, instead of one request per file.</p>
+     *
+     * <p>Large sets of items are split over several archives.</p>
+     *
+     * @param paths the paths to read
+     * @param visitor the visitor
+     * @throws NoSuchFileException one of the paths does not exist
+     * @throws IOException Box API error, failed to read an archive, or the
+     * visitor failed
+     */
+    public void bulkRead(final Collection<Path> paths,
+        final BoxBulkReadVisitor visitor)
+        throws IOException
+    {
+        Objects.requireNonNull(visitor);
+
+        final Map<BoxItemRecord, Path> batch = new LinkedHashMap<>();
+        Path realPath;
+        BoxItemRecord record;
+
+        for (final Path path: paths) {
+            realPath = path.toAbsolutePath();
+            record = wrapper.getRecord(realPath);
+            if (record == null)
+                throw new NoSuchFileException(realPath.toString());
+            batch.put(record, realPath);
+            if (batch.size() < MAX_ZIP_ITEMS)
+                continue;
+            if (!wrapper.downloadZip(batch, visitor))
+                return;
+            batch.clear();
+        }
+
+        if (!batch.isEmpty())
+            wrapper.downloadZip(batch, visitor);
+    }
+
+    /**
+     * Open a read only asynchronous channel to a file
+     *
+     * @param path the path
+     * @param options the open options
+     * @param executor the executor to perform reads with; if null, use the
+     * driver's asynchronous executor
+     * @return a channel
+     * @throws IOException filesystem level error, or a plain I/O error
+     * @see FileSystemProvider#newAsynchronousFileChannel(Path, Set,
+     * ExecutorService, FileAttribute[])
+     */
+    @Nonnull
+    public AsynchronousFileChannel newAsynchronousFileChannel(final Path path,
+        final Set<? extends OpenOption> options,
+        @Nullable final ExecutorService executor)
+        throws IOException
+    {
+        if (options.contains(StandardOpenOption.WRITE)
+            || options.contains(StandardOpenOption.APPEND))
+            throw new UnsupportedOperationException("asynchronous writes are "
+                + "not supported");
+
+        final BoxItemRecord record = getFileRecord(path.toAbsolutePath());
+        final BoxFile file = (BoxFile) wrapper.toItem(record);
+
+        return new BoxAsynchronousFileChannel(
+            executor == null ? asyncExecutor : executor,
+            wrapper.getTransferLimiter(file), file, record.getSize());
+    }
+
+    /**
+     * Download a file from this filesystem to a local file
+     *
+     * <p>The contents are written directly to a {@link FileChannel} opened on
+     * a temporary file next to the target; large files are downloaded in
+     * parallel ranges. The temporary file is moved into place once the
+     * download completes, and deleted if it fails: an existing target is
+     * left untouched unless the download succeeds.</p>
+     *
+     * @param source the source path, on this filesystem
+     * @param target the target path, on the default filesystem
+     * @param options the copy options; only {@link
+     * StandardCopyOption#REPLACE_EXISTING} is taken into account
+     * @throws IOException filesystem level error, or a plain I/O error
+     */
+    public void downloadTo(final Path source, final Path target,
+        final Set<CopyOption> options)
+        throws IOException
+    {
+        final BoxItemRecord record = getFileRecord(source.toAbsolutePath());
+        final BoxFile file = (BoxFile) wrapper.toItem(record);
+        final boolean replace
+            = options.contains(StandardCopyOption.REPLACE_EXISTING);
+
+        if (!replace && Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+            throw new FileAlreadyExistsException(target.toString());
+
+        final Path tmp = target.resolveSibling("." + target.getFileName()
+            + '.' + Long.toHexString(ThreadLocalRandom.current().nextLong())
+            + ".part");
+        boolean success = false;
+
+        try {
+            try (
+                final FileChannel channel = FileChannel.open(tmp,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            ) {
+                BoxLocalTransfers.download(executor,
+                    wrapper.getTransferLimiter(file), file, record.getSize(),
+                    record.getEtag(), channel);
+            }
+            if (replace)
+                moveReplacing(tmp, target);
+            else
+                Files.move(tmp, target);
+            success = true;
+        } finally {
+            if (!success)
+                Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Upload a local file to this filesystem
+     *
+     * <p>The contents are read from a memory mapping of the source, and
+     * uploaded from the calling thread.</p>
+     *
+     * @param source the source path, on the default filesystem
+     * @param target the target path, on this filesystem
+     * @param options the copy options; only {@link
+     * StandardCopyOption#REPLACE_EXISTING} and {@link
+     * BoxWriteOption#SKIP_IF_UNCHANGED} are taken into account
+     * @throws IOException filesystem level error, or a plain I/O error
+     */
+    public void uploadFrom(final Path source, final Path target,
+        final Set<CopyOption> options)
+        throws IOException
+    {
+        final Path realPath = target.toAbsolutePath();
+        final String dst = realPath.toString();
+
+        if (realPath.getNameCount() == 0)
+            throw new IsDirectoryException(dst);
+
+        final BoxFolder folder = wrapper.getFolder(realPath.getParent());
+        final String name = realPath.getFileName().toString();
+        final long size;
+
+        try (
+            final FileChannel channel = FileChannel.open(source,
+                StandardOpenOption.READ);
+            final InputStream in = BoxLocalTransfers.uploadSource(channel);
+        ) {
+            size = channel.size();
+            checkSize(realPath, size);
+
+            /*
+             * As for output streams, the preflight tells whether there is an
+             * item in the way; a new version is uploaded with the etag it
+             * saw, so that a change made in the meantime makes the upload
+             * fail instead of being overwritten
+             */
+            final BoxItemRecord conflict
+                = wrapper.preflightCreate(folder, name, size);
+
+            if (conflict != null) {
+                if (conflict.isFolder())
+                    throw new IsDirectoryException(dst);
+                if (!options.contains(StandardCopyOption.REPLACE_EXISTING))
+                    throw new FileAlreadyExistsException(dst);
+                if (options.contains(BoxWriteOption.SKIP_IF_UNCHANGED)
+                    && isUnchanged(conflict, channel)) {
+                    uploadListener.uploadSkipped(size);
+                    return;
+                }
+            }
+
+            final BoxFile file = conflict == null ? null
+                : (BoxFile) wrapper.toItem(conflict);
+            final BoxConcurrencyLimiter limiter = wrapper.getTransferLimiter(
+                file == null ? folder : file);
+
+            BoxLocalTransfers.transfer(limiter, new BoxAPICall<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        if (file == null)
+                            folder.uploadFile(in, name);
+                        else
+                            BoxLocalTransfers.uploadVersion(file,
+                                conflict.getEtag(), in);
+                        return null;
+                    }
+                });
+        } catch (BoxAPIException e) {
+            throw BoxIOException.wrap(e);
+        }
+
+        wrapper.invalidate(realPath);
+        uploadListener.uploadComplete(size);
+    }
+
+    /**
+     * Create a new watch service
+     *
+     * <p>Folders are registered using {@link BoxWatchService#register(Path,
+     * java.nio.file.WatchEvent.Kind[])}; all watch services of this
+     * filesystem share a single connection to the Box event stream.</p>
+     *
+     * @return a new watch service
+     * @throws UnsupportedOperationException no event poller was configured
+     */
+    @Override
+    public BoxWatchService newWatchService()
+    {
+        if (poller == null)
+            throw new UnsupportedOperationException();
+        return new BoxWatchService(wrapper, poller);
     }
 
     @Nonnull
@@ -66,10 +604,20 @@ public final class BoxFileSystemDriver
         throws IOException
     {
         final Path realPath = path.toAbsolutePath();
+        final BoxItemRecord record = getFileRecord(realPath);
+        final BoxPrefetcher current = prefetcher;
+
+        if (current != null) {
+            final InputStream in
+                = current.open(realPath, record, wrapper, executor);
+            if (in != null)
+                return in;
+        }
 
-        final BoxFile file = wrapper.getFile(realPath);
+        final BoxFile file = (BoxFile) wrapper.toItem(record);
 
-        return new BoxFileInputStream(executor, file);
+        return downloads.open(executor, wrapper.getTransferLimiter(file), file,
+            record.getEtag());
     }
 
     @SuppressWarnings("IOResourceOpenedButNotSafelyClosed")
@@ -80,25 +628,61 @@ public final class BoxFileSystemDriver
         throws IOException
     {
         final Path realPath = path.toAbsolutePath();
-
-        final OutputStream ret;
         final String target = realPath.toString();
-        final BoxItem item = wrapper.getItem(realPath);
-        final boolean create = item == null;
-
-        if (create) {
-            // TODO: check; parent should always exist
-            final Path parent = realPath.getParent();
-            final BoxFolder folder = wrapper.getFolder(parent);
-            ret = new BoxFileOutputStream(executor, folder,
-                realPath.getFileName().toString());
-        } else {
-            if (isDirectory(item))
+        final long size = BoxUploadOption.getExpectedSize(options);
+        final boolean spooled = options.contains(BoxWriteOption.WRITE_BEHIND);
+
+        if (spooled && writeBehind == null)
+            throw new UnsupportedOperationException("no spool directory "
+                + "configured for this filesystem");
+
+        if (realPath.getNameCount() == 0)
+            throw new IsDirectoryException(target);
+
+        checkSize(realPath, size);
+
+        /*
+         * Rather than resolving the target, which may mean listing its
+         * parent, let the preflight tell whether there is an item in the way
+         */
+        final BoxFolder folder = wrapper.getFolder(realPath.getParent());
+        final String name = realPath.getFileName().toString();
+        final BoxItemRecord conflict
+            = wrapper.preflightCreate(folder, name, size);
+
+        if (conflict != null) {
+            if (options.contains(StandardOpenOption.CREATE_NEW))
+                throw new FileAlreadyExistsException(target);
+            if (conflict.isFolder())
                 throw new IsDirectoryException(target);
-            ret = new BoxFileOutputStream(executor, asFile(item));
         }
 
-        return ret;
+        final BoxUploadListener listener = listenerFor(realPath);
+
+        if (spooled)
+            return conflict == null
+                ? writeBehind.open(folder.getID(), name, null, null, listener)
+                : writeBehind.open(folder.getID(), name,
+                    Long.toString(conflict.getId()), conflict.getEtag(),
+                    listener);
+
+        if (conflict == null)
+            return new BoxFileOutputStream(executor,
+                wrapper.getTransferLimiter(folder), folder, name, options,
+                listener);
+
+        /*
+         * Overwrite the version the preflight saw, and no other
+         */
+        final BoxFile file = asFile(wrapper.toItem(conflict));
+        final String etag = conflict.getEtag();
+        final BoxConcurrencyLimiter limiter = wrapper.getTransferLimiter(file);
+
+        return options.contains(BoxWriteOption.SKIP_IF_UNCHANGED)
+            ? new BoxDeduplicatingOutputStream(executor, limiter, file, etag,
+                conflict.getSha1(), options, listener)
+            : new BoxFileOutputStream(executor, limiter, file, etag, options,
+                listener);
     }
 
     @Nonnull
@@ -108,23 +692,23 @@ public final class BoxFileSystemDriver
         throws IOException
     {
         final Path realPath = dir.toAbsolutePath();
-        final BoxFolder folder = wrapper.getFolder(realPath);
 
         /*
          * TODO! Find a better way...
          *
          * The problem is that a BoxFolder's .getChildren() will do pagination
          * by itself; and this may fail with a BoxAPIException. We don't want
-         * to throw that from within an Iterator, we therefore swallow
-         * everything :/
+         * to throw that from within an Iterator, we therefore fetch the whole
+         * listing beforehand :/
          */
+        final List<BoxItemRecord> children = wrapper.getChildren(realPath);
         final List<Path> list = new ArrayList<>();
-        try {
-            for (final BoxItem.Info info : folder.getChildren("name"))
-                list.add(dir.resolve(info.getName()));
-        } catch (BoxAPIException e) {
-            throw BoxIOException.wrap(e);
-        }
+        for (final BoxItemRecord record: children)
+            list.add(dir.resolve(record.getName()));
+
+        final BoxPrefetcher current = prefetcher;
+        if (current != null)
+            current.listed(realPath, children);
 
         //noinspection AnonymousInnerClassWithTooManyMethods
         return new DirectoryStream<Path>()
@@ -148,21 +732,24 @@ public final class BoxFileSystemDriver
         throws IOException
     {
         final Path realPath = dir.toAbsolutePath();
-        final BoxItem item = wrapper.getItem(realPath);
 
-        //noinspection VariableNotUsedInsideIf
-        if (item != null)
+        if (realPath.getNameCount() == 0)
             throw new FileAlreadyExistsException(dir.toString());
 
-        final Path parent = realPath.getParent();
-        final BoxFolder folder = wrapper.getFolder(parent);
+        /*
+         * Only the parent is resolved; Box tells whether the name is taken
+         */
+        final BoxFolder folder = wrapper.getFolder(realPath.getParent());
         final String name = realPath.getFileName().toString();
 
         try {
             folder.createFolder(name);
         } catch (BoxAPIException e) {
+            if (e.getResponseCode() == HTTP_CONFLICT)
+                throw new FileAlreadyExistsException(dir.toString());
             throw BoxIOException.wrap(e);
         }
+        wrapper.invalidate(realPath);
     }
 
     @Override
@@ -170,6 +757,7 @@ public final class BoxFileSystemDriver
         throws IOException
     {
         wrapper.deleteItem(path.toAbsolutePath());
+        store.invalidate();
     }
 
     @Override
@@ -217,6 +805,8 @@ public final class BoxFileSystemDriver
         } catch (BoxAPIException e) {
             throw BoxIOException.wrap(e);
         }
+        wrapper.invalidate(dstPath);
+        store.invalidate();
     }
 
     /**
@@ -273,6 +863,7 @@ public final class BoxFileSystemDriver
             } else {
                 asFile(srcItem).copy(parent, name);
             }
+            wrapper.invalidate(dstPath);
             // This is the only line which is no in .copy(). Meh.
             wrapper.deleteItem(srcPath);
         } catch (BoxAPIException e) {
@@ -301,15 +892,15 @@ public final class BoxFileSystemDriver
 
     @Nonnull
     @Override
-    public BoxItem getPathMetadata(final Path path)
+    public BoxItemRecord getPathMetadata(final Path path)
         throws IOException
     {
         // TODO: when symlinks are supported this may turn out to be wrong
         final Path target = path.toAbsolutePath();
-        final BoxItem item = wrapper.getItem(target);
-        if (item == null)
+        final BoxItemRecord record = wrapper.getRecord(target);
+        if (record == null)
             throw new NoSuchFileException(target.toString());
-        return item;
+        return record;
     }
 
     /**
@@ -317,13 +908,98 @@ public final class BoxFileSystemDriver
      * with it. If the stream is already closed then invoking this
      * method has no effect.
      *
+     * <p>Transfers in progress are allowed to complete; the API connection is
+     * released to its pool. Spooled files not uploaded yet are kept in the
+     * spool directory, and will be uploaded the next time it is used.</p>
+     *
      * @throws IOException if an I/O error occurs
      */
     @Override
     public void close()
         throws IOException
     {
-        // TODO! Is there anything to be done here?
+        final BoxPrefetcher current = prefetcher;
+        if (current != null)
+            current.clear();
+        executor.shutdown();
+        asyncExecutor.shutdown();
+        if (poller != null)
+            poller.close();
+        if (writeBehind != null)
+            writeBehind.close();
+        wrapper.close();
+    }
+
+    /*
+     * Once the upload completes, cached information about the path is stale
+     */
+    private BoxUploadListener listenerFor(final Path path)
+    {
+        return new BoxUploadListener()
+        {
+            @Override
+            public void uploadComplete(final long bytes)
+            {
+                wrapper.invalidate(path);
+                uploadListener.uploadComplete(bytes);
+            }
+
+            @Override
+            public void uploadSkipped(final long bytes)
+            {
+                uploadListener.uploadSkipped(bytes);
+            }
+        };
+    }
+
+    private void checkSize(final Path target, final long size)
+        throws IOException
+    {
+        if (size < 0L)
+            return;
+
+        final long max = store.getQuota().getMaxUploadSize();
+
+        if (size > max)
+            throw new BoxIOException(target + ": file too large (" + size
+                + " bytes, maximum allowed is " + max + ')');
+    }
+
+    /*
+     * Resolve a file once; the item is then built from this very record, so
+     * that its id and its metadata always match
+     */
+    private BoxItemRecord getFileRecord(final Path path)
+        throws IOException
+    {
+        final BoxItemRecord record = wrapper.getRecord(path);
+
+        if (record == null)
+            throw new NoSuchFileException(path.toString());
+        if (record.isFolder())
+            throw new IsDirectoryException(path.toString());
+
+        return record;
+    }
+
+    private static void moveReplacing(final Path source, final Path target)
+        throws IOException
+    {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ignored) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static boolean isUnchanged(final BoxItemRecord record,
+        final FileChannel channel)
+        throws IOException
+    {
+        final String sha1 = record.getSha1();
+
+        return sha1 != null
+            && BoxLocalTransfers.sha1(channel).equalsIgnoreCase(sha1);
     }
 
     private static boolean isDirectory(final BoxItem item)
@@ -341,8 +1017,85 @@ public final class BoxFileSystemDriver
         return item instanceof BoxFile;
     }
 
+    private void search(final Path start, final long startId,
+        final int maxDepth, final BoxSearchQuery query,
+        final BoxMatchVisitor visitor)
+        throws IOException
+    {
+        final Path root = start.getRoot();
+        final String parameters = query.toParameters(startId);
+        final List<BoxSearchHit> hits = new ArrayList<>();
+        final int startDepth = start.getNameCount();
+        int offset = 0;
+        int count;
+        Path path;
+        BasicFileAttributes attrs;
+
+        do {
+            hits.clear();
+            count = wrapper.search(parameters, offset, hits);
+            offset += count;
+            for (final BoxSearchHit hit: hits) {
+                path = hit.toPath(root);
+                if (!path.startsWith(start) || path.equals(start)
+                    || path.getNameCount() - startDepth > maxDepth)
+                    continue;
+                attrs = new BoxBasicFileAttributesProvider(hit.getRecord());
+                if (query.matches(path, attrs)
+                    && !visitor.visitMatch(path, attrs))
+                    return;
+            }
+        } while (count > 0);
+    }
+
     private static BoxFile asFile(final BoxItem item)
     {
         return (BoxFile) item;
     }
+
+    /*
+     * Walk fallback of a find; the starting path has already been checked
+     */
+    private static final class MatchingVisitor
+        implements BoxFileVisitor
+    {
+        private final Path start;
+        private final BoxSearchQuery query;
+        private final BoxMatchVisitor visitor;
+
+        private MatchingVisitor(final Path start, final BoxSearchQuery query,
+            final BoxMatchVisitor visitor)
+        {
+            this.start = start;
+            this.query = query;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public FileVisitResult visitDirectory(final Path dir,
+            final BasicFileAttributes attrs)
+            throws IOException
+        {
+            return visitFile(dir, attrs);
+        }
+
+        @Override
+        public FileVisitResult visitFile(final Path file,
+            final BasicFileAttributes attrs)
+            throws IOException
+        {
+            if (file.equals(start) || !query.matches(file, attrs))
+                return FileVisitResult.CONTINUE;
+            return visitor.visitMatch(file, attrs) ? FileVisitResult.CONTINUE
+                : FileVisitResult.TERMINATE;
+        }
+
+        @Override
+        public FileVisitResult visitDirectoryFailed(final Path dir,
+            final IOException exc)
+            throws IOException
+        {
+            throw exc;
+        }
+    }
 }
@@ -0,0 +1,57 @@
+package com.github.fge.filesystem.box.driver;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Visitor for {@link BoxFileSystemDriver#walk(Path, int, int,
+ * BoxFileVisitor) parallel walks}
+ *
+ * <p>Directories are listed concurrently, but all methods of a visitor are
+ * called from the thread which started the walk; implementations need not be
+ * thread safe. Entries of a given directory are visited in sequence; there is
+ * no ordering between entries of different directories.</p>
+ *
+ * <p>The meaning of the returned {@link FileVisitResult} is the same as for
+ * a {@link java.nio.file.FileVisitor}. Throwing an exception terminates the
+ * walk and makes it fail with this exception.</p>
+ */
+@ParametersAreNonnullByDefault
+public interface BoxFileVisitor
+{
+    /**
+     * Called for a directory, before it is listed
+     *
+     * @param dir the directory
+     * @param attrs its basic attributes
+     * @return {@link FileVisitResult#SKIP_SUBTREE} to not list this directory
+     * @throws IOException an I/O error occurred
+     */
+    FileVisitResult visitDirectory(Path dir, BasicFileAttributes attrs)
+        throws IOException;
+
+    /**
+     * Called for a file
+     *
+     * @param file the file
+     * @param attrs its basic attributes
+     * @return the visit result
+     * @throws IOException an I/O error occurred
+     */
+    FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+        throws IOException;
+
+    /**
+     * Called when a directory could not be listed
+     *
+     * @param dir the directory
+     * @param exc the failure
+     * @return the visit result
+     * @throws IOException an I/O error occurred
+     */
+    FileVisitResult visitDirectoryFailed(Path dir, IOException exc)
+        throws IOException;
+}
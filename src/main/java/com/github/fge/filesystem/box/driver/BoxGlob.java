@@ -0,0 +1,182 @@
+package com.github.fge.filesystem.box.driver;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Glob patterns applied to item names
+ *
+ * <p>Besides matching, this class extracts from a glob what a search query can
+ * use: the words any matching name must contain.</p>
+ */
+@ParametersAreNonnullByDefault
+final class BoxGlob
+{
+    private static final String SPECIAL = "\\^$.|+()[]{}*?";
+
+    private BoxGlob()
+    {
+        throw new Error("nice try!");
+    }
+
+    /**
+     * Convert a glob to a regular expression
+     *
+     * @param glob the glob
+     * @return a pattern
+     * @throws PatternSyntaxException invalid glob
+     */
+    static Pattern toRegex(final String glob)
+    {
+        final StringBuilder sb = new StringBuilder(glob.length() * 2);
+        final int length = glob.length();
+        boolean inGroup = false;
+        char c;
+
+        for (int i = 0; i < length; i++) {
+            c = glob.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (++i == length)
+                        throw new PatternSyntaxException("trailing escape",
+                            glob, i - 1);
+                    quote(sb, glob.charAt(i));
+                    break;
+                case '*':
+                    sb.append(".*");
+                    break;
+                case '?':
+                    sb.append('.');
+                    break;
+                case '[':
+                    i = bracket(sb, glob, i);
+                    break;
+                case '{':
+                    if (inGroup)
+                        throw new PatternSyntaxException("nested group", glob,
+                            i);
+                    inGroup = true;
+                    sb.append("(?:");
+                    break;
+                case '}':
+                    if (!inGroup) {
+                        quote(sb, c);
+                        break;
+                    }
+                    inGroup = false;
+                    sb.append(')');
+                    break;
+                case ',':
+                    if (inGroup)
+                        sb.append('|');
+                    else
+                        sb.append(',');
+                    break;
+                default:
+                    quote(sb, c);
+            }
+        }
+
+        if (inGroup)
+            throw new PatternSyntaxException("unclosed group", glob, length);
+
+        return Pattern.compile(sb.toString());
+    }
+
+    /**
+     * Return the words any name matching a glob must contain
+     *
+     * <p>A word is a run of letters and digits, outside of any group or
+     * bracket expression, which is delimited on both sides by either the
+     * start or end of the glob or a character which is neither a letter, a
+     * digit, nor a wildcard.</p>
+     *
+     * @param glob the glob
+     * @return a list of words, possibly empty
+     */
+    static List<String> words(final String glob)
+    {
+        final List<String> list = new ArrayList<>();
+        final StringBuilder word = new StringBuilder();
+        final int length = glob.length();
+        boolean bounded = true;
+        int depth = 0;
+        char c;
+
+        for (int i = 0; i < length; i++) {
+            c = glob.charAt(i);
+            if (c == '\\' && i + 1 < length)
+                c = glob.charAt(++i);
+            else if (c == '[' || c == '{') {
+                depth++;
+                word.setLength(0);
+                bounded = false;
+                continue;
+            } else if (c == ']' || c == '}') {
+                depth = Math.max(0, depth - 1);
+                bounded = false;
+                continue;
+            } else if (c == '*' || c == '?') {
+                word.setLength(0);
+                bounded = false;
+                continue;
+            }
+
+            if (depth > 0)
+                continue;
+
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+                continue;
+            }
+
+            if (bounded && word.length() > 0)
+                list.add(word.toString());
+            word.setLength(0);
+            bounded = true;
+        }
+
+        if (bounded && depth == 0 && word.length() > 0)
+            list.add(word.toString());
+
+        return list;
+    }
+
+    private static int bracket(final StringBuilder sb, final String glob,
+        final int start)
+    {
+        final int length = glob.length();
+        int i = start + 1;
+        char c;
+
+        sb.append('[');
+        if (i < length && (glob.charAt(i) == '!' || glob.charAt(i) == '^')) {
+            sb.append('^');
+            i++;
+        }
+
+        for (; i < length; i++) {
+            c = glob.charAt(i);
+            if (c == ']' && i > start + 1) {
+                sb.append(']');
+                return i;
+            }
+            if (c == '\\' || c == '[' || c == '&' || c == '^')
+                sb.append('\\');
+            sb.append(c);
+        }
+
+        throw new PatternSyntaxException("unclosed bracket expression", glob,
+            start);
+    }
+
+    private static void quote(final StringBuilder sb, final char c)
+    {
+        if (SPECIAL.indexOf(c) != -1)
+            sb.append('\\');
+        sb.append(c);
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.fge.filesystem.box.driver;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Visitor for the results of a {@link BoxFileSystemDriver#find(Path, int,
+ * BoxMatchVisitor, BoxSearchCriterion...) find}
+ *
+ * <p>All calls are made from the thread which started the find; there is no
+ * ordering between results. Throwing an exception terminates the find and
+ * makes it fail with this exception.</p>
+ */
+@ParametersAreNonnullByDefault
+public interface BoxMatchVisitor
+{
+    /**
+     * Called for an item matching all criteria
+     *
+     * @param path the path of the item
+     * @param attrs its basic attributes
+     * @return false to terminate the find
+     * @throws IOException an I/O error occurred
+     */
+    boolean visitMatch(Path path, BasicFileAttributes attrs)
+        throws IOException;
+}
@@ -0,0 +1,497 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Speculative downloads of the small files of a directory read in order
+ *
+ * <p>A common way to process a directory is to list it, then read its files
+ * one after the other; each read then waits for a download of its own. Once a
+ * prefetcher is {@link BoxFileSystemDriver#setPrefetcher(BoxPrefetcher) set},
+ * the driver tells it about listings and reads. Once at least two files of a
+ * recent listing have been read in listing order, the next small files of
+ * this listing are downloaded in the background and held in memory until
+ * they are read.</p>
+ *
+ * <p>Prefetches never compete with actual transfers: they are only started
+ * while the transfer limiter has idle slots, and are given up if they cannot
+ * get one shortly after.</p>
+ *
+ * <p>Prefetched contents are only served if the file has the same etag as
+ * when it was listed. The memory used is bounded: when there is no room left,
+ * contents prefetched for other directories are discarded, and if that is
+ * not enough, prefetching stops until contents are read. Contents discarded
+ * without having been read, including those of files skipped by the reader,
+ * count as {@link #getWastedBytes() wasted}.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxPrefetcher
+{
+    /**
+     * The default number of files to prefetch ahead of the reader
+     */
+    public static final int DEFAULT_DEPTH = 8;
+
+    /**
+     * The default maximum size of files to prefetch, in bytes
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 1024L * 1024L;
+
+    /**
+     * The default capacity of the buffer, in bytes
+     */
+    public static final long DEFAULT_CAPACITY = 32L * 1024L * 1024L;
+
+    private static final int MAX_LISTINGS = 16;
+    private static final int MIN_STREAK = 2;
+    private static final long MAX_QUEUE_TIME = 1L;
+    private static final TimeUnit MAX_QUEUE_TIME_UNIT = TimeUnit.SECONDS;
+
+    private final int depth;
+    private final long maxFileSize;
+    private final long capacity;
+
+    /*
+     * All guarded by this; listings are in access order, least recently used
+     * first, and prefetches in the order they were started
+     */
+    private final Map<Path, Listing> listings
+        = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, Prefetch> prefetches = new LinkedHashMap<>();
+    private long size = 0L;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong prefetchedBytes = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+
+    /**
+     * Constructor with default settings
+     */
+    public BoxPrefetcher()
+    {
+        this(DEFAULT_DEPTH, DEFAULT_MAX_FILE_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param depth the number of files to prefetch ahead of the reader
+     * @param maxFileSize the maximum size of files to prefetch, in bytes
+     * @param capacity the capacity of the buffer, in bytes
+     */
+    public BoxPrefetcher(final int depth, final long maxFileSize,
+        final long capacity)
+    {
+        if (depth <= 0)
+            throw new IllegalArgumentException("depth must be positive");
+        if (maxFileSize <= 0L || maxFileSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid maximum file size");
+        if (capacity <= 0L)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.depth = depth;
+        this.maxFileSize = maxFileSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Return the number of reads served from prefetched contents
+     *
+     * @return the number of reads
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of reads which had to download the file
+     *
+     * @return the number of reads
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Return the proportion of reads served from prefetched contents
+     *
+     * @return the hit rate, between 0 and 1
+     */
+    public double getHitRate()
+    {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+
+        return total == 0L ? 0.0 : (double) hitCount / (double) total;
+    }
+
+    /**
+     * Return the number of files prefetched
+     *
+     * @return the number of files
+     */
+    public long getPrefetchCount()
+    {
+        return prefetched.get();
+    }
+
+    /**
+     * Return the number of bytes prefetched
+     *
+     * @return the number of bytes
+     */
+    public long getPrefetchedBytes()
+    {
+        return prefetchedBytes.get();
+    }
+
+    /**
+     * Return the number of bytes prefetched, or being prefetched, which were
+     * discarded without having been read
+     *
+     * <p>A high count compared to the {@link #getPrefetchedBytes() number of
+     * bytes prefetched} means that readers do not read files in listing
+     * order, or that the buffer is too small for the depth.</p>
+     *
+     * @return the number of bytes
+     */
+    public long getWastedBytes()
+    {
+        return wasted.get();
+    }
+
+    /**
+     * Return the number of bytes currently reserved in the buffer
+     *
+     * @return the number of bytes
+     */
+    public synchronized long getBufferedBytes()
+    {
+        return size;
+    }
+
+    /**
+     * Discard all prefetched contents and forget all listings
+     */
+    public synchronized void clear()
+    {
+        listings.clear();
+        for (final Prefetch prefetch: prefetches.values())
+            discard(prefetch);
+        prefetches.clear();
+        size = 0L;
+    }
+
+    /**
+     * Record the listing of a directory
+     *
+     * <p>Contents prefetched from a previous listing of this directory are
+     * discarded.</p>
+     *
+     * @param dir the directory
+     * @param children the entries of the directory, in listing order
+     */
+    void listed(final Path dir, final List<BoxItemRecord> children)
+    {
+        final Listing listing = new Listing(children);
+
+        synchronized (this) {
+            dropListing(dir);
+            listings.put(dir, listing);
+            if (listings.size() > MAX_LISTINGS)
+                dropListing(listings.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Open a stream on a file, if its contents have been prefetched; start
+     * prefetching the files which follow it if files are read in listing
+     * order
+     *
+     * @param path the path of the file
+     * @param record the current metadata of the file
+     * @param wrapper the API wrapper
+     * @param executor the executor to prefetch files with
+     * @return a stream, or {@code null} if the file must be downloaded
+     * @throws BoxIOException interrupted while waiting for the contents
+     */
+    @Nullable
+    InputStream open(final Path path, final BoxItemRecord record,
+        final BoxAPIWrapper wrapper, final ExecutorService executor)
+        throws BoxIOException
+    {
+        final Prefetch prefetch;
+        final List<Prefetch> started;
+
+        synchronized (this) {
+            prefetch = prefetches.remove(path);
+            if (prefetch != null)
+                size -= prefetch.reserved;
+            started = advance(path, wrapper);
+        }
+
+        for (final Prefetch next: started)
+            executor.execute(next.task);
+
+        if (prefetch == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (!Objects.equals(prefetch.etag, record.getEtag())) {
+            discard(prefetch);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        final byte[] data;
+
+        try {
+            data = prefetch.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BoxIOException("interrupted while waiting for data", e);
+        } catch (ExecutionException ignored) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return new ByteArrayInputStream(data);
+    }
+
+    /*
+     * Called with the lock held; returns the prefetches to start
+     */
+    private List<Prefetch> advance(final Path path,
+        final BoxAPIWrapper wrapper)
+    {
+        final Path dir = path.getParent();
+        final Listing listing = dir == null ? null : listings.get(dir);
+
+        if (listing == null)
+            return Collections.emptyList();
+
+        final Integer position
+            = listing.positions.get(path.getFileName().toString());
+
+        if (position == null)
+            return Collections.emptyList();
+
+        final int index = position;
+
+        listing.streak = index > listing.last ? listing.streak + 1 : 1;
+        listing.last = index;
+
+        /*
+         * Files the reader went past will not be read
+         */
+        final Iterator<Prefetch> iterator = prefetches.values().iterator();
+        Prefetch prefetch;
+
+        while (iterator.hasNext()) {
+            prefetch = iterator.next();
+            if (prefetch.dir.equals(dir) && prefetch.index < index) {
+                iterator.remove();
+                size -= prefetch.reserved;
+                discard(prefetch);
+            }
+        }
+
+        if (listing.streak < MIN_STREAK)
+            return Collections.emptyList();
+
+        final List<Prefetch> started = new ArrayList<>();
+        final int nrFiles = listing.files.size();
+        int count = 0;
+        BoxItemRecord record;
+        Path target;
+        BoxFile file;
+        BoxConcurrencyLimiter limiter;
+
+        for (int i = index + 1; i < nrFiles && count < depth; i++) {
+            record = listing.files.get(i);
+            if (record.getSize() < 0L || record.getSize() > maxFileSize)
+                continue;
+            count++;
+            target = dir.resolve(record.getName());
+            if (prefetches.containsKey(target))
+                continue;
+            file = (BoxFile) wrapper.toItem(record);
+            limiter = wrapper.getTransferLimiter(file);
+            if (limiter.getInFlight() + pending(started, limiter)
+                >= limiter.getLimit())
+                break;
+            if (!reserve(dir, record.getSize()))
+                break;
+            prefetch = new Prefetch(dir, i, record, file, limiter);
+            prefetches.put(target, prefetch);
+            size += prefetch.reserved;
+            started.add(prefetch);
+        }
+
+        return started;
+    }
+
+    /*
+     * Prefetches are started once the lock is released, so the limiter does
+     * not know about them yet
+     */
+    private static int pending(final List<Prefetch> started,
+        final BoxConcurrencyLimiter limiter)
+    {
+        int ret = 0;
+
+        for (final Prefetch prefetch: started)
+            if (prefetch.limiter == limiter)
+                ret++;
+
+        return ret;
+    }
+
+    /*
+     * Called with the lock held; makes room by discarding contents
+     * prefetched for other directories, oldest first
+     */
+    private boolean reserve(final Path dir, final long needed)
+    {
+        if (size + needed <= capacity)
+            return true;
+
+        final Iterator<Prefetch> iterator = prefetches.values().iterator();
+        Prefetch prefetch;
+
+        while (size + needed > capacity && iterator.hasNext()) {
+            prefetch = iterator.next();
+            if (prefetch.dir.equals(dir))
+                continue;
+            iterator.remove();
+            size -= prefetch.reserved;
+            discard(prefetch);
+        }
+
+        return size + needed <= capacity;
+    }
+
+    /*
+     * Called with the lock held
+     */
+    private void dropListing(final Path dir)
+    {
+        listings.remove(dir);
+
+        final Iterator<Prefetch> iterator = prefetches.values().iterator();
+        Prefetch prefetch;
+
+        while (iterator.hasNext()) {
+            prefetch = iterator.next();
+            if (prefetch.dir.equals(dir)) {
+                iterator.remove();
+                size -= prefetch.reserved;
+                discard(prefetch);
+            }
+        }
+    }
+
+    private void discard(final Prefetch prefetch)
+    {
+        prefetch.task.cancel(true);
+        wasted.addAndGet(prefetch.reserved);
+    }
+
+    /*
+     * Only files are kept, along with their position among files; the streak
+     * is the number of files read in listing order in a row
+     */
+    private static final class Listing
+    {
+        private final List<BoxItemRecord> files = new ArrayList<>();
+        private final Map<String, Integer> positions = new HashMap<>();
+        private int last = -1;
+        private int streak = 0;
+
+        private Listing(final List<BoxItemRecord> children)
+        {
+            for (final BoxItemRecord record: children) {
+                if (record.isFolder())
+                    continue;
+                positions.put(record.getName(), files.size());
+                files.add(record);
+            }
+        }
+    }
+
+    private final class Prefetch
+    {
+        private final Path dir;
+        private final int index;
+        private final String etag;
+        private final long reserved;
+        private final BoxConcurrencyLimiter limiter;
+        private final FutureTask<byte[]> task;
+
+        private Prefetch(final Path dir, final int index,
+            final BoxItemRecord record, final BoxFile file,
+            final BoxConcurrencyLimiter limiter)
+        {
+            this.dir = dir;
+            this.index = index;
+            etag = record.getEtag();
+            reserved = record.getSize();
+            this.limiter = limiter;
+
+            task = new FutureTask<>(new Callable<byte[]>()
+            {
+                @Override
+                public byte[] call()
+                    throws InterruptedException, BoxIOException
+                {
+                    final ByteArrayOutputStream out
+                        = new ByteArrayOutputStream((int) reserved);
+
+                    limiter.execute(new BoxAPICall<Void>()
+                    {
+                        @Override
+                        public Void call()
+                        {
+                            file.download(out);
+                            return null;
+                        }
+                    }, MAX_QUEUE_TIME, MAX_QUEUE_TIME_UNIT);
+
+                    prefetched.incrementAndGet();
+                    prefetchedBytes.addAndGet(out.size());
+                    return out.toByteArray();
+                }
+            });
+        }
+    }
+}
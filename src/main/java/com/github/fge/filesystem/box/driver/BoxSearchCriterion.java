@@ -0,0 +1,209 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A criterion of a {@link BoxFileSystemDriver#find(Path, int, BoxMatchVisitor,
+ * BoxSearchCriterion...) find}
+ *
+ * <p>Use the static factory methods to build instances. All criteria given to
+ * a find must be satisfied for an item to match.</p>
+ *
+ * <p>All criteria except {@link #matching(PathMatcher)} can be translated
+ * into a query of the Box search API. The search API needs a word to look
+ * for, however: a find only uses it if a name glob contains a whole word (as
+ * {@code report} in {@code report-*.csv}, or {@code csv} in {@code *.csv}),
+ * or if a single extension is given; otherwise, it walks the tree.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxSearchCriterion
+{
+    enum Kind
+    {
+        NAME_GLOB,
+        EXTENSIONS,
+        SIZE,
+        MODIFIED,
+        TYPE,
+        MATCHER,
+    }
+
+    final Kind kind;
+    final String glob;
+    final String[] extensions;
+    final long lower;
+    final long upper;
+    final BoxItemRecord.Type type;
+    final PathMatcher matcher;
+
+    @SuppressWarnings("ConstructorWithTooManyParameters")
+    private BoxSearchCriterion(final Kind kind, final String glob,
+        final String[] extensions, final long lower, final long upper,
+        final BoxItemRecord.Type type, final PathMatcher matcher)
+    {
+        this.kind = kind;
+        this.glob = glob;
+        this.extensions = extensions;
+        this.lower = lower;
+        this.upper = upper;
+        this.type = type;
+        this.matcher = matcher;
+    }
+
+    /**
+     * Match items whose name matches a glob
+     *
+     * <p>The syntax is that of {@link java.nio.file.FileSystem#getPathMatcher(
+     * String) glob patterns}, applied to the name of the item only; there is
+     * therefore no difference between {@code *} and {@code **}.</p>
+     *
+     * @param glob the glob
+     * @return a criterion
+     */
+    @Nonnull
+    public static BoxSearchCriterion nameGlob(final String glob)
+    {
+        BoxGlob.toRegex(glob);
+        return new BoxSearchCriterion(Kind.NAME_GLOB, glob, null, 0L, 0L,
+            null, null);
+    }
+
+    /**
+     * Match files with one of the given extensions, case insensitively
+     *
+     * @param extensions the extensions, without a leading dot
+     * @return a criterion
+     */
+    @Nonnull
+    public static BoxSearchCriterion extensions(final String... extensions)
+    {
+        if (extensions.length == 0)
+            throw new IllegalArgumentException("no extensions given");
+
+        final String[] array = new String[extensions.length];
+
+        for (int i = 0; i < array.length; i++)
+            array[i] = extensions[i].toLowerCase(Locale.ROOT);
+
+        return new BoxSearchCriterion(Kind.EXTENSIONS, null, array, 0L, 0L,
+            null, null);
+    }
+
+    /**
+     * Match files whose size is within a range
+     *
+     * @param min the minimum size, in bytes, inclusive
+     * @param max the maximum size, in bytes, inclusive
+     * @return a criterion
+     */
+    @Nonnull
+    public static BoxSearchCriterion sizeBetween(final long min,
+        final long max)
+    {
+        if (min < 0L || max < min)
+            throw new IllegalArgumentException("invalid size range");
+        return new BoxSearchCriterion(Kind.SIZE, null, null, min, max, null,
+            null);
+    }
+
+    /**
+     * Match items whose last modification time is within a range
+     *
+     * @param from the start of the range, inclusive
+     * @param to the end of the range, inclusive
+     * @return a criterion
+     */
+    @Nonnull
+    public static BoxSearchCriterion modifiedBetween(final FileTime from,
+        final FileTime to)
+    {
+        final long lower = from.to(TimeUnit.MILLISECONDS);
+        final long upper = to.to(TimeUnit.MILLISECONDS);
+
+        if (upper < lower)
+            throw new IllegalArgumentException("invalid time range");
+        return new BoxSearchCriterion(Kind.MODIFIED, null, null, lower, upper,
+            null, null);
+    }
+
+    /**
+     * Match items modified at or after a given time
+     *
+     * @param time the time
+     * @return a criterion
+     */
+    @Nonnull
+    public static BoxSearchCriterion modifiedSince(final FileTime time)
+    {
+        return modifiedBetween(time, FileTime.fromMillis(Long.MAX_VALUE));
+    }
+
+    /**
+     * Match files only
+     *
+     * @return a criterion
+     */
+    @Nonnull
+    public static BoxSearchCriterion filesOnly()
+    {
+        return new BoxSearchCriterion(Kind.TYPE, null, null, 0L, 0L,
+            BoxItemRecord.Type.FILE, null);
+    }
+
+    /**
+     * Match directories only
+     *
+     * @return a criterion
+     */
+    @Nonnull
+    public static BoxSearchCriterion directoriesOnly()
+    {
+        return new BoxSearchCriterion(Kind.TYPE, null, null, 0L, 0L,
+            BoxItemRecord.Type.FOLDER, null);
+    }
+
+    /**
+     * Match items whose path matches a path matcher
+     *
+     * <p>This criterion is always checked locally.</p>
+     *
+     * @param matcher the matcher
+     * @return a criterion
+     */
+    @Nonnull
+    public static BoxSearchCriterion matching(final PathMatcher matcher)
+    {
+        return new BoxSearchCriterion(Kind.MATCHER, null, null, 0L, 0L, null,
+            Objects.requireNonNull(matcher));
+    }
+
+    @Override
+    public String toString()
+    {
+        switch (kind) {
+            case NAME_GLOB:
+                return "name glob " + glob;
+            case EXTENSIONS:
+                return "extensions " + Arrays.toString(extensions);
+            case SIZE:
+                return "size in [" + lower + ", " + upper + ']';
+            case MODIFIED:
+                return "modified in [" + FileTime.fromMillis(lower) + ", "
+                    + FileTime.fromMillis(upper) + ']';
+            case TYPE:
+                return "type " + type.name().toLowerCase(Locale.ROOT);
+            default:
+                return "matcher " + matcher;
+        }
+    }
+}
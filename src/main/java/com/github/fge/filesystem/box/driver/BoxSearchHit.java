@@ -0,0 +1,63 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An item found by a search, along with its location
+ *
+ * @see BoxAPIWrapper#search(String, int, List)
+ */
+@ParametersAreNonnullByDefault
+public final class BoxSearchHit
+{
+    private final BoxItemRecord record;
+    private final List<String> names;
+
+    /**
+     * Constructor
+     *
+     * @param record the metadata of the item
+     * @param names the names of the path elements leading to the item from
+     * the root folder, the name of the item included
+     */
+    public BoxSearchHit(final BoxItemRecord record, final List<String> names)
+    {
+        this.record = record;
+        this.names = Collections.unmodifiableList(names);
+    }
+
+    @Nonnull
+    public BoxItemRecord getRecord()
+    {
+        return record;
+    }
+
+    @Nonnull
+    public List<String> getNames()
+    {
+        return names;
+    }
+
+    /**
+     * Return the path of the item
+     *
+     * @param root the root of the filesystem
+     * @return the path
+     */
+    @Nonnull
+    public Path toPath(final Path root)
+    {
+        Path path = root;
+
+        for (final String name: names)
+            path = path.resolve(name);
+
+        return path;
+    }
+}
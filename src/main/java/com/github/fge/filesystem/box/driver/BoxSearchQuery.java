@@ -0,0 +1,237 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+/**
+ * The criteria of a find, both as a Box search query and as a local filter
+ *
+ * <p>Search results are always filtered locally as well: the search index may
+ * lag behind changes, and matches words rather than globs.</p>
+ */
+@ParametersAreNonnullByDefault
+final class BoxSearchQuery
+{
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    private final List<Pattern> globs = new ArrayList<>();
+    private final List<PathMatcher> matchers = new ArrayList<>();
+    private Set<String> extensions = null;
+    private BoxItemRecord.Type type = null;
+    private long minSize = 0L;
+    private long maxSize = Long.MAX_VALUE;
+    private long modifiedFrom = Long.MIN_VALUE;
+    private long modifiedTo = Long.MAX_VALUE;
+    private boolean contradictory = false;
+
+    private String word = null;
+
+    BoxSearchQuery(final BoxSearchCriterion... criteria)
+    {
+        for (final BoxSearchCriterion criterion: criteria)
+            add(criterion);
+
+        if (extensions != null) {
+            if (extensions.isEmpty() || type == BoxItemRecord.Type.FOLDER)
+                contradictory = true;
+            type = BoxItemRecord.Type.FILE;
+            if (word == null && extensions.size() == 1)
+                word = extensions.iterator().next();
+        }
+
+        if (minSize > maxSize || modifiedFrom > modifiedTo)
+            contradictory = true;
+    }
+
+    /**
+     * Tell whether no item can match
+     *
+     * @return true if the criteria contradict each other
+     */
+    boolean matchesNothing()
+    {
+        return contradictory;
+    }
+
+    /**
+     * Tell whether the Box search API can be used
+     *
+     * <p>A search needs a query; it is only specific enough if there is a
+     * word which all matching names contain.</p>
+     *
+     * @return true if a search can be used
+     */
+    boolean isSearchable()
+    {
+        return word != null;
+    }
+
+    /**
+     * Return the query parameters of the search
+     *
+     * @param ancestorId the id of the folder to search in
+     * @return the query parameters, URL encoded
+     */
+    String toParameters(final long ancestorId)
+    {
+        final StringBuilder sb = new StringBuilder("query=")
+            .append(encode(word)).append("&content_types=name");
+
+        if (ancestorId != BoxItemRecord.ROOT_ID)
+            sb.append("&ancestor_folder_ids=").append(ancestorId);
+
+        if (type != null)
+            sb.append("&type=").append(type.name().toLowerCase(Locale.ROOT));
+
+        if (extensions != null) {
+            final StringBuilder list = new StringBuilder();
+            for (final String extension: extensions) {
+                if (list.length() > 0)
+                    list.append(',');
+                list.append(extension);
+            }
+            sb.append("&file_extensions=").append(encode(list.toString()));
+        }
+
+        if (minSize > 0L || maxSize != Long.MAX_VALUE)
+            sb.append("&size_range=").append(minSize).append("%2C")
+                .append(maxSize == Long.MAX_VALUE ? "" : maxSize);
+
+        /*
+         * The API takes dates to the second: widen the range, the local
+         * filter takes care of the rest
+         */
+        if (modifiedFrom != Long.MIN_VALUE || modifiedTo != Long.MAX_VALUE) {
+            final DateFormat format
+                = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            sb.append("&updated_at_range=");
+            if (modifiedFrom != Long.MIN_VALUE)
+                sb.append(encode(format.format(new Date(modifiedFrom))));
+            sb.append("%2C");
+            if (modifiedTo != Long.MAX_VALUE)
+                sb.append(encode(format.format(new Date(modifiedTo
+                    + MILLIS_PER_SECOND))));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Tell whether an item matches the criteria
+     *
+     * @param path the path of the item
+     * @param attrs the attributes of the item
+     * @return true if it matches
+     */
+    boolean matches(final Path path, final BasicFileAttributes attrs)
+    {
+        if (contradictory)
+            return false;
+
+        if (type != null
+            && attrs.isDirectory() != (type == BoxItemRecord.Type.FOLDER))
+            return false;
+
+        final Path fileName = path.getFileName();
+        final String name = fileName == null ? "" : fileName.toString();
+
+        if (extensions != null && !extensions.contains(extensionOf(name)))
+            return false;
+
+        if (attrs.size() < minSize || attrs.size() > maxSize)
+            return false;
+
+        final long modified = attrs.lastModifiedTime().toMillis();
+
+        if (modified < modifiedFrom || modified > modifiedTo)
+            return false;
+
+        for (final Pattern glob: globs)
+            if (!glob.matcher(name).matches())
+                return false;
+
+        for (final PathMatcher matcher: matchers)
+            if (!matcher.matches(path))
+                return false;
+
+        return true;
+    }
+
+    private void add(final BoxSearchCriterion criterion)
+    {
+        switch (criterion.kind) {
+            case NAME_GLOB:
+                globs.add(BoxGlob.toRegex(criterion.glob));
+                for (final String s: BoxGlob.words(criterion.glob))
+                    if (word == null || s.length() > word.length())
+                        word = s;
+                break;
+            case EXTENSIONS:
+                restrictExtensions(criterion.extensions);
+                break;
+            case SIZE:
+                minSize = Math.max(minSize, criterion.lower);
+                maxSize = Math.min(maxSize, criterion.upper);
+                break;
+            case MODIFIED:
+                modifiedFrom = Math.max(modifiedFrom, criterion.lower);
+                modifiedTo = Math.min(modifiedTo, criterion.upper);
+                break;
+            case TYPE:
+                if (type != null && type != criterion.type)
+                    contradictory = true;
+                type = criterion.type;
+                break;
+            case MATCHER:
+                matchers.add(criterion.matcher);
+                break;
+        }
+    }
+
+    private void restrictExtensions(final String[] array)
+    {
+        final Set<String> set = new LinkedHashSet<>();
+
+        for (final String extension: array)
+            if (extensions == null || extensions.contains(extension))
+                set.add(extension);
+
+        extensions = set;
+    }
+
+    @Nullable
+    private static String extensionOf(final String name)
+    {
+        final int dot = name.lastIndexOf('.');
+        return dot == -1 ? null
+            : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static String encode(final String s)
+    {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Cannot happen; all JREs are required to support UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+}
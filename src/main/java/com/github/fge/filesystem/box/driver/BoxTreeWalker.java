@@ -0,0 +1,181 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.github.fge.filesystem.box.attributes.BoxBasicFileAttributesProvider;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A walk of a directory tree, listing directories in parallel
+ *
+ * <p>The calling thread dispatches listings to an executor, at most a given
+ * number at a time, and visits their results as they complete. Entries come
+ * with attributes built from the listing itself, so visiting them costs no
+ * further API calls.</p>
+ */
+@ParametersAreNonnullByDefault
+final class BoxTreeWalker
+{
+    private final BoxAPIWrapper wrapper;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+
+    private final Deque<Listing> pending = new ArrayDeque<>();
+    private final BlockingQueue<Listing> completed
+        = new LinkedBlockingQueue<>();
+    private final List<Future<?>> running = new ArrayList<>();
+
+    private int inFlight = 0;
+
+    BoxTreeWalker(final BoxAPIWrapper wrapper, final ExecutorService executor,
+        final int maxInFlight)
+    {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("parallelism must be strictly "
+                + "positive");
+        this.wrapper = wrapper;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+
+    void walk(final Path start, final int maxDepth,
+        final BoxFileVisitor visitor)
+        throws IOException
+    {
+        final BoxItemRecord record = wrapper.getRecord(start);
+
+        if (record == null)
+            throw new NoSuchFileException(start.toString());
+
+        final BasicFileAttributes attrs
+            = new BoxBasicFileAttributesProvider(record);
+
+        if (!record.isFolder()) {
+            visitor.visitFile(start, attrs);
+            return;
+        }
+
+        final FileVisitResult result = visitor.visitDirectory(start, attrs);
+        if (result != FileVisitResult.CONTINUE || maxDepth <= 0)
+            return;
+
+        pending.add(new Listing(start, 0));
+
+        try {
+            run(maxDepth, visitor);
+        } finally {
+            for (final Future<?> future: running)
+                future.cancel(true);
+        }
+    }
+
+    private void run(final int maxDepth, final BoxFileVisitor visitor)
+        throws IOException
+    {
+        Listing listing;
+
+        while (true) {
+            while (inFlight < maxInFlight && !pending.isEmpty()) {
+                listing = pending.poll();
+                listing.future = executor.submit(listing);
+                running.add(listing.future);
+                inFlight++;
+            }
+
+            if (inFlight == 0)
+                return;
+
+            try {
+                listing = completed.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BoxIOException("interrupted during walk", e);
+            }
+            inFlight--;
+            running.remove(listing.future);
+
+            if (!visit(listing, maxDepth, visitor))
+                return;
+        }
+    }
+
+    /*
+     * Return false if the walk is to be terminated
+     */
+    private boolean visit(final Listing listing, final int maxDepth,
+        final BoxFileVisitor visitor)
+        throws IOException
+    {
+        if (listing.failure != null)
+            return visitor.visitDirectoryFailed(listing.dir, listing.failure)
+                != FileVisitResult.TERMINATE;
+
+        final int depth = listing.depth + 1;
+        Path path;
+        BasicFileAttributes attrs;
+        FileVisitResult result;
+
+        for (final BoxItemRecord record: listing.entries) {
+            path = listing.dir.resolve(record.getName());
+            attrs = new BoxBasicFileAttributesProvider(record);
+
+            if (attrs.isDirectory()) {
+                result = visitor.visitDirectory(path, attrs);
+                if (result == FileVisitResult.CONTINUE && depth < maxDepth)
+                    pending.add(new Listing(path, depth));
+            } else
+                result = visitor.visitFile(path, attrs);
+
+            if (result == FileVisitResult.TERMINATE)
+                return false;
+            if (result == FileVisitResult.SKIP_SIBLINGS)
+                break;
+        }
+
+        return true;
+    }
+
+    private final class Listing
+        implements Runnable
+    {
+        private final Path dir;
+        private final int depth;
+
+        private List<BoxItemRecord> entries;
+        private IOException failure;
+        private Future<?> future;
+
+        private Listing(final Path dir, final int depth)
+        {
+            this.dir = dir;
+            this.depth = depth;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                entries = wrapper.getChildren(dir);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new BoxIOException("failed to list directory", e);
+            }
+            completed.add(this);
+        }
+    }
+}
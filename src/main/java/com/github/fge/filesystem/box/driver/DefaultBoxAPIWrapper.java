@@ -2,31 +2,153 @@ package com.github.fge.filesystem.box.driver;
 
 import com.box.sdk.BoxAPIConnection;
 import com.box.sdk.BoxAPIException;
+import com.box.sdk.BoxAPIRequest;
+import com.box.sdk.BoxAPIResponse;
 import com.box.sdk.BoxFile;
 import com.box.sdk.BoxFolder;
 import com.box.sdk.BoxItem;
+import com.box.sdk.BoxJSONRequest;
+import com.box.sdk.BoxJSONResponse;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.github.fge.filesystem.box.concurrent.SingleFlight;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import com.github.fge.filesystem.box.connection.BoxConnectionLease;
+import com.github.fge.filesystem.box.connection.BoxConnectionShards;
+import com.github.fge.filesystem.box.connection.BoxShardCall;
 import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import com.github.fge.filesystem.box.filestore.BoxQuota;
+import com.github.fge.filesystem.box.metadata.BoxItemCache;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+import com.github.fge.filesystem.box.metadata.BoxJsonReader;
+import com.github.fge.filesystem.box.metadata.BoxMetadataSnapshot;
 import com.github.fge.filesystem.exceptions.IsDirectoryException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+/**
+ * Default implementation of {@link BoxAPIWrapper}
+ *
+ * <p>Paths are resolved by walking folder listings from the root. Concurrent
+ * listings of the same folder share a single call; all listed entries are then
+ * recorded in an item cache, by parent folder id and name, so that lookups of
+ * siblings do not need another listing.</p>
+ *
+ * <p>Paths found not to exist are cached for a short time as well; and since
+ * a listing records all entries of a folder, lookups of missing paths in a
+ * recently listed folder are answered without any API call.</p>
+ *
+ * <p>Calls may be spread over several identities (see {@link
+ * BoxConnectionShards}): listings use the identity of the folder being
+ * listed, and items are bound to the identity of their own id, so that their
+ * contents are transferred using this identity as well.</p>
+ */
 @ParametersAreNonnullByDefault
 public final class DefaultBoxAPIWrapper
     implements BoxAPIWrapper
 {
+    private static final String QUOTA_REQUEST
+        = "users/me?fields=space_amount,space_used,max_upload_size";
+    private static final String UPLOAD_PREFLIGHT = "files/content";
+
+    private static final String ZIP_REQUEST = "zip_downloads";
+
+    /*
+     * Fetch what attribute views need along with listings; the cached
+     * entries can then be used without further calls
+     */
+    private static final String LISTING_REQUEST
+        = "folders/%d/items?fields=%s&limit=%d&offset=%d";
+    private static final int LISTING_LIMIT = 1000;
+
+    /*
+     * Only the total count matters; the name is fetched so that entries can
+     * be read as records
+     */
+    private static final String EMPTINESS_REQUEST
+        = "folders/%d/items?fields=name&limit=1";
+
+    private static final String SEARCH_REQUEST
+        = "search?%s&fields=%s,path_collection&limit=%d&offset=%d";
+    private static final int SEARCH_LIMIT = 200;
+
+    private final BoxConnectionShards shards;
+    private final BoxItemCache cache;
+    private final BoxMetadataSnapshot snapshot;
+
+    private final SingleFlight<Long, List<BoxItemRecord>> listings
+        = new SingleFlight<>();
+
     // TODO: make available?
     private final BoxFolder rootFolder;
 
-    public DefaultBoxAPIWrapper(final BoxAPIConnection api)
+    public DefaultBoxAPIWrapper(final BoxConnectionLease lease)
     {
-        rootFolder = BoxFolder.getRootFolder(Objects.requireNonNull(api));
+        this(lease, new BoxItemCache());
+    }
+
+    public DefaultBoxAPIWrapper(final BoxConnectionLease lease,
+        final BoxItemCache cache)
+    {
+        this(lease, cache, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param lease the API connection lease
+     * @param cache the item cache
+     * @param snapshot a persistent snapshot of the cache, closed along with
+     * this wrapper; it should be started by the caller
+     */
+    public DefaultBoxAPIWrapper(final BoxConnectionLease lease,
+        final BoxItemCache cache, @Nullable final BoxMetadataSnapshot snapshot)
+    {
+        this(new BoxConnectionShards(Collections.singletonList(lease)), cache,
+            snapshot);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param shards the API connection leases to spread calls over
+     * @param cache the item cache
+     * @param snapshot a persistent snapshot of the cache, closed along with
+     * this wrapper; it should be started by the caller
+     */
+    public DefaultBoxAPIWrapper(final BoxConnectionShards shards,
+        final BoxItemCache cache, @Nullable final BoxMetadataSnapshot snapshot)
+    {
+        this.shards = Objects.requireNonNull(shards);
+        this.cache = Objects.requireNonNull(cache);
+        this.snapshot = snapshot;
+        final BoxAPIConnection api = shards.getPrimary().getConnection();
+        rootFolder = BoxFolder.getRootFolder(api);
     }
 
     /**
@@ -42,26 +164,63 @@ public final class DefaultBoxAPIWrapper
     public BoxItem getItem(final Path path)
         throws BoxIOException
     {
-        final int nameCount = path.getNameCount();
+        if (path.getNameCount() == 0)
+            return rootFolder;
 
-        BoxFolder folder = rootFolder;
-        BoxItem item = folder;
+        final BoxItemRecord record = getRecord(path);
+        return record == null ? null : toItem(record);
+    }
 
-        String name;
-        int count = 0;
+    /**
+     * Get the metadata of an item by path
+     *
+     * @param path the path
+     * @return the metadata, or {@code null} if not found
+     *
+     * @throws BoxIOException Box API error
+     */
+    @Nullable
+    @Override
+    public BoxItemRecord getRecord(final Path path)
+        throws BoxIOException
+    {
+        if (path.getNameCount() == 0)
+            return BoxItemRecord.root();
 
-        while (count < nameCount) {
-            name = path.getName(count).toString();
-            count++;
-            item = findItemByName(folder, name);
-            if (item == null)
-                return null;
-            if (!(item instanceof BoxFolder))
-                break;
-            folder = (BoxFolder) item;
-        }
+        /*
+         * Ancestors are resolved using this very method; in the common case,
+         * they are all in the cache.
+         */
+        final BoxItemRecord parent = getRecord(path.getParent());
+
+        if (parent == null || !parent.isFolder())
+            return null;
+
+        final long parentId = parent.getId();
+        final String name = path.getFileName().toString();
+        final BoxItemRecord record = cache.get(parentId, name);
+
+        if (record != null)
+            return record;
+
+        if (cache.isKnownMissing(parentId, name))
+            return null;
+
+        final long lookupAt = System.nanoTime();
+
+        for (final BoxItemRecord child: listFolder(parentId))
+            if (child.getName().equals(name))
+                return child;
+
+        cache.putMissing(parentId, name, lookupAt);
+        return null;
+    }
 
-        return count == nameCount ? item : null;
+    @Nonnull
+    @Override
+    public BoxItem toItem(final BoxItemRecord record)
+    {
+        return record.toItem(shards.select(record.getId()).getConnection());
     }
 
     /**
@@ -109,6 +268,59 @@ public final class DefaultBoxAPIWrapper
         return (BoxFolder) item;
     }
 
+    /**
+     * List the entries of a directory
+     *
+     * @param dir the directory
+     * @return the metadata of all entries
+     *
+     * @throws BoxIOException Box API error
+     * @throws NotDirectoryException item at this path is not a directory
+     */
+    @Nonnull
+    @Override
+    public List<BoxItemRecord> getChildren(final Path dir)
+        throws BoxIOException, NotDirectoryException
+    {
+        final BoxItemRecord record = getRecord(dir);
+
+        if (record == null || !record.isFolder())
+            throw new NotDirectoryException(dir.toString());
+
+        return listFolder(record.getId());
+    }
+
+    @Override
+    public int search(final String parameters, final int offset,
+        final List<BoxSearchHit> hits)
+        throws BoxIOException
+    {
+        final Page page = fetchPage(parameters.hashCode(),
+            BoxItemRecord.ROOT_ID, String.format(SEARCH_REQUEST, parameters,
+                BoxItemRecord.FIELDS, SEARCH_LIMIT, offset), true);
+        final int size = page.records.size();
+        List<String> names;
+        BoxItemRecord record;
+
+        for (int i = 0; i < size; i++) {
+            record = page.records.get(i);
+            names = new ArrayList<>();
+
+            /*
+             * The path collection starts with the root folder, which has no
+             * name in this filesystem
+             */
+            for (final BoxItemRecord ancestor: page.paths.get(i))
+                if (ancestor.getId() != BoxItemRecord.ROOT_ID)
+                    names.add(ancestor.getName());
+
+            names.add(record.getName());
+            hits.add(new BoxSearchHit(record, names));
+        }
+
+        return page.count;
+    }
+
     /**
      * Tell whether a folder is empty
      *
@@ -121,11 +333,10 @@ public final class DefaultBoxAPIWrapper
     public boolean folderIsEmpty(final BoxFolder folder)
         throws BoxIOException
     {
-        try {
-            return folder.iterator().hasNext();
-        } catch (BoxAPIException e) {
-            throw BoxIOException.wrap(e);
-        }
+        final long id = Long.parseLong(folder.getID());
+
+        return fetchPage(id, id, String.format(EMPTINESS_REQUEST, id), false)
+            .isEmpty();
     }
 
     /**
@@ -142,12 +353,23 @@ public final class DefaultBoxAPIWrapper
     {
         final BoxItem item = getItem(victim);
 
+        /*
+         * Not retried on another shard: the first attempt may have succeeded
+         */
+        final BoxConnectionLease lease
+            = shards.select(Long.parseLong(item.getID()));
+
         if (item instanceof BoxFile) {
-            try {
-                ((BoxFile) item).delete();
-            } catch (BoxAPIException e) {
-                throw BoxIOException.wrap(e);
-            }
+            lease.execute(new BoxAPICall<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    ((BoxFile) item).delete();
+                    return null;
+                }
+            });
+            recordMissing(victim);
             return;
         }
 
@@ -160,24 +382,532 @@ public final class DefaultBoxAPIWrapper
         if (!folderIsEmpty(folder))
             throw new DirectoryNotEmptyException(victim.toString());
 
+        lease.execute(new BoxAPICall<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                folder.delete(false);
+                return null;
+            }
+        });
+        recordMissing(victim);
+    }
+
+    /**
+     * Forget cached information about a path
+     *
+     * @param path the path
+     */
+    @Override
+    public void invalidate(final Path path)
+    {
+        final Path parentPath = path.getParent();
+
+        if (parentPath == null)
+            return;
+
+        final BoxItemRecord parent;
+
+        /*
+         * If the parent cannot be resolved, we cannot tell which entry to
+         * forget
+         */
         try {
-            folder.delete(false);
-        } catch (BoxAPIException e) {
-            throw BoxIOException.wrap(e);
+            parent = getRecord(parentPath);
+        } catch (BoxIOException ignored) {
+            cache.invalidateAll();
+            return;
         }
+
+        if (parent == null)
+            return;
+
+        invalidate(parent.getId(), path.getFileName().toString());
+    }
+
+    /**
+     * Forget cached information about an entry of a folder
+     *
+     * <p>Listings of this folder in flight are not joined anymore, and do not
+     * record their results in the cache.</p>
+     *
+     * @param folderId the id of the folder
+     * @param name the name of the entry
+     */
+    @Override
+    public void invalidate(final long folderId, final String name)
+    {
+        /*
+         * Forget the listing first: a lookup which joins it afterwards
+         * started after the folder was invalidated
+         */
+        listings.forget(folderId);
+        cache.invalidate(folderId, name);
+        cache.invalidateDirectory(folderId);
     }
 
-    private static BoxItem findItemByName(final BoxFolder folder,
-        final String name)
+    /**
+     * Check that a new file can be uploaded, and return the item in the way
+     * if there is one
+     *
+     * <p>Box answers a conflicting preflight with a 409 error, whose context
+     * information describes the item in the way.</p>
+     *
+     * @param parent the folder to create the file in
+     * @param name the name of the file to create
+     * @param size the size of the file, or -1 if unknown
+     * @return the item in the way, or {@code null} if there is none
+     * @throws BoxIOException the upload would be rejected, or Box API error
+     */
+    @Nullable
+    @Override
+    public BoxItemRecord preflightCreate(final BoxFolder parent,
+        final String name, final long size)
         throws BoxIOException
     {
+        final long parentId = Long.parseLong(parent.getID());
+        final JsonObject body = new JsonObject()
+            .add("name", name)
+            .add("parent", new JsonObject().add("id", parent.getID()));
+        if (size >= 0L)
+            body.add("size", size);
+
         try {
-            for (final BoxItem.Info info: folder)
-                if (info.getName().equals(name))
-                    return (BoxItem) info.getResource();
+            preflight(parentId, UPLOAD_PREFLIGHT, body);
             return null;
-        } catch (BoxAPIException e) {
-            throw BoxIOException.wrap(e);
+        } catch (BoxIOException e) {
+            final BoxItemRecord conflict
+                = BoxItemRecord.conflictOf(parentId, e, cache);
+            if (conflict == null)
+                throw e;
+            return conflict;
+        }
+    }
+
+    /**
+     * Download a set of items as a single archive built by Box
+     *
+     * <p>Box names the top level entries of the archive after the items,
+     * renaming items whose names clash; entries are mapped back to items
+     * using these names. Entries which cannot be mapped are skipped.</p>
+     *
+     * @param items the items to download, and their paths
+     * @param visitor the visitor
+     * @return false if the visitor terminated the download
+     * @throws BoxIOException Box API error
+     * @throws IOException failed to read the archive, or thrown by the visitor
+     */
+    @Override
+    public boolean downloadZip(final Map<BoxItemRecord, Path> items,
+        final BoxBulkReadVisitor visitor)
+        throws IOException
+    {
+        final JsonArray array = new JsonArray();
+
+        for (final BoxItemRecord record: items.keySet())
+            array.add(new JsonObject()
+                .add("type", record.isFolder() ? "folder" : "file")
+                .add("id", Long.toString(record.getId())));
+
+        final BoxConnectionLease primary = shards.getPrimary();
+        final URL url = apiURL(primary.getConnection(), ZIP_REQUEST);
+        final String body = new JsonObject().add("items", array).toString();
+
+        final JsonObject json = primary.executeBulk(new BoxAPICall<JsonObject>()
+        {
+            @Override
+            public JsonObject call()
+            {
+                final BoxJSONRequest request
+                    = new BoxJSONRequest(primary.getConnection(), url, "POST");
+                request.setBody(body);
+                final BoxJSONResponse response
+                    = (BoxJSONResponse) request.send();
+                return JsonObject.readFrom(response.getJSON());
+            }
+        });
+
+        final Map<String, Path> targets
+            = zipTargets(items, json.get("name_conflicts"));
+        final URL download = new URL(json.get("download_url").asString());
+
+        try {
+            return primary.transfer(new BoxAPICall<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                {
+                    final BoxAPIResponse response = new BoxAPIRequest(
+                        primary.getConnection(), download, "GET").send();
+
+                    try {
+                        return readZip(response.getBody(), targets, visitor);
+                    } catch (IOException e) {
+                        throw new ZipFailure(e);
+                    } finally {
+                        response.disconnect();
+                    }
+                }
+            });
+        } catch (ZipFailure e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Get the storage quota of the account
+     *
+     * @return the quota
+     *
+     * @throws BoxIOException Box API error
+     */
+    @Nonnull
+    @Override
+    public BoxQuota getQuota()
+        throws BoxIOException
+    {
+        final BoxConnectionLease primary = shards.getPrimary();
+        final URL url = apiURL(primary.getConnection(), QUOTA_REQUEST);
+        final JsonObject json = primary.executeBulk(new BoxAPICall<JsonObject>()
+        {
+            @Override
+            public JsonObject call()
+            {
+                return get(primary.getConnection(), url);
+            }
+        });
+
+        return new BoxQuota(json.get("space_amount").asLong(),
+            json.get("space_used").asLong(),
+            json.get("max_upload_size").asLong());
+    }
+
+    @Nonnull
+    @Override
+    public BoxConcurrencyLimiter getTransferLimiter(final BoxItem item)
+    {
+        return shards.leaseOf(item.getAPI()).getTransferLimiter();
+    }
+
+    /**
+     * Save the metadata snapshot, if any, and release the API connections used
+     * by this wrapper
+     *
+     * @throws IOException failed to save the snapshot
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        try {
+            if (snapshot != null)
+                snapshot.close();
+        } finally {
+            shards.close();
+        }
+    }
+
+    /*
+     * Preflight requests fail with the same errors as the actual upload would
+     * (name conflict, file too large, quota exceeded...)
+     */
+    private void preflight(final long id, final String request,
+        final JsonObject body)
+        throws BoxIOException
+    {
+        final URL url = apiURL(shards.getPrimary().getConnection(), request);
+
+        shards.executeBulk(id, new BoxShardCall<Void>()
+        {
+            @Override
+            public Void call(final BoxAPIConnection api)
+            {
+                final BoxJSONRequest preflight
+                    = new BoxJSONRequest(api, url, "OPTIONS");
+                preflight.setBody(body.toString());
+                preflight.send().disconnect();
+                return null;
+            }
+        });
+    }
+
+    private void recordMissing(final Path path)
+        throws BoxIOException
+    {
+        final BoxItemRecord parent = getRecord(path.getParent());
+
+        if (parent != null)
+            cache.putMissing(parent.getId(), path.getFileName().toString());
+    }
+
+    private List<BoxItemRecord> listFolder(final long folderId)
+        throws BoxIOException
+    {
+        return listings.execute(folderId, new Callable<List<BoxItemRecord>>()
+        {
+            @Override
+            public List<BoxItemRecord> call()
+                throws BoxIOException
+            {
+                final long listedAt = System.nanoTime();
+                final List<BoxItemRecord> list = fetchChildren(folderId);
+
+                for (final BoxItemRecord record: list)
+                    cache.put(record, listedAt);
+                cache.markComplete(folderId, listedAt);
+
+                return Collections.unmodifiableList(list);
+            }
+        });
+    }
+
+    /*
+     * Pages are fetched one call at a time, so that a failed page is retried
+     * on its own
+     */
+    private List<BoxItemRecord> fetchChildren(final long folderId)
+        throws BoxIOException
+    {
+        final List<BoxItemRecord> list = new ArrayList<>();
+        long offset = 0L;
+        Page page;
+
+        do {
+            page = fetchPage(folderId, folderId, String.format(LISTING_REQUEST,
+                folderId, BoxItemRecord.FIELDS, LISTING_LIMIT, offset), false);
+            list.addAll(page.records);
+            offset += page.count;
+        } while (page.count > 0 && offset < page.total);
+
+        return list;
+    }
+
+    /*
+     * All identities use the same API URL.
+     *
+     * The page is read in full within the call: if reading fails halfway, the
+     * call can then be retried on another shard without leaving partial
+     * results behind.
+     */
+    private Page fetchPage(final long id, final long parentId,
+        final String request, final boolean withPaths)
+        throws BoxIOException
+    {
+        final URL url = apiURL(shards.getPrimary().getConnection(), request);
+
+        return shards.executeBulk(id, new BoxShardCall<Page>()
+        {
+            @Override
+            public Page call(final BoxAPIConnection api)
+            {
+                final BoxAPIRequest get = new BoxAPIRequest(api, url, "GET");
+                get.addHeader("Accept-Encoding", "gzip");
+
+                final BoxAPIResponse response = get.send();
+
+                try (
+                    final BoxJsonReader reader
+                        = new BoxJsonReader(decode(response.getBody()));
+                ) {
+                    return readPage(reader, parentId, withPaths);
+                } catch (IOException e) {
+                    final BoxAPIException exception
+                        = new BoxAPIException("failed to read response");
+                    exception.initCause(e);
+                    throw exception;
+                } finally {
+                    response.disconnect();
+                }
+            }
+        });
+    }
+
+    /*
+     * Package-private for tests
+     */
+    Page readPage(final BoxJsonReader reader, final long parentId,
+        final boolean withPaths)
+        throws IOException
+    {
+        final Page page = new Page();
+        List<BoxItemRecord> path = null;
+        BoxItemRecord record;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "entries":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        if (withPaths)
+                            path = new ArrayList<>();
+                        record = BoxItemRecord.read(parentId, reader, cache,
+                            path);
+                        page.count++;
+                        if (record == null)
+                            continue;
+                        page.records.add(record);
+                        page.paths.add(path);
+                    }
+                    reader.endArray();
+                    break;
+                case "total_count":
+                    page.total = reader.nextLong();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+        return page;
+    }
+
+    /*
+     * Box only compresses responses if asked to, and the SDK may or may not
+     * decompress them already: look at the first bytes to tell
+     */
+    private static InputStream decode(final InputStream in)
+        throws IOException
+    {
+        final InputStream buffered = new BufferedInputStream(in);
+
+        buffered.mark(2);
+        final int magic = buffered.read() | buffered.read() << 8;
+        buffered.reset();
+
+        return magic == GZIPInputStream.GZIP_MAGIC
+            ? new GZIPInputStream(buffered) : buffered;
+    }
+
+    /*
+     * Top level entries of an archive are named after their item, unless
+     * the name clashes with that of another item; Box then tells which name
+     * it used instead.
+     *
+     * Package-private for tests.
+     */
+    static Map<String, Path> zipTargets(final Map<BoxItemRecord, Path> items,
+        @Nullable final JsonValue conflicts)
+    {
+        final Map<String, Path> targets = new HashMap<>();
+        final Map<String, Path> byId = new HashMap<>();
+        Path path;
+
+        for (final Map.Entry<BoxItemRecord, Path> entry: items.entrySet()) {
+            targets.put(entry.getKey().getName(), entry.getValue());
+            byId.put(Long.toString(entry.getKey().getId()), entry.getValue());
+        }
+
+        if (conflicts != null && conflicts.isArray())
+            for (final JsonValue group: conflicts.asArray())
+                for (final JsonValue value: group.asArray()) {
+                    final JsonObject conflict = value.asObject();
+                    path = byId.get(conflict.get("id").asString());
+                    if (path != null)
+                        targets.put(conflict.get("download_name").asString(),
+                            path);
+                }
+
+        return targets;
+    }
+
+    /*
+     * Entries are named after the item they belong to, followed by their path
+     * within this item for folders.
+     *
+     * Package-private for tests.
+     */
+    static boolean readZip(final InputStream in,
+        final Map<String, Path> targets, final BoxBulkReadVisitor visitor)
+        throws IOException
+    {
+        final ZipInputStream zip
+            = new ZipInputStream(in, StandardCharsets.UTF_8);
+        final InputStream entry = new FilterInputStream(zip)
+        {
+            @Override
+            public void close()
+            {
+            }
+        };
+        ZipEntry zipEntry;
+        String name;
+        int slash;
+        Path path;
+
+        while ((zipEntry = zip.getNextEntry()) != null) {
+            if (zipEntry.isDirectory())
+                continue;
+            name = zipEntry.getName();
+            slash = name.indexOf('/');
+            path = targets.get(slash == -1 ? name : name.substring(0, slash));
+            if (path == null)
+                continue;
+            if (slash != -1)
+                path = path.resolve(name.substring(slash + 1));
+            if (!visitor.visitFile(path, entry))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static JsonObject get(final BoxAPIConnection api, final URL url)
+    {
+        final BoxAPIRequest get = new BoxAPIRequest(api, url, "GET");
+        final BoxJSONResponse response = (BoxJSONResponse) get.send();
+        return JsonObject.readFrom(response.getJSON());
+    }
+
+    private static URL apiURL(final BoxAPIConnection api, final String request)
+        throws BoxIOException
+    {
+        try {
+            return new URL(api.getBaseURL() + request);
+        } catch (MalformedURLException e) {
+            throw new BoxIOException("invalid API URL", e);
+        }
+    }
+
+    /*
+     * A page of a listing or of search results; paths hold the ancestors of
+     * each record, if asked for. The count includes entries which are
+     * neither files nor folders, such as web links.
+     */
+    static final class Page
+    {
+        private final List<BoxItemRecord> records = new ArrayList<>();
+        private final List<List<BoxItemRecord>> paths = new ArrayList<>();
+        private int count = 0;
+        private long total = 0L;
+
+        boolean isEmpty()
+        {
+            return count == 0;
+        }
+    }
+
+    /*
+     * Carries exceptions thrown while reading an archive, or by the visitor,
+     * out of an API call
+     */
+    private static final class ZipFailure
+        extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private ZipFailure(final IOException cause)
+        {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause()
+        {
+            return (IOException) super.getCause();
         }
     }
 }
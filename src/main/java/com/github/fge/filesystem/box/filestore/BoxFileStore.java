@@ -1,21 +1,127 @@
 package com.github.fge.filesystem.box.filestore;
 
-import com.box.sdk.BoxFolder;
 import com.github.fge.filesystem.attributes.FileAttributesFactory;
+import com.github.fge.filesystem.box.driver.BoxAPIWrapper;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
 import com.github.fge.filesystem.filestore.FileStoreBase;
 
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
 import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Box file store
+ *
+ * <p>Space information comes from the quota of the account. It is cached, and
+ * refreshed in the background once it is older than a configurable amount of
+ * time: reading it never costs an API call, except for the very first
+ * time.</p>
+ *
+ * <p>Between two refreshes, the used space is adjusted locally after each
+ * successful upload (see {@link #spaceAllocated(long)}). Note that deleted
+ * items go to the trash, which still counts against the quota; deletions
+ * therefore only schedule a refresh (see {@link #invalidate()}).</p>
+ */
+@ParametersAreNonnullByDefault
 public final class BoxFileStore
     extends FileStoreBase
 {
-    private final long totalSize;
+    public static final long DEFAULT_TTL = 60L;
+    public static final TimeUnit DEFAULT_TTL_UNIT = TimeUnit.SECONDS;
 
-    public BoxFileStore(final BoxFolder.Info info,
+    private static final Executor REFRESHER
+        = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(final Runnable r)
+        {
+            final Thread thread = new Thread(r, "box-quota-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final BoxAPIWrapper wrapper;
+    private final long ttlNanos;
+
+    private final Object lock = new Object();
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    private BoxQuota quota;
+    private long fetchedAt;
+
+    public BoxFileStore(final BoxAPIWrapper wrapper,
         final FileAttributesFactory factory)
+        throws BoxIOException
+    {
+        this(wrapper, factory, DEFAULT_TTL, DEFAULT_TTL_UNIT);
+    }
+
+    public BoxFileStore(final BoxAPIWrapper wrapper,
+        final FileAttributesFactory factory, final long ttl,
+        final TimeUnit unit)
+        throws BoxIOException
     {
         super("box", factory, false);
-        totalSize = info.getSize();
+        this.wrapper = Objects.requireNonNull(wrapper);
+        ttlNanos = unit.toNanos(ttl);
+        quota = wrapper.getQuota();
+        fetchedAt = System.nanoTime();
+    }
+
+    /**
+     * Return the current quota information
+     *
+     * <p>If the information is stale, a refresh is started in the background,
+     * and the stale information is returned.</p>
+     *
+     * @return the quota
+     */
+    @Nonnull
+    public BoxQuota getQuota()
+    {
+        final BoxQuota ret;
+        final boolean stale;
+
+        synchronized (lock) {
+            ret = quota;
+            stale = System.nanoTime() - fetchedAt >= ttlNanos;
+        }
+
+        if (stale)
+            refreshInBackground();
+
+        return ret;
+    }
+
+    /**
+     * Account for space allocated (or freed) by this filesystem
+     *
+     * @param bytes number of bytes allocated (negative if freed)
+     */
+    public void spaceAllocated(final long bytes)
+    {
+        synchronized (lock) {
+            quota = quota.withSpaceUsed(bytes);
+        }
+    }
+
+    /**
+     * Mark the quota information as stale
+     *
+     * <p>The next read of the information will trigger a refresh.</p>
+     */
+    public void invalidate()
+    {
+        synchronized (lock) {
+            fetchedAt = System.nanoTime() - ttlNanos;
+        }
     }
 
     /**
@@ -29,7 +135,7 @@ public final class BoxFileStore
     public long getTotalSpace()
         throws IOException
     {
-        return totalSize;
+        return getQuota().getSpaceAmount();
     }
 
     /**
@@ -51,8 +157,7 @@ public final class BoxFileStore
     public long getUsableSpace()
         throws IOException
     {
-        // TODO: can we obtain the total size info?
-        return Long.MAX_VALUE;
+        return getQuota().getSpaceAvailable();
     }
 
     /**
@@ -72,6 +177,31 @@ public final class BoxFileStore
     public long getUnallocatedSpace()
         throws IOException
     {
-        return Long.MAX_VALUE;
+        return getQuota().getSpaceAvailable();
+    }
+
+    private void refreshInBackground()
+    {
+        if (!refreshing.compareAndSet(false, true))
+            return;
+
+        REFRESHER.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    final BoxQuota fresh = wrapper.getQuota();
+                    synchronized (lock) {
+                        quota = fresh;
+                        fetchedAt = System.nanoTime();
+                    }
+                } catch (BoxIOException ignored) {
+                    // Keep the current information; we will retry next time
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,66 @@
+package com.github.fge.filesystem.box.filestore;
+
+/**
+ * Storage quota of a Box account
+ *
+ * <p>Instances of this class are immutable.</p>
+ */
+public final class BoxQuota
+{
+    private final long spaceAmount;
+    private final long spaceUsed;
+    private final long maxUploadSize;
+
+    /**
+     * Constructor
+     *
+     * @param spaceAmount the total space allowed for the account, in bytes
+     * @param spaceUsed the space used by the account, in bytes
+     * @param maxUploadSize the maximum size of a single file, in bytes
+     */
+    public BoxQuota(final long spaceAmount, final long spaceUsed,
+        final long maxUploadSize)
+    {
+        this.spaceAmount = spaceAmount;
+        this.spaceUsed = spaceUsed;
+        this.maxUploadSize = maxUploadSize;
+    }
+
+    public long getSpaceAmount()
+    {
+        return spaceAmount;
+    }
+
+    public long getSpaceUsed()
+    {
+        return spaceUsed;
+    }
+
+    public long getMaxUploadSize()
+    {
+        return maxUploadSize;
+    }
+
+    /**
+     * Return the space still available, in bytes
+     *
+     * @return the available space; never negative
+     */
+    public long getSpaceAvailable()
+    {
+        return Math.max(0L, spaceAmount - spaceUsed);
+    }
+
+    /**
+     * Return a copy of this quota with the used space adjusted
+     *
+     * @param delta the number of bytes to add to the used space (may be
+     * negative)
+     * @return a new quota
+     */
+    public BoxQuota withSpaceUsed(final long delta)
+    {
+        return new BoxQuota(spaceAmount, Math.max(0L, spaceUsed + delta),
+            maxUploadSize);
+    }
+}
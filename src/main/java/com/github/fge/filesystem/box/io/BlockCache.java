@@ -0,0 +1,158 @@
+package com.github.fge.filesystem.box.io;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, in-memory cache of downloaded blocks, shared by all downloads
+ *
+ * <p>Blocks are evicted in least recently used order once the total size of
+ * cached blocks exceeds the capacity; blocks which no reader has read yet
+ * only go once no other block can. A block is pinned while a reader reads
+ * from it, and pinned blocks are never evicted; as each reader pins at most
+ * one block at a time, the cache never exceeds its capacity by more than one
+ * block per reader.</p>
+ *
+ * <p>Evicted blocks lose their data; it is up to the download which owns a
+ * block to tell readers that it is gone (see {@link
+ * SharedDownload#evicted(Block)}).</p>
+ */
+@ParametersAreNonnullByDefault
+final class BlockCache
+{
+    private final long capacity;
+
+    /*
+     * In access order, least recently used first
+     */
+    private final Map<Block, Boolean> blocks
+        = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0L;
+    private long evictions = 0L;
+
+    BlockCache(final long capacity)
+    {
+        if (capacity <= 0L)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add a block to the cache
+     *
+     * @param block the block
+     * @return the blocks evicted to make room, possibly including this block
+     * if all others are pinned
+     */
+    synchronized List<Block> add(final Block block)
+    {
+        blocks.put(block, Boolean.TRUE);
+        size += block.data.length;
+
+        if (size <= capacity)
+            return Collections.emptyList();
+
+        final List<Block> evicted = new ArrayList<>();
+
+        evict(true, evicted);
+        evict(false, evicted);
+
+        evictions += evicted.size();
+        return evicted;
+    }
+
+    /**
+     * Pin a block, so that it is not evicted while being read
+     *
+     * @param block the block
+     * @return the data of the block, or {@code null} if it has been evicted
+     */
+    @Nullable
+    synchronized byte[] pin(final Block block)
+    {
+        if (block.data == null)
+            return null;
+
+        block.pins++;
+        block.read = true;
+        blocks.get(block);
+        return block.data;
+    }
+
+    synchronized void unpin(final Block block)
+    {
+        block.pins--;
+    }
+
+    /**
+     * Remove blocks which are no longer of use
+     *
+     * @param list the blocks
+     */
+    synchronized void discard(final Collection<Block> list)
+    {
+        for (final Block block: list)
+            if (blocks.remove(block) != null) {
+                size -= block.data.length;
+                block.data = null;
+            }
+    }
+
+    private void evict(final boolean readOnly, final List<Block> evicted)
+    {
+        final Iterator<Block> iterator = blocks.keySet().iterator();
+        Block candidate;
+
+        while (size > capacity && iterator.hasNext()) {
+            candidate = iterator.next();
+            if (candidate.pins > 0 || readOnly && !candidate.read)
+                continue;
+            iterator.remove();
+            size -= candidate.data.length;
+            candidate.data = null;
+            evicted.add(candidate);
+        }
+    }
+
+    long getCapacity()
+    {
+        return capacity;
+    }
+
+    synchronized long getSize()
+    {
+        return size;
+    }
+
+    synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    /*
+     * Identity equality; the data and pins are guarded by the cache
+     */
+    static final class Block
+    {
+        final SharedDownload owner;
+        final int index;
+
+        private byte[] data;
+        private int pins = 0;
+        private boolean read = false;
+
+        Block(final SharedDownload owner, final int index, final byte[] data)
+        {
+            this.owner = owner;
+            this.index = index;
+            this.data = data;
+        }
+    }
+}
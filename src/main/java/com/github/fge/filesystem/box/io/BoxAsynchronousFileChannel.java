@@ -0,0 +1,255 @@
+package com.github.fge.filesystem.box.io;
+
+import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Path;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A read only {@link AsynchronousFileChannel} over a Box file
+ *
+ * <p>Each read is a ranged download performed by the executor given at
+ * construction time, within the limit of the transfer limiter of the file's
+ * connection; the number of threads of this executor therefore bounds the
+ * number of pending reads, and the limiter the number of reads in
+ * flight.</p>
+ *
+ * <p>Box has no support for partial writes; write operations, as well as
+ * locks, are not supported.</p>
+ *
+ * @see FileSystemProvider#newAsynchronousFileChannel(Path, Set,
+ * ExecutorService, java.nio.file.attribute.FileAttribute[])
+ */
+@ParametersAreNonnullByDefault
+public final class BoxAsynchronousFileChannel
+    extends AsynchronousFileChannel
+{
+    private final ExecutorService executor;
+    private final BoxConcurrencyLimiter limiter;
+    private final BoxFile file;
+    private final long size;
+
+    private volatile boolean open = true;
+
+    /**
+     * Constructor
+     *
+     * @param executor the executor performing the reads
+     * @param limiter the limiter bounding concurrent transfers
+     * @param file the file
+     * @param size the size of the file
+     */
+    public BoxAsynchronousFileChannel(final ExecutorService executor,
+        final BoxConcurrencyLimiter limiter, final BoxFile file,
+        final long size)
+    {
+        this.executor = Objects.requireNonNull(executor);
+        this.limiter = Objects.requireNonNull(limiter);
+        this.file = Objects.requireNonNull(file);
+        this.size = size;
+    }
+
+    @Override
+    public long size()
+        throws IOException
+    {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public AsynchronousFileChannel truncate(final long size)
+        throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(final boolean metaData)
+        throws IOException
+    {
+        ensureOpen();
+    }
+
+    @Override
+    public <A> void lock(final long position, final long size,
+        final boolean shared, final A attachment,
+        final CompletionHandler<FileLock, ? super A> handler)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Future<FileLock> lock(final long position, final long size,
+        final boolean shared)
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileLock tryLock(final long position, final long size,
+        final boolean shared)
+        throws IOException
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <A> void read(final ByteBuffer dst, final long position,
+        final A attachment,
+        final CompletionHandler<Integer, ? super A> handler)
+    {
+        Objects.requireNonNull(handler);
+        final Callable<Integer> read = newRead(dst, position);
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final Integer result;
+                try {
+                    result = read.call();
+                } catch (Throwable t) {
+                    handler.failed(t, attachment);
+                    return;
+                }
+                handler.completed(result, attachment);
+            }
+        });
+    }
+
+    @Override
+    public Future<Integer> read(final ByteBuffer dst, final long position)
+    {
+        return executor.submit(newRead(dst, position));
+    }
+
+    @Override
+    public <A> void write(final ByteBuffer src, final long position,
+        final A attachment,
+        final CompletionHandler<Integer, ? super A> handler)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public Future<Integer> write(final ByteBuffer src, final long position)
+    {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        open = false;
+    }
+
+    private Callable<Integer> newRead(final ByteBuffer dst,
+        final long position)
+    {
+        Objects.requireNonNull(dst);
+        if (position < 0L)
+            throw new IllegalArgumentException("negative position");
+        if (dst.isReadOnly())
+            throw new IllegalArgumentException("read only buffer");
+
+        return new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+                throws IOException
+            {
+                ensureOpen();
+
+                if (position >= size)
+                    return -1;
+
+                final int len = (int) Math.min((long) dst.remaining(),
+                    size - position);
+
+                if (len == 0)
+                    return 0;
+
+                final int start = dst.position();
+
+                BoxLocalTransfers.transfer(limiter, new BoxAPICall<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        file.downloadRange(new ByteBufferOutputStream(dst,
+                            len), position, position + len - 1L);
+                        return null;
+                    }
+                });
+
+                return dst.position() - start;
+            }
+        };
+    }
+
+    private void ensureOpen()
+        throws ClosedChannelException
+    {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    /*
+     * Writes directly to the destination buffer, up to a given number of
+     * bytes; anything beyond that is discarded.
+     */
+    private static final class ByteBufferOutputStream
+        extends OutputStream
+    {
+        private final ByteBuffer buffer;
+        private int remaining;
+
+        private ByteBufferOutputStream(final ByteBuffer buffer,
+            final int remaining)
+        {
+            this.buffer = buffer;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void write(final int b)
+        {
+            if (remaining == 0)
+                return;
+            buffer.put((byte) b);
+            remaining--;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+        {
+            final int n = Math.min(len, remaining);
+            buffer.put(b, off, n);
+            remaining -= n;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.github.fge.filesystem.box.io;
+
+import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Output stream to an existing file which only uploads changed contents
+ *
+ * <p>Written data is spooled to a local temporary file and hashed on the fly.
+ * On close, the SHA-1 hash of the data is compared with the one Box reported
+ * for the file when the stream was opened; a new version is only uploaded if
+ * they differ, or if no hash was known.</p>
+ *
+ * <p>If a timeout was given using {@link BoxUploadOption#closeTimeout(long,
+ * TimeUnit)}, close fails once the comparison and upload have taken longer
+ * than that.</p>
+ *
+ * @see BoxWriteOption#SKIP_IF_UNCHANGED
+ */
+@ParametersAreNonnullByDefault
+public final class BoxDeduplicatingOutputStream
+    extends OutputStream
+{
+    private final ExecutorService executor;
+    private final BoxConcurrencyLimiter limiter;
+    private final BoxFile file;
+    private final String etag;
+    private final String sha1;
+    private final BoxUploadListener listener;
+    private final long closeTimeout;
+    private final Path spool;
+    private final MessageDigest digest = BoxLocalTransfers.newSha1();
+    private final OutputStream out;
+
+    private long written = 0L;
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param executor the executor to upload with
+     * @param limiter the limiter bounding concurrent transfers
+     * @param file the file to overwrite
+     * @param etag the expected etag of the file; if null, the file is
+     * overwritten unconditionally
+     * @param sha1 the SHA-1 hash of the file, in hexadecimal, as of the given
+     * etag; if null, a new version is always uploaded
+     * @param options the options the stream was opened with
+     * @param listener the listener to notify once the upload completes, or
+     * is skipped
+     * @throws BoxIOException failed to create the spool file
+     */
+    @SuppressWarnings("ConstructorWithTooManyParameters")
+    public BoxDeduplicatingOutputStream(final ExecutorService executor,
+        final BoxConcurrencyLimiter limiter, final BoxFile file,
+        @Nullable final String etag, @Nullable final String sha1,
+        final Set<? extends OpenOption> options,
+        final BoxUploadListener listener)
+        throws BoxIOException
+    {
+        this.executor = Objects.requireNonNull(executor);
+        this.limiter = Objects.requireNonNull(limiter);
+        this.file = Objects.requireNonNull(file);
+        this.etag = etag;
+        this.sha1 = sha1;
+        this.listener = Objects.requireNonNull(listener);
+        closeTimeout = BoxUploadOption.getCloseTimeout(options,
+            TimeUnit.NANOSECONDS);
+
+        try {
+            spool = Files.createTempFile("box-upload", ".tmp");
+        } catch (IOException e) {
+            throw new BoxIOException("failed to initialize upload", e);
+        }
+
+        try {
+            out = new DigestOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(spool)), digest);
+        } catch (IOException e) {
+            final BoxIOException exception
+                = new BoxIOException("failed to initialize upload", e);
+            try {
+                Files.deleteIfExists(spool);
+            } catch (IOException e2) {
+                exception.addSuppressed(e2);
+            }
+            throw exception;
+        }
+    }
+
+    @Override
+    public void write(final int b)
+        throws IOException
+    {
+        out.write(b);
+        written++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            deleteSpool(e);
+            throw e;
+        }
+
+        /*
+         * Whoever claims the spool file first deletes it: the upload task if
+         * it runs, this thread otherwise
+         */
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final Future<Boolean> future;
+
+        try {
+            future = executor.submit(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                    throws IOException
+                {
+                    if (!claimed.compareAndSet(false, true))
+                        return false;
+                    try {
+                        return upload();
+                    } finally {
+                        Files.deleteIfExists(spool);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            final BoxIOException exception
+                = new BoxIOException("failed to start upload", e);
+            deleteSpool(exception);
+            throw exception;
+        }
+
+        final boolean uploaded;
+
+        try {
+            uploaded = closeTimeout >= 0L
+                ? future.get(closeTimeout, TimeUnit.NANOSECONDS)
+                : future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw abort(future, claimed,
+                new BoxIOException("upload interrupted", e));
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof BoxIOException)
+                throw (BoxIOException) cause;
+            throw new BoxIOException("upload failed", cause);
+        } catch (TimeoutException e) {
+            throw abort(future, claimed,
+                new BoxIOException("upload timeout", e));
+        }
+
+        if (uploaded)
+            listener.uploadComplete(written);
+        else
+            listener.uploadSkipped(written);
+    }
+
+    /*
+     * Return false if the upload was skipped
+     */
+    private boolean upload()
+        throws IOException
+    {
+        if (sha1 != null && sha1.equalsIgnoreCase(
+            BoxLocalTransfers.toHex(digest.digest())))
+            return false;
+
+        try (
+            final FileChannel channel = FileChannel.open(spool,
+                StandardOpenOption.READ);
+            final InputStream in = BoxLocalTransfers.uploadSource(channel);
+        ) {
+            BoxLocalTransfers.transfer(limiter, new BoxAPICall<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    BoxLocalTransfers.uploadVersion(file, etag, in);
+                    return null;
+                }
+            });
+        }
+
+        return true;
+    }
+
+    private BoxIOException abort(final Future<Boolean> future,
+        final AtomicBoolean claimed, final BoxIOException exception)
+    {
+        future.cancel(true);
+        if (claimed.compareAndSet(false, true))
+            deleteSpool(exception);
+        return exception;
+    }
+
+    private void deleteSpool(final IOException exception)
+    {
+        try {
+            Files.deleteIfExists(spool);
+        } catch (IOException e) {
+            exception.addSuppressed(e);
+        }
+    }
+}
@@ -2,15 +2,16 @@ package com.github.fge.filesystem.box.io;
 
 import com.box.sdk.BoxAPIException;
 import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
 import com.github.fge.filesystem.box.exceptions.BoxIOException;
 import com.github.fge.filesystem.driver.FileSystemDriver;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
@@ -28,174 +29,272 @@ import java.util.concurrent.TimeoutException;
  * <p>Necessary to provide an {@link InputStream} for {@link
  * Files#newInputStream(Path, OpenOption...)}.</p>
  *
+ * <p>The download runs in the background and fills an adaptive read-ahead
+ * buffer; reads, including single byte reads, are served from this buffer
+ * without any locking as long as it has data. The download only starts once
+ * the transfer limiter allows it, and fails if the limiter does not allow it
+ * within a couple of minutes.</p>
+ *
+ * <p>When the etag of the file is known, a download interrupted by a
+ * transient failure is transparently resumed with a range request from the
+ * last byte received, a bounded number of times. The download also pauses
+ * while the reader does not read, which frees its transfer slot and all but
+ * a small part of its buffer, and resumes the same way once the reader comes
+ * back.</p>
+ *
+ * <p>Note that as with any other {@link InputStream}, instances of this class
+ * are not thread safe.</p>
+ *
  * @see FileSystemDriver#newInputStream(Path, OpenOption...)
  */
-@SuppressWarnings("ImplicitNumericConversion")
 @ParametersAreNonnullByDefault
 public final class BoxFileInputStream
     extends InputStream
 {
-    private final Future<Void> future;
-    private final PipedInputStream in;
-    private final PipedOutputStream out;
+    private static final int MAX_RETRIES = 5;
+    private static final long BASE_RETRY_DELAY = 500L;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVER_ERROR = 500;
 
-    private long size;
+    private final Future<Void> future;
+    private final ReadAheadBuffer buffer;
 
     public BoxFileInputStream(final ExecutorService executor,
-        final BoxFile file)
+        final BoxConcurrencyLimiter limiter, final BoxFile file)
         throws IOException
     {
-        size = file.getInfo().getSize();
-        in = new PipedInputStream(16384);
-        out = new PipedOutputStream(in);
+        this(executor, limiter, file, null, 0L);
+    }
 
-        future = executor.submit(new Callable<Void>()
-        {
-            @Override
-            public Void call()
-                throws IOException
-            {
-                try {
-                    file.download(out);
-                    return null;
-                } catch (BoxAPIException e) {
-                    throw BoxIOException.wrap(e);
-                }
-            }
-        });
+    /**
+     * Constructor
+     *
+     * <p>If the etag of the file is given, a download which fails because of
+     * a network error, a server error or throttling is resumed from where it
+     * stopped, provided that the etag of the file has not changed in the
+     * meantime.</p>
+     *
+     * @param executor the executor to run the download with
+     * @param limiter the transfer limiter
+     * @param file the file
+     * @param etag the etag of the file, if known
+     * @param offset the offset to start reading from
+     * @throws IOException failed to start the download
+     */
+    public BoxFileInputStream(final ExecutorService executor,
+        final BoxConcurrencyLimiter limiter, final BoxFile file,
+        @Nullable final String etag, final long offset)
+        throws IOException
+    {
+        buffer = new ReadAheadBuffer(etag != null);
+        future = executor.submit(new Download(limiter, file, etag, offset));
     }
 
     @Override
     public int read()
         throws IOException
     {
-        if (size-- == 0)
-            return -1;
-        try {
-            return in.read();
-        } catch (IOException e) {
-            future.cancel(true);
-            throw new BoxIOException("download failure", e);
-        }
+        return buffer.read();
     }
 
     @Override
     public int read(final byte[] b)
         throws IOException
     {
-        if (size == 0)
-            return -1;
-        try {
-            final int nrBytes = in.read(b);
-            if (nrBytes != -1)
-                size -= nrBytes;
-            return nrBytes;
-        } catch (IOException e) {
-            future.cancel(true);
-            throw new BoxIOException("download failure", e);
-        }
+        return buffer.read(b, 0, b.length);
     }
 
     @Override
     public int read(final byte[] b, final int off, final int len)
         throws IOException
     {
-        if (size == 0)
-            return -1;
-        try {
-            final int nrBytes = in.read(b, off, len);
-            if (nrBytes != -1)
-                size -= nrBytes;
-            return nrBytes;
-        } catch (IOException e) {
-            future.cancel(true);
-            throw new BoxIOException("download failure", e);
-        }
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        return buffer.read(b, off, len);
     }
 
     @Override
     public long skip(final long n)
         throws IOException
     {
-        try {
-            size = Math.max(0, size - n);
-            return in.skip(n);
-        } catch (IOException e) {
-            future.cancel(true);
-            throw new BoxIOException("download failure", e);
-        }
+        return n <= 0L ? 0L : buffer.skip(n);
     }
 
     @Override
     public int available()
         throws IOException
     {
-        try {
-            return in.available();
-        } catch (IOException e) {
-            future.cancel(true);
-            throw new BoxIOException("download failure", e);
-        }
+        return buffer.available();
     }
 
     @Override
     public void close()
         throws IOException
     {
-        IOException streamException = null;
-        IOException futureException = null;
-
-        try {
-            in.close();
-        } catch (IOException e) {
-            streamException = e;
+        /*
+         * If the stream is closed before all data has been read, the download
+         * will fail, and this is expected: don't report it.
+         */
+        if (!buffer.close()) {
+            future.cancel(true);
+            return;
         }
 
         try {
             future.get(5L, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
-            futureException = new BoxIOException("donwload interrupted", e);
+            throw new BoxIOException("donwload interrupted", e);
         } catch (ExecutionException e) {
-            futureException = new BoxIOException("download failure",
-                e.getCause());
+            throw new BoxIOException("download failure", e.getCause());
         } catch (CancellationException e) {
-            futureException = new BoxIOException("download cancelled", e);
+            throw new BoxIOException("download cancelled", e);
         } catch (TimeoutException e) {
-            futureException = new BoxIOException("download timeout", e);
+            throw new BoxIOException("download timeout", e);
         }
+    }
 
-        if (futureException != null) {
-            if (streamException != null)
-                futureException.addSuppressed(streamException);
-            throw futureException;
+    /*
+     * Runs in the background; the position of the next byte to be written to
+     * the buffer is the offset plus what the buffer holds on to
+     */
+    private final class Download
+        implements Callable<Void>
+    {
+        private final BoxConcurrencyLimiter limiter;
+        private final BoxFile file;
+        private final String etag;
+        private final long offset;
+
+        private Download(final BoxConcurrencyLimiter limiter,
+            final BoxFile file, @Nullable final String etag,
+            final long offset)
+        {
+            this.limiter = limiter;
+            this.file = file;
+            this.etag = etag;
+            this.offset = offset;
         }
 
-        if (streamException != null)
-            throw streamException;
-    }
+        @Override
+        public Void call()
+            throws IOException
+        {
+            try {
+                download();
+                buffer.finish(null);
+                return null;
+            } catch (InterruptedException e) {
+                final BoxIOException exception
+                    = new BoxIOException("download interrupted", e);
+                buffer.finish(exception);
+                throw exception;
+            } catch (BoxAPIException e) {
+                final BoxIOException exception = BoxIOException.wrap(e);
+                buffer.finish(exception);
+                throw exception;
+            } catch (BoxIOException e) {
+                buffer.finish(e);
+                throw e;
+            } catch (RuntimeException | Error e) {
+                buffer.finish(new BoxIOException("download failure", e));
+                throw e;
+            }
+        }
 
-    @Override
-    public synchronized void mark(final int readlimit)
-    {
-        in.mark(readlimit);
-    }
+        /*
+         * The retry budget is only spent by attempts which fail without
+         * making any progress; pauses do not count as failures, neither here
+         * nor for the limiter.
+         *
+         * The first attempt trusts the etag it was given, normally the one of
+         * the record the driver resolved the file with; only resumed attempts
+         * check that the file still has it.
+         */
+        private void download()
+            throws InterruptedException, BoxIOException
+        {
+            final OutputStream out = buffer.producer();
+            int failures = 0;
+            boolean resumed = false;
 
-    @Override
-    public synchronized void reset()
-        throws IOException
-    {
-        try {
-            in.reset();
-        } catch (IOException e) {
-            future.cancel(true);
-            throw new BoxIOException("download failure", e);
+            while (true) {
+                final long start = offset + buffer.getWritten();
+                try {
+                    if (resumed && start > 0L && etag != null)
+                        checkEtag();
+                    resumed = true;
+                    final boolean complete = limiter.execute(
+                        new BoxAPICall<Boolean>()
+                        {
+                            @Override
+                            public Boolean call()
+                            {
+                                try {
+                                    /*
+                                     * A negative end means up to the end of
+                                     * file
+                                     */
+                                    if (start == 0L)
+                                        file.download(out);
+                                    else
+                                        file.downloadRange(out, start, -1L);
+                                    return true;
+                                } catch (BoxAPIException e) {
+                                    if (buffer.isPaused() || buffer.isClosed())
+                                        return false;
+                                    throw e;
+                                }
+                            }
+                        }, BoxLocalTransfers.MAX_QUEUE_TIME,
+                        BoxLocalTransfers.MAX_QUEUE_TIME_UNIT);
+                    if (complete)
+                        return;
+                    if (!buffer.awaitResume())
+                        throw new BoxIOException("stream closed");
+                    continue;
+                } catch (BoxAPIException e) {
+                    if (offset + buffer.getWritten() > start)
+                        failures = 0;
+                    if (!isResumable(e) || ++failures > MAX_RETRIES)
+                        throw e;
+                }
+                Thread.sleep(BASE_RETRY_DELAY << (failures - 1));
+            }
         }
-    }
 
-    @Override
-    public boolean markSupported()
-    {
-        return in.markSupported();
+        private void checkEtag()
+            throws InterruptedException, BoxIOException
+        {
+            final String current = limiter.execute(new BoxAPICall<String>()
+            {
+                @Override
+                public String call()
+                {
+                    return file.getInfo("etag").getEtag();
+                }
+            }, BoxLocalTransfers.MAX_QUEUE_TIME,
+                BoxLocalTransfers.MAX_QUEUE_TIME_UNIT);
+
+            if (!etag.equals(current))
+                throw new BoxIOException("file " + file.getID()
+                    + " changed during download");
+        }
+
+        /*
+         * Codes 0 and below mean that there was no response at all; but a
+         * write failure (the reader went away) looks like a network error too
+         */
+        private boolean isResumable(final BoxAPIException e)
+        {
+            if (etag == null || buffer.isClosed()
+                || Thread.currentThread().isInterrupted())
+                return false;
+
+            final int code = e.getResponseCode();
+
+            return code <= 0 || code == HTTP_TOO_MANY_REQUESTS
+                || code >= HTTP_SERVER_ERROR;
+        }
     }
 }
@@ -3,11 +3,15 @@ package com.github.fge.filesystem.box.io;
 import com.box.sdk.BoxAPIException;
 import com.box.sdk.BoxFile;
 import com.box.sdk.BoxFolder;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
 import com.github.fge.filesystem.box.exceptions.BoxIOException;
 import com.github.fge.filesystem.driver.FileSystemDriver;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
@@ -15,6 +19,7 @@ import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
@@ -22,6 +27,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Wrapper over a file upload over the box.com API
@@ -29,6 +35,18 @@ import java.util.concurrent.TimeoutException;
  * <p>There are two cases: either overwrite an existing file or creating a new
  * file (this is why there are two constructors).</p>
  *
+ * <p>If the upload fails while data is still being written, the next write
+ * fails immediately with the cause of the failure.</p>
+ *
+ * <p>On close, unless a timeout was given using {@link
+ * BoxUploadOption#closeTimeout(long, TimeUnit)}, the stream waits for the
+ * upload to complete for as long as it makes progress. Once all data has been
+ * sent, Box may take a while to process it; the allowed idle time therefore
+ * grows with the amount of data written. Time spent waiting for the transfer
+ * limiter to let the upload start does not count; but if the limiter does not
+ * let it start within a couple of minutes, the upload fails, and so do
+ * writes and close.</p>
+ *
  * @see Files#newOutputStream(Path, OpenOption...)
  * @see FileSystemDriver#newOutputStream(Path, OpenOption...)
  */
@@ -36,79 +54,98 @@ import java.util.concurrent.TimeoutException;
 public final class BoxFileOutputStream
     extends OutputStream
 {
+    private static final int PIPE_SIZE = 16384;
+
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(30L);
+    private static final long BYTES_PER_EXTRA_SECOND = 64L * 1024L * 1024L;
+    private static final long POLL_MILLIS = 500L;
+
+    private final UploadPipe in = new UploadPipe();
     private final PipedOutputStream out;
     private final Future<Void> future;
+    private final BoxUploadListener listener;
+    private final long closeTimeout;
+
+    private volatile Throwable failure = null;
+    private volatile boolean started = false;
+
+    private long written = 0L;
 
     /**
      * Build an output stream to upload content to an existing file
      *
      * @param executor the executor to use
+     * @param limiter the limiter bounding concurrent transfers
      * @param file the file to overwrite
+     * @param options the options the stream was opened with
+     * @param listener the listener to notify once the upload completes
      * @throws BoxIOException failed to initialize the object
      */
     public BoxFileOutputStream(final ExecutorService executor,
-        final BoxFile file)
+        final BoxConcurrencyLimiter limiter, final BoxFile file,
+        final Set<? extends OpenOption> options,
+        final BoxUploadListener listener)
         throws BoxIOException
     {
-        Objects.requireNonNull(executor);
-        Objects.requireNonNull(file);
-
-        @SuppressWarnings("IOResourceOpenedButNotSafelyClosed")
-        final PipedInputStream in = new PipedInputStream(16384);
-
-        try {
-            out = new PipedOutputStream(in);
-        } catch (IOException e) {
-            final BoxIOException exception
-                = new BoxIOException("failed to initialize upload", e);
-            try {
-                in.close();
-            } catch (IOException e2) {
-                exception.addSuppressed(e2);
-            }
-            throw exception;
-        }
+        this(executor, limiter, file, null, options, listener);
+    }
 
-        future = executor.submit(new Callable<Void>()
-        {
-            @Override
-            public Void call()
-                throws BoxIOException
-            {
-                try {
-                    file.uploadVersion(in);
-                    return null;
-                } catch (BoxAPIException e) {
-                    final BoxIOException exception = BoxIOException.wrap(e);
-                    try {
-                        in.close();
-                    } catch (IOException e2) {
-                        e.addSuppressed(e2);
-                    }
-                    throw exception;
-                }
-            }
-        });
+    /**
+     * Build an output stream to upload content to an existing file, provided
+     * that it has not changed
+     *
+     * @param executor the executor to use
+     * @param limiter the limiter bounding concurrent transfers
+     * @param file the file to overwrite
+     * @param etag the expected etag of the file; if null, the file is
+     * overwritten unconditionally
+     * @param options the options the stream was opened with
+     * @param listener the listener to notify once the upload completes
+     * @throws BoxIOException failed to initialize the object
+     */
+    @SuppressWarnings("ConstructorWithTooManyParameters")
+    public BoxFileOutputStream(final ExecutorService executor,
+        final BoxConcurrencyLimiter limiter, final BoxFile file,
+        @Nullable final String etag, final Set<? extends OpenOption> options,
+        final BoxUploadListener listener)
+        throws BoxIOException
+    {
+        this(executor, limiter, options, listener,
+            versionUploader(file, etag));
     }
 
     /**
      * Build an output stream to upload content to a new file
      *
      * @param executor the executor to use
+     * @param limiter the limiter bounding concurrent transfers
      * @param parent the directory where the file is to be created
      * @param fileName the name of the file to create
+     * @param options the options the stream was opened with
+     * @param listener the listener to notify once the upload completes
      * @throws BoxIOException failed to initialize the object
      */
     public BoxFileOutputStream(final ExecutorService executor,
-        final BoxFolder parent, final String fileName)
+        final BoxConcurrencyLimiter limiter, final BoxFolder parent,
+        final String fileName, final Set<? extends OpenOption> options,
+        final BoxUploadListener listener)
         throws BoxIOException
     {
-        Objects.requireNonNull(executor);
-        Objects.requireNonNull(parent);
-        Objects.requireNonNull(fileName);
+        this(executor, limiter, options, listener,
+            fileUploader(parent, fileName));
+    }
 
-        @SuppressWarnings("IOResourceOpenedButNotSafelyClosed")
-        final PipedInputStream in = new PipedInputStream(16384);
+    private BoxFileOutputStream(final ExecutorService executor,
+        final BoxConcurrencyLimiter limiter,
+        final Set<? extends OpenOption> options,
+        final BoxUploadListener listener, final Uploader uploader)
+        throws BoxIOException
+    {
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(limiter);
+        this.listener = Objects.requireNonNull(listener);
+        closeTimeout = BoxUploadOption.getCloseTimeout(options,
+            TimeUnit.NANOSECONDS);
 
         try {
             out = new PipedOutputStream(in);
@@ -130,16 +167,57 @@ public final class BoxFileOutputStream
                 throws BoxIOException
             {
                 try {
-                    parent.uploadFile(in, fileName);
+                    limiter.execute(new BoxAPICall<Void>()
+                    {
+                        @Override
+                        public Void call()
+                        {
+                            started = true;
+                            uploader.upload(in);
+                            return null;
+                        }
+                    }, BoxLocalTransfers.MAX_QUEUE_TIME,
+                        BoxLocalTransfers.MAX_QUEUE_TIME_UNIT);
                     return null;
+                } catch (InterruptedException e) {
+                    failure = e;
+                    final BoxIOException exception
+                        = new BoxIOException("upload interrupted", e);
+                    try {
+                        in.close();
+                    } catch (IOException e2) {
+                        exception.addSuppressed(e2);
+                    }
+                    throw exception;
                 } catch (BoxAPIException e) {
+                    failure = e;
                     final BoxIOException exception = BoxIOException.wrap(e);
                     try {
                         in.close();
                     } catch (IOException e2) {
-                        e.addSuppressed(e2);
+                        exception.addSuppressed(e2);
                     }
                     throw exception;
+                } catch (BoxIOException e) {
+                    /*
+                     * The upload never started; closing the pipe unblocks
+                     * the writer
+                     */
+                    failure = e;
+                    try {
+                        in.close();
+                    } catch (IOException e2) {
+                        e.addSuppressed(e2);
+                    }
+                    throw e;
+                } catch (RuntimeException | Error e) {
+                    failure = e;
+                    try {
+                        in.close();
+                    } catch (IOException e2) {
+                        e.addSuppressed(e2);
+                    }
+                    throw e;
                 }
             }
         });
@@ -149,11 +227,12 @@ public final class BoxFileOutputStream
     public void write(final int b)
         throws IOException
     {
+        checkFailure();
         try {
             out.write(b);
+            written++;
         } catch (IOException e) {
-            future.cancel(true);
-            throw new BoxIOException("upload failed", e);
+            throw writeFailure(e);
         }
     }
 
@@ -161,11 +240,12 @@ public final class BoxFileOutputStream
     public void write(final byte[] b)
         throws IOException
     {
+        checkFailure();
         try {
             out.write(b);
+            written += b.length;
         } catch (IOException e) {
-            future.cancel(true);
-            throw new BoxIOException("upload failed", e);
+            throw writeFailure(e);
         }
     }
 
@@ -173,11 +253,12 @@ public final class BoxFileOutputStream
     public void write(final byte[] b, final int off, final int len)
         throws IOException
     {
+        checkFailure();
         try {
             out.write(b, off, len);
+            written += len;
         } catch (IOException e) {
-            future.cancel(true);
-            throw new BoxIOException("upload failed", e);
+            throw writeFailure(e);
         }
     }
 
@@ -185,11 +266,11 @@ public final class BoxFileOutputStream
     public void flush()
         throws IOException
     {
+        checkFailure();
         try {
             out.flush();
         } catch (IOException e) {
-            future.cancel(true);
-            throw new BoxIOException("upload failed", e);
+            throw writeFailure(e);
         }
     }
 
@@ -219,9 +300,9 @@ public final class BoxFileOutputStream
         }
 
         try {
-            // TODO: seems a little high; make that a copy option?
-            future.get(5L, TimeUnit.SECONDS);
+            awaitUpload();
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             futureException = new BoxIOException("upload interrupted", e);
         } catch (ExecutionException e) {
             futureException = new BoxIOException("upload failed", e.getCause());
@@ -238,7 +319,139 @@ public final class BoxFileOutputStream
             throw futureException;
         }
 
+        listener.uploadComplete(written);
+
         if (streamException != null)
             throw streamException;
     }
+
+    private void awaitUpload()
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (closeTimeout >= 0L) {
+            future.get(closeTimeout, TimeUnit.NANOSECONDS);
+            return;
+        }
+
+        final long idleTimeout = IDLE_TIMEOUT
+            + TimeUnit.SECONDS.toNanos(written / BYTES_PER_EXTRA_SECOND);
+
+        long consumed = in.consumed.get();
+        long lastProgress = System.nanoTime();
+        long current;
+
+        while (true) {
+            try {
+                future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                current = in.consumed.get();
+                if (!started || current != consumed) {
+                    consumed = current;
+                    lastProgress = System.nanoTime();
+                } else if (System.nanoTime() - lastProgress >= idleTimeout)
+                    throw e;
+            }
+        }
+    }
+
+    private void checkFailure()
+        throws BoxIOException
+    {
+        final Throwable t = failure;
+        if (t != null)
+            throw new BoxIOException("upload failed", t);
+    }
+
+    private BoxIOException writeFailure(final IOException e)
+    {
+        future.cancel(true);
+        final Throwable t = failure;
+        if (t == null)
+            return new BoxIOException("upload failed", e);
+        final BoxIOException exception = new BoxIOException("upload failed",
+            t);
+        exception.addSuppressed(e);
+        return exception;
+    }
+
+    private static Uploader versionUploader(final BoxFile file,
+        @Nullable final String etag)
+    {
+        Objects.requireNonNull(file);
+        return new Uploader()
+        {
+            @Override
+            public void upload(final InputStream in)
+            {
+                BoxLocalTransfers.uploadVersion(file, etag, in);
+            }
+        };
+    }
+
+    private static Uploader fileUploader(final BoxFolder parent,
+        final String fileName)
+    {
+        Objects.requireNonNull(parent);
+        Objects.requireNonNull(fileName);
+        return new Uploader()
+        {
+            @Override
+            public void upload(final InputStream in)
+            {
+                parent.uploadFile(in, fileName);
+            }
+        };
+    }
+
+    private interface Uploader
+    {
+        void upload(InputStream in);
+    }
+
+    /*
+     * Pipe which counts the bytes read by the upload thread, and which wakes
+     * up a blocked writer as soon as it is closed by the upload thread.
+     */
+    private static final class UploadPipe
+        extends PipedInputStream
+    {
+        private final AtomicLong consumed = new AtomicLong();
+
+        private UploadPipe()
+        {
+            super(PIPE_SIZE);
+        }
+
+        @Override
+        public synchronized int read()
+            throws IOException
+        {
+            final int ret = super.read();
+            if (ret != -1)
+                consumed.incrementAndGet();
+            return ret;
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off,
+            final int len)
+            throws IOException
+        {
+            final int ret = super.read(b, off, len);
+            if (ret > 0)
+                consumed.addAndGet(ret);
+            return ret;
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            super.close();
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
 }
@@ -0,0 +1,446 @@
+package com.github.fge.filesystem.box.io;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.box.sdk.BoxFile;
+import com.box.sdk.BoxMultipartRequest;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers between Box files and local file channels
+ *
+ * <p>Unlike the generic copy loop, which goes through an input stream, an
+ * intermediate buffer and an output stream, downloads here write the SDK's
+ * buffers straight to the target channel, and uploads read from a memory
+ * mapping of the source file. No extra thread is needed for small files;
+ * large downloads are split into ranges, downloaded in parallel and written
+ * at their offsets. Each download, or range, is run within the limit of a
+ * {@link BoxConcurrencyLimiter}.</p>
+ *
+ * <p>Since ranges are separate requests, a file changed during a parallel
+ * download could be assembled from several versions: the etag and size of
+ * the file are therefore fetched before the ranges are planned, and the etag
+ * is checked again once all ranges are written.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxLocalTransfers
+{
+    /**
+     * Files at least this large are downloaded in parallel ranges
+     */
+    public static final long PARALLEL_THRESHOLD = 64L * 1024L * 1024L;
+
+    /*
+     * How long a transfer waits for the limiter before failing; see
+     * BoxConcurrencyLimiter#execute(BoxAPICall, long, TimeUnit)
+     */
+    static final long MAX_QUEUE_TIME = 2L;
+    static final TimeUnit MAX_QUEUE_TIME_UNIT = TimeUnit.MINUTES;
+
+    private static final long MIN_PART_SIZE = 16L * 1024L * 1024L;
+    private static final int MAX_PARTS = 8;
+
+    private static final String VERSION_UPLOAD = "files/%s/content";
+
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private BoxLocalTransfers()
+    {
+        throw new Error("nice try!");
+    }
+
+    /**
+     * Download a file to a channel
+     *
+     * @param executor the executor to use for parallel ranges
+     * @param limiter the limiter bounding concurrent transfers
+     * @param file the file to download
+     * @param size the size of the file, as known to the caller
+     * @param etag the etag of the file, as known to the caller, if any
+     * @param channel the channel to write to
+     * @throws IOException download failure, the file changed during the
+     * download, or failure to write to the channel
+     */
+    public static void download(final ExecutorService executor,
+        final BoxConcurrencyLimiter limiter, final BoxFile file,
+        final long size, @Nullable final String etag,
+        final FileChannel channel)
+        throws IOException
+    {
+        if (size < PARALLEL_THRESHOLD) {
+            transfer(limiter, new BoxAPICall<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    file.download(new ChannelOutputStream(channel, 0L));
+                    return null;
+                }
+            });
+            return;
+        }
+
+        /*
+         * Plan the ranges from what Box reports, not from what the caller
+         * knows, which may be stale
+         */
+        final BoxFile.Info before = info(limiter, file, "etag", "size");
+        final String expected = before.getEtag();
+
+        if (expected == null || etag != null && !etag.equals(expected))
+            throw changed(file);
+
+        final long actual = before.getSize();
+        final long partSize = Math.max(MIN_PART_SIZE,
+            (actual + MAX_PARTS - 1) / MAX_PARTS);
+        final List<Future<Void>> parts = new ArrayList<>();
+
+        long start = 0L;
+        long end;
+
+        while (start < actual) {
+            end = Math.min(actual, start + partSize) - 1L;
+            parts.add(executor.submit(rangeDownload(limiter, file, channel,
+                start, end)));
+            start = end + 1L;
+        }
+
+        awaitAll(parts);
+
+        if (!expected.equals(info(limiter, file, "etag").getEtag()))
+            throw changed(file);
+        if (channel.size() != actual)
+            throw new BoxIOException("file " + file.getID() + ": downloaded "
+                + channel.size() + " bytes, expected " + actual);
+    }
+
+    /**
+     * Fetch information about a file within the limit of a concurrency
+     * limiter
+     *
+     * @param limiter the limiter
+     * @param file the file
+     * @param fields the fields to fetch
+     * @return the information
+     * @throws BoxIOException Box API error, or interrupted or timed out while
+     * waiting for the limiter
+     */
+    @Nonnull
+    public static BoxFile.Info info(final BoxConcurrencyLimiter limiter,
+        final BoxFile file, final String... fields)
+        throws BoxIOException
+    {
+        return transfer(limiter, new BoxAPICall<BoxFile.Info>()
+        {
+            @Override
+            public BoxFile.Info call()
+            {
+                return file.getInfo(fields);
+            }
+        });
+    }
+
+    /**
+     * Open an input stream suitable for uploading the contents of a channel
+     *
+     * <p>If the channel is small enough to be mapped, the stream reads from
+     * the mapping; otherwise it reads from the channel itself.</p>
+     *
+     * @param channel the channel
+     * @return an input stream
+     * @throws IOException failed to map the channel
+     */
+    @Nonnull
+    public static InputStream uploadSource(final FileChannel channel)
+        throws IOException
+    {
+        final long size = channel.size();
+
+        if (size > Integer.MAX_VALUE)
+            return Channels.newInputStream(channel);
+
+        final MappedByteBuffer buffer
+            = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+        return new ByteBufferInputStream(buffer);
+    }
+
+    /**
+     * Compute the SHA-1 hash of the contents of a channel
+     *
+     * <p>The hash is in the format used by Box (lowercase hexadecimal).</p>
+     *
+     * @param channel the channel
+     * @return the hash
+     * @throws IOException failed to read from the channel
+     */
+    @Nonnull
+    public static String sha1(final FileChannel channel)
+        throws IOException
+    {
+        final MessageDigest digest = newSha1();
+        final long size = channel.size();
+
+        if (size <= Integer.MAX_VALUE) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+                size));
+            return toHex(digest.digest());
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        long position = 0L;
+        int n;
+
+        while ((n = channel.read(buffer, position)) != -1) {
+            position += n;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newSha1()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Cannot happen; all JREs are required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(final byte[] bytes)
+    {
+        final char[] chars = new char[bytes.length * 2];
+        int i = 0;
+
+        for (final byte b: bytes) {
+            chars[i++] = HEX[(b >> 4) & 0x0f];
+            chars[i++] = HEX[b & 0x0f];
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Run a transfer within the limit of a concurrency limiter
+     *
+     * @param limiter the limiter
+     * @param call the transfer
+     * @param <T> type of the result
+     * @return the result of the transfer
+     * @throws BoxIOException Box API error, or interrupted or timed out while
+     * waiting for the limiter
+     */
+    public static <T> T transfer(final BoxConcurrencyLimiter limiter,
+        final BoxAPICall<T> call)
+        throws BoxIOException
+    {
+        try {
+            return limiter.execute(call, MAX_QUEUE_TIME, MAX_QUEUE_TIME_UNIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BoxIOException("interrupted while waiting for a "
+                + "connection", e);
+        } catch (BoxAPIException e) {
+            throw BoxIOException.wrap(e);
+        }
+    }
+
+    /**
+     * Upload a new version of a file, provided that it has not changed
+     *
+     * <p>The SDK cannot send an {@code If-Match} header along with a version
+     * upload, hence this method. If the file no longer has the given etag, Box
+     * rejects the upload with a 412 (precondition failed) error.</p>
+     *
+     * @param file the file
+     * @param etag the expected etag of the file; if null, the version is
+     * uploaded unconditionally
+     * @param in the contents of the new version
+     */
+    public static void uploadVersion(final BoxFile file,
+        @Nullable final String etag, final InputStream in)
+    {
+        if (etag == null) {
+            file.uploadVersion(in);
+            return;
+        }
+
+        final BoxAPIConnection api = file.getAPI();
+        final URL url;
+
+        try {
+            url = new URL(api.getBaseUploadURL()
+                + String.format(VERSION_UPLOAD, file.getID()));
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException("invalid upload URL", e);
+        }
+
+        final BoxMultipartRequest request = new BoxMultipartRequest(api, url);
+        request.addHeader("If-Match", etag);
+        request.setFile(in, "");
+        request.send().disconnect();
+    }
+
+    private static Callable<Void> rangeDownload(
+        final BoxConcurrencyLimiter limiter, final BoxFile file,
+        final FileChannel channel, final long start, final long end)
+    {
+        return new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                throws BoxIOException
+            {
+                final ChannelOutputStream out
+                    = new ChannelOutputStream(channel, start);
+
+                transfer(limiter, new BoxAPICall<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        file.downloadRange(out, start, end);
+                        return null;
+                    }
+                });
+
+                if (out.position != end + 1L)
+                    throw new BoxIOException("file " + file.getID()
+                        + ": range " + start + '-' + end + " is truncated");
+                return null;
+            }
+        };
+    }
+
+    private static BoxIOException changed(final BoxFile file)
+    {
+        return new BoxIOException("file " + file.getID()
+            + " changed during download");
+    }
+
+    private static void awaitAll(final List<Future<Void>> futures)
+        throws IOException
+    {
+        try {
+            for (final Future<Void> future: futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BoxIOException("download interrupted", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new BoxIOException("download failure", cause);
+        } finally {
+            for (final Future<Void> future: futures)
+                future.cancel(true);
+        }
+    }
+
+    /*
+     * Positional writes to a channel; several instances may write to the same
+     * channel concurrently, at different offsets.
+     */
+    private static final class ChannelOutputStream
+        extends OutputStream
+    {
+        private final FileChannel channel;
+        private long position;
+
+        private ChannelOutputStream(final FileChannel channel,
+            final long position)
+        {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        }
+    }
+
+    private static final class ByteBufferInputStream
+        extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(final ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+        {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n)
+        {
+            final int count = (int) Math.max(0L,
+                Math.min(n, (long) buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return buffer.remaining();
+        }
+    }
+}
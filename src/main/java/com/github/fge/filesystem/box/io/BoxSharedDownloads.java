@@ -0,0 +1,242 @@
+package com.github.fge.filesystem.box.io;
+
+import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads shared by concurrent readers of the same version of a file
+ *
+ * <p>A stream which is the only one open on a file reads it directly, with a
+ * {@link BoxFileInputStream} of its own. Only when a second stream is opened
+ * on the same file does a shared download start: this and all further
+ * streams read the blocks of this download from a bounded in-memory cache,
+ * each at its own pace. A download which is complete also serves streams
+ * opened later, for as long as its blocks stay in the cache.</p>
+ *
+ * <p>The cache is split between the shared downloads in progress, so that
+ * however many there are, blocks are not evicted before being read.</p>
+ *
+ * <p>Versions are told apart by their etag; streams on a file whose etag is
+ * not known use a download of their own.</p>
+ *
+ * @see SharedDownload
+ */
+@ParametersAreNonnullByDefault
+public final class BoxSharedDownloads
+{
+    /**
+     * The default capacity of the block cache, in bytes
+     */
+    public static final long DEFAULT_CAPACITY = 64L * 1024L * 1024L;
+
+    private final BlockCache cache;
+    private final Map<String, SharedDownload> downloads = new HashMap<>();
+
+    /*
+     * Guarded by downloads, like the map above: the files which a stream
+     * reads directly
+     */
+    private final Set<String> direct = new HashSet<>();
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param capacity the capacity of the block cache, in bytes
+     */
+    public BoxSharedDownloads(final long capacity)
+    {
+        cache = new BlockCache(capacity);
+    }
+
+    /**
+     * Open a stream on a file
+     *
+     * @param executor the executor to run the download with
+     * @param limiter the transfer limiter
+     * @param file the file
+     * @param etag the etag of the file, if known
+     * @return a stream
+     * @throws IOException failed to open a stream
+     */
+    @Nonnull
+    public InputStream open(final ExecutorService executor,
+        final BoxConcurrencyLimiter limiter, final BoxFile file,
+        @Nullable final String etag)
+        throws IOException
+    {
+        if (etag == null)
+            return new BoxFileInputStream(executor, limiter, file);
+
+        final String key = file.getID() + ':' + etag;
+        SharedDownload download;
+        boolean created = false;
+
+        synchronized (downloads) {
+            download = downloads.get(key);
+            if (download == null || !download.attach()) {
+                if (!direct.contains(key)) {
+                    final InputStream in = new BoxFileInputStream(executor,
+                        limiter, file, etag, 0L);
+                    direct.add(key);
+                    return new DirectInputStream(key, in);
+                }
+                download = new SharedDownload(this, key, cache, file);
+                download.attach();
+                downloads.put(key, download);
+                created = true;
+            }
+        }
+
+        if (created) {
+            started.incrementAndGet();
+            download.start(executor, limiter);
+        } else
+            joined.incrementAndGet();
+
+        return new SharedInputStream(this, download, cache, executor,
+            limiter, file, etag);
+    }
+
+    /**
+     * Return the number of downloads started
+     *
+     * @return the number of downloads
+     */
+    public long getDownloadCount()
+    {
+        return started.get();
+    }
+
+    /**
+     * Return the number of streams served by a download started by another
+     * stream
+     *
+     * @return the number of streams
+     */
+    public long getJoinCount()
+    {
+        return joined.get();
+    }
+
+    /**
+     * Return the number of streams which had to continue with a download of
+     * their own
+     *
+     * <p>A high count compared to the {@link #getJoinCount() join count}
+     * means that the cache is too small for the readers' pace.</p>
+     *
+     * @return the number of streams
+     */
+    public long getFallbackCount()
+    {
+        return fallbacks.get();
+    }
+
+    /**
+     * Return the number of bytes currently cached
+     *
+     * @return the number of bytes
+     */
+    public long getCachedBytes()
+    {
+        return cache.getSize();
+    }
+
+    /**
+     * Return the number of blocks evicted from the cache
+     *
+     * @return the number of blocks
+     */
+    public long getEvictionCount()
+    {
+        return cache.getEvictionCount();
+    }
+
+    /*
+     * The number of shared downloads in progress
+     */
+    int getActiveCount()
+    {
+        return active.get();
+    }
+
+    void started()
+    {
+        active.incrementAndGet();
+    }
+
+    void finished()
+    {
+        active.decrementAndGet();
+    }
+
+    void remove(final String key, final SharedDownload download)
+    {
+        synchronized (downloads) {
+            if (downloads.get(key) == download)
+                downloads.remove(key);
+        }
+    }
+
+    void fellBack()
+    {
+        fallbacks.incrementAndGet();
+    }
+
+    private void closed(final String key)
+    {
+        synchronized (downloads) {
+            direct.remove(key);
+        }
+    }
+
+    /*
+     * A stream reading a file on its own; while it is open, the next stream
+     * on the same file starts a shared download
+     */
+    private final class DirectInputStream
+        extends FilterInputStream
+    {
+        private final String key;
+        private boolean closed = false;
+
+        private DirectInputStream(final String key, final InputStream in)
+        {
+            super(in);
+            this.key = key;
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                closed(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.fge.filesystem.box.io;
+
+/**
+ * Listener notified of successful uploads
+ *
+ * @see BoxFileOutputStream
+ * @see BoxDeduplicatingOutputStream
+ */
+public interface BoxUploadListener
+{
+    /**
+     * Listener which does nothing
+     */
+    BoxUploadListener NONE = new BoxUploadListener()
+    {
+        @Override
+        public void uploadComplete(final long bytes)
+        {
+        }
+
+        @Override
+        public void uploadSkipped(final long bytes)
+        {
+        }
+    };
+
+    /**
+     * Called once an upload has successfully completed
+     *
+     * @param bytes the number of bytes uploaded
+     */
+    void uploadComplete(long bytes);
+
+    /**
+     * Called when an upload was skipped since the target file already had
+     * the same contents
+     *
+     * @param bytes the number of bytes which did not need to be uploaded
+     */
+    void uploadSkipped(long bytes);
+}
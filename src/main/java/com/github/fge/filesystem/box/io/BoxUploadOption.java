@@ -0,0 +1,128 @@
+package com.github.fge.filesystem.box.io;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.file.OpenOption;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Box specific open options carrying a value, for uploads
+ *
+ * <p>Use the static factory methods to build instances, and pass them along
+ * with other open options when opening an output stream.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxUploadOption
+    implements OpenOption
+{
+    private enum Kind
+    {
+        EXPECTED_SIZE,
+        CLOSE_TIMEOUT,
+    }
+
+    private final Kind kind;
+    private final long value;
+
+    private BoxUploadOption(final Kind kind, final long value)
+    {
+        this.kind = kind;
+        this.value = value;
+    }
+
+    /**
+     * Declare the number of bytes which will be written
+     *
+     * <p>The size is used to check, before any data is sent, that the upload
+     * will not exceed the file size limit or the quota of the account.</p>
+     *
+     * @param size the size, in bytes
+     * @return an option
+     */
+    @Nonnull
+    public static BoxUploadOption expectedSize(final long size)
+    {
+        if (size < 0L)
+            throw new IllegalArgumentException("size must not be negative");
+        return new BoxUploadOption(Kind.EXPECTED_SIZE, size);
+    }
+
+    /**
+     * Set how long closing the stream may wait for the upload to complete
+     *
+     * <p>By default, closing the stream waits as long as the upload makes
+     * progress, and times out if it stalls for too long.</p>
+     *
+     * @param duration the maximum duration
+     * @param unit the unit of the duration
+     * @return an option
+     */
+    @Nonnull
+    public static BoxUploadOption closeTimeout(final long duration,
+        final TimeUnit unit)
+    {
+        if (duration < 0L)
+            throw new IllegalArgumentException("duration must not be "
+                + "negative");
+        return new BoxUploadOption(Kind.CLOSE_TIMEOUT, unit.toNanos(duration));
+    }
+
+    /**
+     * Get the expected size declared in a set of options, if any
+     *
+     * @param options the options
+     * @return the expected size, or -1 if none was declared
+     */
+    public static long getExpectedSize(final Set<? extends OpenOption> options)
+    {
+        return find(options, Kind.EXPECTED_SIZE);
+    }
+
+    /**
+     * Get the close timeout declared in a set of options, if any
+     *
+     * @param options the options
+     * @param unit the unit to return the timeout in
+     * @return the timeout, or -1 if none was declared
+     */
+    public static long getCloseTimeout(final Set<? extends OpenOption> options,
+        final TimeUnit unit)
+    {
+        final long nanos = find(options, Kind.CLOSE_TIMEOUT);
+        return nanos == -1L ? -1L : unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static long find(final Set<? extends OpenOption> options,
+        final Kind kind)
+    {
+        for (final OpenOption option: options)
+            if (option instanceof BoxUploadOption
+                && ((BoxUploadOption) option).kind == kind)
+                return ((BoxUploadOption) option).value;
+        return -1L;
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof BoxUploadOption))
+            return false;
+        final BoxUploadOption other = (BoxUploadOption) obj;
+        return kind == other.kind && value == other.value;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * kind.hashCode() + (int) (value ^ (value >>> 32));
+    }
+
+    @Override
+    public String toString()
+    {
+        return kind + "=" + value;
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.fge.filesystem.box.io;
+
+import java.nio.file.CopyOption;
+import java.nio.file.OpenOption;
+
+/**
+ * Box specific options for writing to files
+ *
+ * <p>These can be used both as {@link OpenOption}s and as {@link
+ * CopyOption}s.</p>
+ */
+public enum BoxWriteOption
+    implements OpenOption, CopyOption
+{
+    /**
+     * Do not upload a new version of an existing file if its contents are
+     * unchanged
+     *
+     * <p>Contents are compared using the SHA-1 hash Box computes for each
+     * file. When writing through an output stream, the contents are spooled
+     * to a local temporary file while being hashed, and only uploaded on
+     * close if the hashes differ. When uploading a local file, the hash is
+     * computed before anything is transferred.</p>
+     *
+     * <p>This option has no effect when creating new files.</p>
+     */
+    SKIP_IF_UNCHANGED,
+
+    /**
+     * Write to a local spool file, and upload it in the background
+     *
+     * <p>Closing the stream returns as soon as the data is durable on the
+     * local disk. This option requires the filesystem to have been created
+     * with a spool directory; as an open option, it takes precedence over
+     * {@link #SKIP_IF_UNCHANGED}.</p>
+     *
+     * @see com.github.fge.filesystem.box.spool.BoxWriteBehind
+     */
+    WRITE_BEHIND,
+}
@@ -0,0 +1,428 @@
+package com.github.fge.filesystem.box.io;
+
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An adaptive read-ahead buffer between a download thread and a reader
+ *
+ * <p>The download thread writes to {@link #producer()}; each write is queued
+ * as a chunk. The reader consumes chunks from its own thread: reads within the
+ * current chunk only touch local fields, the queue is only accessed when a
+ * chunk is exhausted.</p>
+ *
+ * <p>The amount of data buffered ahead is bounded. The bound grows (up to a
+ * maximum) when the reader consumes data as fast as it comes, as is the case
+ * for sequential scans; it shrinks back (down to a minimum) when the download
+ * thread has been blocked for a while by a reader which does not read.</p>
+ *
+ * <p>If the buffer is pausable, a reader which does not read for longer than
+ * {@link #PAUSE_MILLIS} makes the download pause: data buffered beyond the
+ * minimum bound is dropped, and the write in progress fails. The download is
+ * expected to give up its transfer slot, wait for the reader to {@link
+ * #awaitResume() come back}, then resume from {@link #getWritten()}.</p>
+ *
+ * <p>This class supports one producer thread and one consumer thread.</p>
+ */
+@ParametersAreNonnullByDefault
+final class ReadAheadBuffer
+{
+    static final int MIN_CAPACITY = 16 * 1024;
+    static final int MAX_CAPACITY = 4 * 1024 * 1024;
+
+    static final long PAUSE_MILLIS = 3000L;
+
+    private static final long IDLE_MILLIS = 1000L;
+
+    private static final byte[] EOF = new byte[0];
+
+    /*
+     * The reader takes chunks from the head; a pausing producer drops chunks
+     * from the tail
+     */
+    private final BlockingDeque<Chunk> queue = new LinkedBlockingDeque<>();
+    private final AtomicLong buffered = new AtomicLong();
+    private final boolean pausable;
+
+    private final Object lock = new Object();
+    private volatile int capacity = MIN_CAPACITY;
+    private volatile boolean producerWaiting = false;
+    private volatile boolean paused = false;
+    private volatile boolean closed = false;
+
+    /*
+     * Producer side only
+     */
+    private long written = 0L;
+
+    /*
+     * Consumer side only
+     */
+    private byte[] current = null;
+    private int pos = 0;
+    private boolean eof = false;
+    private long consumedSinceGrowth = 0L;
+
+    private final OutputStream producer = new OutputStream()
+    {
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            int offset = off;
+            int remaining = len;
+            int n;
+
+            while (remaining > 0) {
+                n = awaitRoom(remaining);
+                final byte[] chunk = new byte[n];
+                System.arraycopy(b, offset, chunk, 0, n);
+                buffered.addAndGet(n);
+                written += n;
+                queue.add(new Chunk(chunk, null));
+                offset += n;
+                remaining -= n;
+            }
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param pausable whether the download can be paused and resumed
+     */
+    ReadAheadBuffer(final boolean pausable)
+    {
+        this.pausable = pausable;
+    }
+
+    /**
+     * Return the output stream the download thread should write to
+     *
+     * @return an output stream
+     */
+    OutputStream producer()
+    {
+        return producer;
+    }
+
+    /**
+     * Signal the end of the download
+     *
+     * @param failure the reason of the failure, or {@code null} if the
+     * download was successful
+     */
+    void finish(@Nullable final IOException failure)
+    {
+        queue.add(new Chunk(EOF, failure));
+    }
+
+    /**
+     * Return the number of bytes written to the producer and not dropped
+     *
+     * <p>This method must be called from the download thread.</p>
+     *
+     * @return the number of bytes
+     */
+    long getWritten()
+    {
+        return written;
+    }
+
+    /**
+     * Tell whether the download has been paused
+     *
+     * @return true if paused, and the reader has not come back yet
+     */
+    boolean isPaused()
+    {
+        return paused;
+    }
+
+    /**
+     * Wait for the reader to come back after a pause
+     *
+     * @return false if the reader closed the stream instead
+     * @throws InterruptedException interrupted while waiting
+     */
+    boolean awaitResume()
+        throws InterruptedException
+    {
+        synchronized (lock) {
+            /*
+             * Should the reader have drained what was left, it needs data now
+             */
+            while (paused && !closed && !queue.isEmpty())
+                lock.wait(IDLE_MILLIS);
+            paused = false;
+            return !closed;
+        }
+    }
+
+    /**
+     * Tell whether the consumer side has been closed
+     *
+     * @return true if closed
+     */
+    boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Return the current bound on the amount of data buffered ahead
+     *
+     * @return the capacity, in bytes
+     */
+    int getCapacity()
+    {
+        return capacity;
+    }
+
+    int read()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+        if (current == null || pos == current.length)
+            if (!nextChunk())
+                return -1;
+        return current[pos++] & 0xff;
+    }
+
+    int read(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+        if (len == 0)
+            return 0;
+
+        int done = 0;
+        int n;
+
+        while (done < len) {
+            if (current == null || pos == current.length) {
+                /*
+                 * Only block for more data if we have nothing to return yet
+                 */
+                if (done > 0 && queue.isEmpty())
+                    break;
+                if (!nextChunk())
+                    break;
+            }
+            n = Math.min(len - done, current.length - pos);
+            System.arraycopy(current, pos, b, off + done, n);
+            pos += n;
+            done += n;
+        }
+
+        return done == 0 ? -1 : done;
+    }
+
+    long skip(final long n)
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+
+        long done = 0L;
+        int count;
+
+        while (done < n) {
+            if (current == null || pos == current.length)
+                if (!nextChunk())
+                    break;
+            count = (int) Math.min(n - done, (long) (current.length - pos));
+            pos += count;
+            done += count;
+        }
+
+        return done;
+    }
+
+    int available()
+    {
+        final long local = current == null ? 0L : current.length - pos;
+        return (int) Math.min(Integer.MAX_VALUE, local + buffered.get());
+    }
+
+    /**
+     * Close the consumer side
+     *
+     * <p>Buffered data is discarded, and further writes by the download thread
+     * will fail.</p>
+     *
+     * @return true if all data had been read before closing
+     */
+    boolean close()
+    {
+        closed = true;
+        queue.clear();
+        current = null;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        return eof;
+    }
+
+    private boolean nextChunk()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+        if (eof)
+            return false;
+
+        if (paused)
+            synchronized (lock) {
+                paused = false;
+                lock.notifyAll();
+            }
+
+        Chunk chunk = queue.poll();
+
+        if (chunk == null) {
+            /*
+             * The reader outruns the download: no need for more read-ahead
+             */
+            consumedSinceGrowth = 0L;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BoxIOException("interrupted while waiting for data",
+                    e);
+            }
+        }
+
+        if (chunk.data == EOF) {
+            eof = true;
+            current = null;
+            if (chunk.failure != null)
+                throw new BoxIOException("download failure", chunk.failure);
+            return false;
+        }
+
+        current = chunk.data;
+        pos = 0;
+        buffered.addAndGet(-current.length);
+        consumedSinceGrowth += current.length;
+
+        /*
+         * The reader consumed a whole buffer's worth without ever having to
+         * wait: this is a sequential scan, read further ahead.
+         */
+        final int cap = capacity;
+        if (consumedSinceGrowth >= cap && cap < MAX_CAPACITY) {
+            capacity = Math.min(MAX_CAPACITY, cap * 2);
+            consumedSinceGrowth = 0L;
+        }
+
+        if (producerWaiting)
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+
+        return true;
+    }
+
+    private int awaitRoom(final int wanted)
+        throws IOException
+    {
+        long room;
+        long now;
+        long lastProgress = System.currentTimeMillis();
+        long lastShrink = lastProgress;
+        long lastBuffered = buffered.get();
+
+        synchronized (lock) {
+            while (true) {
+                if (closed)
+                    throw new IOException("stream closed");
+                /*
+                 * Raise the flag before looking at the room left, so that a
+                 * reader consuming a chunk in between will notify us.
+                 */
+                producerWaiting = true;
+                room = capacity - buffered.get();
+                if (room > 0L) {
+                    producerWaiting = false;
+                    return (int) Math.min(room, (long) wanted);
+                }
+                try {
+                    lock.wait(IDLE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BoxIOException("interrupted while waiting for "
+                        + "reader", e);
+                } finally {
+                    producerWaiting = false;
+                }
+                /*
+                 * The reader did not consume anything for a while: shrink
+                 * the read-ahead so that idle streams do not hold memory,
+                 * and if it stays idle, pause altogether.
+                 */
+                now = System.currentTimeMillis();
+                if (buffered.get() != lastBuffered) {
+                    lastBuffered = buffered.get();
+                    lastProgress = now;
+                    lastShrink = now;
+                } else if (pausable && now - lastProgress >= PAUSE_MILLIS) {
+                    pause();
+                    throw new IOException("download paused");
+                } else if (now - lastShrink >= IDLE_MILLIS) {
+                    capacity = Math.max(MIN_CAPACITY, capacity / 2);
+                    lastShrink = now;
+                }
+            }
+        }
+    }
+
+    /*
+     * Called with the lock held; dropped chunks are the last ones written,
+     * so the download resumes right after what is left
+     */
+    private void pause()
+    {
+        Chunk chunk;
+
+        paused = true;
+        capacity = MIN_CAPACITY;
+
+        while (buffered.get() > MIN_CAPACITY && queue.size() > 1) {
+            chunk = queue.pollLast();
+            if (chunk == null)
+                break;
+            buffered.addAndGet(-chunk.data.length);
+            written -= chunk.data.length;
+        }
+    }
+
+    private static final class Chunk
+    {
+        private final byte[] data;
+        private final IOException failure;
+
+        private Chunk(final byte[] data, @Nullable final IOException failure)
+        {
+            this.data = data;
+            this.failure = failure;
+        }
+    }
+}
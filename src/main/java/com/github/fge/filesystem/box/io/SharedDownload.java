@@ -0,0 +1,354 @@
+package com.github.fge.filesystem.box.io;
+
+import com.box.sdk.BoxAPIException;
+import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import com.github.fge.filesystem.box.io.BlockCache.Block;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One download of a given version of a file, shared by all its readers
+ *
+ * <p>The download cuts the file into blocks of {@link #BLOCK_SIZE} bytes (the
+ * last one may be shorter), which go into the {@link BlockCache}. Readers
+ * consume blocks at their own pace; the download only waits when it is more
+ * than a few blocks ahead of the furthest reader, so a slow reader never
+ * holds up a fast one. How many blocks ahead depends on how many shared
+ * downloads are in progress: together, they never read ahead more than half
+ * of the cache.</p>
+ *
+ * <p>A reader which falls so far behind that the blocks it needs have been
+ * evicted, or whose download failed, continues with a download of its
+ * own (see {@link SharedInputStream}).</p>
+ *
+ * <p>The download is abandoned if all its readers go away before it is
+ * complete, or if none of them makes progress for {@link
+ * ReadAheadBuffer#PAUSE_MILLIS} while it waits for them: this frees its
+ * transfer slot, and the readers continue with downloads of their own once
+ * they come back. Once complete, it stays available to new readers for as
+ * long as its first block is cached.</p>
+ */
+@ParametersAreNonnullByDefault
+final class SharedDownload
+{
+    static final int BLOCK_SIZE = 256 * 1024;
+
+    /*
+     * Same as the maximum read-ahead of a single download, unless the cache
+     * is too small for it
+     */
+    private static final int READ_AHEAD_BLOCKS
+        = ReadAheadBuffer.MAX_CAPACITY / BLOCK_SIZE;
+
+    private final BoxSharedDownloads registry;
+    private final String key;
+    private final BlockCache cache;
+    private final BoxFile file;
+
+    /*
+     * All guarded by this
+     */
+    private final List<Block> blocks = new ArrayList<>();
+    private int readers = 0;
+    private int furthest = 0;
+    private boolean finished = false;
+    private IOException failure = null;
+    private boolean stale = false;
+    private boolean abandoned = false;
+
+    SharedDownload(final BoxSharedDownloads registry, final String key,
+        final BlockCache cache, final BoxFile file)
+    {
+        this.registry = registry;
+        this.key = key;
+        this.cache = cache;
+        this.file = file;
+    }
+
+    void start(final ExecutorService executor,
+        final BoxConcurrencyLimiter limiter)
+    {
+        final BlockWriter out = new BlockWriter();
+
+        registry.started();
+        executor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                throws IOException
+            {
+                try {
+                    final boolean complete = limiter.execute(
+                        new BoxAPICall<Boolean>()
+                        {
+                            /*
+                             * Giving up on readers is not a failure of the
+                             * API, and must not count as such
+                             */
+                            @Override
+                            public Boolean call()
+                            {
+                                try {
+                                    file.download(out);
+                                    return true;
+                                } catch (BoxAPIException e) {
+                                    if (isAbandoned())
+                                        return false;
+                                    throw e;
+                                }
+                            }
+                        }, BoxLocalTransfers.MAX_QUEUE_TIME,
+                        BoxLocalTransfers.MAX_QUEUE_TIME_UNIT);
+                    if (!complete)
+                        throw new BoxIOException("download abandoned");
+                    out.publishLast();
+                    finish(null);
+                    return null;
+                } catch (InterruptedException e) {
+                    final BoxIOException exception
+                        = new BoxIOException("download interrupted", e);
+                    finish(exception);
+                    throw exception;
+                } catch (BoxAPIException e) {
+                    final BoxIOException exception = BoxIOException.wrap(e);
+                    finish(exception);
+                    throw exception;
+                } catch (IOException e) {
+                    finish(e);
+                    throw e;
+                } catch (RuntimeException | Error e) {
+                    finish(new BoxIOException("download failure", e));
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Register a new reader
+     *
+     * @return false if this download can no longer serve new readers
+     */
+    synchronized boolean attach()
+    {
+        if (stale || failure != null)
+            return false;
+
+        readers++;
+        return true;
+    }
+
+    void detach()
+    {
+        final boolean drop;
+
+        synchronized (this) {
+            readers--;
+            drop = readers == 0 && (stale || failure != null);
+            notifyAll();
+        }
+
+        if (drop)
+            drop();
+    }
+
+    /**
+     * Record that a reader has reached a block
+     *
+     * @param index the index of the block
+     */
+    synchronized void reached(final int index)
+    {
+        if (index <= furthest)
+            return;
+
+        furthest = index;
+        notifyAll();
+    }
+
+    /**
+     * Wait for a block to be downloaded
+     *
+     * @param index the index of the block
+     * @return the block, or {@code null} if the file has fewer blocks
+     * @throws IOException the download failed before reaching this block
+     * @throws InterruptedException interrupted while waiting
+     */
+    @Nullable
+    synchronized Block awaitBlock(final int index)
+        throws IOException, InterruptedException
+    {
+        while (index >= blocks.size()) {
+            if (failure != null)
+                throw new BoxIOException("shared download failure", failure);
+            if (finished)
+                return null;
+            wait();
+        }
+
+        return blocks.get(index);
+    }
+
+    /**
+     * Called by the cache when one of this download's blocks is evicted
+     *
+     * <p>Without its first block, the download is of no use to new readers.
+     * </p>
+     *
+     * @param block the block
+     */
+    void evicted(final Block block)
+    {
+        final boolean drop;
+
+        synchronized (this) {
+            if (block.index == 0)
+                stale = true;
+            drop = stale && readers == 0;
+        }
+
+        if (drop)
+            drop();
+    }
+
+    private synchronized boolean isAbandoned()
+    {
+        return abandoned;
+    }
+
+    private void finish(@Nullable final IOException exception)
+    {
+        final boolean drop;
+
+        synchronized (this) {
+            if (finished)
+                return;
+            finished = true;
+            failure = exception;
+            drop = exception != null && readers == 0;
+            notifyAll();
+        }
+
+        registry.finished();
+        if (drop)
+            drop();
+    }
+
+    private int window()
+    {
+        final long blocks = cache.getCapacity() / BLOCK_SIZE / 2L
+            / Math.max(1, registry.getActiveCount());
+
+        return (int) Math.max(1L, Math.min(READ_AHEAD_BLOCKS, blocks));
+    }
+
+    private void publish(final byte[] data)
+        throws IOException
+    {
+        final Block block;
+
+        synchronized (this) {
+            int reached = furthest;
+            long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(ReadAheadBuffer.PAUSE_MILLIS);
+            long remaining;
+
+            try {
+                while (readers > 0 && blocks.size() - furthest > window()) {
+                    if (furthest > reached) {
+                        reached = furthest;
+                        deadline = System.nanoTime() + TimeUnit.MILLISECONDS
+                            .toNanos(ReadAheadBuffer.PAUSE_MILLIS);
+                    }
+                    remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        abandoned = true;
+                        throw new IOException("readers stalled");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BoxIOException("interrupted while waiting for "
+                    + "readers", e);
+            }
+            if (readers == 0) {
+                abandoned = true;
+                throw new IOException("no readers left");
+            }
+            block = new Block(this, blocks.size(), data);
+            blocks.add(block);
+            notifyAll();
+        }
+
+        for (final Block evicted: cache.add(block))
+            evicted.owner.evicted(evicted);
+    }
+
+    private void drop()
+    {
+        final List<Block> list;
+
+        synchronized (this) {
+            list = new ArrayList<>(blocks);
+        }
+
+        registry.remove(key, this);
+        cache.discard(list);
+    }
+
+    private final class BlockWriter
+        extends OutputStream
+    {
+        private byte[] current = new byte[BLOCK_SIZE];
+        private int pos = 0;
+
+        @Override
+        public void write(final int b)
+            throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException
+        {
+            int offset = off;
+            int remaining = len;
+            int n;
+
+            while (remaining > 0) {
+                n = Math.min(remaining, BLOCK_SIZE - pos);
+                System.arraycopy(b, offset, current, pos, n);
+                pos += n;
+                offset += n;
+                remaining -= n;
+                if (pos == BLOCK_SIZE) {
+                    publish(current);
+                    current = new byte[BLOCK_SIZE];
+                    pos = 0;
+                }
+            }
+        }
+
+        private void publishLast()
+            throws IOException
+        {
+            if (pos > 0)
+                publish(Arrays.copyOf(current, pos));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.fge.filesystem.box.io;
+
+import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import com.github.fge.filesystem.box.io.BlockCache.Block;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A reader of a {@link SharedDownload}
+ *
+ * <p>Reads within the current block do not take any lock. If the next block
+ * is no longer cached, or the shared download failed, the stream detaches
+ * from the shared download and continues with a {@link BoxFileInputStream}
+ * of its own, starting from the current offset.</p>
+ *
+ * <p>As with any other {@link InputStream}, instances of this class are not
+ * thread safe.</p>
+ */
+@ParametersAreNonnullByDefault
+final class SharedInputStream
+    extends InputStream
+{
+    private final BoxSharedDownloads registry;
+    private final SharedDownload download;
+    private final BlockCache cache;
+    private final ExecutorService executor;
+    private final BoxConcurrencyLimiter limiter;
+    private final BoxFile file;
+    private final String etag;
+
+    private Block block = null;
+    private int index = 0;
+    private byte[] data = null;
+    private int pos = 0;
+    private long offset = 0L;
+
+    private boolean attached = true;
+    private InputStream fallback = null;
+    private boolean closed = false;
+
+    @SuppressWarnings("ConstructorWithTooManyParameters")
+    SharedInputStream(final BoxSharedDownloads registry,
+        final SharedDownload download, final BlockCache cache,
+        final ExecutorService executor, final BoxConcurrencyLimiter limiter,
+        final BoxFile file, final String etag)
+    {
+        this.registry = registry;
+        this.download = download;
+        this.cache = cache;
+        this.executor = executor;
+        this.limiter = limiter;
+        this.file = file;
+        this.etag = etag;
+    }
+
+    @Override
+    public int read()
+        throws IOException
+    {
+        if (fallback == null && (data == null || pos == data.length))
+            if (!nextBlock())
+                return -1;
+
+        if (fallback != null)
+            return fallback.read();
+
+        offset++;
+        return data[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+
+        if (fallback == null && (data == null || pos == data.length))
+            if (!nextBlock())
+                return -1;
+
+        if (fallback != null)
+            return fallback.read(b, off, len);
+
+        final int n = Math.min(len, data.length - pos);
+        System.arraycopy(data, pos, b, off, n);
+        pos += n;
+        offset += n;
+        return n;
+    }
+
+    @Override
+    public long skip(final long n)
+        throws IOException
+    {
+        if (n <= 0L)
+            return 0L;
+
+        if (fallback == null && (data == null || pos == data.length))
+            if (!nextBlock())
+                return 0L;
+
+        if (fallback != null)
+            return fallback.skip(n);
+
+        final int count = (int) Math.min(n, (long) (data.length - pos));
+        pos += count;
+        offset += count;
+        return count;
+    }
+
+    @Override
+    public int available()
+        throws IOException
+    {
+        if (fallback != null)
+            return fallback.available();
+        return data == null ? 0 : data.length - pos;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        release();
+        if (attached)
+            download.detach();
+        if (fallback != null)
+            fallback.close();
+    }
+
+    /*
+     * Returns false at the end of the file; on return, either a block is
+     * pinned or the stream has switched to its own download
+     */
+    private boolean nextBlock()
+        throws IOException
+    {
+        if (closed)
+            throw new IOException("stream closed");
+
+        release();
+
+        final Block next;
+
+        download.reached(index);
+
+        try {
+            next = download.awaitBlock(index);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BoxIOException("interrupted while waiting for data", e);
+        } catch (IOException ignored) {
+            switchToFallback();
+            return true;
+        }
+
+        if (next == null)
+            return false;
+
+        data = cache.pin(next);
+
+        if (data == null) {
+            switchToFallback();
+            return true;
+        }
+
+        block = next;
+        index++;
+        pos = 0;
+        return true;
+    }
+
+    private void release()
+    {
+        if (block != null)
+            cache.unpin(block);
+        block = null;
+        data = null;
+    }
+
+    private void switchToFallback()
+        throws IOException
+    {
+        attached = false;
+        download.detach();
+        registry.fellBack();
+        fallback = new BoxFileInputStream(executor, limiter, file, etag,
+            offset);
+    }
+}
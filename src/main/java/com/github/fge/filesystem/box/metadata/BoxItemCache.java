@@ -0,0 +1,525 @@
+package com.github.fge.filesystem.box.metadata;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A short lived cache of item metadata
+ *
+ * <p>Items are recorded as {@link BoxItemRecord}s, by parent folder id and
+ * name; a path is resolved by looking up each of its components in turn,
+ * starting from the root folder. Names and etags are interned, since many
+ * items share them.</p>
+ *
+ * <p>Entries expire after a fixed amount of time; the cache is also bounded in
+ * size: when it is full, expired entries are purged, and if that is not
+ * enough, the cache is emptied.</p>
+ *
+ * <p>The cache also records names known not to exist, for a shorter amount of
+ * time, and folders whose entries have all been recorded by a listing (see
+ * {@link #markComplete(long, long)}). A name which is not in the cache but
+ * whose parent folder is complete does not exist; folders therefore stay
+ * complete no longer than names are known not to exist.</p>
+ *
+ * <p>Results of a listing are only recorded if the folder was not
+ * invalidated since the listing started: they may not reflect the change
+ * which caused the invalidation.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxItemCache
+{
+    public static final long DEFAULT_TTL = 30L;
+    public static final TimeUnit DEFAULT_TTL_UNIT = TimeUnit.SECONDS;
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+    public static final long DEFAULT_NEGATIVE_TTL = 5L;
+
+    private final ConcurrentMap<Key, Entry> entries
+        = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Long> completeDirs
+        = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Long> invalidatedDirs
+        = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> strings
+        = new ConcurrentHashMap<>();
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final int maxEntries;
+
+    private volatile long clearedAt = System.nanoTime();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+
+    public BoxItemCache()
+    {
+        this(DEFAULT_TTL, DEFAULT_TTL_UNIT, DEFAULT_MAX_ENTRIES);
+    }
+
+    public BoxItemCache(final long ttl, final TimeUnit unit,
+        final int maxEntries)
+    {
+        this(ttl, unit, Math.min(ttl, DEFAULT_NEGATIVE_TTL), maxEntries);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ttl time to live of entries
+     * @param unit time unit of both times to live
+     * @param negativeTtl time to live of names known not to exist
+     * @param maxEntries maximum number of entries
+     */
+    public BoxItemCache(final long ttl, final TimeUnit unit,
+        final long negativeTtl, final int maxEntries)
+    {
+        if (maxEntries <= 0)
+            throw new IllegalArgumentException("maximum number of entries must "
+                + "be strictly positive");
+        ttlNanos = unit.toNanos(ttl);
+        negativeTtlNanos = unit.toNanos(negativeTtl);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Get the metadata of an item by parent folder and name
+     *
+     * @param parentId the id of the parent folder
+     * @param name the name of the item
+     * @return the metadata, or {@code null} if not cached or expired
+     */
+    @Nullable
+    public BoxItemRecord get(final long parentId, final String name)
+    {
+        final Key key = new Key(parentId, name);
+        final Entry entry = entries.get(key);
+
+        if (entry == null || entry.record == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (entry.isExpired(System.nanoTime())) {
+            entries.remove(key, entry);
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.record;
+    }
+
+    /**
+     * Record the metadata of an item
+     *
+     * @param record the metadata
+     */
+    public void put(final BoxItemRecord record)
+    {
+        final long now = System.nanoTime();
+
+        if (entries.size() >= maxEntries)
+            purge(now);
+
+        entries.put(new Key(record.getParentId(), record.getName()),
+            new Entry(record, now + ttlNanos));
+    }
+
+    /**
+     * Record the metadata of an item obtained by a listing of its parent
+     *
+     * <p>Nothing is recorded if the parent folder was invalidated since the
+     * listing started.</p>
+     *
+     * @param record the metadata
+     * @param listedAt the value of {@link System#nanoTime()} when the listing
+     * started
+     */
+    public void put(final BoxItemRecord record, final long listedAt)
+    {
+        final long now = System.nanoTime();
+        final long parentId = record.getParentId();
+        final Key key = new Key(parentId, record.getName());
+        final Entry entry = new Entry(record, now + ttlNanos);
+
+        if (isInvalidatedSince(parentId, listedAt))
+            return;
+
+        if (entries.size() >= maxEntries)
+            purge(now);
+
+        entries.put(key, entry);
+
+        /*
+         * Check again after recording: a concurrent invalidation either
+         * happened before (we see it here), or will remove the entry itself
+         */
+        if (isInvalidatedSince(parentId, listedAt))
+            entries.remove(key, entry);
+    }
+
+    /**
+     * Record that no item with a given name exists in a folder
+     *
+     * @param parentId the id of the folder
+     * @param name the name
+     */
+    public void putMissing(final long parentId, final String name)
+    {
+        final long now = System.nanoTime();
+
+        if (entries.size() >= maxEntries)
+            purge(now);
+
+        entries.put(new Key(parentId, name),
+            new Entry(null, now + negativeTtlNanos));
+    }
+
+    /**
+     * Record that a listing of a folder did not find a given name
+     *
+     * <p>Nothing is recorded if the folder was invalidated since the lookup
+     * started.</p>
+     *
+     * @param parentId the id of the folder
+     * @param name the name
+     * @param since the value of {@link System#nanoTime()} when the lookup
+     * started
+     */
+    public void putMissing(final long parentId, final String name,
+        final long since)
+    {
+        final long now = System.nanoTime();
+        final Key key = new Key(parentId, name);
+        final Entry entry = new Entry(null, now + negativeTtlNanos);
+
+        if (isInvalidatedSince(parentId, since))
+            return;
+
+        if (entries.size() >= maxEntries)
+            purge(now);
+
+        entries.put(key, entry);
+
+        if (isInvalidatedSince(parentId, since))
+            entries.remove(key, entry);
+    }
+
+    /**
+     * Tell whether a name is known not to exist in a folder
+     *
+     * @param parentId the id of the folder
+     * @param name the name
+     * @return true if the name was recorded as missing, or if it is not
+     * recorded and the folder is complete
+     */
+    public boolean isKnownMissing(final long parentId, final String name)
+    {
+        final long now = System.nanoTime();
+        final Entry entry = entries.get(new Key(parentId, name));
+
+        if (entry != null && !entry.isExpired(now)) {
+            if (entry.record != null)
+                return false;
+            negativeHits.incrementAndGet();
+            return true;
+        }
+
+        final Long expiresAt = completeDirs.get(parentId);
+
+        if (expiresAt == null)
+            return false;
+
+        if (now - expiresAt >= 0L) {
+            completeDirs.remove(parentId, expiresAt);
+            return false;
+        }
+
+        negativeHits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Record that all entries of a folder are in the cache
+     *
+     * <p>The folder stays complete for as long as names known not to exist
+     * are remembered, counting from the start of the listing. If the folder
+     * was invalidated, or the cache emptied, since the listing started, the
+     * folder is not marked.</p>
+     *
+     * @param folderId the id of the folder
+     * @param listedAt the value of {@link System#nanoTime()} when the listing
+     * started
+     */
+    public void markComplete(final long folderId, final long listedAt)
+    {
+        final Long expiresAt = listedAt + negativeTtlNanos;
+
+        completeDirs.put(folderId, expiresAt);
+
+        /*
+         * Check after marking: a concurrent invalidation either happened
+         * before (we see it here), or will remove the mark itself
+         */
+        if (isInvalidatedSince(folderId, listedAt))
+            completeDirs.remove(folderId, expiresAt);
+    }
+
+    /**
+     * Forget about an item
+     *
+     * <p>Listings of the parent folder which started before this call do not
+     * record anything anymore. Note that this does not affect the
+     * completeness of the parent folder as recorded by earlier listings; see
+     * {@link #invalidateDirectory(long)}.</p>
+     *
+     * @param parentId the id of the parent folder
+     * @param name the name of the item
+     */
+    public void invalidate(final long parentId, final String name)
+    {
+        touch(parentId);
+        entries.remove(new Key(parentId, name));
+    }
+
+    /**
+     * Forget that the entries of a folder are all known
+     *
+     * <p>Listings of this folder which started before this call do not
+     * record anything anymore.</p>
+     *
+     * @param folderId the id of the folder
+     */
+    public void invalidateDirectory(final long folderId)
+    {
+        touch(folderId);
+        completeDirs.remove(folderId);
+    }
+
+    /**
+     * Forget about all items
+     */
+    public void invalidateAll()
+    {
+        clear();
+    }
+
+    /**
+     * Return an interned copy of a string
+     *
+     * <p>Names and etags of records should be interned using this method.</p>
+     *
+     * @param s the string
+     * @return a string equal to the argument
+     */
+    public String intern(final String s)
+    {
+        if (strings.size() >= maxEntries)
+            strings.clear();
+
+        final String existing = strings.putIfAbsent(s, s);
+        return existing == null ? s : existing;
+    }
+
+    /**
+     * Return the items recorded in the cache since a given time
+     *
+     * <p>Items are returned whether they are expired or not.</p>
+     *
+     * @param since the value of {@link System#nanoTime()} before which items
+     * are ignored
+     * @return a list of records
+     * @see BoxMetadataSnapshot
+     */
+    public List<BoxItemRecord> getEntries(final long since)
+    {
+        final List<BoxItemRecord> list = new ArrayList<>();
+
+        for (final Entry entry: entries.values())
+            if (entry.record != null
+                && entry.expiresAt - ttlNanos - since >= 0L)
+                list.add(entry.record);
+
+        return list;
+    }
+
+    /**
+     * Return the folders listed since a given time which are still complete
+     *
+     * @param since the value of {@link System#nanoTime()} before which
+     * listings are ignored
+     * @return a set of folder ids
+     * @see BoxMetadataSnapshot
+     */
+    public Set<Long> getCompleteDirectories(final long since)
+    {
+        final long now = System.nanoTime();
+        final Set<Long> set = new HashSet<>();
+        long expiresAt;
+
+        for (final Map.Entry<Long, Long> entry: completeDirs.entrySet()) {
+            expiresAt = entry.getValue();
+            if (now - expiresAt < 0L
+                && expiresAt - negativeTtlNanos - since >= 0L)
+                set.add(entry.getKey());
+        }
+
+        return set;
+    }
+
+    /**
+     * Record items and complete folders known to be up to date
+     *
+     * <p>This is meant to populate the cache at startup; entries expire as if
+     * they had just been listed.</p>
+     *
+     * @param records the items
+     * @param folderIds the ids of complete folders; all their entries must be
+     * in {@code records}
+     */
+    public void load(final Collection<BoxItemRecord> records,
+        final Collection<Long> folderIds)
+    {
+        final long now = System.nanoTime();
+
+        for (final BoxItemRecord record: records)
+            put(record);
+
+        for (final long folderId: folderIds)
+            markComplete(folderId, now);
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of lookups answered as missing without an API call
+     *
+     * @return the number of negative hits
+     */
+    public long getNegativeHitCount()
+    {
+        return negativeHits.get();
+    }
+
+    /*
+     * Record the time of an invalidation; times only ever move forward
+     */
+    private void touch(final long folderId)
+    {
+        final long now = System.nanoTime();
+        Long previous;
+
+        if (invalidatedDirs.size() >= maxEntries)
+            clear();
+
+        do {
+            previous = invalidatedDirs.putIfAbsent(folderId, now);
+            if (previous == null || previous - now >= 0L)
+                return;
+        } while (!invalidatedDirs.replace(folderId, previous, now));
+    }
+
+    private boolean isInvalidatedSince(final long folderId, final long since)
+    {
+        if (clearedAt - since >= 0L)
+            return true;
+
+        final Long invalidatedAt = invalidatedDirs.get(folderId);
+
+        return invalidatedAt != null && invalidatedAt - since >= 0L;
+    }
+
+    private void purge(final long now)
+    {
+        final Iterator<Entry> iterator = entries.values().iterator();
+
+        while (iterator.hasNext())
+            if (iterator.next().isExpired(now))
+                iterator.remove();
+
+        if (entries.size() >= maxEntries)
+            clear();
+    }
+
+    /*
+     * Folders can only be complete if their entries are there
+     */
+    private void clear()
+    {
+        clearedAt = System.nanoTime();
+        completeDirs.clear();
+        invalidatedDirs.clear();
+        entries.clear();
+        strings.clear();
+    }
+
+    private static final class Key
+    {
+        private final long parentId;
+        private final String name;
+
+        private Key(final long parentId, final String name)
+        {
+            this.parentId = parentId;
+            this.name = name;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (int) (parentId ^ parentId >>> 32) + name.hashCode();
+        }
+
+        @Override
+        public boolean equals(@Nullable final Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            final Key other = (Key) obj;
+            return parentId == other.parentId && name.equals(other.name);
+        }
+    }
+
+    private static final class Entry
+    {
+        /*
+         * null if the item is known not to exist
+         */
+        private final BoxItemRecord record;
+        private final long expiresAt;
+
+        private Entry(@Nullable final BoxItemRecord record,
+            final long expiresAt)
+        {
+            this.record = record;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(final long now)
+        {
+            return now - expiresAt >= 0L;
+        }
+    }
+}
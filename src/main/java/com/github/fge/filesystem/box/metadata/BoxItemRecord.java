@@ -0,0 +1,582 @@
+package com.github.fge.filesystem.box.metadata;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.box.sdk.BoxFile;
+import com.box.sdk.BoxFolder;
+import com.box.sdk.BoxItem;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+/**
+ * A compact, immutable record of the metadata of an item
+ *
+ * <p>Unlike {@link BoxItem.Info}, a record only holds what the driver needs:
+ * ids are kept as {@code long}s, dates as milliseconds since the epoch, and an
+ * item refers to its parent by id rather than by path. Records are what {@link
+ * BoxItemCache} stores, and what attribute providers read from.</p>
+ *
+ * <p>Dates and version numbers which are not known (for the root folder, or if
+ * they were not fetched) are {@code -1}.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxItemRecord
+{
+    public enum Type
+    {
+        FILE,
+        FOLDER,
+    }
+
+    public static final long ROOT_ID = 0L;
+    public static final long NO_PARENT = -1L;
+    public static final long UNKNOWN_DATE = -1L;
+    public static final long UNKNOWN_VERSION = -1L;
+
+    /**
+     * The fields of an item which a record is built from
+     *
+     * @see #of(long, JsonObject, BoxItemCache)
+     */
+    public static final String FIELDS = "type,id,name,size,created_at,"
+        + "modified_at,etag,sequence_id,sha1,version_number,owned_by,"
+        + "shared_link";
+
+    private static final int HTTP_CONFLICT = 409;
+
+    private static final BoxItemRecord ROOT = new BoxItemRecord(ROOT_ID,
+        NO_PARENT, Type.FOLDER, "", null, null, null, 0L, UNKNOWN_DATE,
+        UNKNOWN_DATE, UNKNOWN_VERSION, null, false);
+
+    private static final ThreadLocal<DateFormat> DATE_FORMAT
+        = new ThreadLocal<DateFormat>()
+    {
+        @Override
+        protected DateFormat initialValue()
+        {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+        }
+    };
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long id;
+    private final long parentId;
+    private final Type type;
+    private final String name;
+    private final String etag;
+    private final String sequenceId;
+    private final byte[] sha1;
+    private final long size;
+    private final long createdAt;
+    private final long modifiedAt;
+    private final long versionNumber;
+    private final String owner;
+    private final boolean shared;
+
+    @SuppressWarnings("ConstructorWithTooManyParameters")
+    public BoxItemRecord(final long id, final long parentId, final Type type,
+        final String name, @Nullable final String etag,
+        @Nullable final String sequenceId, @Nullable final byte[] sha1,
+        final long size, final long createdAt, final long modifiedAt,
+        final long versionNumber, @Nullable final String owner,
+        final boolean shared)
+    {
+        this.id = id;
+        this.parentId = parentId;
+        this.type = type;
+        this.name = name;
+        this.etag = etag;
+        this.sequenceId = sequenceId;
+        this.sha1 = sha1;
+        this.size = size;
+        this.createdAt = createdAt;
+        this.modifiedAt = modifiedAt;
+        this.versionNumber = versionNumber;
+        this.owner = owner;
+        this.shared = shared;
+    }
+
+    /**
+     * Build a record from the JSON metadata of an item
+     *
+     * <p>Fields missing from the metadata are recorded as unknown; see {@link
+     * #FIELDS} for the fields to fetch.</p>
+     *
+     * @param parentId the id of the parent folder
+     * @param json the metadata
+     * @param cache the cache used to intern strings
+     * @return a new record, or {@code null} if the item is neither a file nor
+     * a folder
+     */
+    @Nullable
+    public static BoxItemRecord of(final long parentId, final JsonObject json,
+        final BoxItemCache cache)
+    {
+        final String s = string(json, "type");
+        final Type type;
+
+        if ("file".equals(s))
+            type = Type.FILE;
+        else if ("folder".equals(s))
+            type = Type.FOLDER;
+        else
+            return null;
+
+        final JsonValue size = json.get("size");
+        final String version = string(json, "version_number");
+        final JsonValue owner = json.get("owned_by");
+        final JsonValue link = json.get("shared_link");
+
+        return build(parentId, type, string(json, "id"), string(json, "name"),
+            string(json, "etag"), string(json, "sequence_id"),
+            string(json, "sha1"),
+            size == null || size.isNull() ? 0L : parseSize(size.toString()),
+            string(json, "created_at"), string(json, "modified_at"), version,
+            owner == null || !owner.isObject() ? null
+                : string(owner.asObject(), "login"),
+            link != null && link.isObject(), cache);
+    }
+
+    /**
+     * Build a record of the item an operation conflicted with
+     *
+     * <p>The conflicting item is an object for uploads, but an array of
+     * objects for other operations.</p>
+     *
+     * @param parentId the id of the folder the operation was about
+     * @param e the exception the operation failed with
+     * @param cache the cache used to intern strings
+     * @return a new record, or {@code null} if the failure is not a name
+     * conflict, or if the response does not describe the conflicting item
+     */
+    @Nullable
+    public static BoxItemRecord conflictOf(final long parentId,
+        final BoxIOException e, final BoxItemCache cache)
+    {
+        final Throwable cause = e.getCause();
+
+        if (!(cause instanceof BoxAPIException))
+            return null;
+
+        final BoxAPIException exception = (BoxAPIException) cause;
+
+        if (exception.getResponseCode() != HTTP_CONFLICT
+            || exception.getResponse() == null)
+            return null;
+
+        try {
+            final JsonValue info = JsonObject.readFrom(exception.getResponse())
+                .get("context_info");
+            if (info == null || !info.isObject())
+                return null;
+            JsonValue conflicts = info.asObject().get("conflicts");
+            if (conflicts != null && conflicts.isArray())
+                conflicts = conflicts.asArray().isEmpty() ? null
+                    : conflicts.asArray().get(0);
+            return conflicts == null || !conflicts.isObject() ? null
+                : of(parentId, conflicts.asObject(), cache);
+        } catch (RuntimeException ignored) {
+            // Not the expected JSON
+            return null;
+        }
+    }
+
+    /**
+     * Read a record from the JSON metadata of an item, as a stream
+     *
+     * <p>This is the streaming counterpart of {@link #of(long, JsonObject,
+     * BoxItemCache)}: the reader must be positioned at the start of the
+     * object, and is positioned after its end on return. Fields other than
+     * those in {@link #FIELDS} are skipped.</p>
+     *
+     * <p>If the metadata includes a {@code path_collection}, and a list of
+     * ancestors is given, the folders of the collection are appended to this
+     * list, from the root down, and the last of them is used as the parent of
+     * the item instead of {@code parentId}.</p>
+     *
+     * @param parentId the id of the parent folder
+     * @param reader the reader
+     * @param cache the cache used to intern strings
+     * @param ancestors the list to append ancestors to
+     * @return a new record, or {@code null} if the item is neither a file nor
+     * a folder
+     * @throws IOException read failure, or malformed metadata
+     */
+    @Nullable
+    public static BoxItemRecord read(final long parentId,
+        final BoxJsonReader reader, final BoxItemCache cache,
+        @Nullable final List<BoxItemRecord> ancestors)
+        throws IOException
+    {
+        String typeName = null;
+        String id = null;
+        String name = null;
+        String etag = null;
+        String sequenceId = null;
+        String sha1 = null;
+        String size = null;
+        String createdAt = null;
+        String modifiedAt = null;
+        String version = null;
+        String owner = null;
+        boolean shared = false;
+        long parent = parentId;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    typeName = reader.nextOptionalString();
+                    break;
+                case "id":
+                    id = reader.nextOptionalString();
+                    break;
+                case "name":
+                    name = reader.nextOptionalString();
+                    break;
+                case "etag":
+                    etag = reader.nextOptionalString();
+                    break;
+                case "sequence_id":
+                    sequenceId = reader.nextOptionalString();
+                    break;
+                case "sha1":
+                    sha1 = reader.nextOptionalString();
+                    break;
+                case "size":
+                    size = reader.nextOptionalString();
+                    break;
+                case "created_at":
+                    createdAt = reader.nextOptionalString();
+                    break;
+                case "modified_at":
+                    modifiedAt = reader.nextOptionalString();
+                    break;
+                case "version_number":
+                    version = reader.nextOptionalString();
+                    break;
+                case "owned_by":
+                    owner = readLogin(reader);
+                    break;
+                case "shared_link":
+                    shared = reader.peek() == BoxJsonReader.Token.BEGIN_OBJECT;
+                    reader.skipValue();
+                    break;
+                case "path_collection":
+                    if (ancestors == null) {
+                        reader.skipValue();
+                        break;
+                    }
+                    parent = readAncestors(reader, cache, ancestors);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+
+        final Type type;
+
+        if ("file".equals(typeName))
+            type = Type.FILE;
+        else if ("folder".equals(typeName))
+            type = Type.FOLDER;
+        else
+            return null;
+
+        try {
+            return build(parent, type, id, name, etag, sequenceId, sha1,
+                size == null ? 0L : parseSize(size), createdAt, modifiedAt,
+                version, owner, shared, cache);
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new BoxIOException("invalid item metadata", e);
+        }
+    }
+
+    /**
+     * Return the record of the root folder
+     *
+     * @return the record
+     */
+    public static BoxItemRecord root()
+    {
+        return ROOT;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public long getParentId()
+    {
+        return parentId;
+    }
+
+    @Nonnull
+    public Type getType()
+    {
+        return type;
+    }
+
+    public boolean isFolder()
+    {
+        return type == Type.FOLDER;
+    }
+
+    @Nonnull
+    public String getName()
+    {
+        return name;
+    }
+
+    @Nullable
+    public String getEtag()
+    {
+        return etag;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public long getCreatedAt()
+    {
+        return createdAt;
+    }
+
+    public long getModifiedAt()
+    {
+        return modifiedAt;
+    }
+
+    @Nullable
+    public String getSequenceId()
+    {
+        return sequenceId;
+    }
+
+    /**
+     * Return the SHA-1 hash of the contents of a file
+     *
+     * @return the hash, in lowercase hexadecimal, or {@code null} for folders
+     * or if not fetched
+     */
+    @Nullable
+    public String getSha1()
+    {
+        if (sha1 == null)
+            return null;
+
+        final char[] chars = new char[sha1.length * 2];
+        int i = 0;
+
+        for (final byte b: sha1) {
+            chars[i++] = HEX[(b >> 4) & 0xf];
+            chars[i++] = HEX[b & 0xf];
+        }
+
+        return new String(chars);
+    }
+
+    /*
+     * For snapshots; not copied, so not to be modified
+     */
+    @Nullable
+    byte[] getSha1Bytes()
+    {
+        return sha1;
+    }
+
+    public long getVersionNumber()
+    {
+        return versionNumber;
+    }
+
+    /**
+     * Return the login of the owner of the item
+     *
+     * @return the login, or {@code null} if not fetched
+     */
+    @Nullable
+    public String getOwner()
+    {
+        return owner;
+    }
+
+    /**
+     * Tell whether the item has a shared link
+     *
+     * @return true if it has one
+     */
+    public boolean isShared()
+    {
+        return shared;
+    }
+
+    /**
+     * Return the item this record describes
+     *
+     * <p>No API call is made.</p>
+     *
+     * @param api the API connection
+     * @return the item
+     */
+    @Nonnull
+    public BoxItem toItem(final BoxAPIConnection api)
+    {
+        final String s = Long.toString(id);
+        return type == Type.FOLDER ? new BoxFolder(api, s)
+            : new BoxFile(api, s);
+    }
+
+    @Override
+    public String toString()
+    {
+        return type.name().toLowerCase() + ' ' + id + " (" + name + ')';
+    }
+
+    @SuppressWarnings("MethodWithTooManyParameters")
+    private static BoxItemRecord build(final long parentId, final Type type,
+        final String id, final String name, @Nullable final String etag,
+        @Nullable final String sequenceId, @Nullable final String sha1,
+        final long size, @Nullable final String createdAt,
+        @Nullable final String modifiedAt, @Nullable final String version,
+        @Nullable final String owner, final boolean shared,
+        final BoxItemCache cache)
+    {
+        return new BoxItemRecord(Long.parseLong(id), parentId, type,
+            cache.intern(name), intern(cache, etag),
+            intern(cache, sequenceId), fromHex(sha1), size, millis(createdAt),
+            millis(modifiedAt),
+            version == null ? UNKNOWN_VERSION : Long.parseLong(version),
+            intern(cache, owner), shared);
+    }
+
+    @Nullable
+    private static String readLogin(final BoxJsonReader reader)
+        throws IOException
+    {
+        if (reader.peek() != BoxJsonReader.Token.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        String login = null;
+
+        reader.beginObject();
+        while (reader.hasNext())
+            if ("login".equals(reader.nextName()))
+                login = reader.nextOptionalString();
+            else
+                reader.skipValue();
+        reader.endObject();
+
+        return login;
+    }
+
+    /*
+     * The path collection starts with the root folder; returns the id of the
+     * last folder, which is the parent of the item (the root folder if the
+     * collection is empty)
+     */
+    private static long readAncestors(final BoxJsonReader reader,
+        final BoxItemCache cache, final List<BoxItemRecord> ancestors)
+        throws IOException
+    {
+        long parentId = NO_PARENT;
+        BoxItemRecord record;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"entries".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                record = read(parentId, reader, cache, null);
+                if (record == null)
+                    continue;
+                ancestors.add(record);
+                parentId = record.getId();
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        return parentId == NO_PARENT ? ROOT_ID : parentId;
+    }
+
+    @Nullable
+    private static String string(final JsonObject json, final String name)
+    {
+        final JsonValue value = json.get(name);
+        return value == null || value.isNull() ? null : value.asString();
+    }
+
+    @Nullable
+    private static String intern(final BoxItemCache cache,
+        @Nullable final String s)
+    {
+        return s == null ? null : cache.intern(s);
+    }
+
+    /*
+     * Box sends the size of large folders in exponent notation (1.2E10)
+     */
+    private static long parseSize(final String s)
+    {
+        return Double.valueOf(s).longValue();
+    }
+
+    private static long millis(@Nullable final String date)
+    {
+        if (date == null)
+            return UNKNOWN_DATE;
+
+        try {
+            return DATE_FORMAT.get().parse(date).getTime();
+        } catch (ParseException ignored) {
+            return UNKNOWN_DATE;
+        }
+    }
+
+    /*
+     * Hashes are stored as bytes, which takes less than half the space of a
+     * string
+     */
+    @Nullable
+    private static byte[] fromHex(@Nullable final String hex)
+    {
+        if (hex == null || hex.length() % 2 != 0)
+            return null;
+
+        final byte[] bytes = new byte[hex.length() / 2];
+        int high, low;
+
+        for (int i = 0; i < bytes.length; i++) {
+            high = Character.digit(hex.charAt(2 * i), 16);
+            low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high == -1 || low == -1)
+                return null;
+            bytes[i] = (byte) (high << 4 | low);
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,488 @@
+package com.github.fge.filesystem.box.metadata;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * A streaming reader of JSON documents
+ *
+ * <p>Unlike {@code JsonObject.readFrom()}, which builds the whole document in
+ * memory, this reader hands out one token at a time; values which are not of
+ * interest can be skipped without being built. This matters for listings,
+ * whose pages can hold a thousand entries.</p>
+ *
+ * <p>Documents are checked as they are read: misplaced or missing separators,
+ * invalid literals and escapes, truncated documents and data after the end of
+ * the document all fail with an {@link IOException}.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxJsonReader
+    implements Closeable
+{
+    public enum Token
+    {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT,
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Pattern NUMBER
+        = Pattern.compile("-?(?:0|[1-9][0-9]*)(?:\\.[0-9]+)?"
+            + "(?:[eE][-+]?[0-9]+)?");
+
+    /*
+     * Where the reader is in the innermost container (or the document itself);
+     * updated as tokens are peeked
+     */
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    private final Reader in;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+
+    private int[] stack = new int[16];
+    private int depth = 1;
+
+    private final StringBuilder sb = new StringBuilder();
+    private Token peeked = null;
+    private String value = null;
+
+    public BoxJsonReader(final Reader in)
+    {
+        this.in = in;
+    }
+
+    public BoxJsonReader(final InputStream in)
+    {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Return the type of the next token, without consuming it
+     *
+     * @return the type of the token
+     * @throws IOException read failure, or malformed document
+     */
+    @Nonnull
+    public Token peek()
+        throws IOException
+    {
+        if (peeked == null)
+            peeked = read();
+        return peeked;
+    }
+
+    public void beginObject()
+        throws IOException
+    {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject()
+        throws IOException
+    {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+
+    public void beginArray()
+        throws IOException
+    {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray()
+        throws IOException
+    {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+
+    /**
+     * Tell whether the current object or array has more elements
+     *
+     * @return true if there are more elements
+     * @throws IOException read failure, or malformed document
+     */
+    public boolean hasNext()
+        throws IOException
+    {
+        final Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY
+            && token != Token.END_DOCUMENT;
+    }
+
+    @Nonnull
+    public String nextName()
+        throws IOException
+    {
+        expect(Token.NAME);
+        return value;
+    }
+
+    /**
+     * Return the next value as a string
+     *
+     * <p>Numbers and booleans are returned as they appear in the document.</p>
+     *
+     * @return the value
+     * @throws IOException read failure, or the next token is not a value
+     */
+    @Nonnull
+    public String nextString()
+        throws IOException
+    {
+        final Token token = peek();
+
+        if (token != Token.STRING && token != Token.NUMBER
+            && token != Token.BOOLEAN)
+            throw new IOException("expected a value but found " + token);
+
+        peeked = null;
+        return value;
+    }
+
+    /**
+     * Return the next value as a string, or {@code null} if it is null
+     *
+     * @return the value
+     * @throws IOException read failure, or the next token is not a value
+     */
+    @Nullable
+    public String nextOptionalString()
+        throws IOException
+    {
+        if (peek() != Token.NULL)
+            return nextString();
+
+        peeked = null;
+        return null;
+    }
+
+    /**
+     * Return the next value as a long
+     *
+     * <p>Strings are accepted, since Box ids are strings.</p>
+     *
+     * @return the value
+     * @throws IOException read failure, or the next token is not a number
+     */
+    public long nextLong()
+        throws IOException
+    {
+        final String s = nextString();
+
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            throw new IOException("not a long: " + s, e);
+        }
+    }
+
+    /**
+     * Skip the next value, along with all its contents if it is an object or
+     * an array
+     *
+     * @throws IOException read failure, or malformed document
+     */
+    public void skipValue()
+        throws IOException
+    {
+        final Token token = peek();
+
+        if (token == Token.NAME || token == Token.END_OBJECT
+            || token == Token.END_ARRAY)
+            throw new IOException("expected a value but found " + token);
+
+        int level = 0;
+
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    level++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    level++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    level--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    level--;
+                    break;
+                case NAME:
+                    nextName();
+                    break;
+                case NULL:
+                    nextOptionalString();
+                    break;
+                case END_DOCUMENT:
+                    throw new IOException("unexpected end of document");
+                default:
+                    nextString();
+            }
+        } while (level > 0);
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        in.close();
+    }
+
+    private void expect(final Token token)
+        throws IOException
+    {
+        final Token actual = peek();
+
+        if (actual != token)
+            throw new IOException("expected " + token + " but found "
+                + actual);
+        peeked = null;
+    }
+
+    private void push(final int state)
+    {
+        if (depth == stack.length)
+            stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth++] = state;
+    }
+
+    private Token read()
+        throws IOException
+    {
+        final int state = stack[depth - 1];
+        int c = nextSignificant();
+
+        switch (state) {
+            case EMPTY_DOCUMENT:
+                stack[depth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            case NONEMPTY_DOCUMENT:
+                if (c == -1)
+                    return Token.END_DOCUMENT;
+                throw unexpected(c, "end of document");
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                if (c == '}')
+                    return Token.END_OBJECT;
+                if (state == NONEMPTY_OBJECT) {
+                    if (c != ',')
+                        throw unexpected(c, "',' or '}'");
+                    c = nextSignificant();
+                }
+                if (c != '"')
+                    throw unexpected(c, "a name");
+                stack[depth - 1] = DANGLING_NAME;
+                value = readString();
+                return Token.NAME;
+            case DANGLING_NAME:
+                if (c != ':')
+                    throw unexpected(c, "':'");
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                c = nextSignificant();
+                break;
+            case EMPTY_ARRAY:
+                if (c == ']')
+                    return Token.END_ARRAY;
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                break;
+            default:
+                if (c == ']')
+                    return Token.END_ARRAY;
+                if (c != ',')
+                    throw unexpected(c, "',' or ']'");
+                c = nextSignificant();
+        }
+
+        return readValue(c);
+    }
+
+    private Token readValue(final int c)
+        throws IOException
+    {
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                value = readString();
+                return Token.STRING;
+            case -1:
+            case '}':
+            case ']':
+            case ',':
+            case ':':
+                throw unexpected(c, "a value");
+            default:
+                value = readLiteral((char) c);
+        }
+
+        switch (value) {
+            case "null":
+                return Token.NULL;
+            case "true":
+            case "false":
+                return Token.BOOLEAN;
+            default:
+                if (!NUMBER.matcher(value).matches())
+                    throw new IOException("unexpected literal: " + value);
+                return Token.NUMBER;
+        }
+    }
+
+    private static IOException unexpected(final int c, final String expected)
+    {
+        return new IOException(c == -1 ? "unexpected end of document"
+            : "expected " + expected + " but found '" + (char) c + '\'');
+    }
+
+    private int nextSignificant()
+        throws IOException
+    {
+        int c;
+
+        while ((c = nextChar()) != -1)
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                return c;
+
+        return -1;
+    }
+
+    private String readString()
+        throws IOException
+    {
+        sb.setLength(0);
+        int c;
+
+        while (true) {
+            c = nextChar();
+            switch (c) {
+                case -1:
+                    throw new IOException("unterminated string");
+                case '"':
+                    return sb.toString();
+                case '\\':
+                    sb.append(readEscape());
+                    break;
+                default:
+                    if (c < 0x20)
+                        throw new IOException("unescaped control character"
+                            + " in string");
+                    sb.append((char) c);
+            }
+        }
+    }
+
+    private char readEscape()
+        throws IOException
+    {
+        final int c = nextChar();
+
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'u':
+                int code = 0;
+                int digit;
+                for (int i = 0; i < 4; i++) {
+                    digit = Character.digit(nextChar(), 16);
+                    if (digit == -1)
+                        throw new IOException("invalid unicode escape");
+                    code = code << 4 | digit;
+                }
+                return (char) code;
+            case -1:
+                throw new IOException("unterminated string");
+            default:
+                throw new IOException("invalid escape: \\" + (char) c);
+        }
+    }
+
+    private String readLiteral(final char first)
+        throws IOException
+    {
+        sb.setLength(0);
+        sb.append(first);
+
+        char c;
+
+        while (pos < limit || fill()) {
+            c = buffer[pos];
+            if (c == ',' || c == ':' || c == '}' || c == ']' || c == '{'
+                || c == '[' || c == '"' || c == ' ' || c == '\t'
+                || c == '\n' || c == '\r')
+                break;
+            sb.append(c);
+            pos++;
+        }
+
+        return sb.toString();
+    }
+
+    private int nextChar()
+        throws IOException
+    {
+        if (pos == limit && !fill())
+            return -1;
+        return buffer[pos++];
+    }
+
+    private boolean fill()
+        throws IOException
+    {
+        final int n = in.read(buffer, 0, buffer.length);
+
+        if (n <= 0)
+            return false;
+
+        pos = 0;
+        limit = n;
+        return true;
+    }
+}
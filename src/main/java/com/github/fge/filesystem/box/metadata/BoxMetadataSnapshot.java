@@ -0,0 +1,470 @@
+package com.github.fge.filesystem.box.metadata;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIRequest;
+import com.box.sdk.BoxJSONResponse;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConnectionLease;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent snapshot of an item cache
+ *
+ * <p>The snapshot records the items and complete directories of a {@link
+ * BoxItemCache}, along with a position in the Box event stream taken before
+ * these items were fetched. It is saved periodically, and when closed.</p>
+ *
+ * <p>When started, the snapshot is loaded, then caught up with the events
+ * which happened since it was saved: changed items are dropped, and so is the
+ * completeness of the folders they were, or now are, in. The remaining items
+ * then populate the cache. If the snapshot cannot be read, was saved by
+ * another Box user, or cannot be caught up with (too many events happened, or
+ * they cannot be parsed), the cache simply starts empty.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxMetadataSnapshot
+    implements Closeable
+{
+    public static final long DEFAULT_SAVE_INTERVAL = 5L;
+    public static final TimeUnit DEFAULT_SAVE_INTERVAL_UNIT = TimeUnit.MINUTES;
+
+    private static final int MAGIC = 0x426f784d;
+    private static final int VERSION = 4;
+
+    private static final String CURRENT_USER = "users/me?fields=id";
+    private static final String CURRENT_POSITION
+        = "events?stream_type=changes&stream_position=now";
+    private static final String EVENTS
+        = "events?stream_type=changes&stream_position=%s&limit=%d";
+    private static final int EVENTS_LIMIT = 500;
+    private static final int MAX_EVENTS = 20000;
+
+    private final Path file;
+    private final BoxConnectionLease lease;
+    private final BoxItemCache cache;
+    private final long saveInterval;
+    private final TimeUnit saveIntervalUnit;
+
+    private final ScheduledExecutorService scheduler
+        = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread thread = new Thread(r, "box-metadata-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /*
+     * The id of the user the snapshot is about, obtained when started
+     */
+    private String user;
+
+    /*
+     * The stream position to save along with the cache, and the value of
+     * System.nanoTime() when it was obtained: only items fetched after that
+     * are saved
+     */
+    private String position;
+    private long positionAt;
+
+    public BoxMetadataSnapshot(final Path file, final BoxConnectionLease lease,
+        final BoxItemCache cache)
+    {
+        this(file, lease, cache, DEFAULT_SAVE_INTERVAL,
+            DEFAULT_SAVE_INTERVAL_UNIT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param file the snapshot file
+     * @param lease the API connection lease
+     * @param cache the cache to load and save
+     * @param saveInterval the interval between saves
+     * @param unit the time unit of the interval
+     */
+    public BoxMetadataSnapshot(final Path file, final BoxConnectionLease lease,
+        final BoxItemCache cache, final long saveInterval, final TimeUnit unit)
+    {
+        if (saveInterval <= 0L)
+            throw new IllegalArgumentException("save interval must be strictly "
+                + "positive");
+        this.file = file;
+        this.lease = lease;
+        this.cache = cache;
+        this.saveInterval = saveInterval;
+        saveIntervalUnit = unit;
+    }
+
+    /**
+     * Load the snapshot into the cache, if possible, and start saving it
+     * periodically
+     *
+     * @return true if the cache was populated from the snapshot
+     * @throws BoxIOException failed to get the current user or stream
+     * position
+     */
+    public boolean start()
+        throws BoxIOException
+    {
+        final boolean loaded = load();
+
+        scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    save();
+                } catch (IOException ignored) {
+                    // will try again later, and at close
+                }
+            }
+        }, saveInterval, saveInterval, saveIntervalUnit);
+
+        return loaded;
+    }
+
+    /**
+     * Save the snapshot
+     *
+     * @throws IOException failed to get the stream position, or to write the
+     * file
+     */
+    public synchronized void save()
+        throws IOException
+    {
+        final long nextAt = System.nanoTime();
+        final String next = currentPosition();
+
+        if (position != null)
+            write(position, cache.getEntries(positionAt),
+                cache.getCompleteDirectories(positionAt));
+
+        position = next;
+        positionAt = nextAt;
+    }
+
+    /**
+     * Stop periodic saves, and save the snapshot a last time
+     *
+     * @throws IOException failed to save the snapshot
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        scheduler.shutdownNow();
+        save();
+    }
+
+    private synchronized boolean load()
+        throws BoxIOException
+    {
+        final long loadAt = System.nanoTime();
+        final Map<Long, BoxItemRecord> records = new HashMap<>();
+        final Set<Long> dirs = new HashSet<>();
+        String current;
+
+        user = get(CURRENT_USER, false).get("id").asString();
+
+        /*
+         * An unreadable snapshot, or one which cannot be caught up with (the
+         * saved position may be too old, or the events not what we expect),
+         * means a cold start
+         */
+        try {
+            current = read(records, dirs);
+            if (current != null)
+                current = catchUp(current, records, dirs);
+        } catch (IOException | RuntimeException ignored) {
+            current = null;
+        }
+
+        positionAt = loadAt;
+
+        if (current == null) {
+            position = currentPosition();
+            return false;
+        }
+
+        cache.load(records.values(), dirs);
+        position = current;
+        return true;
+    }
+
+    /*
+     * Return the saved stream position, or null if there is no snapshot for
+     * the current user
+     */
+    @Nullable
+    private String read(final Map<Long, BoxItemRecord> records,
+        final Set<Long> dirs)
+        throws IOException
+    {
+        try (
+            final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)));
+        ) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            if (!user.equals(in.readUTF()))
+                return null;
+
+            final String saved = in.readUTF();
+            final int nrRecords = in.readInt();
+            final BoxItemRecord.Type[] types = BoxItemRecord.Type.values();
+            BoxItemRecord record;
+
+            for (int i = 0; i < nrRecords; i++) {
+                record = new BoxItemRecord(in.readLong(), in.readLong(),
+                    types[in.readByte()], cache.intern(in.readUTF()),
+                    readString(in), readString(in), readBytes(in),
+                    in.readLong(), in.readLong(), in.readLong(),
+                    in.readLong(), readString(in), in.readBoolean());
+                records.put(record.getId(), record);
+            }
+
+            final int nrDirs = in.readInt();
+
+            for (int i = 0; i < nrDirs; i++)
+                dirs.add(in.readLong());
+
+            return saved;
+        } catch (NoSuchFileException ignored) {
+            return null;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("corrupted snapshot", e);
+        }
+    }
+
+    private void write(final String saved, final List<BoxItemRecord> records,
+        final Set<Long> dirs)
+        throws IOException
+    {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        byte[] sha1;
+
+        try (
+            final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)));
+        ) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(user);
+            out.writeUTF(saved);
+            out.writeInt(records.size());
+
+            for (final BoxItemRecord record: records) {
+                out.writeLong(record.getId());
+                out.writeLong(record.getParentId());
+                out.writeByte(record.getType().ordinal());
+                out.writeUTF(record.getName());
+                writeString(out, record.getEtag());
+                writeString(out, record.getSequenceId());
+                sha1 = record.getSha1Bytes();
+                out.writeByte(sha1 == null ? 0 : sha1.length);
+                if (sha1 != null)
+                    out.write(sha1);
+                out.writeLong(record.getSize());
+                out.writeLong(record.getCreatedAt());
+                out.writeLong(record.getModifiedAt());
+                out.writeLong(record.getVersionNumber());
+                writeString(out, record.getOwner());
+                out.writeBoolean(record.isShared());
+            }
+
+            out.writeInt(dirs.size());
+            for (final long dir: dirs)
+                out.writeLong(dir);
+        }
+
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /*
+     * Drop what changed since the snapshot was saved; return the position
+     * reached, or null if too many events happened.
+     *
+     * Since records refer to their parent by id, entries below a moved or
+     * renamed folder remain valid; entries below a deleted folder can no
+     * longer be reached.
+     *
+     * Events whose source is not an item with an id are skipped; a chunk
+     * which cannot be parsed makes the whole catch-up fail.
+     */
+    @Nullable
+    private String catchUp(final String saved,
+        final Map<Long, BoxItemRecord> records, final Set<Long> dirs)
+        throws BoxIOException
+    {
+        String current = saved;
+        int total = 0;
+        JsonObject chunk;
+        JsonValue value;
+        JsonObject source;
+        Long id;
+        BoxItemRecord record;
+
+        while (true) {
+            chunk = events(current);
+            current = positionOf(chunk);
+
+            if (chunk.get("chunk_size").asInt() == 0)
+                return current;
+
+            for (final JsonValue event: chunk.get("entries").asArray()) {
+                if (++total > MAX_EVENTS)
+                    return null;
+                if (!event.isObject())
+                    continue;
+                value = event.asObject().get("source");
+                if (value == null || !value.isObject())
+                    continue;
+                source = value.asObject();
+                id = idOf(source);
+                if (id == null)
+                    continue;
+
+                record = records.remove(id);
+                if (record != null)
+                    dirs.remove(record.getParentId());
+
+                value = source.get("parent");
+                if (value == null || !value.isObject())
+                    continue;
+                id = idOf(value.asObject());
+                if (id != null)
+                    dirs.remove(id);
+            }
+        }
+    }
+
+    private String currentPosition()
+        throws BoxIOException
+    {
+        return positionOf(get(CURRENT_POSITION, false));
+    }
+
+    private JsonObject events(final String from)
+        throws BoxIOException
+    {
+        return get(String.format(EVENTS, from, EVENTS_LIMIT), true);
+    }
+
+    private JsonObject get(final String request, final boolean bulk)
+        throws BoxIOException
+    {
+        final BoxAPIConnection api = lease.getConnection();
+        final URL url;
+
+        try {
+            url = new URL(api.getBaseURL() + request);
+        } catch (MalformedURLException e) {
+            throw new BoxIOException("invalid API URL", e);
+        }
+
+        final BoxAPICall<JsonObject> call = new BoxAPICall<JsonObject>()
+        {
+            @Override
+            public JsonObject call()
+            {
+                final BoxAPIRequest request
+                    = new BoxAPIRequest(api, url, "GET");
+                final BoxJSONResponse response
+                    = (BoxJSONResponse) request.send();
+                return JsonObject.readFrom(response.getJSON());
+            }
+        };
+
+        return bulk ? lease.executeBulk(call) : lease.execute(call);
+    }
+
+    /*
+     * Stream positions are numbers, but may be larger than what a long can
+     * hold; keep them as strings
+     */
+    private static String positionOf(final JsonObject chunk)
+    {
+        final JsonValue value = chunk.get("next_stream_position");
+        return value.isString() ? value.asString() : value.toString();
+    }
+
+    @Nullable
+    private String readString(final DataInputStream in)
+        throws IOException
+    {
+        return in.readBoolean() ? cache.intern(in.readUTF()) : null;
+    }
+
+    @Nullable
+    private static byte[] readBytes(final DataInputStream in)
+        throws IOException
+    {
+        final int length = in.readUnsignedByte();
+
+        if (length == 0)
+            return null;
+
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeString(final DataOutputStream out,
+        @Nullable final String s)
+        throws IOException
+    {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    /*
+     * The id of an item, or null if the object has no numeric string id
+     */
+    @Nullable
+    private static Long idOf(final JsonObject object)
+    {
+        final JsonValue value = object.get("id");
+
+        if (value == null || !value.isString())
+            return null;
+
+        try {
+            return Long.valueOf(value.asString());
+        } catch (NumberFormatException ignored) {
+            return null;
+        }
+    }
+}
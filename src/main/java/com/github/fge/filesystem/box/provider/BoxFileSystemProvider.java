@@ -1,12 +1,52 @@
 package com.github.fge.filesystem.box.provider;
 
+import com.github.fge.filesystem.box.driver.BoxFileSystemDriver;
 import com.github.fge.filesystem.provider.FileSystemProviderBase;
 
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
 public final class BoxFileSystemProvider
     extends FileSystemProviderBase
 {
+    private final BoxFileSystemRepository repository;
+
     public BoxFileSystemProvider()
     {
-        super(new BoxFileSystemRepository());
+        this(new BoxFileSystemRepository());
+    }
+
+    private BoxFileSystemProvider(final BoxFileSystemRepository repository)
+    {
+        super(repository);
+        this.repository = repository;
+    }
+
+    /**
+     * Open a read only asynchronous channel to a file
+     *
+     * @see BoxFileSystemDriver#newAsynchronousFileChannel(Path, Set,
+     * ExecutorService)
+     */
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel(final Path path,
+        final Set<? extends OpenOption> options,
+        final ExecutorService executor, final FileAttribute<?>... attrs)
+        throws IOException
+    {
+        return getDriver(path).newAsynchronousFileChannel(path, options,
+            executor);
+    }
+
+    @Nonnull
+    BoxFileSystemDriver getDriver(final Path path)
+    {
+        return (BoxFileSystemDriver) repository.getDriver(path);
     }
 }
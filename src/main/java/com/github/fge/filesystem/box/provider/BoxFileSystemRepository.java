@@ -1,21 +1,30 @@
 package com.github.fge.filesystem.box.provider;
 
-import com.box.sdk.BoxAPIConnection;
-import com.box.sdk.BoxAPIException;
-import com.box.sdk.BoxFolder;
+import com.github.fge.filesystem.box.connection.BoxConnectionLease;
+import com.github.fge.filesystem.box.connection.BoxConnectionPool;
+import com.github.fge.filesystem.box.connection.BoxConnectionShards;
+import com.github.fge.filesystem.box.credentials.BoxCredentialManager;
 import com.github.fge.filesystem.box.driver.BoxAPIWrapper;
 import com.github.fge.filesystem.box.driver.BoxFileSystemDriver;
 import com.github.fge.filesystem.box.driver.DefaultBoxAPIWrapper;
-import com.github.fge.filesystem.box.exceptions.BoxIOException;
 import com.github.fge.filesystem.box.filestore.BoxFileStore;
+import com.github.fge.filesystem.box.metadata.BoxItemCache;
+import com.github.fge.filesystem.box.metadata.BoxMetadataSnapshot;
+import com.github.fge.filesystem.box.spool.BoxWriteBehind;
+import com.github.fge.filesystem.box.watch.BoxEventPoller;
 import com.github.fge.filesystem.driver.FileSystemDriver;
 import com.github.fge.filesystem.provider.FileSystemRepositoryBase;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.io.IOException;
 import java.net.URI;
-import java.nio.file.FileStore;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 @ParametersAreNonnullByDefault
@@ -23,6 +32,12 @@ public final class BoxFileSystemRepository
     extends FileSystemRepositoryBase
 {
     private static final String ACCESS_TOKEN = "accessToken";
+    private static final String CREDENTIAL_MANAGER = "credentialManager";
+    private static final String CONNECTION_POOL = "connectionPool";
+    private static final String SPOOL_DIRECTORY = "spoolDirectory";
+    private static final String SPOOL_CONCURRENCY = "spoolConcurrency";
+    private static final String METADATA_SNAPSHOT = "metadataSnapshot";
+    private static final String SHARDS = "shards";
 
     public BoxFileSystemRepository()
     {
@@ -35,23 +50,126 @@ public final class BoxFileSystemRepository
         final Map<String, ?> env)
         throws IOException
     {
-        final String accessToken = (String) env.get(ACCESS_TOKEN);
+        /*
+         * Check all settings before acquiring any connection
+         */
+        final String accessToken = get(env, ACCESS_TOKEN, String.class);
+        final BoxCredentialManager manager
+            = get(env, CREDENTIAL_MANAGER, BoxCredentialManager.class);
 
-        if (accessToken == null)
+        if (accessToken == null && manager == null)
             throw new IllegalArgumentException("access token not found");
 
-        final BoxAPIConnection api = new BoxAPIConnection(accessToken);
-        final BoxAPIWrapper wrapper = new DefaultBoxAPIWrapper(api);
-        final FileStore store;
+        /*
+         * Filesystems may share a pool, and therefore their API connection and
+         * kept-alive HTTP connections; if no pool is given, use a private one.
+         */
+        final BoxConnectionPool given
+            = get(env, CONNECTION_POOL, BoxConnectionPool.class);
+        final BoxConnectionPool pool
+            = given != null ? given : new BoxConnectionPool();
+        final List<Object> identities = getShards(env);
+        final Path snapshotFile = getPath(env, METADATA_SNAPSHOT);
+        final Path spoolDir = getPath(env, SPOOL_DIRECTORY);
+        final Integer concurrency = get(env, SPOOL_CONCURRENCY, Integer.class);
+
+        /*
+         * A credential manager, if any, takes precedence over a static token
+         */
+        final List<BoxConnectionLease> leases = new ArrayList<>();
+        BoxConnectionLease lease = null;
+        BoxAPIWrapper wrapper = null;
+        BoxWriteBehind writeBehind = null;
 
         try {
-            final BoxFolder root = BoxFolder.getRootFolder(api);
-            store = new BoxFileStore(root.getInfo(),
+            lease = manager != null
+                ? pool.acquire(manager) : pool.acquire(accessToken);
+            leases.add(lease);
+            for (final Object identity: identities)
+                leases.add(identity instanceof String
+                    ? pool.acquire((String) identity)
+                    : pool.acquire((BoxCredentialManager) identity));
+
+            final BoxItemCache cache = new BoxItemCache();
+            final BoxMetadataSnapshot snapshot = snapshotFile == null ? null
+                : new BoxMetadataSnapshot(snapshotFile, lease, cache);
+
+            wrapper = new DefaultBoxAPIWrapper(new BoxConnectionShards(leases),
+                cache, snapshot);
+            if (snapshot != null)
+                snapshot.start();
+
+            final BoxFileStore store = new BoxFileStore(wrapper,
                 factoryProvider.getAttributesFactory());
-        } catch (BoxAPIException e) {
-            throw BoxIOException.wrap(e);
+
+            if (spoolDir != null)
+                writeBehind = concurrency == null
+                    ? new BoxWriteBehind(spoolDir, lease)
+                    : new BoxWriteBehind(spoolDir, lease, concurrency);
+            return new BoxFileSystemDriver(store, factoryProvider, wrapper,
+                writeBehind, new BoxEventPoller(lease, wrapper));
+        } catch (IOException | RuntimeException e) {
+            if (writeBehind != null)
+                writeBehind.close();
+            if (wrapper != null)
+                wrapper.close();
+            else
+                for (final BoxConnectionLease acquired: leases)
+                    acquired.close();
+            throw e;
+        }
+    }
+
+    @Nullable
+    private static <T> T get(final Map<String, ?> env, final String key,
+        final Class<T> type)
+    {
+        final Object o = env.get(key);
+
+        if (o == null || type.isInstance(o))
+            return type.cast(o);
+        throw new IllegalArgumentException(key + " must be an instance of "
+            + type.getName());
+    }
+
+    /*
+     * Path settings may be given as a Path or as a String
+     */
+    @Nullable
+    private static Path getPath(final Map<String, ?> env, final String key)
+    {
+        final Object o = env.get(key);
+
+        if (o == null || o instanceof Path)
+            return (Path) o;
+        if (o instanceof String)
+            return Paths.get((String) o);
+        throw new IllegalArgumentException(key + " must be a Path or a "
+            + "String");
+    }
+
+    /*
+     * Additional identities, each given as an access token or a credential
+     * manager; the identity given by the main credentials is the primary one
+     */
+    private static List<Object> getShards(final Map<String, ?> env)
+    {
+        final Object o = env.get(SHARDS);
+        final List<Object> ret = new ArrayList<>();
+
+        if (o == null)
+            return ret;
+        if (!(o instanceof Collection))
+            throw new IllegalArgumentException("shards must be a "
+                + "collection of access tokens or credential managers");
+        for (final Object credentials: (Collection<?>) o) {
+            if (!(credentials instanceof String
+                || credentials instanceof BoxCredentialManager))
+                throw new IllegalArgumentException("shards must be "
+                    + "access tokens or credential managers");
+            ret.add(credentials);
         }
 
-        return new BoxFileSystemDriver(store, factoryProvider, wrapper);
+        return ret;
     }
 }
@@ -0,0 +1,92 @@
+package com.github.fge.filesystem.box.provider;
+
+import com.github.fge.filesystem.box.driver.BoxFileSystemDriver;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.nio.file.CopyOption;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Access to the Box specific features of a Box filesystem
+ */
+@ParametersAreNonnullByDefault
+public final class BoxFileSystems
+{
+    private BoxFileSystems()
+    {
+        throw new Error("nice try!");
+    }
+
+    /**
+     * Get the driver of the Box filesystem a path belongs to
+     *
+     * @param path the path
+     * @return the driver
+     * @throws ProviderMismatchException path is not a Box path
+     */
+    @Nonnull
+    public static BoxFileSystemDriver getDriver(final Path path)
+    {
+        final FileSystemProvider provider = path.getFileSystem().provider();
+
+        if (!(provider instanceof BoxFileSystemProvider))
+            throw new ProviderMismatchException();
+
+        return ((BoxFileSystemProvider) provider).getDriver(path);
+    }
+
+    /**
+     * Copy a file between a Box filesystem and the default filesystem
+     *
+     * <p>{@link Files#copy(Path, Path, CopyOption...)} cannot be intercepted
+     * when the source and target belong to different providers: it falls back
+     * to a generic stream copy. This method instead uses {@link
+     * BoxFileSystemDriver#downloadTo(Path, Path, Set)} or {@link
+     * BoxFileSystemDriver#uploadFrom(Path, Path, Set)}, which transfer
+     * directly from or to a file channel.</p>
+     *
+     * <p>Any other combination of paths is delegated to {@link
+     * Files#copy(Path, Path, CopyOption...)}.</p>
+     *
+     * @param source the source path
+     * @param target the target path
+     * @param options the copy options
+     * @throws IOException filesystem level error, or a plain I/O error
+     */
+    public static void copy(final Path source, final Path target,
+        final CopyOption... options)
+        throws IOException
+    {
+        final boolean boxSource = isBoxPath(source);
+        final boolean boxTarget = isBoxPath(target);
+        final Set<CopyOption> set = new HashSet<>();
+        Collections.addAll(set, options);
+
+        if (boxSource && isDefaultPath(target))
+            getDriver(source).downloadTo(source, target, set);
+        else if (boxTarget && isDefaultPath(source))
+            getDriver(target).uploadFrom(source, target, set);
+        else
+            Files.copy(source, target, options);
+    }
+
+    private static boolean isBoxPath(final Path path)
+    {
+        return path.getFileSystem().provider()
+            instanceof BoxFileSystemProvider;
+    }
+
+    private static boolean isDefaultPath(final Path path)
+    {
+        return path.getFileSystem() == FileSystems.getDefault();
+    }
+}
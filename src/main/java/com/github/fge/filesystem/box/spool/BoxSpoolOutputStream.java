@@ -0,0 +1,99 @@
+package com.github.fge.filesystem.box.spool;
+
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Output stream writing to a spool file
+ *
+ * <p>Writes go to the local disk only. On close, the data is synced to disk,
+ * the spool entry is committed and its upload is scheduled; close does not
+ * wait for the upload.</p>
+ *
+ * @see BoxWriteBehind
+ */
+@ParametersAreNonnullByDefault
+public final class BoxSpoolOutputStream
+    extends OutputStream
+{
+    private static final int BUFFER_SIZE = 65536;
+
+    private final BoxWriteBehind writeBehind;
+    private final SpoolEntry entry;
+    private final FileChannel channel;
+    private final OutputStream out;
+
+    private boolean closed = false;
+
+    BoxSpoolOutputStream(final BoxWriteBehind writeBehind,
+        final SpoolEntry entry)
+        throws BoxIOException
+    {
+        this.writeBehind = writeBehind;
+        this.entry = entry;
+
+        try {
+            channel = FileChannel.open(entry.getData(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new BoxIOException("failed to create spool file", e);
+        }
+
+        out = new BufferedOutputStream(Channels.newOutputStream(channel),
+            BUFFER_SIZE);
+    }
+
+    @Override
+    public void write(final int b)
+        throws IOException
+    {
+        out.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+        throws IOException
+    {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        boolean success = false;
+
+        try {
+            out.flush();
+            channel.force(true);
+            channel.close();
+            entry.commit();
+            success = true;
+        } finally {
+            if (!success) {
+                channel.close();
+                entry.delete();
+            }
+        }
+
+        writeBehind.schedule(entry);
+    }
+}
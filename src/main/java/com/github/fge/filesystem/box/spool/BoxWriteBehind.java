@@ -0,0 +1,651 @@
+package com.github.fge.filesystem.box.spool;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.box.sdk.BoxFile;
+import com.box.sdk.BoxFolder;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConnectionLease;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import com.github.fge.filesystem.box.io.BoxLocalTransfers;
+import com.github.fge.filesystem.box.io.BoxUploadListener;
+import com.github.fge.filesystem.box.metadata.BoxItemCache;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind uploads through a local spool directory
+ *
+ * <p>Streams opened using {@link #open(String, String, String, String,
+ * BoxUploadListener)} write to a
+ * spool file at disk speed; closing them returns once the data is durable on
+ * the local disk. Spooled files are then uploaded in the background, by a
+ * bounded number of threads; failed uploads are retried with an exponential
+ * backoff.</p>
+ *
+ * <p>When several spooled files target the same file, they are uploaded in
+ * the order in which they were closed; a spooled file which has been
+ * superseded by a more recent one before its upload started is discarded.
+ * </p>
+ *
+ * <p>A spooled file replacing an existing file is uploaded as a new version
+ * only if the file has not changed since the stream was opened. If it has,
+ * the upload fails with a conflict, and the spooled file is set aside in the
+ * spool directory (its descriptor gets the {@code .conflict} extension
+ * instead of {@code .properties}); it is not uploaded again.</p>
+ *
+ * <p>Spooled files which could not be uploaded, either because all attempts
+ * failed or because the process stopped before their upload, are kept in the
+ * spool directory; they are uploaded the next time a write-behind instance
+ * is started on this directory.</p>
+ *
+ * <p>Use {@link #flush()} to wait for all pending uploads.</p>
+ *
+ * <p>A spool directory must not be used by more than one instance at a
+ * time.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxWriteBehind
+    implements Closeable
+{
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_BACKOFF = 1L;
+    private static final long MAX_BACKOFF = 60L;
+    private static final TimeUnit BACKOFF_UNIT = TimeUnit.SECONDS;
+
+    /*
+     * How long to wait before trying again to upload an entry whose target
+     * is being uploaded to
+     */
+    private static final long BUSY_DELAY = 1L;
+
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_PRECONDITION_FAILED = 412;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_SERVER_ERROR = 500;
+
+    private final Path spoolDir;
+    private final SpoolUploader uploader;
+    private final ScheduledThreadPoolExecutor executor;
+
+    /*
+     * Only used to intern the strings of conflicting records
+     */
+    private final BoxItemCache names = new BoxItemCache();
+
+    private final ConcurrentMap<String, SpoolEntry> latest
+        = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /*
+     * Targets being uploaded to; guarded by itself
+     */
+    private final Set<String> uploading = new HashSet<>();
+
+    private final Object pendingLock = new Object();
+    private int pending = 0;
+    private final List<IOException> failures = new ArrayList<>();
+
+    private final AtomicLong uploadedCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong conflictCount = new AtomicLong();
+    private final AtomicLong recoveredCount = new AtomicLong();
+
+    private volatile BoxUploadListener listener = BoxUploadListener.NONE;
+
+    /**
+     * Build a write-behind instance with the default concurrency
+     *
+     * @param spoolDir the spool directory; created if it does not exist
+     * @param lease the API connection to use
+     * @throws IOException failed to create the spool directory
+     */
+    public BoxWriteBehind(final Path spoolDir, final BoxConnectionLease lease)
+        throws IOException
+    {
+        this(spoolDir, lease, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Build a write-behind instance
+     *
+     * <p>Uploads only start once {@link #start(BoxUploadListener)} has been
+     * called.</p>
+     *
+     * @param spoolDir the spool directory; created if it does not exist
+     * @param lease the API connection to use
+     * @param concurrency the maximum number of concurrent uploads
+     * @throws IOException failed to create the spool directory
+     */
+    public BoxWriteBehind(final Path spoolDir, final BoxConnectionLease lease,
+        final int concurrency)
+        throws IOException
+    {
+        this(spoolDir, new LeaseUploader(lease), concurrency);
+    }
+
+    BoxWriteBehind(final Path spoolDir, final SpoolUploader uploader,
+        final int concurrency)
+        throws IOException
+    {
+        if (concurrency <= 0)
+            throw new IllegalArgumentException("concurrency must be strictly "
+                + "positive");
+        this.spoolDir = Files.createDirectories(spoolDir);
+        this.uploader = Objects.requireNonNull(uploader);
+
+        executor = new ScheduledThreadPoolExecutor(concurrency,
+            new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread thread = new Thread(r, "box-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Start uploading; spooled files left over from a previous run are
+     * scheduled for upload first
+     *
+     * @param listener the listener to notify of completed uploads
+     * @throws IOException failed to scan the spool directory
+     */
+    public void start(final BoxUploadListener listener)
+        throws IOException
+    {
+        this.listener = Objects.requireNonNull(listener);
+
+        final List<Path> descriptors = new ArrayList<>();
+
+        try (
+            final DirectoryStream<Path> stream
+                = Files.newDirectoryStream(spoolDir);
+        ) {
+            for (final Path path: stream)
+                if (path.toString().endsWith(SpoolEntry.DESCRIPTOR_SUFFIX))
+                    descriptors.add(path);
+                else if (!path.toString().endsWith(SpoolEntry.CONFLICT_SUFFIX)
+                    && !hasDescriptor(path))
+                    Files.deleteIfExists(path);
+        }
+
+        /*
+         * Entry names start with their creation time: sorting them replays
+         * writes in their original order
+         */
+        Collections.sort(descriptors);
+
+        for (final Path descriptor: descriptors) {
+            final SpoolEntry entry;
+            try {
+                entry = SpoolEntry.read(descriptor);
+            } catch (IOException ignored) {
+                // Leave it alone; it is not ours to delete
+                continue;
+            }
+            recoveredCount.incrementAndGet();
+            schedule(entry);
+        }
+    }
+
+    /**
+     * Open a stream to a spool file
+     *
+     * @param parentId the id of the directory to upload to
+     * @param name the name of the file
+     * @param fileId the id of the existing file, or {@code null} if the file
+     * does not exist yet
+     * @param etag the etag of the existing file, if any; the file is only
+     * replaced if it still has this etag
+     * @param listener the listener to notify once the upload completes, in
+     * addition to the one given to {@link #start(BoxUploadListener)}; it is
+     * not notified if the process restarts before the upload
+     * @return an output stream
+     * @throws BoxIOException failed to create the spool file
+     */
+    @Nonnull
+    public BoxSpoolOutputStream open(final String parentId, final String name,
+        @Nullable final String fileId, @Nullable final String etag,
+        final BoxUploadListener listener)
+        throws BoxIOException
+    {
+        if (executor.isShutdown())
+            throw new IllegalStateException("write-behind is closed");
+
+        final String id = String.format("%013d-%06d-%s",
+            System.currentTimeMillis(), sequence.incrementAndGet() % 1000000L,
+            UUID.randomUUID());
+        final SpoolEntry entry = new SpoolEntry(spoolDir, id,
+            Objects.requireNonNull(parentId), Objects.requireNonNull(name),
+            fileId, etag);
+        entry.setListener(Objects.requireNonNull(listener));
+        return new BoxSpoolOutputStream(this, entry);
+    }
+
+    /**
+     * Wait until all pending uploads have completed
+     *
+     * @throws BoxIOException one or more uploads have failed since the last
+     * call to this method (the failures are attached as suppressed
+     * exceptions), or interrupted while waiting
+     */
+    public void flush()
+        throws BoxIOException
+    {
+        final List<IOException> list;
+
+        synchronized (pendingLock) {
+            while (pending > 0)
+                try {
+                    pendingLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BoxIOException("interrupted while waiting for "
+                        + "uploads", e);
+                }
+            list = new ArrayList<>(failures);
+            failures.clear();
+        }
+
+        if (list.isEmpty())
+            return;
+
+        final BoxIOException exception = new BoxIOException(list.size()
+            + " upload(s) failed; spooled files are kept in " + spoolDir);
+        for (final IOException e: list)
+            exception.addSuppressed(e);
+        throw exception;
+    }
+
+    /**
+     * Wait until all pending uploads have completed, for at most a given time
+     *
+     * <p>Unlike {@link #flush()}, this method does not report failures.</p>
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if no uploads are pending anymore
+     * @throws InterruptedException interrupted while waiting
+     */
+    public boolean await(final long timeout, final TimeUnit unit)
+        throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+
+        synchronized (pendingLock) {
+            while (pending > 0) {
+                remaining = deadline - System.nanoTime();
+                if (remaining <= 0L)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(pendingLock, remaining);
+            }
+            return true;
+        }
+    }
+
+    public int getPendingCount()
+    {
+        synchronized (pendingLock) {
+            return pending;
+        }
+    }
+
+    public long getUploadedCount()
+    {
+        return uploadedCount.get();
+    }
+
+    public long getSupersededCount()
+    {
+        return supersededCount.get();
+    }
+
+    public long getRetryCount()
+    {
+        return retryCount.get();
+    }
+
+    public long getFailureCount()
+    {
+        return failureCount.get();
+    }
+
+    public long getRecoveredCount()
+    {
+        return recoveredCount.get();
+    }
+
+    public long getConflictCount()
+    {
+        return conflictCount.get();
+    }
+
+    /**
+     * Stop uploading
+     *
+     * <p>Uploads in progress are allowed to complete; pending uploads are
+     * abandoned, and their spooled files kept for the next run. Call {@link
+     * #flush()} first to make sure that all files are uploaded.</p>
+     */
+    @Override
+    public void close()
+    {
+        executor.shutdown();
+    }
+
+    void schedule(final SpoolEntry entry)
+    {
+        latest.put(entry.getTargetKey(), entry);
+        synchronized (pendingLock) {
+            pending++;
+        }
+        submit(entry, 0, 0L);
+    }
+
+    private void submit(final SpoolEntry entry, final int attempt,
+        final long delay)
+    {
+        try {
+            executor.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    process(entry, attempt);
+                }
+            }, delay, BACKOFF_UNIT);
+        } catch (RuntimeException ignored) {
+            // Closed: the spooled file stays for the next run
+            done(null);
+        }
+    }
+
+    /*
+     * Uploads to a given target are performed one at a time, in order; an
+     * entry whose target is busy is tried again a little later
+     */
+    private void process(final SpoolEntry entry, final int attempt)
+    {
+        final String key = entry.getTargetKey();
+
+        synchronized (uploading) {
+            if (!uploading.add(key)) {
+                submit(entry, attempt, BUSY_DELAY);
+                return;
+            }
+        }
+
+        try {
+            upload(entry, attempt);
+        } finally {
+            synchronized (uploading) {
+                uploading.remove(key);
+            }
+        }
+    }
+
+    private void upload(final SpoolEntry entry, final int attempt)
+    {
+        final String key = entry.getTargetKey();
+
+        if (latest.get(key) != entry) {
+            supersededCount.incrementAndGet();
+            deleteQuietly(entry);
+            done(null);
+            return;
+        }
+
+        try {
+            upload(entry);
+        } catch (IOException e) {
+            if (responseCode(e) == HTTP_PRECONDITION_FAILED) {
+                latest.remove(key, entry);
+                conflictCount.incrementAndGet();
+                done(conflict(entry, e));
+                return;
+            }
+            if (attempt + 1 < MAX_ATTEMPTS && isRetryable(e)) {
+                retryCount.incrementAndGet();
+                submit(entry, attempt + 1, Math.min(MAX_BACKOFF,
+                    INITIAL_BACKOFF << attempt));
+                return;
+            }
+            latest.remove(key, entry);
+            failureCount.incrementAndGet();
+            done(e);
+            return;
+        }
+
+        latest.remove(key, entry);
+        uploadedCount.incrementAndGet();
+        deleteQuietly(entry);
+        done(null);
+    }
+
+    private void upload(final SpoolEntry entry)
+        throws IOException
+    {
+        final long size;
+
+        try (
+            final FileChannel channel = FileChannel.open(entry.getData(),
+                StandardOpenOption.READ);
+        ) {
+            size = channel.size();
+            String fileId = entry.getFileId();
+
+            if (fileId != null)
+                try {
+                    uploadVersion(fileId, entry.getEtag(), channel);
+                    fileId = null;
+                } catch (BoxIOException e) {
+                    /*
+                     * The file has been deleted since: create it again
+                     */
+                    if (responseCode(e) != HTTP_NOT_FOUND)
+                        throw e;
+                }
+            else
+                try {
+                    uploadFile(entry, channel);
+                } catch (BoxIOException e) {
+                    /*
+                     * The file has been created since: upload a new version
+                     * of what the conflict reports, and nothing newer
+                     */
+                    final BoxItemRecord conflict = BoxItemRecord.conflictOf(
+                        Long.parseLong(entry.getParentId()), e, names);
+                    if (conflict == null || conflict.isFolder())
+                        throw e;
+                    uploadVersion(Long.toString(conflict.getId()),
+                        conflict.getEtag(), channel);
+                }
+
+            if (fileId != null)
+                uploadFile(entry, channel);
+        }
+
+        final BoxUploadListener entryListener = entry.getListener();
+        if (entryListener != null)
+            entryListener.uploadComplete(size);
+        else
+            listener.uploadComplete(size);
+    }
+
+    private void uploadFile(final SpoolEntry entry, final FileChannel channel)
+        throws IOException
+    {
+        channel.position(0L);
+
+        try (
+            final InputStream in = BoxLocalTransfers.uploadSource(channel);
+        ) {
+            uploader.uploadFile(entry.getParentId(), entry.getName(), in);
+        }
+    }
+
+    private void uploadVersion(final String fileId,
+        @Nullable final String etag, final FileChannel channel)
+        throws IOException
+    {
+        channel.position(0L);
+
+        try (
+            final InputStream in = BoxLocalTransfers.uploadSource(channel);
+        ) {
+            uploader.uploadVersion(fileId, etag, in);
+        }
+    }
+
+    /*
+     * Set the entry aside, so that it is neither uploaded again nor deleted
+     */
+    private static IOException conflict(final SpoolEntry entry,
+        final IOException e)
+    {
+        final BoxIOException ret = new BoxIOException("file "
+            + entry.getName() + " was changed since it was opened; spooled "
+            + "file kept as " + entry.getData(), e);
+
+        try {
+            entry.setAside();
+        } catch (IOException failure) {
+            ret.addSuppressed(failure);
+        }
+        return ret;
+    }
+
+    private void done(@Nullable final IOException failure)
+    {
+        synchronized (pendingLock) {
+            if (failure != null)
+                failures.add(failure);
+            pending--;
+            pendingLock.notifyAll();
+        }
+    }
+
+    private boolean hasDescriptor(final Path path)
+    {
+        final String name = path.getFileName().toString();
+        if (!name.endsWith(SpoolEntry.DATA_SUFFIX))
+            return false;
+        final String id = name.substring(0,
+            name.length() - SpoolEntry.DATA_SUFFIX.length());
+        return Files.exists(spoolDir.resolve(id
+            + SpoolEntry.DESCRIPTOR_SUFFIX))
+            || Files.exists(spoolDir.resolve(id + SpoolEntry.CONFLICT_SUFFIX));
+    }
+
+    private static void deleteQuietly(final SpoolEntry entry)
+    {
+        try {
+            entry.delete();
+        } catch (IOException ignored) {
+            // Will be uploaded again on the next run; harmless
+        }
+    }
+
+    private static int responseCode(final IOException e)
+    {
+        final Throwable cause = e.getCause();
+        return cause instanceof BoxAPIException
+            ? ((BoxAPIException) cause).getResponseCode() : -1;
+    }
+
+    /*
+     * Network errors, rate limiting and server errors are worth retrying;
+     * other API errors are not.
+     */
+    private static boolean isRetryable(final IOException e)
+    {
+        final int code = responseCode(e);
+        return code <= 0 || code == HTTP_TOO_MANY_REQUESTS
+            || code >= HTTP_SERVER_ERROR;
+    }
+
+    /*
+     * Uploads over the lease given to the public constructors
+     */
+    private static final class LeaseUploader
+        implements SpoolUploader
+    {
+        private final BoxConnectionLease lease;
+
+        private LeaseUploader(final BoxConnectionLease lease)
+        {
+            this.lease = Objects.requireNonNull(lease);
+        }
+
+        @Override
+        public void uploadFile(final String parentId, final String name,
+            final InputStream in)
+            throws BoxIOException
+        {
+            final BoxAPIConnection api = lease.getConnection();
+
+            lease.transfer(new BoxAPICall<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    new BoxFolder(api, parentId).uploadFile(in, name);
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public void uploadVersion(final String fileId,
+            @Nullable final String etag, final InputStream in)
+            throws BoxIOException
+        {
+            final BoxAPIConnection api = lease.getConnection();
+
+            lease.transfer(new BoxAPICall<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    BoxLocalTransfers.uploadVersion(new BoxFile(api, fileId),
+                        etag, in);
+                    return null;
+                }
+            });
+        }
+    }
+}
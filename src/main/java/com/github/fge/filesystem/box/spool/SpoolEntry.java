@@ -0,0 +1,204 @@
+package com.github.fge.filesystem.box.spool;
+
+import com.github.fge.filesystem.box.io.BoxUploadListener;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * A spooled file waiting to be uploaded
+ *
+ * <p>Each entry is made of two files in the spool directory: the data file,
+ * and a descriptor telling where the data is to be uploaded. The descriptor
+ * is only written, atomically, once the data file is complete and synced to
+ * disk; a data file without a descriptor is therefore incomplete.</p>
+ *
+ * <p>An entry replacing an existing file also records the etag of the file
+ * when the entry was opened, so that changes made to the file in the
+ * meantime are not overwritten.</p>
+ */
+@ParametersAreNonnullByDefault
+final class SpoolEntry
+{
+    static final String DATA_SUFFIX = ".data";
+    static final String DESCRIPTOR_SUFFIX = ".properties";
+    static final String CONFLICT_SUFFIX = ".conflict";
+
+    private static final String PARENT_ID = "parent";
+    private static final String NAME = "name";
+    private static final String FILE_ID = "file";
+    private static final String ETAG = "etag";
+
+    private final Path data;
+    private final Path descriptor;
+    private final Path conflict;
+    private final String parentId;
+    private final String name;
+    private final String fileId;
+    private final String etag;
+
+    /*
+     * Not persisted: entries recovered from a previous run have none
+     */
+    private volatile BoxUploadListener listener = null;
+
+    SpoolEntry(final Path spoolDir, final String id, final String parentId,
+        final String name, @Nullable final String fileId,
+        @Nullable final String etag)
+    {
+        data = spoolDir.resolve(id + DATA_SUFFIX);
+        descriptor = spoolDir.resolve(id + DESCRIPTOR_SUFFIX);
+        conflict = spoolDir.resolve(id + CONFLICT_SUFFIX);
+        this.parentId = parentId;
+        this.name = name;
+        this.fileId = fileId;
+        this.etag = etag;
+    }
+
+    /**
+     * Read an entry from its descriptor
+     *
+     * @param descriptor the descriptor
+     * @return the entry
+     * @throws IOException failed to read the descriptor, or descriptor is
+     * invalid
+     */
+    static SpoolEntry read(final Path descriptor)
+        throws IOException
+    {
+        final Properties properties = new Properties();
+
+        try (
+            final InputStream in = Files.newInputStream(descriptor);
+        ) {
+            properties.load(in);
+        }
+
+        final String parentId = properties.getProperty(PARENT_ID);
+        final String name = properties.getProperty(NAME);
+
+        if (parentId == null || name == null)
+            throw new IOException("invalid spool descriptor " + descriptor);
+
+        final String fileName = descriptor.getFileName().toString();
+        final String id = fileName.substring(0,
+            fileName.length() - DESCRIPTOR_SUFFIX.length());
+
+        return new SpoolEntry(descriptor.getParent(), id, parentId, name,
+            properties.getProperty(FILE_ID), properties.getProperty(ETAG));
+    }
+
+    Path getData()
+    {
+        return data;
+    }
+
+    String getParentId()
+    {
+        return parentId;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    @Nullable
+    String getFileId()
+    {
+        return fileId;
+    }
+
+    @Nullable
+    String getEtag()
+    {
+        return etag;
+    }
+
+    @Nullable
+    BoxUploadListener getListener()
+    {
+        return listener;
+    }
+
+    void setListener(final BoxUploadListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Key identifying the target of the upload
+     */
+    String getTargetKey()
+    {
+        return parentId + '/' + name;
+    }
+
+    /**
+     * Make the entry durable, by writing its descriptor
+     *
+     * @throws IOException failed to write the descriptor
+     */
+    void commit()
+        throws IOException
+    {
+        final Properties properties = new Properties();
+        properties.setProperty(PARENT_ID, parentId);
+        properties.setProperty(NAME, name);
+        if (fileId != null)
+            properties.setProperty(FILE_ID, fileId);
+        if (etag != null)
+            properties.setProperty(ETAG, etag);
+
+        final Path tmp = descriptor.resolveSibling(descriptor.getFileName()
+            + ".tmp");
+
+        try (
+            final FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+            final OutputStream out = Channels.newOutputStream(channel);
+        ) {
+            properties.store(out, null);
+            channel.force(true);
+        }
+
+        Files.move(tmp, descriptor, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Set this entry aside, so that it is not uploaded by later runs either
+     *
+     * <p>The data file is kept, and the descriptor is renamed with the {@link
+     * #CONFLICT_SUFFIX} extension.</p>
+     *
+     * @throws IOException failed to rename the descriptor
+     */
+    void setAside()
+        throws IOException
+    {
+        Files.move(descriptor, conflict, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete both files of this entry
+     *
+     * @throws IOException failed to delete a file
+     */
+    void delete()
+        throws IOException
+    {
+        Files.deleteIfExists(descriptor);
+        Files.deleteIfExists(data);
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.fge.filesystem.box.spool;
+
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.InputStream;
+
+/**
+ * The uploads performed by a {@link BoxWriteBehind}
+ *
+ * <p>Failures are reported as {@link BoxIOException}s whose cause is the
+ * {@link com.box.sdk.BoxAPIException} Box answered with, if any.</p>
+ */
+@ParametersAreNonnullByDefault
+interface SpoolUploader
+{
+    /**
+     * Upload a new file
+     *
+     * @param parentId the id of the folder to upload to
+     * @param name the name of the file
+     * @param in the contents
+     * @throws BoxIOException upload failed
+     */
+    void uploadFile(String parentId, String name, InputStream in)
+        throws BoxIOException;
+
+    /**
+     * Upload a new version of a file
+     *
+     * @param fileId the id of the file
+     * @param etag the etag the file must still have, or {@code null} to
+     * upload unconditionally
+     * @param in the contents
+     * @throws BoxIOException upload failed; a 412 error means that the etag
+     * did not match
+     */
+    void uploadVersion(String fileId, @Nullable String etag, InputStream in)
+        throws BoxIOException;
+}
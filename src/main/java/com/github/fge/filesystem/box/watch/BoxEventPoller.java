@@ -0,0 +1,334 @@
+package com.github.fge.filesystem.box.watch;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.box.sdk.BoxAPIRequest;
+import com.box.sdk.BoxJSONResponse;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.github.fge.filesystem.box.connection.BoxAPICall;
+import com.github.fge.filesystem.box.connection.BoxConnectionLease;
+import com.github.fge.filesystem.box.driver.BoxAPIWrapper;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.Closeable;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * A single long-poll connection to the Box event stream, shared by all the
+ * watch keys of a filesystem
+ *
+ * <p>The poller thread is started when the first key is registered. It waits
+ * on the long-poll URL Box provides; when notified of a change, it fetches the
+ * new events, forgets cached metadata of the items they concern, and
+ * dispatches them to the keys watching the folders involved. While nothing
+ * changes, the only traffic is a long-poll request every ten minutes or
+ * so, whatever the number of watched folders.</p>
+ *
+ * <p>If the event stream cannot be read, the poller retries after a delay;
+ * if its contents cannot be understood, all keys are signalled an overflow,
+ * and polling starts again from the current position.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxEventPoller
+    implements Closeable
+{
+    private static final String CURRENT_POSITION
+        = "events?stream_type=changes&stream_position=now";
+    private static final String EVENTS
+        = "events?stream_type=changes&stream_position=%s&limit=%d";
+    private static final String LONG_POLL = "events";
+    private static final int EVENTS_LIMIT = 500;
+
+    private static final long RETRY_DELAY = 5000L;
+    private static final int MAX_SEEN_EVENTS = 10000;
+
+    private static final Set<String> DELETIONS = new HashSet<>();
+
+    static {
+        Collections.addAll(DELETIONS, "ITEM_TRASH", "ITEM_DELETE");
+    }
+
+    private final BoxConnectionLease lease;
+    private final BoxAPIWrapper wrapper;
+
+    private final ConcurrentMap<Long, Set<BoxWatchKey>> keys
+        = new ConcurrentHashMap<>();
+
+    /*
+     * Events may be delivered more than once; only accessed by the poller
+     * thread
+     */
+    private final Map<String, Boolean> seen
+        = new LinkedHashMap<String, Boolean>()
+    {
+        @Override
+        protected boolean removeEldestEntry(
+            final Map.Entry<String, Boolean> eldest)
+        {
+            return size() > MAX_SEEN_EVENTS;
+        }
+    };
+
+    private Thread thread;
+    private volatile boolean closed = false;
+
+    public BoxEventPoller(final BoxConnectionLease lease,
+        final BoxAPIWrapper wrapper)
+    {
+        this.lease = lease;
+        this.wrapper = wrapper;
+    }
+
+    /**
+     * Stop polling
+     *
+     * <p>The poller thread is a daemon thread; it exits at the latest when
+     * the long-poll request in progress, if any, returns.</p>
+     */
+    @Override
+    public synchronized void close()
+    {
+        closed = true;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    synchronized void register(final BoxWatchKey key)
+    {
+        if (closed)
+            return;
+
+        final long folderId = key.getFolderId();
+        Set<BoxWatchKey> set = keys.get(folderId);
+
+        if (set == null) {
+            set = new CopyOnWriteArraySet<>();
+            keys.put(folderId, set);
+        }
+        set.add(key);
+
+        if (thread != null)
+            return;
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                poll();
+            }
+        }, "box-event-poller");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void unregister(final BoxWatchKey key)
+    {
+        final Set<BoxWatchKey> set = keys.get(key.getFolderId());
+
+        if (set == null)
+            return;
+
+        set.remove(key);
+        if (set.isEmpty())
+            keys.remove(key.getFolderId());
+    }
+
+    private void poll()
+    {
+        String position = null;
+
+        while (!closed) {
+            try {
+                if (position == null)
+                    position = currentPosition();
+                waitForChange(position);
+                position = dispatch(position);
+            } catch (BoxIOException ignored) {
+                if (!sleep())
+                    return;
+            } catch (RuntimeException ignored) {
+                /*
+                 * Unexpected contents; we do not know what was missed
+                 */
+                position = null;
+                for (final Set<BoxWatchKey> set: keys.values())
+                    for (final BoxWatchKey key: set)
+                        key.overflow();
+                if (!sleep())
+                    return;
+            }
+        }
+    }
+
+    /*
+     * Return once Box tells there may be new events, or asks to reconnect
+     */
+    private void waitForChange(final String position)
+        throws BoxIOException
+    {
+        final BoxAPIConnection api = lease.getConnection();
+        final URL optionsUrl = apiURL(api, LONG_POLL);
+
+        final JsonObject options = lease.execute(new BoxAPICall<JsonObject>()
+        {
+            @Override
+            public JsonObject call()
+            {
+                final BoxAPIRequest request
+                    = new BoxAPIRequest(api, optionsUrl, "OPTIONS");
+                final BoxJSONResponse response
+                    = (BoxJSONResponse) request.send();
+                return JsonObject.readFrom(response.getJSON());
+            }
+        });
+
+        final String realtime = options.get("entries").asArray().get(0)
+            .asObject().get("url").asString();
+        final URL url;
+
+        try {
+            url = new URL(realtime + "&stream_position=" + position);
+        } catch (MalformedURLException e) {
+            throw new BoxIOException("invalid long-poll URL", e);
+        }
+
+        /*
+         * Not run through the lease: this request is meant to stay idle for
+         * minutes, and must not hold one of the pool's request slots
+         */
+        try {
+            new BoxAPIRequest(api, url, "GET").send().disconnect();
+        } catch (BoxAPIException e) {
+            throw BoxIOException.wrap(e);
+        }
+    }
+
+    /*
+     * Return the position reached
+     */
+    private String dispatch(final String from)
+        throws BoxIOException
+    {
+        String position = from;
+        JsonObject chunk;
+
+        while (true) {
+            chunk = get(String.format(EVENTS, position, EVENTS_LIMIT), true);
+            position = positionOf(chunk);
+
+            if (chunk.get("chunk_size").asInt() == 0)
+                return position;
+
+            for (final JsonValue event: chunk.get("entries").asArray())
+                process(event.asObject());
+        }
+    }
+
+    private void process(final JsonObject event)
+    {
+        final JsonValue eventId = event.get("event_id");
+
+        if (eventId != null && seen.put(eventId.asString(), Boolean.TRUE)
+            != null)
+            return;
+
+        final JsonValue value = event.get("source");
+
+        if (value == null || !value.isObject())
+            return;
+
+        final JsonObject source = value.asObject();
+        final JsonValue type = source.get("type");
+
+        if (type == null || !("file".equals(type.asString())
+            || "folder".equals(type.asString())))
+            return;
+
+        final long id = Long.parseLong(source.get("id").asString());
+        final String name = source.get("name").asString();
+        final JsonValue parent = source.get("parent");
+        final long parentId = parent == null || !parent.isObject() ? -1L
+            : Long.parseLong(parent.asObject().get("id").asString());
+        final boolean deleted
+            = DELETIONS.contains(event.get("event_type").asString());
+
+        if (parentId != -1L)
+            wrapper.invalidate(parentId, name);
+
+        String gone;
+
+        for (final Set<BoxWatchKey> set: keys.values())
+            for (final BoxWatchKey key: set) {
+                gone = key.process(id, name, parentId, deleted);
+                if (gone != null)
+                    wrapper.invalidate(key.getFolderId(), gone);
+            }
+    }
+
+    private String currentPosition()
+        throws BoxIOException
+    {
+        return positionOf(get(CURRENT_POSITION, false));
+    }
+
+    private JsonObject get(final String request, final boolean bulk)
+        throws BoxIOException
+    {
+        final BoxAPIConnection api = lease.getConnection();
+        final URL url = apiURL(api, request);
+
+        final BoxAPICall<JsonObject> call = new BoxAPICall<JsonObject>()
+        {
+            @Override
+            public JsonObject call()
+            {
+                final BoxAPIRequest get = new BoxAPIRequest(api, url, "GET");
+                final BoxJSONResponse response = (BoxJSONResponse) get.send();
+                return JsonObject.readFrom(response.getJSON());
+            }
+        };
+
+        return bulk ? lease.executeBulk(call) : lease.execute(call);
+    }
+
+    /*
+     * Return false if interrupted, which means we are closed
+     */
+    private boolean sleep()
+    {
+        try {
+            Thread.sleep(RETRY_DELAY);
+            return true;
+        } catch (InterruptedException ignored) {
+            return false;
+        }
+    }
+
+    private static String positionOf(final JsonObject chunk)
+    {
+        final JsonValue value = chunk.get("next_stream_position");
+        return value.isString() ? value.asString() : value.toString();
+    }
+
+    private static URL apiURL(final BoxAPIConnection api, final String request)
+        throws BoxIOException
+    {
+        try {
+            return new URL(api.getBaseURL() + request);
+        } catch (MalformedURLException e) {
+            throw new BoxIOException("invalid API URL", e);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.fge.filesystem.box.watch;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.file.WatchEvent;
+
+/**
+ * An event reported by a {@link BoxWatchKey}
+ *
+ * <p>Repeated events of the same kind for the same entry are coalesced by
+ * incrementing their count.</p>
+ *
+ * @param <T> type of the context
+ */
+@ParametersAreNonnullByDefault
+final class BoxWatchEvent<T>
+    implements WatchEvent<T>
+{
+    private final Kind<T> kind;
+    private final T context;
+    private int count = 1;
+
+    BoxWatchEvent(final Kind<T> kind, @Nullable final T context)
+    {
+        this.kind = kind;
+        this.context = context;
+    }
+
+    @Override
+    public Kind<T> kind()
+    {
+        return kind;
+    }
+
+    @Override
+    public int count()
+    {
+        return count;
+    }
+
+    @Override
+    public T context()
+    {
+        return context;
+    }
+
+    boolean isRepeatedBy(final Kind<?> otherKind, final Object otherContext)
+    {
+        return kind == otherKind && otherContext.equals(context);
+    }
+
+    void repeat()
+    {
+        count++;
+    }
+
+    @Override
+    public String toString()
+    {
+        return kind.name() + ": " + context + " (" + count + ')';
+    }
+}
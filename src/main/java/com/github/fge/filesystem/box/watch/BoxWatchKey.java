@@ -0,0 +1,183 @@
+package com.github.fge.filesystem.box.watch;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A watch key for a Box folder
+ *
+ * <p>The key knows the entries of its folder, by id; this is what allows it to
+ * tell a created entry from a modified one, and to report the former name of
+ * a renamed or moved entry.</p>
+ */
+@ParametersAreNonnullByDefault
+final class BoxWatchKey
+    implements WatchKey
+{
+    private static final int MAX_EVENTS = 512;
+
+    private final BoxWatchService service;
+    private final Path dir;
+    private final long folderId;
+    private final Set<WatchEvent.Kind<?>> kinds;
+    private final Map<Long, String> children;
+
+    private List<WatchEvent<?>> events = new ArrayList<>();
+    private boolean signalled = false;
+    private volatile boolean valid = true;
+
+    BoxWatchKey(final BoxWatchService service, final Path dir,
+        final long folderId, final Set<WatchEvent.Kind<?>> kinds,
+        final Map<Long, String> children)
+    {
+        this.service = service;
+        this.dir = dir;
+        this.folderId = folderId;
+        this.kinds = kinds;
+        this.children = children;
+    }
+
+    long getFolderId()
+    {
+        return folderId;
+    }
+
+    /**
+     * Process a change of an item
+     *
+     * @param id the id of the item
+     * @param name the name of the item after the change
+     * @param parentId the id of the parent of the item after the change
+     * @param deleted whether the item was deleted
+     * @return the name under which the item was in this key's folder, if it
+     * is no longer there under that name; {@code null} otherwise
+     */
+    @Nullable
+    synchronized String process(final long id, final String name,
+        final long parentId, final boolean deleted)
+    {
+        final boolean here = parentId == folderId;
+        final String old = children.get(id);
+
+        if (deleted || !here) {
+            final String gone = old != null ? old : here ? name : null;
+            if (gone == null)
+                return null;
+            children.remove(id);
+            signal(StandardWatchEventKinds.ENTRY_DELETE, gone);
+            return gone;
+        }
+
+        children.put(id, name);
+
+        if (old == null) {
+            signal(StandardWatchEventKinds.ENTRY_CREATE, name);
+            return null;
+        }
+
+        if (old.equals(name)) {
+            signal(StandardWatchEventKinds.ENTRY_MODIFY, name);
+            return null;
+        }
+
+        signal(StandardWatchEventKinds.ENTRY_DELETE, old);
+        signal(StandardWatchEventKinds.ENTRY_CREATE, name);
+        return old;
+    }
+
+    /**
+     * Report that events may have been lost
+     */
+    synchronized void overflow()
+    {
+        events.clear();
+        events.add(new BoxWatchEvent<>(StandardWatchEventKinds.OVERFLOW,
+            null));
+        signal();
+    }
+
+    @Override
+    public boolean isValid()
+    {
+        return valid;
+    }
+
+    @Override
+    public synchronized List<WatchEvent<?>> pollEvents()
+    {
+        final List<WatchEvent<?>> ret = events;
+        events = new ArrayList<>();
+        return Collections.unmodifiableList(ret);
+    }
+
+    @Override
+    public synchronized boolean reset()
+    {
+        if (!valid)
+            return false;
+
+        if (events.isEmpty())
+            signalled = false;
+        else
+            service.enqueue(this);
+
+        return true;
+    }
+
+    @Override
+    public void cancel()
+    {
+        valid = false;
+        service.cancel(this);
+    }
+
+    @Override
+    public Path watchable()
+    {
+        return dir;
+    }
+
+    private void signal(final WatchEvent.Kind<Path> kind, final String name)
+    {
+        if (!kinds.contains(kind))
+            return;
+
+        final Path context = dir.getFileSystem().getPath(name);
+        final int size = events.size();
+
+        if (size > 0) {
+            final WatchEvent<?> last = events.get(size - 1);
+            if (last.kind() == StandardWatchEventKinds.OVERFLOW)
+                return;
+            if (((BoxWatchEvent<?>) last).isRepeatedBy(kind, context)) {
+                ((BoxWatchEvent<?>) last).repeat();
+                return;
+            }
+        }
+
+        if (size >= MAX_EVENTS) {
+            overflow();
+            return;
+        }
+
+        events.add(new BoxWatchEvent<>(kind, context));
+        signal();
+    }
+
+    private void signal()
+    {
+        if (signalled)
+            return;
+        signalled = true;
+        service.enqueue(this);
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.fge.filesystem.box.watch;
+
+import com.github.fge.filesystem.box.driver.BoxAPIWrapper;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A watch service for Box folders
+ *
+ * <p>All watch services of a filesystem share a single {@link BoxEventPoller};
+ * watching more folders therefore costs no more API calls, except for one
+ * listing of each folder when it is registered.</p>
+ *
+ * <p>Folders are registered using {@link #register(Path, WatchEvent.Kind[])}.
+ * Only {@link StandardWatchEventKinds#ENTRY_CREATE}, {@link
+ * StandardWatchEventKinds#ENTRY_DELETE} and {@link
+ * StandardWatchEventKinds#ENTRY_MODIFY} are supported; moving or renaming an
+ * entry is reported as a deletion followed by a creation.</p>
+ */
+@ParametersAreNonnullByDefault
+public final class BoxWatchService
+    implements WatchService
+{
+    private static final long CLOSE_CHECK_INTERVAL = 500L;
+
+    private final BoxAPIWrapper wrapper;
+    private final BoxEventPoller poller;
+
+    private final BlockingQueue<WatchKey> signalled
+        = new LinkedBlockingQueue<>();
+    private final Set<BoxWatchKey> keys
+        = Collections.newSetFromMap(new ConcurrentHashMap<BoxWatchKey,
+            Boolean>());
+
+    private volatile boolean closed = false;
+
+    public BoxWatchService(final BoxAPIWrapper wrapper,
+        final BoxEventPoller poller)
+    {
+        this.wrapper = wrapper;
+        this.poller = poller;
+    }
+
+    /**
+     * Watch a folder
+     *
+     * @param dir the folder
+     * @param kinds the kinds of events to watch for
+     * @return a watch key
+     * @throws NoSuchFileException folder does not exist
+     * @throws NotDirectoryException path is not a folder
+     * @throws BoxIOException Box API error
+     * @throws UnsupportedOperationException unsupported kind of event
+     * @throws ClosedWatchServiceException this service is closed
+     */
+    public WatchKey register(final Path dir, final WatchEvent.Kind<?>... kinds)
+        throws IOException
+    {
+        checkOpen();
+
+        final Set<WatchEvent.Kind<?>> set = new HashSet<>();
+
+        for (final WatchEvent.Kind<?> kind: kinds) {
+            if (kind != StandardWatchEventKinds.ENTRY_CREATE
+                && kind != StandardWatchEventKinds.ENTRY_DELETE
+                && kind != StandardWatchEventKinds.ENTRY_MODIFY
+                && kind != StandardWatchEventKinds.OVERFLOW)
+                throw new UnsupportedOperationException("unsupported event "
+                    + "kind " + kind.name());
+            set.add(kind);
+        }
+
+        final Path realPath = dir.toAbsolutePath();
+        final BoxItemRecord record = wrapper.getRecord(realPath);
+
+        if (record == null)
+            throw new NoSuchFileException(dir.toString());
+        if (!record.isFolder())
+            throw new NotDirectoryException(dir.toString());
+
+        final Map<Long, String> children = new HashMap<>();
+        for (final BoxItemRecord child: wrapper.getChildren(realPath))
+            children.put(child.getId(), child.getName());
+
+        final BoxWatchKey key = new BoxWatchKey(this, dir, record.getId(),
+            set, children);
+
+        keys.add(key);
+        poller.register(key);
+        return key;
+    }
+
+    @Override
+    public WatchKey poll()
+    {
+        checkOpen();
+        return signalled.poll();
+    }
+
+    @Override
+    public WatchKey poll(final long timeout, final TimeUnit unit)
+        throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        WatchKey key;
+
+        while (true) {
+            checkOpen();
+            remaining = deadline - System.nanoTime();
+            if (remaining <= 0L)
+                return null;
+            key = signalled.poll(Math.min(remaining,
+                TimeUnit.MILLISECONDS.toNanos(CLOSE_CHECK_INTERVAL)),
+                TimeUnit.NANOSECONDS);
+            if (key != null)
+                return key;
+        }
+    }
+
+    @Override
+    public WatchKey take()
+        throws InterruptedException
+    {
+        WatchKey key;
+
+        while (true) {
+            checkOpen();
+            key = signalled.poll(CLOSE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+            if (key != null)
+                return key;
+        }
+    }
+
+    /**
+     * Close this service and cancel all its keys
+     *
+     * <p>Threads waiting for a key are woken up within half a second.</p>
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        for (final BoxWatchKey key: keys)
+            key.cancel();
+        signalled.clear();
+    }
+
+    void enqueue(final BoxWatchKey key)
+    {
+        if (!closed)
+            signalled.add(key);
+    }
+
+    void cancel(final BoxWatchKey key)
+    {
+        keys.remove(key);
+        poller.unregister(key);
+    }
+
+    private void checkOpen()
+    {
+        if (closed)
+            throw new ClosedWatchServiceException();
+    }
+}
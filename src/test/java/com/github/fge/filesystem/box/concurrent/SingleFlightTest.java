@@ -0,0 +1,229 @@
+package com.github.fge.filesystem.box.concurrent;
+
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public final class SingleFlightTest
+{
+    private static final int THREADS = 8;
+
+    private SingleFlight<String, Integer> flight;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void init()
+    {
+        flight = new SingleFlight<>();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentCallsWithTheSameKeyAreShared()
+        throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> callable = blocking(release, calls, null);
+
+        final Future<Integer> first = submit("a", callable);
+        awaitCalls(calls, 1);
+
+        final List<Future<Integer>> others = new ArrayList<>();
+        for (int i = 1; i < THREADS; i++)
+            others.add(submit("a", callable));
+        awaitShared(THREADS - 1);
+
+        release.countDown();
+
+        assertThat(first.get(5L, TimeUnit.SECONDS)).isEqualTo(1);
+        for (final Future<Integer> future: others)
+            assertThat(future.get(5L, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(flight.getExecutedCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void callsWithDifferentKeysAreNotShared()
+        throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> callable = blocking(release, calls, null);
+
+        final Future<Integer> a = submit("a", callable);
+        final Future<Integer> b = submit("b", callable);
+        awaitCalls(calls, 2);
+
+        release.countDown();
+
+        assertThat(a.get(5L, TimeUnit.SECONDS) + b.get(5L, TimeUnit.SECONDS))
+            .isEqualTo(3);
+        assertThat(flight.getExecutedCount()).isEqualTo(2L);
+        assertThat(flight.getSharedCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void completedCallsAreNotRetained()
+        throws BoxIOException
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> callable = new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+            {
+                return calls.incrementAndGet();
+            }
+        };
+
+        assertThat(flight.execute("a", callable)).isEqualTo(1);
+        assertThat(flight.execute("a", callable)).isEqualTo(2);
+        assertThat(flight.getSharedCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void failuresAreSharedToo()
+        throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final BoxIOException failure = new BoxIOException("boom");
+        final Callable<Integer> callable = blocking(release, calls, failure);
+
+        final Future<Integer> first = submit("a", callable);
+        awaitCalls(calls, 1);
+        final Future<Integer> joined = submit("a", callable);
+        awaitShared(1);
+
+        release.countDown();
+
+        try {
+            first.get(5L, TimeUnit.SECONDS);
+            fail("no exception thrown");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isSameAs(failure);
+        }
+        try {
+            joined.get(5L, TimeUnit.SECONDS);
+            fail("no exception thrown");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(BoxIOException.class)
+                .hasMessage("boom");
+            assertThat(e.getCause().getCause()).isSameAs(failure);
+        }
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void forgottenCallsAreNotJoined()
+        throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<Integer> callable = blocking(release, calls, null);
+
+        final Future<Integer> first = submit("a", callable);
+        awaitCalls(calls, 1);
+
+        flight.forget("a");
+
+        final Future<Integer> second = submit("a", callable);
+        awaitCalls(calls, 2);
+
+        release.countDown();
+
+        assertThat(first.get(5L, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(second.get(5L, TimeUnit.SECONDS)).isEqualTo(2);
+        assertThat(flight.getSharedCount()).isEqualTo(0L);
+    }
+
+    private Future<Integer> submit(final String key,
+        final Callable<Integer> callable)
+    {
+        return executor.submit(new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+                throws BoxIOException
+            {
+                return flight.execute(key, callable);
+            }
+        });
+    }
+
+    private void awaitShared(final long count)
+        throws InterruptedException
+    {
+        final long deadline = System.nanoTime()
+            + TimeUnit.SECONDS.toNanos(5L);
+
+        while (flight.getSharedCount() < count) {
+            if (System.nanoTime() > deadline)
+                fail("calls were not shared");
+            Thread.sleep(10L);
+        }
+
+        /*
+         * The count goes up just before the thread starts waiting
+         */
+        Thread.sleep(50L);
+    }
+
+    private static void awaitCalls(final AtomicInteger calls, final int count)
+        throws InterruptedException
+    {
+        final long deadline = System.nanoTime()
+            + TimeUnit.SECONDS.toNanos(5L);
+
+        while (calls.get() < count) {
+            if (System.nanoTime() > deadline)
+                fail("calls were not made");
+            Thread.sleep(10L);
+        }
+    }
+
+    /*
+     * Returns the number of the call, or throws the failure if any, once
+     * released
+     */
+    private static Callable<Integer> blocking(final CountDownLatch release,
+        final AtomicInteger calls, final BoxIOException failure)
+    {
+        return new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+                throws BoxIOException, InterruptedException
+            {
+                final int call = calls.incrementAndGet();
+
+                release.await();
+                if (failure != null)
+                    throw failure;
+                return call;
+            }
+        };
+    }
+}
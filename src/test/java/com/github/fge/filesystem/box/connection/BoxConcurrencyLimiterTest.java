@@ -0,0 +1,278 @@
+package com.github.fge.filesystem.box.connection;
+
+import com.box.sdk.BoxAPIException;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class BoxConcurrencyLimiterTest
+{
+    @Test
+    public void requestsBeyondTheLimitAreRefused()
+    {
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(2, 2, false);
+
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isFalse();
+        assertThat(limiter.getInFlight()).isEqualTo(2);
+
+        limiter.release(System.nanoTime(), null);
+
+        assertThat(limiter.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void timedAcquiresGetTheSlotsWhichFreeUp()
+        throws Exception
+    {
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(1, 1, false);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        limiter.acquire();
+
+        try {
+            final Future<Boolean> future = executor.submit(
+                new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call()
+                        throws InterruptedException
+                    {
+                        return limiter.tryAcquire(5L, TimeUnit.SECONDS);
+                    }
+                });
+
+            Thread.sleep(100L);
+            limiter.release(System.nanoTime(), null);
+
+            assertThat(future.get(5L, TimeUnit.SECONDS)).isTrue();
+            assertThat(limiter.getInFlight()).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void timedCallsFailIfNoSlotFreesUp()
+        throws InterruptedException
+    {
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(1, 1, false);
+
+        limiter.acquire();
+
+        try {
+            limiter.execute(call(null), 100L, TimeUnit.MILLISECONDS);
+            fail("no exception thrown");
+        } catch (BoxIOException e) {
+            assertThat(e)
+                .hasMessage("no request slot available after 100 milliseconds");
+        }
+
+        assertThat(limiter.getInFlight()).isEqualTo(1);
+    }
+
+    @DataProvider
+    public Iterator<Object[]> overloads()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { 0, new ConnectException() });
+        list.add(new Object[] { 0, new SocketTimeoutException() });
+        list.add(new Object[] { 429, null });
+        list.add(new Object[] { 500, null });
+        list.add(new Object[] { 503, null });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "overloads")
+    public void overloadsHalveTheLimitOncePerCooldown(final int code,
+        final IOException cause)
+        throws InterruptedException
+    {
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(8, 8, false);
+        final BoxAPIException failure = failure(code, cause);
+
+        executeFailing(limiter, failure);
+        assertThat(limiter.getLimit()).isEqualTo(4);
+
+        executeFailing(limiter, failure);
+        assertThat(limiter.getLimit()).isEqualTo(4);
+        assertThat(limiter.getThrottledCount()).isEqualTo(2L);
+        assertThat(limiter.getDecreaseCount()).isEqualTo(1L);
+        assertThat(limiter.getInFlight()).isEqualTo(0);
+
+        Thread.sleep(200L);
+
+        executeFailing(limiter, failure);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    public void otherFailuresLeaveTheLimitAlone()
+        throws InterruptedException
+    {
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(8, 8, false);
+
+        executeFailing(limiter, failure(404, null));
+
+        /*
+         * No response, but because it could not be read
+         */
+        executeFailing(limiter, failure(0, new IOException("bad JSON")));
+
+        assertThat(limiter.getLimit()).isEqualTo(8);
+        assertThat(limiter.getThrottledCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void onlyComparableRequestsDriveTheLimitDown()
+    {
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(8, 8, true);
+        final long fast = TimeUnit.MILLISECONDS.toNanos(10L);
+        final long slow = TimeUnit.SECONDS.toNanos(1L);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(limiter.tryAcquire()).isTrue();
+            limiter.release(System.nanoTime() - fast, null);
+        }
+
+        /*
+         * A large listing page takes longer, but the API is not slower
+         */
+        for (int i = 0; i < 3; i++) {
+            assertThat(limiter.tryAcquire()).isTrue();
+            limiter.release(System.nanoTime() - slow, null, false);
+        }
+
+        assertThat(limiter.getLimit()).isEqualTo(8);
+        assertThat(limiter.getDecreaseCount()).isEqualTo(0L);
+
+        assertThat(limiter.tryAcquire()).isTrue();
+        limiter.release(System.nanoTime() - slow, null);
+
+        assertThat(limiter.getLimit()).isEqualTo(7);
+        assertThat(limiter.getDecreaseCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void theLimitNeverGoesBelowOne()
+        throws InterruptedException
+    {
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(1, 1, false);
+
+        executeFailing(limiter, failure(429, null));
+
+        assertThat(limiter.getLimit()).isEqualTo(1);
+        assertThat(limiter.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void onlySaturatedSuccessesRaiseTheLimit()
+        throws InterruptedException
+    {
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(2, 3, false);
+
+        /*
+         * One request at a time does not use a limit of two
+         */
+        limiter.execute(call(null));
+        assertThat(limiter.getLimit()).isEqualTo(2);
+
+        /*
+         * Each full limit's worth of requests raises it by 1/limit: 2.5,
+         * then 2.9, which is still a limit of two
+         */
+        for (int i = 0; i < 2; i++) {
+            assertThat(limiter.tryAcquire()).isTrue();
+            assertThat(limiter.tryAcquire()).isTrue();
+            limiter.release(System.nanoTime(), null);
+            limiter.release(System.nanoTime(), null);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(2);
+
+        assertThat(limiter.tryAcquire()).isTrue();
+        assertThat(limiter.tryAcquire()).isTrue();
+        limiter.release(System.nanoTime(), null);
+        assertThat(limiter.getLimit()).isEqualTo(3);
+        limiter.release(System.nanoTime(), null);
+    }
+
+    @Test
+    public void theLimitNeverGoesAboveTheMaximum()
+    {
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(1, 2, false);
+
+        for (int i = 0; i < 100; i++) {
+            while (limiter.tryAcquire())
+                continue;
+            while (limiter.getInFlight() > 0)
+                limiter.release(System.nanoTime(), null);
+        }
+
+        assertThat(limiter.getLimit()).isEqualTo(2);
+    }
+
+    private static void executeFailing(final BoxConcurrencyLimiter limiter,
+        final BoxAPIException failure)
+        throws InterruptedException
+    {
+        try {
+            limiter.execute(call(failure));
+            fail("no exception thrown");
+        } catch (BoxAPIException e) {
+            assertThat(e).isSameAs(failure);
+        }
+    }
+
+    private static BoxAPICall<Void> call(final BoxAPIException failure)
+    {
+        return new BoxAPICall<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                if (failure != null)
+                    throw failure;
+                return null;
+            }
+        };
+    }
+
+    private static BoxAPIException failure(final int code,
+        final IOException cause)
+    {
+        final BoxAPIException failure = mock(BoxAPIException.class);
+
+        when(failure.getResponseCode()).thenReturn(code);
+        when(failure.getCause()).thenReturn(cause);
+        return failure;
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.fge.filesystem.box.connection;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class BoxConnectionPoolTest
+{
+    private BoxConnectionPool pool;
+
+    @BeforeMethod
+    public void init()
+    {
+        pool = new BoxConnectionPool();
+    }
+
+    @Test
+    public void leasesOfTheSameTokenShareOneConnection()
+    {
+        final BoxConnectionLease first = pool.acquire("token");
+        final BoxConnectionLease second = pool.acquire("token");
+        final BoxConnectionLease other = pool.acquire("other");
+
+        assertThat(second.getConnection()).isSameAs(first.getConnection());
+        assertThat(second.getApiLimiter()).isSameAs(first.getApiLimiter());
+        assertThat(other.getConnection()).isNotSameAs(first.getConnection());
+        assertThat(pool.getCreatedConnectionCount()).isEqualTo(2L);
+        assertThat(pool.getSharedConnectionCount()).isEqualTo(1L);
+
+        first.close();
+        second.close();
+        other.close();
+    }
+
+    @Test
+    public void connectionsAreReleasedWithTheirLastLease()
+    {
+        final BoxConnectionLease first = pool.acquire("token");
+        final BoxConnectionLease second = pool.acquire("token");
+        final BoxAPIConnection api = first.getConnection();
+
+        /*
+         * Closing a lease twice must not release the other one's reference
+         */
+        first.close();
+        first.close();
+
+        final BoxConnectionLease third = pool.acquire("token");
+
+        assertThat(third.getConnection()).isSameAs(api);
+
+        second.close();
+        third.close();
+
+        final BoxConnectionLease fourth = pool.acquire("token");
+
+        assertThat(fourth.getConnection()).isNotSameAs(api);
+        assertThat(pool.getCreatedConnectionCount()).isEqualTo(2L);
+
+        fourth.close();
+    }
+
+    @Test
+    public void statisticsOutliveReleasedConnections()
+    {
+        final BoxConnectionLease lease = pool.acquire("token");
+        final BoxAPIException failure = mock(BoxAPIException.class);
+
+        when(failure.getResponseCode()).thenReturn(429);
+
+        try {
+            lease.execute(new BoxAPICall<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    throw failure;
+                }
+            });
+            fail("no exception thrown");
+        } catch (BoxIOException e) {
+            assertThat(e.getCause()).isSameAs(failure);
+        }
+
+        assertThat(pool.getThrottledCount()).isEqualTo(1L);
+        assertThat(pool.getRequestCount()).isEqualTo(1L);
+        assertThat(pool.getRequestsInFlight()).isEqualTo(0);
+
+        lease.close();
+
+        assertThat(pool.getThrottledCount()).isEqualTo(1L);
+        assertThat(pool.getLimitDecreaseCount()).isEqualTo(1L);
+        assertThat(pool.getConcurrencyLimit()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,235 @@
+package com.github.fge.filesystem.box.connection;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class BoxConnectionShardsTest
+{
+    private static final int IDS = 1000;
+
+    private BoxConnectionPool pool;
+    private List<BoxConnectionLease> leases;
+    private BoxConnectionShards shards;
+
+    @BeforeMethod
+    public void init()
+    {
+        pool = new BoxConnectionPool();
+        leases = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            leases.add(pool.acquire("token" + i));
+        shards = new BoxConnectionShards(leases);
+    }
+
+    @AfterMethod
+    public void shutdown()
+    {
+        shards.close();
+    }
+
+    @Test
+    public void itemsAreSpreadOverAllShards()
+    {
+        final int[] counts = new int[leases.size()];
+
+        for (long id = 0L; id < IDS; id++)
+            counts[leases.indexOf(shards.select(id))]++;
+
+        /*
+         * Each shard should get about a quarter of the items
+         */
+        for (final int count: counts)
+            assertThat(count).isBetween(IDS / 8, IDS / 2);
+    }
+
+    @Test
+    public void callsUseTheLeaseSelectedForTheItem()
+        throws BoxIOException
+    {
+        for (long id = 0L; id < 20L; id++)
+            assertThat(shards.execute(id, connection()))
+                .isSameAs(shards.select(id).getConnection());
+        assertThat(shards.getFailoverCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void addingAShardOnlyMovesItemsToTheNewShard()
+    {
+        final BoxConnectionShards smaller
+            = new BoxConnectionShards(leases.subList(0, 3));
+        final BoxConnectionLease added = leases.get(3);
+        int moved = 0;
+        BoxConnectionLease before;
+        BoxConnectionLease after;
+
+        for (long id = 0L; id < IDS; id++) {
+            before = smaller.select(id);
+            after = shards.select(id);
+            if (before == after)
+                continue;
+            assertThat(after).isSameAs(added);
+            moved++;
+        }
+
+        assertThat(moved).isBetween(IDS / 8, IDS / 2);
+    }
+
+    @Test
+    public void callsFailOverWhenTheShardIsThrottled()
+        throws BoxIOException
+    {
+        final long id = 42L;
+        final BoxConnectionLease designated = shards.select(id);
+        final int index = leases.indexOf(designated);
+        final FailingCall call
+            = new FailingCall(designated.getConnection(), 429);
+
+        final BoxAPIConnection used = shards.execute(id, call);
+
+        assertThat(used).isNotSameAs(designated.getConnection());
+        assertThat(call.calls).isEqualTo(2);
+        assertThat(shards.getFailoverCount()).isEqualTo(1L);
+        assertThat(shards.isHealthy(index)).isFalse();
+        assertThat(shards.select(id)).isNotSameAs(designated);
+    }
+
+    @Test
+    public void throttlingOneShardLeavesTheOthersLimitsAlone()
+        throws BoxIOException
+    {
+        final long id = 42L;
+        final BoxConnectionLease designated = shards.select(id);
+        final int limit = designated.getApiLimiter().getLimit();
+        final FailingCall call
+            = new FailingCall(designated.getConnection(), 429);
+
+        shards.execute(id, call);
+
+        assertThat(designated.getApiLimiter().getLimit()).isLessThan(limit);
+        for (final BoxConnectionLease lease: leases) {
+            if (lease == designated)
+                continue;
+            assertThat(lease.getApiLimiter()).isNotSameAs(
+                designated.getApiLimiter());
+            assertThat(lease.getApiLimiter().getLimit()).isEqualTo(limit);
+            assertThat(lease.getTransferLimiter()).isNotSameAs(
+                designated.getTransferLimiter());
+        }
+        assertThat(pool.getThrottledCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void leasesOfTheSameIdentityShareTheirLimits()
+    {
+        final BoxConnectionLease other = pool.acquire("token0");
+
+        try {
+            assertThat(other.getApiLimiter())
+                .isSameAs(leases.get(0).getApiLimiter());
+            assertThat(other.getTransferLimiter())
+                .isSameAs(leases.get(0).getTransferLimiter());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void connectionsMapBackToTheirLease()
+    {
+        for (final BoxConnectionLease lease: leases)
+            assertThat(shards.leaseOf(lease.getConnection())).isSameAs(lease);
+        assertThat(shards.leaseOf(null)).isSameAs(shards.getPrimary());
+    }
+
+    @Test
+    public void otherFailuresAreNotRetried()
+    {
+        final long id = 42L;
+        final BoxConnectionLease designated = shards.select(id);
+        final FailingCall call
+            = new FailingCall(designated.getConnection(), 404);
+
+        try {
+            shards.execute(id, call);
+            fail("no exception thrown");
+        } catch (BoxIOException e) {
+            assertThat(e.getCause()).isInstanceOf(BoxAPIException.class);
+        }
+
+        assertThat(call.calls).isEqualTo(1);
+        assertThat(shards.getFailoverCount()).isEqualTo(0L);
+        assertThat(shards.isHealthy(leases.indexOf(designated))).isTrue();
+        assertThat(shards.select(id)).isSameAs(designated);
+    }
+
+    @Test
+    public void callsFailOnceAllShardsHaveBeenTried()
+    {
+        final FailingCall call = new FailingCall(null, 503);
+
+        try {
+            shards.execute(42L, call);
+            fail("no exception thrown");
+        } catch (BoxIOException e) {
+            assertThat(e.getCause()).isInstanceOf(BoxAPIException.class);
+        }
+
+        assertThat(call.calls).isEqualTo(leases.size());
+        for (int i = 0; i < leases.size(); i++)
+            assertThat(shards.isHealthy(i)).isFalse();
+    }
+
+    private static BoxShardCall<BoxAPIConnection> connection()
+    {
+        return new BoxShardCall<BoxAPIConnection>()
+        {
+            @Override
+            public BoxAPIConnection call(final BoxAPIConnection api)
+            {
+                return api;
+            }
+        };
+    }
+
+    /*
+     * Fails with the given code over the given connection, or over all
+     * connections if none is given
+     */
+    private static final class FailingCall
+        implements BoxShardCall<BoxAPIConnection>
+    {
+        private final BoxAPIConnection failing;
+        private final int code;
+        private int calls = 0;
+
+        private FailingCall(final BoxAPIConnection failing, final int code)
+        {
+            this.failing = failing;
+            this.code = code;
+        }
+
+        @Override
+        public BoxAPIConnection call(final BoxAPIConnection api)
+        {
+            calls++;
+            if (failing != null && api != failing)
+                return api;
+
+            final BoxAPIException failure = mock(BoxAPIException.class);
+            when(failure.getResponseCode()).thenReturn(code);
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.github.fge.filesystem.box.credentials;
+
+import com.box.sdk.BoxAPIConnection;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public final class BoxCredentialManagerTest
+{
+    private static final int THREADS = 8;
+
+    private CountingSupplier supplier;
+    private BoxCredentialManager manager;
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void init()
+    {
+        supplier = new CountingSupplier();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void shutdown()
+    {
+        if (manager != null)
+            manager.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void attachedConnectionsGetTheCurrentToken()
+        throws IOException
+    {
+        final BoxAPIConnection api = mock(BoxAPIConnection.class);
+
+        manager = new BoxCredentialManager(supplier);
+        manager.attach(api);
+
+        assertThat(manager.getAccessToken()).isEqualTo("token1");
+        verify(api).setAccessToken("token1");
+    }
+
+    @Test
+    public void unauthorizedRequestsRefreshTheToken()
+        throws IOException
+    {
+        final BoxAPIConnection api = mock(BoxAPIConnection.class);
+
+        manager = new BoxCredentialManager(supplier);
+        manager.attach(api);
+        manager.refreshAfterUnauthorized("token1");
+
+        assertThat(manager.getAccessToken()).isEqualTo("token2");
+        assertThat(manager.getRefreshCount()).isEqualTo(1L);
+        verify(api).setAccessToken("token2");
+
+        /*
+         * A request which used an older token does not need another refresh
+         */
+        manager.refreshAfterUnauthorized("token1");
+
+        assertThat(manager.getAccessToken()).isEqualTo("token2");
+        assertThat(manager.getRefreshCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void concurrentUnauthorizedRequestsShareOneRefresh()
+        throws Exception
+    {
+        manager = new BoxCredentialManager(supplier);
+        supplier.block();
+
+        final List<Future<Void>> futures = new ArrayList<>();
+
+        for (int i = 0; i < THREADS; i++)
+            futures.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                    throws BoxIOException
+                {
+                    manager.refreshAfterUnauthorized("token1");
+                    return null;
+                }
+            }));
+
+        final long deadline = System.nanoTime()
+            + TimeUnit.SECONDS.toNanos(5L);
+
+        while (manager.getCoalescedCount() < THREADS - 1) {
+            if (System.nanoTime() > deadline)
+                fail("refreshes were not coalesced");
+            Thread.sleep(10L);
+        }
+
+        supplier.unblock();
+
+        for (final Future<Void> future: futures)
+            future.get(5L, TimeUnit.SECONDS);
+
+        assertThat(supplier.calls).isEqualTo(2);
+        assertThat(manager.getRefreshCount()).isEqualTo(1L);
+        assertThat(manager.getAccessToken()).isEqualTo("token2");
+    }
+
+    @Test
+    public void tokensAreRefreshedBeforeTheyExpire()
+        throws Exception
+    {
+        supplier.lifetime = 1100L;
+        manager = new BoxCredentialManager(supplier, 1L, TimeUnit.SECONDS);
+
+        final long deadline = System.nanoTime()
+            + TimeUnit.SECONDS.toNanos(5L);
+
+        while (manager.getRefreshCount() == 0L) {
+            if (System.nanoTime() > deadline)
+                fail("token was not refreshed");
+            Thread.sleep(10L);
+        }
+
+        assertThat(manager.getAccessToken()).isNotEqualTo("token1");
+    }
+
+    @Test
+    public void refreshFailuresAreReported()
+        throws IOException
+    {
+        final IOException failure = new IOException("denied");
+
+        manager = new BoxCredentialManager(supplier);
+        supplier.failure = failure;
+
+        try {
+            manager.refreshAfterUnauthorized("token1");
+            fail("no exception thrown");
+        } catch (BoxIOException e) {
+            assertThat(e).hasMessage("token refresh failed");
+            assertThat(e.getCause()).isSameAs(failure);
+        }
+
+        assertThat(manager.getFailureCount()).isEqualTo(1L);
+        assertThat(manager.getAccessToken()).isEqualTo("token1");
+    }
+
+    /*
+     * Hands out token1, token2, etc; only ever called from one thread at a
+     * time, but read from the test thread
+     */
+    private static final class CountingSupplier
+        implements BoxTokenSupplier
+    {
+        private volatile int calls = 0;
+        private volatile long lifetime = -1L;
+        private volatile IOException failure = null;
+        private volatile CountDownLatch latch = null;
+
+        @Override
+        public BoxToken getToken(final BoxToken previous)
+            throws IOException
+        {
+            final CountDownLatch current = latch;
+
+            if (current != null)
+                try {
+                    current.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted", e);
+                }
+
+            if (failure != null)
+                throw failure;
+
+            calls++;
+            return new BoxToken("token" + calls, null, lifetime < 0L
+                ? BoxToken.NEVER : System.currentTimeMillis() + lifetime);
+        }
+
+        private void block()
+        {
+            latch = new CountDownLatch(1);
+        }
+
+        private void unblock()
+        {
+            latch.countDown();
+        }
+    }
+}
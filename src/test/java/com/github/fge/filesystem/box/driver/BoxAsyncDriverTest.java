@@ -0,0 +1,130 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.github.fge.filesystem.box.attributes.BoxFileAttributesFactory;
+import com.github.fge.filesystem.box.filestore.BoxFileStore;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+import com.github.fge.filesystem.box.provider.BoxFileSystemFactoryProvider;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class BoxAsyncDriverTest
+{
+    private static final Path TOP = Paths.get("/top");
+
+    private BoxAPIWrapper wrapper;
+    private BoxFileSystemDriver driver;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        wrapper = mock(BoxAPIWrapper.class);
+        driver = new BoxFileSystemDriver(
+            new BoxFileStore(wrapper, new BoxFileAttributesFactory()),
+            new BoxFileSystemFactoryProvider(), wrapper);
+
+        when(wrapper.getChildren(TOP)).thenReturn(Arrays.asList(
+            record(2L, "a.txt", false), record(3L, "sub", true)));
+    }
+
+    @AfterMethod
+    public void shutdown()
+        throws IOException
+    {
+        driver.close();
+    }
+
+    @Test
+    public void handlersGetTheResultAndTheAttachment()
+        throws InterruptedException
+    {
+        final Handler<List<Path>> handler = new Handler<>();
+
+        driver.async().list(TOP, "attachment", handler);
+        handler.await();
+
+        assertThat(handler.result).containsExactly(TOP.resolve("a.txt"),
+            TOP.resolve("sub"));
+        assertThat(handler.failure).isNull();
+        assertThat(handler.attachment).isEqualTo("attachment");
+    }
+
+    @Test
+    public void handlersGetTheFailureAndTheAttachment()
+        throws IOException, InterruptedException
+    {
+        final Path path = TOP.resolve("sub");
+        final DirectoryNotEmptyException exception
+            = new DirectoryNotEmptyException(path.toString());
+        final Handler<Void> handler = new Handler<>();
+
+        doThrow(exception).when(wrapper).deleteItem(path);
+
+        driver.async().delete(path, 42, handler);
+        handler.await();
+
+        assertThat(handler.failure).isSameAs(exception);
+        assertThat(handler.attachment).isEqualTo(42);
+    }
+
+    private static BoxItemRecord record(final long id, final String name,
+        final boolean folder)
+    {
+        return new BoxItemRecord(id, 1L, folder
+            ? BoxItemRecord.Type.FOLDER : BoxItemRecord.Type.FILE, name, "0",
+            null, null, 10L, BoxItemRecord.UNKNOWN_DATE,
+            BoxItemRecord.UNKNOWN_DATE, BoxItemRecord.UNKNOWN_VERSION, null,
+            false);
+    }
+
+    /*
+     * Records how the operation completed; only one of its methods is
+     * expected to be called, and only once
+     */
+    private static final class Handler<V>
+        implements CompletionHandler<V, Object>
+    {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile V result = null;
+        private volatile Throwable failure = null;
+        private volatile Object attachment = null;
+
+        @Override
+        public void completed(final V result, final Object attachment)
+        {
+            this.result = result;
+            this.attachment = attachment;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(final Throwable exc, final Object attachment)
+        {
+            failure = exc;
+            this.attachment = attachment;
+            done.countDown();
+        }
+
+        private void await()
+            throws InterruptedException
+        {
+            assertThat(done.await(5L, TimeUnit.SECONDS)).isTrue();
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.box.sdk.BoxFile;
+import com.box.sdk.BoxFolder;
+import com.github.fge.filesystem.box.attributes.BoxFileAttributesFactory;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import com.github.fge.filesystem.box.filestore.BoxFileStore;
+import com.github.fge.filesystem.box.filestore.BoxQuota;
+import com.github.fge.filesystem.box.io.BoxUploadOption;
+import com.github.fge.filesystem.box.io.BoxWriteOption;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+import com.github.fge.filesystem.box.provider.BoxFileSystemFactoryProvider;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class BoxFileSystemDriverTest
+{
+    private static final Path TOP = Paths.get("/top");
+
+    private BoxAPIWrapper wrapper;
+    private BoxFileSystemDriver driver;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        wrapper = mock(BoxAPIWrapper.class);
+        when(wrapper.getQuota()).thenReturn(new BoxQuota(1000L, 0L, 100L));
+        driver = new BoxFileSystemDriver(
+            new BoxFileStore(wrapper, new BoxFileAttributesFactory()),
+            new BoxFileSystemFactoryProvider(), wrapper);
+
+        /*
+         * /top
+         * +- a.txt
+         * +- sub
+         *    +- b.txt
+         */
+        final BoxItemRecord top = record(1L, 0L, "top", true);
+        final BoxItemRecord a = record(2L, 1L, "a.txt", false);
+        final BoxItemRecord sub = record(3L, 1L, "sub", true);
+        final BoxItemRecord b = record(4L, 3L, "b.txt", false);
+
+        when(wrapper.getRecord(TOP)).thenReturn(top);
+        when(wrapper.getChildren(TOP)).thenReturn(Arrays.asList(a, sub));
+        when(wrapper.getChildren(TOP.resolve("sub")))
+            .thenReturn(Collections.singletonList(b));
+    }
+
+    @AfterMethod
+    public void shutdown()
+        throws IOException
+    {
+        driver.close();
+    }
+
+    @Test
+    public void findWithoutCriteriaReportsEveryItem()
+        throws IOException
+    {
+        assertThat(find(Integer.MAX_VALUE)).containsOnly(TOP,
+            TOP.resolve("a.txt"), TOP.resolve("sub"),
+            TOP.resolve("sub/b.txt"));
+    }
+
+    @Test
+    public void findWithoutCriteriaStopsAtTheMaximumDepth()
+        throws IOException
+    {
+        assertThat(find(1)).containsOnly(TOP, TOP.resolve("a.txt"),
+            TOP.resolve("sub"));
+        assertThat(find(0)).containsOnly(TOP);
+    }
+
+    @Test
+    public void findWithContradictoryCriteriaReportsNothing()
+        throws IOException
+    {
+        assertThat(find(Integer.MAX_VALUE, BoxSearchCriterion.filesOnly(),
+            BoxSearchCriterion.directoriesOnly())).isEmpty();
+    }
+
+    @Test
+    public void findWithCriteriaReportsMatchesOnly()
+        throws IOException
+    {
+        assertThat(find(Integer.MAX_VALUE, BoxSearchCriterion.filesOnly()))
+            .containsOnly(TOP.resolve("a.txt"), TOP.resolve("sub/b.txt"));
+    }
+
+    @Test
+    public void readsResolveThePathOnce()
+        throws IOException
+    {
+        final Path path = TOP.resolve("a.txt");
+        final BoxItemRecord record = record(2L, 1L, "a.txt", false);
+        final BoxFile file = mock(BoxFile.class);
+        final byte[] data = { 1, 2, 3 };
+
+        when(wrapper.getRecord(path)).thenReturn(record);
+        when(wrapper.toItem(record)).thenReturn(file);
+        when(wrapper.getTransferLimiter(file))
+            .thenReturn(new BoxConcurrencyLimiter(4, 4, false));
+        doAnswer(writing(data)).when(file).download(any(OutputStream.class));
+        doAnswer(writing(data)).when(file)
+            .downloadRange(any(OutputStream.class), anyLong(), anyLong());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (
+            final InputStream in = driver.newInputStream(path,
+                Collections.<OpenOption>emptySet());
+        ) {
+            final byte[] buf = new byte[16];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+        }
+
+        assertThat(out.toByteArray()).isEqualTo(data);
+        verify(wrapper, times(1)).getRecord(path);
+        verify(wrapper, never()).getFile(any(Path.class));
+    }
+
+    @Test
+    public void unchangedWritesResolveTheParentOnceAndHonorTheCloseTimeout()
+        throws IOException, InterruptedException
+    {
+        final Path path = TOP.resolve("a.txt");
+        final BoxItemRecord record = record(2L, 1L, "a.txt", false);
+        final BoxFolder folder = mock(BoxFolder.class);
+        final BoxFile file = mock(BoxFile.class);
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(1, 1, false);
+        final Set<OpenOption> options = new HashSet<>();
+
+        options.add(BoxWriteOption.SKIP_IF_UNCHANGED);
+        options.add(BoxUploadOption.closeTimeout(200L, TimeUnit.MILLISECONDS));
+
+        when(wrapper.getFolder(TOP)).thenReturn(folder);
+        when(wrapper.preflightCreate(folder, "a.txt", -1L)).thenReturn(record);
+        when(wrapper.toItem(record)).thenReturn(file);
+        when(wrapper.getTransferLimiter(file)).thenReturn(limiter);
+
+        /*
+         * The record has no hash, so the data is uploaded; hold the only
+         * transfer slot so that the upload cannot start
+         */
+        limiter.acquire();
+
+        final OutputStream out = driver.newOutputStream(path, options);
+
+        out.write(new byte[] { 1, 2, 3 });
+
+        final long start = System.nanoTime();
+
+        try {
+            out.close();
+            fail("no exception thrown");
+        } catch (BoxIOException e) {
+            assertThat(e).hasMessage("upload timeout");
+        }
+
+        assertThat(System.nanoTime() - start)
+            .isLessThan(TimeUnit.SECONDS.toNanos(5L));
+        verify(wrapper, times(1)).getFolder(TOP);
+        limiter.release(System.nanoTime(), null);
+    }
+
+    @Test
+    public void unchangedWritesAreComparedWithThePreflightRecord()
+        throws Exception
+    {
+        final Path path = TOP.resolve("a.txt");
+        final byte[] data = { 1, 2, 3 };
+        final BoxItemRecord record = new BoxItemRecord(2L, 1L,
+            BoxItemRecord.Type.FILE, "a.txt", "0", null,
+            MessageDigest.getInstance("SHA-1").digest(data), 3L,
+            BoxItemRecord.UNKNOWN_DATE, BoxItemRecord.UNKNOWN_DATE,
+            BoxItemRecord.UNKNOWN_VERSION, null, false);
+        final BoxFolder folder = mock(BoxFolder.class);
+        final BoxFile file = mock(BoxFile.class);
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(1, 1, false);
+
+        when(wrapper.getFolder(TOP)).thenReturn(folder);
+        when(wrapper.preflightCreate(folder, "a.txt", -1L)).thenReturn(record);
+        when(wrapper.toItem(record)).thenReturn(file);
+        when(wrapper.getTransferLimiter(file)).thenReturn(limiter);
+
+        /*
+         * Twice, to check that savings add up
+         */
+        for (int i = 0; i < 2; i++)
+            try (
+                final OutputStream out = driver.newOutputStream(path,
+                    Collections.<OpenOption>singleton(
+                        BoxWriteOption.SKIP_IF_UNCHANGED));
+            ) {
+                out.write(data);
+            }
+
+        assertThat(driver.getSkippedUploadCount()).isEqualTo(2L);
+        assertThat(driver.getBytesSaved()).isEqualTo(6L);
+        verify(file, never()).getInfo(Matchers.<String>anyVararg());
+        verify(file, never()).getAPI();
+        verify(file, never()).uploadVersion(any(InputStream.class));
+    }
+
+    @Test
+    public void uploadsResolveTheParentOnceAndPreflightOnce()
+        throws Exception
+    {
+        final Path path = TOP.resolve("a.txt");
+        final byte[] data = { 1, 2, 3 };
+        final BoxItemRecord record = new BoxItemRecord(2L, 1L,
+            BoxItemRecord.Type.FILE, "a.txt", "0", null,
+            MessageDigest.getInstance("SHA-1").digest(data), 0L,
+            BoxItemRecord.UNKNOWN_DATE, BoxItemRecord.UNKNOWN_DATE,
+            BoxItemRecord.UNKNOWN_VERSION, null, false);
+        final BoxFolder folder = mock(BoxFolder.class);
+        final Path source = Files.createTempFile("upload", ".tmp");
+        final Set<CopyOption> options = new HashSet<>();
+
+        options.add(StandardCopyOption.REPLACE_EXISTING);
+        options.add(BoxWriteOption.SKIP_IF_UNCHANGED);
+
+        when(wrapper.getFolder(TOP)).thenReturn(folder);
+        when(wrapper.getTransferLimiter(folder))
+            .thenReturn(new BoxConcurrencyLimiter(1, 1, false));
+
+        try {
+            Files.write(source, data);
+
+            /*
+             * New file
+             */
+            driver.uploadFrom(source, TOP.resolve("b.txt"), options);
+            verify(folder).uploadFile(any(InputStream.class), eq("b.txt"));
+
+            /*
+             * Existing file, with the same contents: the preflight tells,
+             * even though it does not know the size
+             */
+            when(wrapper.preflightCreate(folder, "a.txt", 3L))
+                .thenReturn(record);
+            driver.uploadFrom(source, path, options);
+        } finally {
+            Files.delete(source);
+        }
+
+        assertThat(driver.getSkippedUploadCount()).isEqualTo(1L);
+        assertThat(driver.getBytesSaved()).isEqualTo(3L);
+        verify(wrapper, times(2)).getFolder(TOP);
+        verify(wrapper, never()).getRecord(path);
+        verify(wrapper, never()).getRecord(TOP.resolve("b.txt"));
+        verify(wrapper, never()).toItem(record);
+    }
+
+    @Test
+    public void asynchronousReadsUseTheRecordAndTheTransferLimiter()
+        throws Exception
+    {
+        final Path path = TOP.resolve("a.txt");
+        final BoxItemRecord record = record(2L, 1L, "a.txt", false);
+        final BoxFile file = mock(BoxFile.class);
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(1, 1, false);
+        final byte[] data = { 1, 2, 3, 4 };
+
+        when(wrapper.getRecord(path)).thenReturn(record);
+        when(wrapper.toItem(record)).thenReturn(file);
+        when(wrapper.getTransferLimiter(file)).thenReturn(limiter);
+        doAnswer(writing(data)).when(file)
+            .downloadRange(any(OutputStream.class), anyLong(), anyLong());
+
+        try (
+            final AsynchronousFileChannel channel
+                = driver.newAsynchronousFileChannel(path,
+                    Collections.<OpenOption>emptySet(), null);
+        ) {
+            assertThat(channel.size()).isEqualTo(record.getSize());
+
+            /*
+             * The read waits for the only transfer slot
+             */
+            limiter.acquire();
+            final ByteBuffer buffer = ByteBuffer.allocate(16);
+            final Future<Integer> read = channel.read(buffer, 0L);
+            Thread.sleep(100L);
+            assertThat(read.isDone()).isFalse();
+            limiter.release(System.nanoTime(), null);
+
+            assertThat(read.get(5L, TimeUnit.SECONDS)).isEqualTo(data.length);
+        }
+
+        verify(wrapper, never()).getFile(any(Path.class));
+        verify(file, never()).getInfo(Matchers.<String>anyVararg());
+    }
+
+    private List<Path> find(final int maxDepth,
+        final BoxSearchCriterion... criteria)
+        throws IOException
+    {
+        final List<Path> found
+            = Collections.synchronizedList(new ArrayList<Path>());
+
+        driver.find(TOP, maxDepth, new BoxMatchVisitor()
+        {
+            @Override
+            public boolean visitMatch(final Path path,
+                final BasicFileAttributes attrs)
+            {
+                found.add(path);
+                return true;
+            }
+        }, criteria);
+
+        return found;
+    }
+
+    private static Answer<Void> writing(final byte[] data)
+    {
+        return new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+                throws IOException
+            {
+                ((OutputStream) invocation.getArguments()[0]).write(data);
+                return null;
+            }
+        };
+    }
+
+    private static BoxItemRecord record(final long id, final long parentId,
+        final String name, final boolean folder)
+    {
+        return new BoxItemRecord(id, parentId, folder
+            ? BoxItemRecord.Type.FOLDER : BoxItemRecord.Type.FILE, name, "0",
+            null, null, 10L, BoxItemRecord.UNKNOWN_DATE,
+            BoxItemRecord.UNKNOWN_DATE, BoxItemRecord.UNKNOWN_VERSION, null,
+            false);
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class BoxPrefetcherTest
+{
+    private static final Path DIR = Paths.get("/dir");
+    private static final String[] NAMES = { "a", "b", "c", "d", "e" };
+
+    private ExecutorService executor;
+    private BoxConcurrencyLimiter limiter;
+    private BoxAPIWrapper wrapper;
+    private BoxPrefetcher prefetcher;
+    private Map<String, BoxItemRecord> records;
+    private Map<String, BoxFile> files;
+
+    @BeforeMethod
+    public void init()
+    {
+        executor = Executors.newCachedThreadPool();
+        limiter = new BoxConcurrencyLimiter(4, 4, false);
+        wrapper = mock(BoxAPIWrapper.class);
+        prefetcher = new BoxPrefetcher(2, 1024L, 1024L);
+        records = new HashMap<>();
+        files = new HashMap<>();
+
+        final List<BoxItemRecord> children = new ArrayList<>();
+        BoxItemRecord record;
+        BoxFile file;
+
+        for (int i = 0; i < NAMES.length; i++) {
+            record = new BoxItemRecord(i + 2L, 1L, BoxItemRecord.Type.FILE,
+                NAMES[i], "0", null, null, 1L, BoxItemRecord.UNKNOWN_DATE,
+                BoxItemRecord.UNKNOWN_DATE, BoxItemRecord.UNKNOWN_VERSION,
+                null, false);
+            file = file(NAMES[i]);
+            when(wrapper.toItem(record)).thenReturn(file);
+            when(wrapper.getTransferLimiter(file)).thenReturn(limiter);
+            records.put(NAMES[i], record);
+            files.put(NAMES[i], file);
+            children.add(record);
+        }
+
+        prefetcher.listed(DIR, children);
+    }
+
+    @AfterMethod
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void onlyFilesReadInOrderArePrefetched()
+        throws IOException
+    {
+        /*
+         * One read is not a pattern yet
+         */
+        assertThat(open("a")).isNull();
+        assertThat(prefetcher.getBufferedBytes()).isEqualTo(0L);
+
+        assertThat(open("b")).isNull();
+        assertThat(prefetcher.getBufferedBytes()).isEqualTo(2L);
+
+        assertThat(read(open("c"))).isEqualTo("c");
+
+        /*
+         * Skipping d wastes it
+         */
+        assertThat(read(open("e"))).isEqualTo("e");
+
+        assertThat(prefetcher.getHitCount()).isEqualTo(2L);
+        assertThat(prefetcher.getMissCount()).isEqualTo(2L);
+        assertThat(prefetcher.getHitRate()).isEqualTo(0.5);
+        assertThat(prefetcher.getWastedBytes()).isEqualTo(1L);
+        assertThat(prefetcher.getBufferedBytes()).isEqualTo(0L);
+        verify(files.get("a"), never()).download(any(OutputStream.class));
+        verify(files.get("b"), never()).download(any(OutputStream.class));
+    }
+
+    @Test
+    public void readsOutOfOrderRestartThePattern()
+        throws IOException
+    {
+        open("c");
+        open("a");
+
+        assertThat(prefetcher.getBufferedBytes()).isEqualTo(0L);
+
+        open("b");
+
+        assertThat(prefetcher.getBufferedBytes()).isEqualTo(2L);
+    }
+
+    @Test
+    public void nothingIsPrefetchedWithoutIdleTransferSlots()
+        throws IOException, InterruptedException
+    {
+        for (int i = 0; i < limiter.getLimit(); i++)
+            limiter.acquire();
+
+        open("a");
+        open("b");
+
+        assertThat(open("c")).isNull();
+        assertThat(prefetcher.getPrefetchCount()).isEqualTo(0L);
+        assertThat(prefetcher.getMissCount()).isEqualTo(3L);
+        verify(files.get("c"), never()).download(any(OutputStream.class));
+
+        for (int i = 0; i < limiter.getLimit(); i++)
+            limiter.release(System.nanoTime(), null);
+    }
+
+    private InputStream open(final String name)
+        throws IOException
+    {
+        return prefetcher.open(DIR.resolve(name), records.get(name), wrapper,
+            executor);
+    }
+
+    private static String read(final InputStream in)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+
+        while ((b = in.read()) != -1)
+            out.write(b);
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * The contents of a file are its name
+     */
+    private static BoxFile file(final String name)
+    {
+        final BoxFile file = mock(BoxFile.class);
+
+        when(file.getID()).thenReturn(name);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+                throws IOException
+            {
+                ((OutputStream) invocation.getArguments()[0])
+                    .write(name.getBytes(StandardCharsets.UTF_8));
+                return null;
+            }
+        }).when(file).download(any(OutputStream.class));
+
+        return file;
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.github.fge.filesystem.box.driver.BoxSearchCriterion.directoriesOnly;
+import static com.github.fge.filesystem.box.driver.BoxSearchCriterion.extensions;
+import static com.github.fge.filesystem.box.driver.BoxSearchCriterion.filesOnly;
+import static com.github.fge.filesystem.box.driver.BoxSearchCriterion.modifiedBetween;
+import static com.github.fge.filesystem.box.driver.BoxSearchCriterion.modifiedSince;
+import static com.github.fge.filesystem.box.driver.BoxSearchCriterion.nameGlob;
+import static com.github.fge.filesystem.box.driver.BoxSearchCriterion.sizeBetween;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class BoxSearchQueryTest
+{
+    private static final long FOLDER = 42L;
+
+    @DataProvider
+    public Iterator<Object[]> globs()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { "report-2024*.pdf",
+            new String[] { "report", "pdf" } });
+        list.add(new Object[] { "read me.txt",
+            new String[] { "read", "me", "txt" } });
+        list.add(new Object[] { "*report*", new String[0] });
+        list.add(new Object[] { "a\\*b", new String[] { "a", "b" } });
+        list.add(new Object[] { "{foo,bar}.txt", new String[] { "txt" } });
+        list.add(new Object[] { "[ab]cd.md", new String[] { "md" } });
+        list.add(new Object[] { "x?y", new String[0] });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "globs")
+    public void onlyWholeWordsOfGlobsAreSearchedFor(final String glob,
+        final String[] words)
+    {
+        assertThat(BoxGlob.words(glob)).containsExactly(words);
+    }
+
+    @Test
+    public void globsMatchWholeNames()
+    {
+        assertThat(BoxGlob.toRegex("*.{txt,md}").matcher("a.md").matches())
+            .isTrue();
+        assertThat(BoxGlob.toRegex("*.{txt,md}").matcher("a.mdx").matches())
+            .isFalse();
+        assertThat(BoxGlob.toRegex("[!a]?.(1)").matcher("bc.(1)").matches())
+            .isTrue();
+        assertThat(BoxGlob.toRegex("[!a]?.(1)").matcher("ac.(1)").matches())
+            .isFalse();
+    }
+
+    @Test
+    public void theLongestWordIsTheQuery()
+    {
+        final BoxSearchQuery query = new BoxSearchQuery(
+            nameGlob("quarterly report*.pdf"), filesOnly(),
+            sizeBetween(10L, 100L));
+
+        assertThat(query.isSearchable()).isTrue();
+        assertThat(query.toParameters(FOLDER)).isEqualTo("query=quarterly"
+            + "&content_types=name&ancestor_folder_ids=42&type=file"
+            + "&size_range=10%2C100");
+        assertThat(new BoxSearchQuery(nameGlob("caf\u00e9 notes*"))
+            .toParameters(BoxItemRecord.ROOT_ID))
+            .isEqualTo("query=caf%C3%A9&content_types=name");
+    }
+
+    @Test
+    public void extensionsRestrictToFiles()
+    {
+        assertThat(new BoxSearchQuery(extensions("PDF"))
+            .toParameters(BoxItemRecord.ROOT_ID)).isEqualTo("query=pdf"
+            + "&content_types=name&type=file&file_extensions=pdf");
+        assertThat(new BoxSearchQuery(nameGlob("budget-*"),
+            extensions("pdf", "doc")).toParameters(FOLDER))
+            .isEqualTo("query=budget&content_types=name"
+                + "&ancestor_folder_ids=42&type=file"
+                + "&file_extensions=pdf%2Cdoc");
+
+        /*
+         * No word common to all names
+         */
+        assertThat(new BoxSearchQuery(extensions("pdf", "doc"))
+            .isSearchable()).isFalse();
+        assertThat(new BoxSearchQuery(extensions("pdf"), directoriesOnly())
+            .matchesNothing()).isTrue();
+        assertThat(new BoxSearchQuery(extensions("pdf"), extensions("doc"))
+            .matchesNothing()).isTrue();
+    }
+
+    @Test
+    public void openRangesHaveNoUpperBound()
+    {
+        assertThat(new BoxSearchQuery(nameGlob("x.txt"),
+            sizeBetween(5L, Long.MAX_VALUE),
+            modifiedSince(FileTime.fromMillis(1500L)))
+            .toParameters(BoxItemRecord.ROOT_ID)).isEqualTo("query=txt"
+            + "&content_types=name&size_range=5%2C"
+            + "&updated_at_range=1970-01-01T00%3A00%3A01Z%2C");
+    }
+
+    @Test
+    public void dateRangesAreWidenedToTheSecond()
+    {
+        assertThat(new BoxSearchQuery(nameGlob("x.txt"),
+            modifiedBetween(FileTime.fromMillis(1500L),
+                FileTime.fromMillis(2500L)))
+            .toParameters(BoxItemRecord.ROOT_ID)).isEqualTo("query=txt"
+            + "&content_types=name&updated_at_range=1970-01-01T00%3A00%3A01Z"
+            + "%2C1970-01-01T00%3A00%3A03Z");
+    }
+}
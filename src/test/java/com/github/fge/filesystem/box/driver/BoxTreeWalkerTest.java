@@ -0,0 +1,160 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class BoxTreeWalkerTest
+{
+    private static final Path TOP = Paths.get("/top");
+
+    private ExecutorService executor;
+    private BoxAPIWrapper wrapper;
+    private BoxTreeWalker walker;
+
+    /*
+     * /top
+     *   a.txt
+     *   skip/
+     *     x.txt
+     *   b/
+     *     c.txt
+     *     d.txt
+     *     e.txt
+     *   z/
+     *     y.txt
+     */
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        executor = Executors.newCachedThreadPool();
+        wrapper = mock(BoxAPIWrapper.class);
+
+        /*
+         * One listing at a time, so that the order of visits is known
+         */
+        walker = new BoxTreeWalker(wrapper, executor, 1);
+
+        when(wrapper.getRecord(TOP)).thenReturn(record("top", true));
+        when(wrapper.getChildren(TOP)).thenReturn(Arrays.asList(
+            record("a.txt", false), record("skip", true), record("b", true),
+            record("z", true)));
+        when(wrapper.getChildren(TOP.resolve("skip")))
+            .thenReturn(Arrays.asList(record("x.txt", false)));
+        when(wrapper.getChildren(TOP.resolve("b"))).thenReturn(Arrays.asList(
+            record("c.txt", false), record("d.txt", false),
+            record("e.txt", false)));
+        when(wrapper.getChildren(TOP.resolve("z")))
+            .thenReturn(Arrays.asList(record("y.txt", false)));
+    }
+
+    @AfterMethod
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void skippedSubtreesAreNotListed()
+        throws IOException
+    {
+        final List<Path> visited = new ArrayList<>();
+
+        walker.walk(TOP, Integer.MAX_VALUE, visitor(visited,
+            Collections.singletonMap("skip", FileVisitResult.SKIP_SUBTREE)));
+
+        assertThat(visited).containsExactly(TOP, TOP.resolve("a.txt"),
+            TOP.resolve("skip"), TOP.resolve("b"), TOP.resolve("z"),
+            TOP.resolve("b/c.txt"), TOP.resolve("b/d.txt"),
+            TOP.resolve("b/e.txt"), TOP.resolve("z/y.txt"));
+        verify(wrapper, never()).getChildren(TOP.resolve("skip"));
+    }
+
+    @Test
+    public void terminatingStopsTheWalk()
+        throws IOException
+    {
+        final List<Path> visited = new ArrayList<>();
+
+        walker.walk(TOP, Integer.MAX_VALUE, visitor(visited,
+            Collections.singletonMap("d.txt", FileVisitResult.TERMINATE)));
+
+        assertThat(visited).containsExactly(TOP, TOP.resolve("a.txt"),
+            TOP.resolve("skip"), TOP.resolve("b"), TOP.resolve("z"),
+            TOP.resolve("skip/x.txt"), TOP.resolve("b/c.txt"),
+            TOP.resolve("b/d.txt"));
+        verify(wrapper, never()).getChildren(TOP.resolve("z"));
+    }
+
+    /*
+     * Records the paths visited, and returns the given result for the given
+     * names; CONTINUE otherwise
+     */
+    private static BoxFileVisitor visitor(final List<Path> visited,
+        final Map<String, FileVisitResult> results)
+    {
+        return new BoxFileVisitor()
+        {
+            @Override
+            public FileVisitResult visitDirectory(final Path dir,
+                final BasicFileAttributes attrs)
+            {
+                return visit(dir);
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file,
+                final BasicFileAttributes attrs)
+            {
+                return visit(file);
+            }
+
+            @Override
+            public FileVisitResult visitDirectoryFailed(final Path dir,
+                final IOException exc)
+            {
+                return FileVisitResult.TERMINATE;
+            }
+
+            private FileVisitResult visit(final Path path)
+            {
+                final FileVisitResult result
+                    = results.get(path.getFileName().toString());
+
+                visited.add(path);
+                return result == null ? FileVisitResult.CONTINUE : result;
+            }
+        };
+    }
+
+    private static BoxItemRecord record(final String name,
+        final boolean folder)
+    {
+        return new BoxItemRecord(name.hashCode(), 1L, folder
+            ? BoxItemRecord.Type.FOLDER : BoxItemRecord.Type.FILE, name, "0",
+            null, null, 10L, BoxItemRecord.UNKNOWN_DATE,
+            BoxItemRecord.UNKNOWN_DATE, BoxItemRecord.UNKNOWN_VERSION, null,
+            false);
+    }
+}
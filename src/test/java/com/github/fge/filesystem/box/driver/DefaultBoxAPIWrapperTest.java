@@ -0,0 +1,177 @@
+package com.github.fge.filesystem.box.driver;
+
+import com.eclipsesource.json.JsonValue;
+import com.github.fge.filesystem.box.connection.BoxConnectionPool;
+import com.github.fge.filesystem.box.metadata.BoxItemCache;
+import com.github.fge.filesystem.box.metadata.BoxItemRecord;
+import com.github.fge.filesystem.box.metadata.BoxJsonReader;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class DefaultBoxAPIWrapperTest
+{
+    private BoxConnectionPool pool;
+    private DefaultBoxAPIWrapper wrapper;
+
+    @BeforeMethod
+    public void init()
+    {
+        pool = new BoxConnectionPool();
+        wrapper = new DefaultBoxAPIWrapper(pool.acquire("token"),
+            new BoxItemCache());
+    }
+
+    @AfterMethod
+    public void shutdown()
+        throws IOException
+    {
+        wrapper.close();
+    }
+
+    /*
+     * Folders are only deleted if the emptiness check finds no entry; web
+     * links are entries too
+     */
+    @Test
+    public void foldersAreEmptyForDeletionOnlyWithoutEntries()
+        throws IOException
+    {
+        assertThat(page("{\"total_count\":0,\"entries\":[]}").isEmpty())
+            .isTrue();
+        assertThat(page("{\"total_count\":3,\"entries\":[{\"type\":\"file\","
+            + "\"id\":\"5\",\"name\":\"a.txt\"}]}").isEmpty()).isFalse();
+        assertThat(page("{\"total_count\":1,\"entries\":[{\"type\":"
+            + "\"web_link\",\"id\":\"6\",\"name\":\"link\"}]}").isEmpty())
+            .isFalse();
+    }
+
+    @Test
+    public void archiveEntriesAreMappedBackToTheirItems()
+        throws IOException
+    {
+        final Map<BoxItemRecord, Path> items = new LinkedHashMap<>();
+
+        items.put(record(1L, "a.txt", false), Paths.get("/x/a.txt"));
+        items.put(record(2L, "a.txt", false), Paths.get("/y/a.txt"));
+        items.put(record(3L, "dir", true), Paths.get("/z/dir"));
+
+        final Map<String, Path> targets = DefaultBoxAPIWrapper.zipTargets(
+            items, JsonValue.readFrom("[[{\"id\":\"1\",\"download_name\":"
+                + "\"a.txt\"},{\"id\":\"2\",\"download_name\":"
+                + "\"a (1).txt\"}]]"));
+        final Map<Path, String> read = new HashMap<>();
+
+        assertThat(DefaultBoxAPIWrapper.readZip(zip("a.txt", "1",
+            "a (1).txt", "2", "dir/", null, "dir/sub/b.txt", "3",
+            "unknown.txt", "4"), targets, visitor(read, 10))).isTrue();
+
+        assertThat(read).hasSize(3);
+        assertThat(read.get(Paths.get("/x/a.txt"))).isEqualTo("1");
+        assertThat(read.get(Paths.get("/y/a.txt"))).isEqualTo("2");
+        assertThat(read.get(Paths.get("/z/dir/sub/b.txt"))).isEqualTo("3");
+    }
+
+    @Test
+    public void archivesAreReadUntilTheVisitorTerminates()
+        throws IOException
+    {
+        final Map<BoxItemRecord, Path> items = new LinkedHashMap<>();
+
+        items.put(record(1L, "a.txt", false), Paths.get("/x/a.txt"));
+        items.put(record(2L, "b.txt", false), Paths.get("/x/b.txt"));
+
+        final Map<Path, String> read = new HashMap<>();
+
+        assertThat(DefaultBoxAPIWrapper.readZip(zip("a.txt", "1", "b.txt",
+            "2"), DefaultBoxAPIWrapper.zipTargets(items, null),
+            visitor(read, 1))).isFalse();
+        assertThat(read).containsOnlyKeys(Paths.get("/x/a.txt"));
+    }
+
+    private DefaultBoxAPIWrapper.Page page(final String json)
+        throws IOException
+    {
+        try (
+            final BoxJsonReader reader
+                = new BoxJsonReader(new StringReader(json));
+        ) {
+            return wrapper.readPage(reader, 1L, false);
+        }
+    }
+
+    /*
+     * Records the contents of the files read, and terminates after the
+     * given number of files
+     */
+    private static BoxBulkReadVisitor visitor(final Map<Path, String> read,
+        final int max)
+    {
+        return new BoxBulkReadVisitor()
+        {
+            @Override
+            public boolean visitFile(final Path path, final InputStream in)
+                throws IOException
+            {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int b;
+
+                while ((b = in.read()) != -1)
+                    out.write(b);
+
+                read.put(path, new String(out.toByteArray(),
+                    StandardCharsets.UTF_8));
+                return read.size() < max;
+            }
+        };
+    }
+
+    /*
+     * Names and contents, in turn; directories have no contents
+     */
+    private static InputStream zip(final String... entries)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try (
+            final ZipOutputStream zip = new ZipOutputStream(out,
+                StandardCharsets.UTF_8);
+        ) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(entries[i]));
+                if (entries[i + 1] != null)
+                    zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    private static BoxItemRecord record(final long id, final String name,
+        final boolean folder)
+    {
+        return new BoxItemRecord(id, 0L, folder
+            ? BoxItemRecord.Type.FOLDER : BoxItemRecord.Type.FILE, name, "0",
+            null, null, 10L, BoxItemRecord.UNKNOWN_DATE,
+            BoxItemRecord.UNKNOWN_DATE, BoxItemRecord.UNKNOWN_VERSION, null,
+            false);
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.fge.filesystem.box.filestore;
+
+import com.github.fge.filesystem.box.attributes.BoxFileAttributesFactory;
+import com.github.fge.filesystem.box.driver.BoxAPIWrapper;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class BoxFileStoreTest
+{
+    private BoxAPIWrapper wrapper;
+    private BoxFileStore store;
+
+    @BeforeMethod
+    public void init()
+        throws BoxIOException
+    {
+        wrapper = mock(BoxAPIWrapper.class);
+        when(wrapper.getQuota()).thenReturn(new BoxQuota(1000L, 100L, 50L),
+            new BoxQuota(1000L, 400L, 50L));
+        store = new BoxFileStore(wrapper, new BoxFileAttributesFactory(), 1L,
+            TimeUnit.HOURS);
+    }
+
+    @Test
+    public void allocatedSpaceIsAccountedForLocally()
+        throws IOException
+    {
+        store.spaceAllocated(300L);
+
+        assertThat(store.getTotalSpace()).isEqualTo(1000L);
+        assertThat(store.getUsableSpace()).isEqualTo(600L);
+
+        store.spaceAllocated(-500L);
+
+        assertThat(store.getQuota().getSpaceUsed()).isEqualTo(0L);
+        assertThat(store.getUnallocatedSpace()).isEqualTo(1000L);
+
+        store.spaceAllocated(2000L);
+
+        assertThat(store.getUsableSpace()).isEqualTo(0L);
+        verify(wrapper, times(1)).getQuota();
+    }
+
+    @Test
+    public void staleInformationIsServedWhileItIsRefreshed()
+        throws IOException, InterruptedException
+    {
+        store.invalidate();
+
+        assertThat(store.getQuota().getSpaceUsed()).isEqualTo(100L);
+
+        final long deadline = System.nanoTime()
+            + TimeUnit.SECONDS.toNanos(5L);
+
+        while (store.getQuota().getSpaceUsed() != 400L) {
+            if (System.nanoTime() > deadline)
+                fail("quota not refreshed");
+            Thread.sleep(10L);
+        }
+    }
+
+    @Test
+    public void failedRefreshesKeepTheCurrentInformation()
+        throws IOException, InterruptedException
+    {
+        final AtomicInteger calls = new AtomicInteger();
+
+        doAnswer(new Answer<BoxQuota>()
+        {
+            @Override
+            public BoxQuota answer(final InvocationOnMock invocation)
+                throws BoxIOException
+            {
+                calls.incrementAndGet();
+                throw new BoxIOException("quota unavailable");
+            }
+        }).when(wrapper).getQuota();
+
+        store.spaceAllocated(50L);
+        store.invalidate();
+
+        final long deadline = System.nanoTime()
+            + TimeUnit.SECONDS.toNanos(5L);
+
+        /*
+         * A failed refresh leaves the information stale, so that the next
+         * read tries again
+         */
+        while (calls.get() < 2) {
+            if (System.nanoTime() > deadline)
+                fail("quota refresh not retried");
+            assertThat(store.getQuota().getSpaceUsed()).isEqualTo(150L);
+            Thread.sleep(10L);
+        }
+    }
+}
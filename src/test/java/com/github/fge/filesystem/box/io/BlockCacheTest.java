@@ -0,0 +1,145 @@
+package com.github.fge.filesystem.box.io;
+
+import com.github.fge.filesystem.box.io.BlockCache.Block;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class BlockCacheTest
+{
+    private static final int BLOCK_SIZE = 10;
+
+    private BlockCache cache;
+
+    @BeforeMethod
+    public void init()
+    {
+        cache = new BlockCache(3L * BLOCK_SIZE);
+    }
+
+    @Test
+    public void blocksWithinTheCapacityAreKept()
+    {
+        final Block a = block(0);
+        final Block b = block(1);
+
+        assertThat(cache.add(a)).isEmpty();
+        assertThat(cache.add(b)).isEmpty();
+
+        assertThat(cache.getSize()).isEqualTo(2L * BLOCK_SIZE);
+        assertThat(cache.pin(a)).hasSize(BLOCK_SIZE);
+        assertThat(cache.pin(b)).hasSize(BLOCK_SIZE);
+        assertThat(cache.getEvictionCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void leastRecentlyUsedBlocksAreEvictedFirst()
+    {
+        final Block a = block(0);
+        final Block b = block(1);
+        final Block c = block(2);
+        final Block d = block(3);
+
+        for (final Block block: Arrays.asList(a, b, c)) {
+            cache.add(block);
+            read(block);
+        }
+
+        /*
+         * Reading from a again makes b the least recently used block
+         */
+        read(a);
+
+        assertThat(cache.add(d)).containsExactly(b);
+        assertThat(cache.pin(b)).isNull();
+        assertThat(cache.pin(a)).isNotNull();
+        assertThat(cache.getSize()).isEqualTo(3L * BLOCK_SIZE);
+        assertThat(cache.getEvictionCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void unreadBlocksAreEvictedLast()
+    {
+        final Block a = block(0);
+        final Block b = block(1);
+        final Block c = block(2);
+        final Block d = block(3);
+        final Block e = block(4);
+
+        cache.add(a);
+        cache.add(b);
+        cache.add(c);
+        read(c);
+
+        assertThat(cache.add(d)).containsExactly(c);
+        assertThat(cache.add(e)).containsExactly(a);
+        assertThat(cache.pin(b)).isNotNull();
+    }
+
+    @Test
+    public void pinnedBlocksAreNotEvicted()
+    {
+        final Block a = block(0);
+        final Block b = block(1);
+        final Block c = block(2);
+        final Block d = block(3);
+
+        cache.add(a);
+        cache.add(b);
+        cache.add(c);
+        cache.pin(a);
+
+        assertThat(cache.add(d)).containsExactly(b);
+        assertThat(cache.pin(a)).isNotNull();
+    }
+
+    @Test
+    public void newBlocksAreEvictedIfAllOthersArePinned()
+    {
+        final Block a = block(0);
+        final Block b = block(1);
+        final Block c = block(2);
+        final Block d = block(3);
+
+        for (final Block block: Arrays.asList(a, b, c)) {
+            cache.add(block);
+            cache.pin(block);
+        }
+
+        assertThat(cache.add(d)).containsExactly(d);
+        assertThat(cache.pin(d)).isNull();
+        assertThat(cache.getSize()).isEqualTo(3L * BLOCK_SIZE);
+    }
+
+    @Test
+    public void discardedBlocksFreeTheirSpace()
+    {
+        final Block a = block(0);
+        final Block b = block(1);
+
+        cache.add(a);
+        cache.add(b);
+        cache.discard(Arrays.asList(a, b));
+
+        assertThat(cache.getSize()).isEqualTo(0L);
+        assertThat(cache.pin(a)).isNull();
+        assertThat(cache.getEvictionCount()).isEqualTo(0L);
+    }
+
+    private void read(final Block block)
+    {
+        cache.pin(block);
+        cache.unpin(block);
+    }
+
+    /*
+     * The cache does not care about the owner of a block
+     */
+    private static Block block(final int index)
+    {
+        return new Block(null, index, new byte[BLOCK_SIZE]);
+    }
+}
@@ -0,0 +1,282 @@
+package com.github.fge.filesystem.box.io;
+
+import com.box.sdk.BoxAPIException;
+import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class BoxFileInputStreamTest
+{
+    private static final String ETAG = "1";
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void init()
+    {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void downloadsAreResumedAfterTransientFailures()
+        throws Exception
+    {
+        final byte[] data = randomBytes(1024 * 1024);
+        final int half = data.length / 2;
+        final BoxFile file = file("1", data, half);
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(4, 4, false);
+
+        try (
+            final InputStream in = new BoxFileInputStream(executor, limiter,
+                file, ETAG, 0L);
+        ) {
+            assertThat(readAll(in)).isEqualTo(data);
+        }
+
+        verify(file).downloadRange(any(OutputStream.class), eq((long) half),
+            eq(-1L));
+        verify(file).getInfo("etag");
+    }
+
+    @Test
+    public void streamsOpenedAtAnOffsetTrustTheGivenEtag()
+        throws Exception
+    {
+        final byte[] data = randomBytes(1024 * 1024);
+        final int half = data.length / 2;
+        final BoxFile file = file("1", data, -1);
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(4, 4, false);
+
+        try (
+            final InputStream in = new BoxFileInputStream(executor, limiter,
+                file, ETAG, half);
+        ) {
+            assertThat(readAll(in))
+                .isEqualTo(Arrays.copyOfRange(data, half, data.length));
+        }
+
+        verify(file, never()).getInfo(Matchers.<String>anyVararg());
+    }
+
+    @Test
+    public void stalledStreamsLetOtherStreamsThrough()
+        throws Exception
+    {
+        final byte[] stalledData
+            = randomBytes(4 * ReadAheadBuffer.MAX_CAPACITY);
+        final byte[] otherData = randomBytes(1024 * 1024);
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(1, 1, false);
+
+        try (
+            final InputStream stalled = new BoxFileInputStream(executor,
+                limiter, file("1", stalledData, -1), ETAG, 0L);
+        ) {
+            final byte[] b = new byte[8192];
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int n;
+
+            n = stalled.read(b);
+            out.write(b, 0, n);
+
+            /*
+             * The only transfer slot is taken: this stream only gets it once
+             * the other one pauses
+             */
+            final Future<byte[]> other = executor.submit(
+                reader(new BoxFileInputStream(executor, limiter,
+                    file("2", otherData, -1), ETAG, 0L)));
+
+            assertThat(other.get(ReadAheadBuffer.PAUSE_MILLIS + 10000L,
+                TimeUnit.MILLISECONDS)).isEqualTo(otherData);
+
+            while ((n = stalled.read(b)) != -1)
+                out.write(b, 0, n);
+
+            assertThat(out.toByteArray()).isEqualTo(stalledData);
+        }
+
+        assertThat(limiter.getInFlight()).isEqualTo(0);
+        assertThat(limiter.getLimit()).isEqualTo(1);
+    }
+
+    @Test
+    public void stalledSharedDownloadsLetOtherStreamsThrough()
+        throws Exception
+    {
+        final byte[] stalledData
+            = randomBytes(4 * ReadAheadBuffer.MAX_CAPACITY);
+        final byte[] otherData = randomBytes(1024 * 1024);
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(1, 1, false);
+        final BoxSharedDownloads downloads
+            = new BoxSharedDownloads(BoxSharedDownloads.DEFAULT_CAPACITY);
+        final BoxFile file = file("1", stalledData, -1);
+
+        /*
+         * The first stream on a file reads it directly; the second one starts
+         * a shared download
+         */
+        try (
+            final InputStream first = downloads.open(executor, limiter, file,
+                ETAG);
+            final InputStream stalled = downloads.open(executor, limiter, file,
+                ETAG);
+        ) {
+            assertThat(readAll(first)).isEqualTo(stalledData);
+            assertThat(downloads.getDownloadCount()).isEqualTo(1L);
+
+            final byte[] b = new byte[8192];
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int n;
+
+            n = stalled.read(b);
+            out.write(b, 0, n);
+
+            final Future<byte[]> other = executor.submit(reader(
+                downloads.open(executor, limiter, file("2", otherData, -1),
+                    ETAG)));
+
+            assertThat(other.get(ReadAheadBuffer.PAUSE_MILLIS + 10000L,
+                TimeUnit.MILLISECONDS)).isEqualTo(otherData);
+
+            while ((n = stalled.read(b)) != -1)
+                out.write(b, 0, n);
+
+            assertThat(out.toByteArray()).isEqualTo(stalledData);
+        }
+
+        assertThat(downloads.getFallbackCount()).isEqualTo(1L);
+        assertThat(limiter.getLimit()).isEqualTo(1);
+    }
+
+    private Callable<byte[]> reader(final InputStream in)
+    {
+        return new Callable<byte[]>()
+        {
+            @Override
+            public byte[] call()
+                throws IOException
+            {
+                try (
+                    final InputStream stream = in;
+                ) {
+                    return readAll(stream);
+                }
+            }
+        };
+    }
+
+    private static byte[] readAll(final InputStream in)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] b = new byte[8192];
+        int n;
+
+        while ((n = in.read(b)) != -1)
+            out.write(b, 0, n);
+
+        return out.toByteArray();
+    }
+
+    /*
+     * A file whose first download fails at the given offset, if not negative,
+     * as if the connection were reset
+     */
+    private static BoxFile file(final String id, final byte[] data,
+        final int failAt)
+    {
+        final BoxFile file = mock(BoxFile.class);
+        final BoxFile.Info info = mock(BoxFile.Info.class);
+
+        when(file.getID()).thenReturn(id);
+        when(file.getInfo("etag")).thenReturn(info);
+        when(info.getEtag()).thenReturn(ETAG);
+
+        doAnswer(sending(data, failAt)).when(file)
+            .download(any(OutputStream.class));
+        doAnswer(sending(data, -1)).when(file)
+            .downloadRange(any(OutputStream.class), anyLong(), anyLong());
+
+        return file;
+    }
+
+    /*
+     * Like the SDK, report write failures as API failures without a response
+     */
+    private static Answer<Void> sending(final byte[] data, final int failAt)
+    {
+        return new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+            {
+                final Object[] args = invocation.getArguments();
+                final OutputStream out = (OutputStream) args[0];
+                final int end = failAt < 0 ? data.length : failAt;
+                int off = args.length == 1 ? 0 : ((Long) args[1]).intValue();
+                int n;
+
+                try {
+                    while (off < end) {
+                        n = Math.min(8192, end - off);
+                        out.write(data, off, n);
+                        off += n;
+                    }
+                } catch (IOException e) {
+                    final BoxAPIException exception
+                        = new BoxAPIException("write failure");
+                    exception.initCause(e);
+                    throw exception;
+                }
+
+                if (end < data.length)
+                    throw new BoxAPIException("connection reset");
+                return null;
+            }
+        };
+    }
+
+    private static byte[] randomBytes(final int size)
+    {
+        final byte[] ret = new byte[size];
+        new Random(size).nextBytes(ret);
+        return ret;
+    }
+}
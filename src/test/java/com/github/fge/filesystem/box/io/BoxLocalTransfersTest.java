@@ -0,0 +1,188 @@
+package com.github.fge.filesystem.box.io;
+
+import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class BoxLocalTransfersTest
+{
+    private static final String ETAG = "1";
+
+    private ExecutorService executor;
+    private BoxConcurrencyLimiter limiter;
+    private Path tmp;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        executor = Executors.newCachedThreadPool();
+        limiter = new BoxConcurrencyLimiter(4, 4, false);
+        tmp = Files.createTempFile("download", ".part");
+    }
+
+    @AfterMethod
+    public void shutdown()
+        throws IOException
+    {
+        executor.shutdownNow();
+        Files.delete(tmp);
+    }
+
+    @Test
+    public void rangesArePlannedFromTheSizeBoxReports()
+        throws IOException
+    {
+        final long size = BoxLocalTransfers.PARALLEL_THRESHOLD + 12345L;
+        final BoxFile file = file(size, ETAG, ETAG);
+
+        try (
+            final FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.WRITE);
+        ) {
+            BoxLocalTransfers.download(executor, limiter, file,
+                BoxLocalTransfers.PARALLEL_THRESHOLD, ETAG, channel);
+        }
+
+        assertThat(Files.size(tmp)).isEqualTo(size);
+        checkContents(size);
+    }
+
+    @Test
+    public void filesChangedBeforeTheDownloadAreNotDownloaded()
+        throws IOException
+    {
+        final BoxFile file = file(BoxLocalTransfers.PARALLEL_THRESHOLD, "2",
+            "2");
+
+        try (
+            final FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.WRITE);
+        ) {
+            BoxLocalTransfers.download(executor, limiter, file,
+                BoxLocalTransfers.PARALLEL_THRESHOLD, ETAG, channel);
+            fail("no exception thrown");
+        } catch (BoxIOException e) {
+            assertThat(e).hasMessage("file 1 changed during download");
+        }
+
+        assertThat(Files.size(tmp)).isEqualTo(0L);
+    }
+
+    @Test
+    public void filesChangedDuringTheDownloadAreReported()
+        throws IOException
+    {
+        final BoxFile file = file(BoxLocalTransfers.PARALLEL_THRESHOLD, ETAG,
+            "2");
+
+        try (
+            final FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.WRITE);
+        ) {
+            BoxLocalTransfers.download(executor, limiter, file,
+                BoxLocalTransfers.PARALLEL_THRESHOLD, ETAG, channel);
+            fail("no exception thrown");
+        } catch (BoxIOException e) {
+            assertThat(e).hasMessage("file 1 changed during download");
+        }
+    }
+
+    private void checkContents(final long size)
+        throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        long position = 0L;
+
+        try (
+            final FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.READ);
+        ) {
+            while (channel.read(buffer, position) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    if (buffer.get() != byteAt(position))
+                        fail("wrong byte at offset " + position);
+                    position++;
+                }
+                buffer.clear();
+            }
+        }
+
+        assertThat(position).isEqualTo(size);
+    }
+
+    /*
+     * A file of the given size, whose etag is the first one when the download
+     * starts, and the second one afterwards
+     */
+    private static BoxFile file(final long size, final String etag,
+        final String etagAfter)
+    {
+        final BoxFile file = mock(BoxFile.class);
+        final BoxFile.Info before = mock(BoxFile.Info.class);
+        final BoxFile.Info after = mock(BoxFile.Info.class);
+
+        when(file.getID()).thenReturn("1");
+        when(before.getEtag()).thenReturn(etag);
+        when(before.getSize()).thenReturn(size);
+        when(after.getEtag()).thenReturn(etagAfter);
+        when(file.getInfo("etag", "size")).thenReturn(before);
+        when(file.getInfo("etag")).thenReturn(after);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+                throws IOException
+            {
+                final Object[] args = invocation.getArguments();
+                final OutputStream out = (OutputStream) args[0];
+                final long start = (Long) args[1];
+                final long end = (Long) args[2];
+                final byte[] buf = new byte[64 * 1024];
+                long position = start;
+                int n;
+
+                while (position <= end) {
+                    n = (int) Math.min(buf.length, end - position + 1L);
+                    for (int i = 0; i < n; i++)
+                        buf[i] = byteAt(position + i);
+                    out.write(buf, 0, n);
+                    position += n;
+                }
+                return null;
+            }
+        }).when(file).downloadRange(any(OutputStream.class), anyLong(),
+            anyLong());
+
+        return file;
+    }
+
+    private static byte byteAt(final long position)
+    {
+        return (byte) (position % 251L);
+    }
+}
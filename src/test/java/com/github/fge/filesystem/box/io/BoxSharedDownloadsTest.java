@@ -0,0 +1,185 @@
+package com.github.fge.filesystem.box.io;
+
+import com.box.sdk.BoxFile;
+import com.github.fge.filesystem.box.connection.BoxConcurrencyLimiter;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class BoxSharedDownloadsTest
+{
+    private static final String ETAG = "1";
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void init()
+    {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void singleReadersDoNotUseTheCache()
+        throws IOException
+    {
+        final BoxSharedDownloads downloads
+            = new BoxSharedDownloads(BoxSharedDownloads.DEFAULT_CAPACITY);
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(4, 4, false);
+        final byte[] data = randomBytes(SharedDownload.BLOCK_SIZE * 2 + 1);
+        final BoxFile file = file("1", data);
+
+        for (int i = 0; i < 2; i++)
+            try (
+                final InputStream in = downloads.open(executor, limiter, file,
+                    ETAG);
+            ) {
+                assertThat(readAll(in)).isEqualTo(data);
+            }
+
+        assertThat(downloads.getDownloadCount()).isEqualTo(0L);
+        assertThat(downloads.getCachedBytes()).isEqualTo(0L);
+        verify(file, times(2)).download(any(OutputStream.class));
+    }
+
+    @Test
+    public void moreFilesThanTheCacheHoldsAreReadWithoutFallbacks()
+        throws Exception
+    {
+        final int files = 8;
+        final int blocks = 64;
+        final BoxSharedDownloads downloads = new BoxSharedDownloads(
+            (long) blocks * SharedDownload.BLOCK_SIZE);
+        final BoxConcurrencyLimiter limiter
+            = new BoxConcurrencyLimiter(2 * files, 2 * files, false);
+        final List<byte[]> contents = new ArrayList<>();
+        final List<InputStream> streams = new ArrayList<>();
+        byte[] data;
+        BoxFile file;
+
+        /*
+         * Hold all transfer slots while streams are opened, so that all shared
+         * downloads are known before any of them starts reading ahead
+         */
+        for (int i = 0; i < 2 * files; i++)
+            limiter.acquire();
+
+        for (int i = 0; i < files; i++) {
+            data = randomBytes(blocks / 4 * SharedDownload.BLOCK_SIZE + i);
+            file = file(String.valueOf(i), data);
+            contents.add(data);
+            streams.add(downloads.open(executor, limiter, file, ETAG));
+            streams.add(downloads.open(executor, limiter, file, ETAG));
+        }
+
+        final List<Future<byte[]>> futures = new ArrayList<>();
+
+        for (final InputStream in: streams)
+            futures.add(executor.submit(reader(in)));
+
+        for (int i = 0; i < 2 * files; i++)
+            limiter.release(System.nanoTime(), null);
+
+        for (int i = 0; i < futures.size(); i++)
+            assertThat(futures.get(i).get(30L, TimeUnit.SECONDS))
+                .isEqualTo(contents.get(i / 2));
+
+        assertThat(downloads.getDownloadCount()).isEqualTo((long) files);
+        assertThat(downloads.getEvictionCount()).isGreaterThan(0L);
+        assertThat(downloads.getFallbackCount()).isEqualTo(0L);
+    }
+
+    private static Callable<byte[]> reader(final InputStream in)
+    {
+        return new Callable<byte[]>()
+        {
+            @Override
+            public byte[] call()
+                throws IOException
+            {
+                try (
+                    final InputStream stream = in;
+                ) {
+                    return readAll(stream);
+                }
+            }
+        };
+    }
+
+    private static byte[] readAll(final InputStream in)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] b = new byte[8192];
+        int n;
+
+        while ((n = in.read(b)) != -1)
+            out.write(b, 0, n);
+
+        return out.toByteArray();
+    }
+
+    private static BoxFile file(final String id, final byte[] data)
+    {
+        final BoxFile file = mock(BoxFile.class);
+
+        when(file.getID()).thenReturn(id);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+                throws IOException
+            {
+                final OutputStream out
+                    = (OutputStream) invocation.getArguments()[0];
+                int off = 0;
+                int n;
+
+                while (off < data.length) {
+                    n = Math.min(8192, data.length - off);
+                    out.write(data, off, n);
+                    off += n;
+                }
+                return null;
+            }
+        }).when(file).download(any(OutputStream.class));
+
+        return file;
+    }
+
+    private static byte[] randomBytes(final int size)
+    {
+        final byte[] ret = new byte[size];
+        new Random(size).nextBytes(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,281 @@
+package com.github.fge.filesystem.box.io;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public final class ReadAheadBufferTest
+{
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void init()
+    {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void dataIsReadBackInOrder()
+        throws Exception
+    {
+        final byte[] data = randomBytes(3 * 1024 * 1024 + 17);
+        final ReadAheadBuffer buffer = new ReadAheadBuffer(false);
+
+        executor.submit(writer(buffer, data, 8192));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] b = new byte[5000];
+        int n;
+
+        while ((n = buffer.read(b, 0, b.length)) != -1)
+            out.write(b, 0, n);
+
+        assertThat(out.toByteArray()).isEqualTo(data);
+        assertThat(buffer.read()).isEqualTo(-1);
+        assertThat(buffer.close()).isTrue();
+    }
+
+    @Test
+    public void sequentialReadsGrowTheCapacity()
+        throws Exception
+    {
+        final byte[] data = randomBytes(2 * ReadAheadBuffer.MAX_CAPACITY);
+        final ReadAheadBuffer buffer = new ReadAheadBuffer(false);
+
+        executor.submit(writer(buffer, data, 8192));
+
+        /*
+         * Let the download fill the buffer: the reader then consumes a whole
+         * buffer's worth without waiting
+         */
+        Thread.sleep(200L);
+
+        while (buffer.skip(Long.MAX_VALUE) > 0L)
+            continue;
+
+        assertThat(buffer.getCapacity())
+            .isGreaterThan(ReadAheadBuffer.MIN_CAPACITY);
+    }
+
+    @Test
+    public void downloadFailureIsReportedToTheReader()
+        throws IOException
+    {
+        final ReadAheadBuffer buffer = new ReadAheadBuffer(false);
+        final IOException failure = new IOException("boom");
+
+        buffer.producer().write(new byte[] { 1, 2 });
+        buffer.finish(failure);
+
+        assertThat(buffer.read()).isEqualTo(1);
+        assertThat(buffer.read()).isEqualTo(2);
+        try {
+            buffer.read();
+            fail("no exception thrown");
+        } catch (IOException e) {
+            assertThat(e.getCause()).isSameAs(failure);
+        }
+    }
+
+    @Test
+    public void readAfterCloseFails()
+        throws IOException
+    {
+        final ReadAheadBuffer buffer = new ReadAheadBuffer(false);
+
+        buffer.producer().write(new byte[] { 1, 2, 3 });
+        buffer.finish(null);
+        assertThat(buffer.read()).isEqualTo(1);
+        assertThat(buffer.close()).isFalse();
+
+        try {
+            buffer.read();
+            fail("no exception thrown");
+        } catch (IOException e) {
+            assertThat(e).hasMessage("stream closed");
+        }
+        try {
+            buffer.read(new byte[10], 0, 10);
+            fail("no exception thrown");
+        } catch (IOException e) {
+            assertThat(e).hasMessage("stream closed");
+        }
+        try {
+            buffer.skip(10L);
+            fail("no exception thrown");
+        } catch (IOException e) {
+            assertThat(e).hasMessage("stream closed");
+        }
+    }
+
+    @Test
+    public void writeAfterCloseFails()
+        throws IOException
+    {
+        final ReadAheadBuffer buffer = new ReadAheadBuffer(false);
+
+        buffer.close();
+
+        try {
+            buffer.producer().write(new byte[ReadAheadBuffer.MIN_CAPACITY
+                + 1]);
+            fail("no exception thrown");
+        } catch (IOException e) {
+            assertThat(e).hasMessage("stream closed");
+        }
+    }
+
+    @Test
+    public void stalledReaderPausesTheDownloadAndDropsData()
+        throws Exception
+    {
+        final byte[] data = randomBytes(8 * 1024 * 1024);
+        final ReadAheadBuffer buffer = new ReadAheadBuffer(true);
+        final Future<Long> future
+            = executor.submit(pausingWriter(buffer, data));
+
+        /*
+         * Read some, then stall
+         */
+        final byte[] b = new byte[8192];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int n;
+
+        while (out.size() < 2 * 1024 * 1024) {
+            n = buffer.read(b, 0, b.length);
+            out.write(b, 0, n);
+        }
+
+        final long written = future.get(ReadAheadBuffer.PAUSE_MILLIS + 5000L,
+            TimeUnit.MILLISECONDS);
+
+        assertThat(buffer.isPaused()).isTrue();
+        assertThat(buffer.getCapacity())
+            .isEqualTo(ReadAheadBuffer.MIN_CAPACITY);
+        assertThat(buffer.available())
+            .isLessThanOrEqualTo(ReadAheadBuffer.MIN_CAPACITY + b.length);
+        assertThat(written).isEqualTo(out.size() + buffer.available());
+
+        /*
+         * The reader comes back: resume from where the buffer stopped
+         */
+        final Future<Boolean> resumed = executor.submit(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                throws Exception
+            {
+                if (!buffer.awaitResume())
+                    return false;
+                buffer.producer().write(data, (int) written,
+                    data.length - (int) written);
+                buffer.finish(null);
+                return true;
+            }
+        });
+
+        while ((n = buffer.read(b, 0, b.length)) != -1)
+            out.write(b, 0, n);
+
+        assertThat(resumed.get()).isTrue();
+        assertThat(out.toByteArray()).isEqualTo(data);
+    }
+
+    @Test
+    public void closingAPausedBufferAbortsTheResume()
+        throws Exception
+    {
+        final ReadAheadBuffer buffer = new ReadAheadBuffer(true);
+        final Future<Long> future = executor.submit(pausingWriter(buffer,
+            randomBytes(ReadAheadBuffer.MIN_CAPACITY * 4)));
+
+        future.get(ReadAheadBuffer.PAUSE_MILLIS + 5000L,
+            TimeUnit.MILLISECONDS);
+        assertThat(buffer.isPaused()).isTrue();
+
+        buffer.close();
+        assertThat(buffer.awaitResume()).isFalse();
+    }
+
+    private static Callable<Void> writer(final ReadAheadBuffer buffer,
+        final byte[] data, final int chunkSize)
+    {
+        return new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                throws IOException
+            {
+                final OutputStream out = buffer.producer();
+                int off = 0;
+                int n;
+
+                while (off < data.length) {
+                    n = Math.min(chunkSize, data.length - off);
+                    out.write(data, off, n);
+                    off += n;
+                }
+                buffer.finish(null);
+                return null;
+            }
+        };
+    }
+
+    /*
+     * Writes until the buffer pauses, and returns what it holds on to
+     */
+    private static Callable<Long> pausingWriter(final ReadAheadBuffer buffer,
+        final byte[] data)
+    {
+        return new Callable<Long>()
+        {
+            @Override
+            public Long call()
+                throws IOException
+            {
+                final OutputStream out = buffer.producer();
+                int off = 0;
+                int n;
+
+                try {
+                    while (off < data.length) {
+                        n = Math.min(8192, data.length - off);
+                        out.write(data, off, n);
+                        off += n;
+                    }
+                } catch (IOException e) {
+                    if (!buffer.isPaused())
+                        throw e;
+                    return buffer.getWritten();
+                }
+                throw new IllegalStateException("not paused");
+            }
+        };
+    }
+
+    private static byte[] randomBytes(final int size)
+    {
+        final byte[] ret = new byte[size];
+        new Random(size).nextBytes(ret);
+        return ret;
+    }
+}
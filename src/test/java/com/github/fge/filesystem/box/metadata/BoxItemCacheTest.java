@@ -0,0 +1,175 @@
+package com.github.fge.filesystem.box.metadata;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class BoxItemCacheTest
+{
+    private static final long FOLDER_ID = 42L;
+
+    private BoxItemCache cache;
+
+    @BeforeMethod
+    public void init()
+    {
+        cache = new BoxItemCache(30000L, TimeUnit.MILLISECONDS, 200L,
+            1000);
+    }
+
+    @Test
+    public void recordsAreReturnedByNameInTheirParent()
+    {
+        final BoxItemRecord record = file(1L, "foo");
+
+        cache.put(record);
+
+        assertThat(cache.get(FOLDER_ID, "foo")).isSameAs(record);
+        assertThat(cache.get(FOLDER_ID, "bar")).isNull();
+        assertThat(cache.get(FOLDER_ID + 1L, "foo")).isNull();
+        assertThat(cache.isKnownMissing(FOLDER_ID, "foo")).isFalse();
+    }
+
+    @Test
+    public void missingNamesExpireAfterTheNegativeTtl()
+        throws InterruptedException
+    {
+        cache.putMissing(FOLDER_ID, "foo");
+
+        assertThat(cache.get(FOLDER_ID, "foo")).isNull();
+        assertThat(cache.isKnownMissing(FOLDER_ID, "foo")).isTrue();
+        assertThat(cache.isKnownMissing(FOLDER_ID, "bar")).isFalse();
+
+        Thread.sleep(300L);
+
+        assertThat(cache.isKnownMissing(FOLDER_ID, "foo")).isFalse();
+    }
+
+    @Test
+    public void namesNotInACompleteFolderAreMissing()
+    {
+        cache.put(file(1L, "foo"), System.nanoTime());
+        cache.markComplete(FOLDER_ID, System.nanoTime());
+
+        assertThat(cache.isKnownMissing(FOLDER_ID, "foo")).isFalse();
+        assertThat(cache.isKnownMissing(FOLDER_ID, "bar")).isTrue();
+        assertThat(cache.isKnownMissing(FOLDER_ID + 1L, "bar")).isFalse();
+    }
+
+    @Test
+    public void completenessExpiresAfterTheNegativeTtl()
+        throws InterruptedException
+    {
+        cache.markComplete(FOLDER_ID, System.nanoTime());
+
+        assertThat(cache.isKnownMissing(FOLDER_ID, "bar")).isTrue();
+
+        Thread.sleep(300L);
+
+        assertThat(cache.isKnownMissing(FOLDER_ID, "bar")).isFalse();
+    }
+
+    @Test
+    public void invalidatingAnEntryForgetsIt()
+    {
+        cache.put(file(1L, "foo"));
+        cache.invalidate(FOLDER_ID, "foo");
+
+        assertThat(cache.get(FOLDER_ID, "foo")).isNull();
+    }
+
+    @Test
+    public void invalidatingAFolderForgetsItsCompleteness()
+    {
+        cache.markComplete(FOLDER_ID, System.nanoTime());
+        cache.invalidateDirectory(FOLDER_ID);
+
+        assertThat(cache.isKnownMissing(FOLDER_ID, "bar")).isFalse();
+    }
+
+    @Test
+    public void listingsStartedBeforeAnInvalidationRecordNothing()
+    {
+        final long listedAt = System.nanoTime();
+
+        cache.invalidate(FOLDER_ID, "bar");
+
+        cache.put(file(1L, "foo"), listedAt);
+        cache.putMissing(FOLDER_ID, "bar", listedAt);
+        cache.markComplete(FOLDER_ID, listedAt);
+
+        assertThat(cache.get(FOLDER_ID, "foo")).isNull();
+        assertThat(cache.isKnownMissing(FOLDER_ID, "bar")).isFalse();
+    }
+
+    @Test
+    public void invalidationsOfOtherFoldersDoNotAffectListings()
+    {
+        final long listedAt = System.nanoTime();
+        final BoxItemRecord record = file(1L, "foo");
+
+        cache.invalidate(FOLDER_ID + 1L, "bar");
+
+        cache.put(record, listedAt);
+        cache.markComplete(FOLDER_ID, listedAt);
+
+        assertThat(cache.get(FOLDER_ID, "foo")).isSameAs(record);
+        assertThat(cache.isKnownMissing(FOLDER_ID, "bar")).isTrue();
+    }
+
+    @Test
+    public void listingsStartedAfterAnInvalidationAreRecorded()
+    {
+        cache.invalidate(FOLDER_ID, "foo");
+
+        final long listedAt = System.nanoTime();
+        final BoxItemRecord record = file(1L, "foo");
+
+        cache.put(record, listedAt);
+        cache.markComplete(FOLDER_ID, listedAt);
+
+        assertThat(cache.get(FOLDER_ID, "foo")).isSameAs(record);
+        assertThat(cache.isKnownMissing(FOLDER_ID, "bar")).isTrue();
+    }
+
+    @Test
+    public void listingsStartedBeforeAClearRecordNothing()
+    {
+        final long listedAt = System.nanoTime();
+
+        cache.invalidateAll();
+
+        cache.put(file(1L, "foo"), listedAt);
+        cache.markComplete(FOLDER_ID, listedAt);
+
+        assertThat(cache.get(FOLDER_ID, "foo")).isNull();
+        assertThat(cache.isKnownMissing(FOLDER_ID, "bar")).isFalse();
+    }
+
+    @Test
+    public void loadedFoldersAreComplete()
+    {
+        final long since = System.nanoTime();
+        final BoxItemRecord record = file(1L, "foo");
+
+        cache.load(Collections.singletonList(record),
+            Collections.singleton(FOLDER_ID));
+
+        assertThat(cache.get(FOLDER_ID, "foo")).isSameAs(record);
+        assertThat(cache.isKnownMissing(FOLDER_ID, "bar")).isTrue();
+        assertThat(cache.getCompleteDirectories(since))
+            .containsOnly(FOLDER_ID);
+    }
+
+    private static BoxItemRecord file(final long id, final String name)
+    {
+        return new BoxItemRecord(id, FOLDER_ID, BoxItemRecord.Type.FILE, name,
+            "0", null, null, 3L, BoxItemRecord.UNKNOWN_DATE,
+            BoxItemRecord.UNKNOWN_DATE, BoxItemRecord.UNKNOWN_VERSION, null,
+            false);
+    }
+}
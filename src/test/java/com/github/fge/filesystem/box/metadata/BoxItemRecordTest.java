@@ -0,0 +1,151 @@
+package com.github.fge.filesystem.box.metadata;
+
+import com.eclipsesource.json.JsonObject;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public final class BoxItemRecordTest
+{
+    private static final String FILE = "{\"type\":\"file\",\"id\":\"12\","
+        + "\"name\":\"foo.txt\",\"etag\":\"3\",\"sequence_id\":\"3\","
+        + "\"sha1\":\"0123456789abcdef0123456789abcdef01234567\","
+        + "\"size\":1024,\"created_at\":\"2015-01-02T03:04:05-08:00\","
+        + "\"modified_at\":\"2015-01-02T03:04:05-08:00\","
+        + "\"version_number\":\"4\",\"owned_by\":{\"type\":\"user\","
+        + "\"login\":\"jdoe@example.com\"},\"shared_link\":null}";
+
+    private BoxItemCache cache;
+
+    @BeforeMethod
+    public void init()
+    {
+        cache = new BoxItemCache();
+    }
+
+    @Test
+    public void fileMetadataIsRecorded()
+    {
+        final BoxItemRecord record
+            = BoxItemRecord.of(7L, JsonObject.readFrom(FILE), cache);
+
+        assertThat(record).isNotNull();
+        assertThat(record.getId()).isEqualTo(12L);
+        assertThat(record.getParentId()).isEqualTo(7L);
+        assertThat(record.getType()).isEqualTo(BoxItemRecord.Type.FILE);
+        assertThat(record.getName()).isEqualTo("foo.txt");
+        assertThat(record.getEtag()).isEqualTo("3");
+        assertThat(record.getSha1())
+            .isEqualTo("0123456789abcdef0123456789abcdef01234567");
+        assertThat(record.getSize()).isEqualTo(1024L);
+        assertThat(record.getCreatedAt()).isEqualTo(1420196645000L);
+        assertThat(record.getVersionNumber()).isEqualTo(4L);
+        assertThat(record.getOwner()).isEqualTo("jdoe@example.com");
+        assertThat(record.isShared()).isFalse();
+    }
+
+    @Test
+    public void folderSizesInExponentNotationAreParsed()
+    {
+        final JsonObject json = JsonObject.readFrom("{\"type\":\"folder\","
+            + "\"id\":\"13\",\"name\":\"bar\",\"size\":1.2E10}");
+        final BoxItemRecord record = BoxItemRecord.of(0L, json, cache);
+
+        assertThat(record).isNotNull();
+        assertThat(record.isFolder()).isTrue();
+        assertThat(record.getSize()).isEqualTo(12000000000L);
+        assertThat(record.getCreatedAt())
+            .isEqualTo(BoxItemRecord.UNKNOWN_DATE);
+        assertThat(record.getVersionNumber())
+            .isEqualTo(BoxItemRecord.UNKNOWN_VERSION);
+    }
+
+    @Test
+    public void itemsOtherThanFilesAndFoldersAreIgnored()
+    {
+        final JsonObject json = JsonObject.readFrom("{\"type\":\"web_link\","
+            + "\"id\":\"14\",\"name\":\"baz\"}");
+
+        assertThat(BoxItemRecord.of(0L, json, cache)).isNull();
+    }
+
+    @Test
+    public void streamedMetadataIsTheSameAsParsedMetadata()
+        throws IOException
+    {
+        final BoxItemRecord record = read(7L, FILE, null);
+        final BoxItemRecord expected
+            = BoxItemRecord.of(7L, JsonObject.readFrom(FILE), cache);
+
+        assertThat(record).isNotNull();
+        assertThat(expected).isNotNull();
+        assertThat(record.getId()).isEqualTo(expected.getId());
+        assertThat(record.getName()).isEqualTo(expected.getName());
+        assertThat(record.getEtag()).isEqualTo(expected.getEtag());
+        assertThat(record.getSha1()).isEqualTo(expected.getSha1());
+        assertThat(record.getSize()).isEqualTo(expected.getSize());
+        assertThat(record.getModifiedAt())
+            .isEqualTo(expected.getModifiedAt());
+        assertThat(record.getOwner()).isEqualTo(expected.getOwner());
+    }
+
+    @Test
+    public void streamedFolderSizesInExponentNotationAreParsed()
+        throws IOException
+    {
+        final BoxItemRecord record = read(0L, "{\"type\":\"folder\","
+            + "\"id\":\"13\",\"name\":\"bar\",\"size\":1.2E10}", null);
+
+        assertThat(record).isNotNull();
+        assertThat(record.getSize()).isEqualTo(12000000000L);
+    }
+
+    @Test
+    public void invalidStreamedSizesAreReported()
+    {
+        try {
+            read(0L, "{\"type\":\"file\",\"id\":\"13\",\"name\":\"bar\","
+                + "\"size\":\"big\"}", null);
+            fail("no exception thrown");
+        } catch (IOException e) {
+            assertThat(e).isInstanceOf(BoxIOException.class)
+                .hasMessage("invalid item metadata");
+        }
+    }
+
+    @Test
+    public void pathCollectionsGiveTheParentAndAncestors()
+        throws IOException
+    {
+        final List<BoxItemRecord> ancestors = new ArrayList<>();
+        final BoxItemRecord record = read(BoxItemRecord.NO_PARENT,
+            "{\"type\":\"file\",\"id\":\"15\",\"name\":\"baz\","
+            + "\"path_collection\":{\"total_count\":2,\"entries\":["
+            + "{\"type\":\"folder\",\"id\":\"0\",\"name\":\"All Files\"},"
+            + "{\"type\":\"folder\",\"id\":\"20\",\"name\":\"dir\"}]}}",
+            ancestors);
+
+        assertThat(record).isNotNull();
+        assertThat(record.getParentId()).isEqualTo(20L);
+        assertThat(ancestors).hasSize(2);
+        assertThat(ancestors.get(1).getName()).isEqualTo("dir");
+        assertThat(ancestors.get(1).getParentId())
+            .isEqualTo(BoxItemRecord.ROOT_ID);
+    }
+
+    private BoxItemRecord read(final long parentId, final String json,
+        final List<BoxItemRecord> ancestors)
+        throws IOException
+    {
+        return BoxItemRecord.read(parentId,
+            new BoxJsonReader(new StringReader(json)), cache, ancestors);
+    }
+}
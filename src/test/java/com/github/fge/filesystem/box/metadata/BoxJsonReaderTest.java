@@ -0,0 +1,218 @@
+package com.github.fge.filesystem.box.metadata;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public final class BoxJsonReaderTest
+{
+    @Test
+    public void objectsAndArraysAreReadInOrder()
+        throws IOException
+    {
+        final BoxJsonReader reader = reader("{\"a\": 1, \"b\": [true, null,"
+            + " \"x\"], \"c\": {}}");
+
+        reader.beginObject();
+        assertThat(reader.nextName()).isEqualTo("a");
+        assertThat(reader.peek()).isEqualTo(BoxJsonReader.Token.NUMBER);
+        assertThat(reader.nextLong()).isEqualTo(1L);
+        assertThat(reader.nextName()).isEqualTo("b");
+        reader.beginArray();
+        assertThat(reader.nextString()).isEqualTo("true");
+        assertThat(reader.nextOptionalString()).isNull();
+        assertThat(reader.nextString()).isEqualTo("x");
+        assertThat(reader.hasNext()).isFalse();
+        reader.endArray();
+        assertThat(reader.nextName()).isEqualTo("c");
+        reader.beginObject();
+        assertThat(reader.hasNext()).isFalse();
+        reader.endObject();
+        assertThat(reader.hasNext()).isFalse();
+        reader.endObject();
+        assertThat(reader.peek())
+            .isEqualTo(BoxJsonReader.Token.END_DOCUMENT);
+    }
+
+    @Test
+    public void stringValuesAreNotNames()
+        throws IOException
+    {
+        final BoxJsonReader reader = reader("{\"a\":\"b\",\"c\":[\"d\"]}");
+
+        reader.beginObject();
+        assertThat(reader.peek()).isEqualTo(BoxJsonReader.Token.NAME);
+        assertThat(reader.nextName()).isEqualTo("a");
+        assertThat(reader.peek()).isEqualTo(BoxJsonReader.Token.STRING);
+        assertThat(reader.nextString()).isEqualTo("b");
+        assertThat(reader.peek()).isEqualTo(BoxJsonReader.Token.NAME);
+        assertThat(reader.nextName()).isEqualTo("c");
+        reader.beginArray();
+        assertThat(reader.peek()).isEqualTo(BoxJsonReader.Token.STRING);
+    }
+
+    @Test
+    public void escapesAreDecoded()
+        throws IOException
+    {
+        final BoxJsonReader reader = reader("[\"\\\"\\\\\\/\\b\\f\\n\\r\\t\","
+            + " \"caf\\u00e9 \\uD83D\\uDE00\"]");
+
+        reader.beginArray();
+        assertThat(reader.nextString()).isEqualTo("\"\\/\b\f\n\r\t");
+        assertThat(reader.nextString()).isEqualTo("caf\u00e9 \uD83D\uDE00");
+        reader.endArray();
+    }
+
+    @DataProvider
+    public Iterator<Object[]> numbers()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { "0" });
+        list.add(new Object[] { "-12" });
+        list.add(new Object[] { "3.25" });
+        list.add(new Object[] { "1.2E10" });
+        list.add(new Object[] { "1e-3" });
+        list.add(new Object[] { "-0.5E+2" });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "numbers")
+    public void numbersAreReadAsTheyAppear(final String number)
+        throws IOException
+    {
+        final BoxJsonReader reader = reader("[" + number + ']');
+
+        reader.beginArray();
+        assertThat(reader.peek()).isEqualTo(BoxJsonReader.Token.NUMBER);
+        assertThat(reader.nextString()).isEqualTo(number);
+        reader.endArray();
+    }
+
+    @Test
+    public void nestedValuesAreSkipped()
+        throws IOException
+    {
+        final BoxJsonReader reader = reader("{\"skipped\": {\"a\": [1, [2, "
+            + "{\"b\": {}}], []], \"c\": \"]}\"}, \"kept\": 3}");
+
+        reader.beginObject();
+        assertThat(reader.nextName()).isEqualTo("skipped");
+        reader.skipValue();
+        assertThat(reader.nextName()).isEqualTo("kept");
+        assertThat(reader.nextLong()).isEqualTo(3L);
+        reader.endObject();
+        assertThat(reader.peek())
+            .isEqualTo(BoxJsonReader.Token.END_DOCUMENT);
+    }
+
+    @Test
+    public void deeplyNestedArraysAreRead()
+        throws IOException
+    {
+        final int depth = 100;
+        final StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < depth; i++)
+            sb.append('[');
+        for (int i = 0; i < depth; i++)
+            sb.append(']');
+
+        final BoxJsonReader reader = reader(sb.toString());
+
+        reader.skipValue();
+        assertThat(reader.peek())
+            .isEqualTo(BoxJsonReader.Token.END_DOCUMENT);
+    }
+
+    @DataProvider
+    public Iterator<Object[]> malformedDocuments()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        // Truncated
+        list.add(new Object[] { "" });
+        list.add(new Object[] { "{" });
+        list.add(new Object[] { "{\"a\"" });
+        list.add(new Object[] { "{\"a\":" });
+        list.add(new Object[] { "{\"a\":1" });
+        list.add(new Object[] { "{\"a\":1," });
+        list.add(new Object[] { "[1, 2" });
+        list.add(new Object[] { "[\"abc" });
+        list.add(new Object[] { "[\"abc\\" });
+        list.add(new Object[] { "[\"\\u00" });
+        // Separators
+        list.add(new Object[] { "{\"a\" 1}" });
+        list.add(new Object[] { "{\"a\":1 \"b\":2}" });
+        list.add(new Object[] { "{\"a\",1}" });
+        list.add(new Object[] { "{\"a\"::1}" });
+        list.add(new Object[] { "{,\"a\":1}" });
+        list.add(new Object[] { "{\"a\":1,}" });
+        list.add(new Object[] { "[1 2]" });
+        list.add(new Object[] { "[1,,2]" });
+        list.add(new Object[] { "[,1]" });
+        list.add(new Object[] { "[1,]" });
+        list.add(new Object[] { "[1:2]" });
+        list.add(new Object[] { "{1:2}" });
+        // Structure
+        list.add(new Object[] { "{\"a\":1]" });
+        list.add(new Object[] { "[1}" });
+        list.add(new Object[] { "{} {}" });
+        list.add(new Object[] { "[] x" });
+        // Literals and escapes
+        list.add(new Object[] { "[nul]" });
+        list.add(new Object[] { "[01]" });
+        list.add(new Object[] { "[1.]" });
+        list.add(new Object[] { "[--1]" });
+        list.add(new Object[] { "[1\"a\"]" });
+        list.add(new Object[] { "[\"\\x\"]" });
+        list.add(new Object[] { "[\"\\u12g4\"]" });
+        list.add(new Object[] { "[\"a\nb\"]" });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "malformedDocuments")
+    public void malformedDocumentsAreRejected(final String json)
+    {
+        final BoxJsonReader reader = reader(json);
+
+        try {
+            reader.skipValue();
+            reader.peek();
+            fail("no exception thrown");
+        } catch (IOException ignored) {
+            // expected
+        }
+    }
+
+    @Test
+    public void onlyValuesCanBeSkipped()
+        throws IOException
+    {
+        final BoxJsonReader reader = reader("{\"a\":[]}");
+
+        reader.beginObject();
+        try {
+            reader.skipValue();
+            fail("no exception thrown");
+        } catch (IOException e) {
+            assertThat(e).hasMessage("expected a value but found NAME");
+        }
+    }
+
+    private static BoxJsonReader reader(final String json)
+    {
+        return new BoxJsonReader(new StringReader(json));
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.fge.filesystem.box.provider;
+
+import com.github.fge.filesystem.box.connection.BoxConnectionLease;
+import com.github.fge.filesystem.box.connection.BoxConnectionPool;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public final class BoxFileSystemRepositoryTest
+{
+    private static final URI ROOT = URI.create("box:///");
+
+    private BoxFileSystemRepository repository;
+    private BoxConnectionPool pool;
+    private Map<String, Object> env;
+
+    @BeforeMethod
+    public void init()
+    {
+        repository = new BoxFileSystemRepository();
+        pool = new BoxConnectionPool();
+        env = new HashMap<>();
+        env.put("accessToken", "token");
+        env.put("connectionPool", pool);
+        env.put("shards", Arrays.asList("token1", "token2"));
+    }
+
+    @Test
+    public void invalidSettingsAreReportedBeforeAnyConnectionIsMade()
+        throws IOException
+    {
+        for (final String key: Arrays.asList("accessToken",
+            "credentialManager", "metadataSnapshot", "spoolDirectory",
+            "spoolConcurrency")) {
+            final Object previous = env.put(key, 42L);
+            try {
+                repository.createDriver(ROOT, env);
+                fail("no exception thrown");
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage()).startsWith(key);
+            }
+            env.put(key, previous);
+        }
+
+        env.put("shards", Arrays.asList("token1", 42L));
+        try {
+            repository.createDriver(ROOT, env);
+            fail("no exception thrown");
+        } catch (IllegalArgumentException e) {
+            assertThat(e).hasMessage("shards must be access tokens or "
+                + "credential managers");
+        }
+
+        assertThat(pool.getCreatedConnectionCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void leasesAreReleasedWhenTheDriverCannotBeCreated()
+    {
+        /*
+         * Fetching the quota cannot succeed here
+         */
+        try {
+            repository.createDriver(ROOT, env);
+            fail("no exception thrown");
+        } catch (IOException | RuntimeException ignored) {
+            // expected
+        }
+
+        assertThat(pool.getCreatedConnectionCount()).isEqualTo(3L);
+
+        try (
+            final BoxConnectionLease lease = pool.acquire("token");
+        ) {
+            assertThat(lease.getConnection()).isNotNull();
+        }
+
+        assertThat(pool.getCreatedConnectionCount()).isEqualTo(4L);
+        assertThat(pool.getSharedConnectionCount()).isEqualTo(0L);
+    }
+}
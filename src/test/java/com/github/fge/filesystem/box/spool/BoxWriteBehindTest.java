@@ -0,0 +1,315 @@
+package com.github.fge.filesystem.box.spool;
+
+import com.box.sdk.BoxAPIException;
+import com.github.fge.filesystem.box.exceptions.BoxIOException;
+import com.github.fge.filesystem.box.io.BoxUploadListener;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public final class BoxWriteBehindTest
+{
+    private Path spoolDir;
+    private FakeUploader uploader;
+    private BoxWriteBehind writeBehind;
+
+    @BeforeMethod
+    public void init()
+        throws IOException
+    {
+        spoolDir = Files.createTempDirectory("spool");
+        uploader = new FakeUploader();
+        writeBehind = new BoxWriteBehind(spoolDir, uploader, 2);
+        writeBehind.start(BoxUploadListener.NONE);
+    }
+
+    @AfterMethod
+    public void shutdown()
+        throws IOException
+    {
+        writeBehind.close();
+        for (final Path path: list())
+            Files.delete(path);
+        Files.delete(spoolDir);
+    }
+
+    @Test
+    public void spooledFilesAreUploadedAndDeleted()
+        throws IOException
+    {
+        write("1", "a.txt", null, null, "new");
+        write("1", "b.txt", "2", "e2", "replaced");
+        writeBehind.flush();
+
+        assertThat(uploader.uploads).containsOnly("file 1/a.txt new",
+            "version 2 e2 replaced");
+        assertThat(writeBehind.getUploadedCount()).isEqualTo(2L);
+        assertThat(list()).isEmpty();
+    }
+
+    @Test
+    public void spooledFilesLeftOverAreRecovered()
+        throws IOException
+    {
+        writeBehind.close();
+
+        final SpoolEntry entry = new SpoolEntry(spoolDir, "0-000001-x", "1",
+            "a.txt", "2", "e2");
+        Files.write(entry.getData(), bytes("recovered"));
+        entry.commit();
+        Files.write(spoolDir.resolve("0-000002-y" + SpoolEntry.DATA_SUFFIX),
+            bytes("incomplete"));
+
+        writeBehind = new BoxWriteBehind(spoolDir, uploader, 2);
+        writeBehind.start(BoxUploadListener.NONE);
+        writeBehind.flush();
+
+        assertThat(uploader.uploads).containsExactly("version 2 e2 recovered");
+        assertThat(writeBehind.getRecoveredCount()).isEqualTo(1L);
+        assertThat(list()).isEmpty();
+    }
+
+    @Test
+    public void supersededFilesAreNotUploaded()
+        throws IOException, InterruptedException
+    {
+        uploader.block();
+        write("1", "a.txt", null, null, "first");
+        uploader.awaitBlocked();
+
+        /*
+         * The target is busy: both wait, and only the last one is uploaded
+         */
+        write("1", "a.txt", null, null, "second");
+        write("1", "a.txt", null, null, "third");
+        write("1", "b.txt", null, null, "other");
+
+        /*
+         * Other targets do not wait
+         */
+        final long deadline = System.nanoTime()
+            + TimeUnit.SECONDS.toNanos(5L);
+
+        while (!uploader.uploads.contains("file 1/b.txt other")) {
+            if (System.nanoTime() > deadline)
+                fail("other target was not uploaded");
+            Thread.sleep(10L);
+        }
+
+        uploader.unblock();
+        writeBehind.flush();
+
+        assertThat(uploader.uploads).containsOnly("file 1/a.txt first",
+            "file 1/a.txt third", "file 1/b.txt other");
+        assertThat(uploader.uploads.indexOf("file 1/a.txt first"))
+            .isLessThan(uploader.uploads.indexOf("file 1/a.txt third"));
+        assertThat(writeBehind.getSupersededCount()).isEqualTo(1L);
+        assertThat(list()).isEmpty();
+    }
+
+    @Test
+    public void throttledUploadsAreRetried()
+        throws IOException
+    {
+        uploader.failures.add(429);
+        write("1", "a.txt", null, null, "data");
+        writeBehind.flush();
+
+        assertThat(uploader.uploads).containsExactly("file 1/a.txt data");
+        assertThat(writeBehind.getRetryCount()).isEqualTo(1L);
+        assertThat(writeBehind.getFailureCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void filesChangedInTheMeantimeAreNotOverwritten()
+        throws IOException
+    {
+        uploader.failures.add(412);
+        write("1", "a.txt", "2", "e2", "data");
+
+        try {
+            writeBehind.flush();
+            fail("no exception thrown");
+        } catch (BoxIOException e) {
+            assertThat(e.getSuppressed()).hasSize(1);
+        }
+
+        assertThat(uploader.uploads).isEmpty();
+        assertThat(writeBehind.getConflictCount()).isEqualTo(1L);
+        assertThat(writeBehind.getRetryCount()).isEqualTo(0L);
+
+        /*
+         * The spooled file is kept, but not uploaded again
+         */
+        final List<Path> kept = list();
+        assertThat(kept).hasSize(2);
+
+        writeBehind.close();
+        writeBehind = new BoxWriteBehind(spoolDir, uploader, 2);
+        writeBehind.start(BoxUploadListener.NONE);
+        writeBehind.flush();
+
+        assertThat(writeBehind.getRecoveredCount()).isEqualTo(0L);
+        assertThat(list()).isEqualTo(kept);
+    }
+
+    @Test
+    public void filesCreatedInTheMeantimeGetANewVersion()
+        throws IOException
+    {
+        uploader.failures.add(409);
+        write("1", "a.txt", null, null, "data");
+        writeBehind.flush();
+
+        assertThat(uploader.uploads).containsExactly("version 3 e3 data");
+    }
+
+    private void write(final String parentId, final String name,
+        final String fileId, final String etag, final String contents)
+        throws IOException
+    {
+        try (
+            final OutputStream out = writeBehind.open(parentId, name, fileId,
+                etag, BoxUploadListener.NONE);
+        ) {
+            out.write(bytes(contents));
+        }
+    }
+
+    private List<Path> list()
+        throws IOException
+    {
+        final List<Path> ret = new ArrayList<>();
+
+        try (
+            final DirectoryStream<Path> stream
+                = Files.newDirectoryStream(spoolDir);
+        ) {
+            for (final Path path: stream)
+                ret.add(path);
+        }
+
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static byte[] bytes(final String s)
+    {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Records uploads as strings; fails with the queued codes first, and
+     * blocks the first upload if asked to
+     */
+    private static final class FakeUploader
+        implements SpoolUploader
+    {
+        private static final String CONFLICT = "{\"context_info\":"
+            + "{\"conflicts\":{\"type\":\"file\",\"id\":\"3\","
+            + "\"name\":\"a.txt\",\"etag\":\"e3\"}}}";
+
+        private final List<String> uploads
+            = Collections.synchronizedList(new ArrayList<String>());
+        private final Queue<Integer> failures = new LinkedList<>();
+        private volatile CountDownLatch blocked = null;
+        private volatile CountDownLatch release = null;
+
+        @Override
+        public void uploadFile(final String parentId, final String name,
+            final InputStream in)
+            throws BoxIOException
+        {
+            upload("file " + parentId + '/' + name, in);
+        }
+
+        @Override
+        public void uploadVersion(final String fileId, final String etag,
+            final InputStream in)
+            throws BoxIOException
+        {
+            upload("version " + fileId + ' ' + etag, in);
+        }
+
+        private void block()
+        {
+            blocked = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+        }
+
+        private void awaitBlocked()
+            throws InterruptedException
+        {
+            assertThat(blocked.await(5L, TimeUnit.SECONDS)).isTrue();
+        }
+
+        private void unblock()
+        {
+            release.countDown();
+        }
+
+        private void upload(final String target, final InputStream in)
+            throws BoxIOException
+        {
+            final Integer code;
+
+            synchronized (failures) {
+                code = failures.poll();
+            }
+
+            if (code != null) {
+                final BoxAPIException exception = mock(BoxAPIException.class);
+                when(exception.getResponseCode()).thenReturn(code);
+                when(exception.getResponse()).thenReturn(CONFLICT);
+                throw BoxIOException.wrap(exception);
+            }
+
+            final CountDownLatch latch = blocked;
+
+            if (latch != null && latch.getCount() > 0L) {
+                latch.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BoxIOException("interrupted", e);
+                }
+            }
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[256];
+            int n;
+
+            try {
+                while ((n = in.read(buf)) != -1)
+                    out.write(buf, 0, n);
+            } catch (IOException e) {
+                throw new BoxIOException("read failed", e);
+            }
+
+            uploads.add(target + ' '
+                + new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.fge.filesystem.box.watch;
+
+import com.github.fge.filesystem.box.driver.BoxAPIWrapper;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public final class BoxWatchKeyTest
+{
+    private static final Path DIR = Paths.get("/dir");
+    private static final long FOLDER = 1L;
+    private static final long ELSEWHERE = 2L;
+
+    private BoxWatchService service;
+    private Map<Long, String> children;
+
+    @BeforeMethod
+    public void init()
+    {
+        /*
+         * The poller is only needed to register and cancel keys
+         */
+        service = new BoxWatchService(mock(BoxAPIWrapper.class), null);
+        children = new HashMap<>();
+        children.put(10L, "a");
+        children.put(11L, "b");
+    }
+
+    @Test
+    public void entriesAreCreatedModifiedAndDeleted()
+    {
+        final BoxWatchKey key = key(StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+
+        assertThat(key.process(12L, "c", FOLDER, false)).isNull();
+        assertThat(key.process(10L, "a", FOLDER, false)).isNull();
+        assertThat(key.process(10L, "a", FOLDER, false)).isNull();
+        assertThat(key.process(11L, "b", FOLDER, true)).isEqualTo("b");
+
+        /*
+         * Deleted items are not known any more
+         */
+        assertThat(key.process(11L, "b", ELSEWHERE, true)).isNull();
+
+        assertThat(events(key)).containsExactly("ENTRY_CREATE: c (1)",
+            "ENTRY_MODIFY: a (2)", "ENTRY_DELETE: b (1)");
+        assertThat(service.poll()).isSameAs(key);
+        assertThat(service.poll()).isNull();
+    }
+
+    @Test
+    public void renamesAndMovesReportTheFormerName()
+    {
+        final BoxWatchKey key = key(StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE);
+
+        assertThat(key.process(10L, "z", FOLDER, false)).isEqualTo("a");
+        assertThat(key.process(11L, "b", ELSEWHERE, false)).isEqualTo("b");
+        assertThat(key.process(12L, "c", ELSEWHERE, false)).isNull();
+
+        /*
+         * Modifications are not watched for
+         */
+        assertThat(key.process(10L, "z", FOLDER, false)).isNull();
+
+        assertThat(events(key)).containsExactly("ENTRY_DELETE: a (1)",
+            "ENTRY_CREATE: z (1)", "ENTRY_DELETE: b (1)");
+    }
+
+    @Test
+    public void tooManyEventsOverflow()
+    {
+        final BoxWatchKey key = key(StandardWatchEventKinds.ENTRY_CREATE);
+
+        for (long id = 100L; id < 1000L; id++)
+            key.process(id, "file" + id, FOLDER, false);
+
+        assertThat(events(key)).containsExactly("OVERFLOW: null (1)");
+
+        /*
+         * Once events are retrieved, new ones are reported again
+         */
+        key.process(1000L, "new", FOLDER, false);
+        key.overflow();
+        key.process(1001L, "newer", FOLDER, false);
+
+        assertThat(events(key)).containsExactly("OVERFLOW: null (1)");
+        assertThat(key.pollEvents()).isEmpty();
+    }
+
+    private BoxWatchKey key(final WatchEvent.Kind<?>... kinds)
+    {
+        final Set<WatchEvent.Kind<?>> set = new HashSet<>(Arrays.asList(kinds));
+
+        return new BoxWatchKey(service, DIR, FOLDER, set, children);
+    }
+
+    private static List<String> events(final BoxWatchKey key)
+    {
+        final List<String> ret = new ArrayList<>();
+
+        for (final WatchEvent<?> event: key.pollEvents())
+            ret.add(event.toString());
+
+        return ret;
+    }
+}